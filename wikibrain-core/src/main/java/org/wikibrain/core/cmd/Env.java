@@ -73,6 +73,24 @@ public class Env implements Closeable {
         LOG.info("using tmpDir " + tmpDir);
     }
 
+    private Env(Configuration configuration, Configurator configurator) {
+        this.configuration = configuration;
+        this.configurator = configurator;
+    }
+
+    /**
+     * Creates an environment with the same configuration whose configurator is a scope
+     * of this environment's configurator (see {@link Configurator#createScope(java.util.Collection)}).
+     * Closing the scoped environment only closes the components it created.
+     *
+     * @param sharedTypes Component types that are shared with this environment.
+     * @return
+     * @throws ConfigurationException
+     */
+    public Env createScope(Collection<Class> sharedTypes) throws ConfigurationException {
+        return new Env(configuration, configurator.createScope(sharedTypes));
+    }
+
     private void configureDefaultLogging() {
         System.setProperty("org.jooq.no-logo", "true");
         System.setProperty("log4j.configurationFile", "wikibrain-log4j2.yaml");
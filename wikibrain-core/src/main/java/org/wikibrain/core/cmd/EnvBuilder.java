@@ -1,6 +1,7 @@
 package org.wikibrain.core.cmd;
 
 import org.apache.commons.cli.*;
+import org.wikibrain.conf.Configuration;
 import org.wikibrain.conf.ConfigurationException;
 import org.wikibrain.conf.DefaultOptionBuilder;
 import org.wikibrain.core.lang.LanguageSet;
@@ -183,6 +184,18 @@ public class EnvBuilder {
         }
     }
 
+    /**
+     * @return The configuration an environment built by this builder would use,
+     * without constructing the environment.
+     */
+    public Configuration buildConfiguration() {
+        if (configOverride == null) {
+            return new Configuration(params);
+        } else {
+            return new Configuration(params, configOverride);
+        }
+    }
+
     public Env build() throws ConfigurationException {
         if (configOverride == null) {
             return new Env(params);
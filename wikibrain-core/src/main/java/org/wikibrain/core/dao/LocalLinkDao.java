@@ -46,6 +46,29 @@ public interface LocalLinkDao extends Dao<LocalLink> {
      */
     double getPageRank(LocalId localId);
 
+    /**
+     * Returns the PageRank of many pages at once.
+     * Currently only implemented by the MatrixLocalLinkDao.
+     * See {@link #getPageRank(Language, int)}.
+     *
+     * @param language
+     * @param pageIds
+     * @return An array whose i'th entry is the PageRank of pageIds[i], or 0.0 if it has none.
+     * @throws DaoException
+     */
+    double[] getPageRanks(Language language, int pageIds[]) throws DaoException;
+
+    /**
+     * Returns the pages with the highest PageRank in a language.
+     * Currently only implemented by the MatrixLocalLinkDao.
+     *
+     * @param language
+     * @param n
+     * @return Up to n page ids in descending order of PageRank.
+     * @throws DaoException
+     */
+    int[] getTopPageRankIds(Language language, int n) throws DaoException;
+
     /**
      * get all the links on a page matching criteria
      *
@@ -70,4 +93,43 @@ public interface LocalLinkDao extends Dao<LocalLink> {
      */
     public Iterable<LocalLink> getLinks(Language language, int localId, boolean outlinks) throws DaoException;
 
+    /**
+     * Writes the ids of the pages linked to or from a page into a caller-provided buffer
+     * without creating LocalLink objects. Red links are skipped. Ids are in no particular
+     * order, and a page appears once for every link to (or from) it.
+     *
+     * @param language
+     * @param localId
+     * @param outlinks true for outlinks, false for inlinks
+     * @param buffer Receives the ids of the linked pages.
+     * @return The number of linked pages. If this is larger than the buffer, only the
+     * first buffer.length ids were written, and the caller should retry with a larger buffer.
+     * @throws DaoException
+     */
+    public int getLinkIds(Language language, int localId, boolean outlinks, int buffer[]) throws DaoException;
+
+    /**
+     * Returns the ids of the pages linked to or from a page.
+     * See {@link #getLinkIds(Language, int, boolean, int[])}.
+     *
+     * @param language
+     * @param localId
+     * @param outlinks true for outlinks, false for inlinks
+     * @return
+     * @throws DaoException
+     */
+    public int[] getLinkIds(Language language, int localId, boolean outlinks) throws DaoException;
+
+    /**
+     * Returns the ids of the pages linked to or from many pages at once.
+     * See {@link #getLinkIds(Language, int, boolean, int[])}.
+     *
+     * @param language
+     * @param localIds
+     * @param outlinks true for outlinks, false for inlinks
+     * @return An array whose i'th entry contains the linked page ids for localIds[i].
+     * @throws DaoException
+     */
+    public int[][] getLinkIds(Language language, int localIds[], boolean outlinks) throws DaoException;
+
 }
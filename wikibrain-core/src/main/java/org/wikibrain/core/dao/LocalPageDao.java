@@ -96,6 +96,16 @@ public interface LocalPageDao extends Dao<LocalPage> {
      */
     public int getIdByTitle(Title title) throws DaoException;
 
+    /**
+     * Get the ids of many titles at once. Equivalent to calling
+     * getIdByTitle(titles[i], language, nameSpaces[i]) for each title.
+     * @param language
+     * @param titles
+     * @param nameSpaces The namespace of each title.
+     * @return The id of each title, or -1 if it doesn't exist.
+     */
+    public int[] getIdsByTitles(Language language, String titles[], NameSpace nameSpaces[]) throws DaoException;
+
     @Override
     public Iterable<LocalPage> get(DaoFilter daoFilter) throws DaoException;
 
@@ -0,0 +1,426 @@
+package org.wikibrain.core.dao.cache;
+
+import com.typesafe.config.Config;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.wikibrain.conf.Configuration;
+import org.wikibrain.conf.ConfigurationException;
+import org.wikibrain.conf.Configurator;
+import org.wikibrain.core.dao.DaoException;
+import org.wikibrain.core.dao.DaoFilter;
+import org.wikibrain.core.dao.LocalPageDao;
+import org.wikibrain.core.dao.MetaInfoDao;
+import org.wikibrain.core.lang.Language;
+import org.wikibrain.core.lang.LanguageInfo;
+import org.wikibrain.core.lang.LanguageSet;
+import org.wikibrain.core.lang.LocalId;
+import org.wikibrain.core.model.LocalPage;
+import org.wikibrain.core.model.MetaInfo;
+import org.wikibrain.core.model.NameSpace;
+import org.wikibrain.core.model.Title;
+import org.wikibrain.utils.SegmentedLruCache;
+
+import java.util.*;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * <p>Wraps a local page dao delegate and caches the results of single page lookups
+ * by id and by title in a size-bounded {@link SegmentedLruCache}. Misses (pages that
+ * do not exist) are cached too. Batch lookups are answered from the cache where
+ * possible, and only the missing pages are requested from the delegate.</p>
+ *
+ * <p>The cache stores a compact record for each page (ids, flags and the canonical
+ * title string) instead of the LocalPage and Title objects, and rebuilds the page on
+ * every hit. Title keys are the same 64-bit title hashes used by the delegate's title
+ * to id table.</p>
+ *
+ * <p>The cache is emptied when pages are saved or cleared through this dao, when redirect
+ * following changes, and when the last updated stamp for LocalPage in the meta info dao
+ * changes (i.e. another process loaded pages). The stamp is checked at most once every
+ * checkInterval milliseconds. Every invalidation advances a generation counter, and a
+ * record fetched from the delegate is only cached if no invalidation happened during
+ * the fetch.</p>
+ *
+ * @author Shilad Sen
+ */
+public class CachedLocalPageDao implements LocalPageDao {
+    private static final Logger LOG = LoggerFactory.getLogger(CachedLocalPageDao.class);
+
+    private final LocalPageDao delegate;
+    private final MetaInfoDao metaInfoDao;
+    private final long checkInterval;
+
+    private final SegmentedLruCache<Long, PageRecord> byId;
+    private final SegmentedLruCache<Long, PageRecord> byTitle;
+
+    private final AtomicLong generation = new AtomicLong();
+    private volatile boolean dirty = false;
+    private volatile long nextCheck = 0;
+    private Date lastUpdated = null;
+
+    /**
+     * @param delegate
+     * @param metaInfoDao Used to detect pages loaded by other processes. May be null.
+     * @param maxEntries The maximum number of pages cached for each of the id and title lookups.
+     * @param checkInterval Milliseconds between checks of the meta info stamp.
+     */
+    public CachedLocalPageDao(LocalPageDao delegate, MetaInfoDao metaInfoDao, int maxEntries, long checkInterval) {
+        this.delegate = delegate;
+        this.metaInfoDao = metaInfoDao;
+        this.checkInterval = checkInterval;
+        this.byId = new SegmentedLruCache<Long, PageRecord>(maxEntries);
+        this.byTitle = new SegmentedLruCache<Long, PageRecord>(maxEntries);
+    }
+
+    public LocalPageDao getDelegate() {
+        return delegate;
+    }
+
+    @Override
+    public LocalPage getById(Language language, int pageId) throws DaoException {
+        validate();
+        Long key = idKey(language, pageId);
+        PageRecord record = byId.get(key);
+        if (record == null) {
+            long gen = generation.get();
+            record = PageRecord.fromPage(delegate.getById(language, pageId));
+            putIfCurrent(byId, key, record, gen);
+        }
+        return record.toPage();
+    }
+
+    @Override
+    public LocalPage getById(LocalId localId) throws DaoException {
+        return getById(localId.getLanguage(), localId.getId());
+    }
+
+    @Override
+    public LocalPage getByTitle(Title title, NameSpace ns) throws DaoException {
+        validate();
+        Long key = titleKey(title, ns);
+        PageRecord record = byTitle.get(key);
+        if (record == null) {
+            long gen = generation.get();
+            record = PageRecord.fromPage(delegate.getByTitle(title, ns));
+            putIfCurrent(byTitle, key, record, gen);
+        }
+        return record.toPage();
+    }
+
+    @Override
+    public LocalPage getByTitle(Language language, NameSpace ns, String title) throws DaoException {
+        return getByTitle(new Title(title, language), ns);
+    }
+
+    @Override
+    public LocalPage getByTitle(Language lang, String title) throws DaoException {
+        return getByTitle(lang, NameSpace.ARTICLE, title);
+    }
+
+    @Override
+    public Map<Integer, LocalPage> getByIds(Language language, Collection<Integer> pageIds) throws DaoException {
+        if (pageIds == null || pageIds.isEmpty()) {
+            return null;
+        }
+        validate();
+        Map<Integer, LocalPage> map = new HashMap<Integer, LocalPage>();
+        List<Integer> missing = new ArrayList<Integer>();
+        for (Integer pageId : pageIds) {
+            PageRecord record = byId.get(idKey(language, pageId));
+            if (record == null) {
+                missing.add(pageId);
+            } else {
+                map.put(pageId, record.toPage());
+            }
+        }
+        if (!missing.isEmpty()) {
+            long gen = generation.get();
+            Map<Integer, LocalPage> fetched = delegate.getByIds(language, missing);
+            for (Integer pageId : missing) {
+                LocalPage page = (fetched == null) ? null : fetched.get(pageId);
+                putIfCurrent(byId, idKey(language, pageId), PageRecord.fromPage(page), gen);
+                map.put(pageId, page);
+            }
+        }
+        return map;
+    }
+
+    @Override
+    public Map<Title, LocalPage> getByTitles(Language language, Collection<Title> titles, NameSpace ns) throws DaoException {
+        if (titles == null || titles.isEmpty()) {
+            return null;
+        }
+        validate();
+        Map<Title, LocalPage> map = new HashMap<Title, LocalPage>();
+        List<Title> missing = new ArrayList<Title>();
+        for (Title title : titles) {
+            PageRecord record = byTitle.get(titleKey(title, ns));
+            if (record == null) {
+                missing.add(title);
+            } else {
+                map.put(title, record.toPage());
+            }
+        }
+        if (!missing.isEmpty()) {
+            long gen = generation.get();
+            Map<Title, LocalPage> fetched = delegate.getByTitles(language, missing, ns);
+            for (Title title : missing) {
+                LocalPage page = (fetched == null) ? null : fetched.get(title);
+                putIfCurrent(byTitle, titleKey(title, ns), PageRecord.fromPage(page), gen);
+                map.put(title, page);
+            }
+        }
+        return map;
+    }
+
+    @Override
+    public int getIdByTitle(String title, Language language, NameSpace nameSpace) throws DaoException {
+        return delegate.getIdByTitle(title, language, nameSpace);
+    }
+
+    @Override
+    public int getIdByTitle(Title title) throws DaoException {
+        return delegate.getIdByTitle(title);
+    }
+
+    @Override
+    public int[] getIdsByTitles(Language language, String[] titles, NameSpace[] nameSpaces) throws DaoException {
+        return delegate.getIdsByTitles(language, titles, nameSpaces);
+    }
+
+    @Override
+    public Set<LocalId> getIds(DaoFilter daoFilter) throws DaoException {
+        return delegate.getIds(daoFilter);
+    }
+
+    @Override
+    public Iterable<LocalPage> get(DaoFilter daoFilter) throws DaoException {
+        return delegate.get(daoFilter);
+    }
+
+    @Override
+    public int getCount(DaoFilter daoFilter) throws DaoException {
+        return delegate.getCount(daoFilter);
+    }
+
+    @Override
+    public LanguageSet getLoadedLanguages() throws DaoException {
+        return delegate.getLoadedLanguages();
+    }
+
+    @Override
+    public void setFollowRedirects(boolean followRedirects) throws DaoException {
+        delegate.setFollowRedirects(followRedirects);
+        invalidate();
+    }
+
+    @Override
+    public void clear() throws DaoException {
+        delegate.clear();
+        invalidate();
+    }
+
+    @Override
+    public void beginLoad() throws DaoException {
+        delegate.beginLoad();
+        invalidate();
+    }
+
+    @Override
+    public void save(LocalPage item) throws DaoException {
+        delegate.save(item);
+        // Emptied lazily so that a long load does not clear the cache for every page
+        dirty = true;
+    }
+
+    @Override
+    public void endLoad() throws DaoException {
+        delegate.endLoad();
+        invalidate();
+    }
+
+    /**
+     * Empties the cache. Statistics are kept.
+     */
+    public void invalidate() {
+        // Advanced before clearing so that a concurrent putIfCurrent either sees the new
+        // generation or puts its record before the clear.
+        generation.incrementAndGet();
+        dirty = false;
+        byId.clear();
+        byTitle.clear();
+    }
+
+    /**
+     * Caches a record fetched from the delegate unless the cache was invalidated after
+     * gen was read, in which case the record may be stale.
+     */
+    private void putIfCurrent(SegmentedLruCache<Long, PageRecord> cache, Long key, PageRecord record, long gen) {
+        if (generation.get() != gen) {
+            return;
+        }
+        cache.put(key, record);
+        if (generation.get() != gen) {
+            cache.remove(key);
+        }
+    }
+
+    /**
+     * Empties the cache if pages were saved or if the meta info stamp has changed
+     * since the last check.
+     */
+    private void validate() throws DaoException {
+        if (dirty) {
+            invalidate();
+        }
+        if (metaInfoDao == null || System.currentTimeMillis() < nextCheck) {
+            return;
+        }
+        synchronized (this) {
+            if (System.currentTimeMillis() < nextCheck) {
+                return;
+            }
+            MetaInfo info = metaInfoDao.getInfo(LocalPage.class);
+            Date updated = info.getLastUpdated();
+            if (updated != null && !updated.equals(lastUpdated)) {
+                if (lastUpdated != null) {
+                    LOG.info("local pages were updated at " + updated + ", invalidating page cache");
+                }
+                invalidate();
+                lastUpdated = updated;
+            }
+            nextCheck = System.currentTimeMillis() + checkInterval;
+        }
+    }
+
+    public long getNumHits() {
+        return byId.getHits() + byTitle.getHits();
+    }
+
+    public long getNumMisses() {
+        return byId.getMisses() + byTitle.getMisses();
+    }
+
+    public long getNumEvictions() {
+        return byId.getEvictions() + byTitle.getEvictions();
+    }
+
+    /**
+     * @return The fraction of page lookups by id or title answered from the cache.
+     */
+    public double getHitRate() {
+        long hits = getNumHits();
+        long total = hits + getNumMisses();
+        return (total == 0) ? 0.0 : 1.0 * hits / total;
+    }
+
+    /**
+     * @return The number of cached records (including misses) across the id and title lookups.
+     */
+    public int size() {
+        return byId.size() + byTitle.size();
+    }
+
+    public void resetStats() {
+        byId.resetStats();
+        byTitle.resetStats();
+    }
+
+    @Override
+    public String toString() {
+        return String.format("CachedLocalPageDao{size=%d, hits=%d, misses=%d, hitRate=%.3f, evictions=%d}",
+                size(), getNumHits(), getNumMisses(), getHitRate(), getNumEvictions());
+    }
+
+    private static Long idKey(Language language, int pageId) {
+        return ((long) language.getId() << 32) | (pageId & 0xffffffffL);
+    }
+
+    private static Long titleKey(Title title, NameSpace ns) {
+        return Title.longHashCode(title.getLanguage(), title.getCanonicalTitle(), ns);
+    }
+
+    /**
+     * A compact copy of a page. Pages that do not exist are cached as MISSING.
+     */
+    static final class PageRecord {
+        static final PageRecord MISSING = new PageRecord((short) -1, -1, null, (short) 0, (byte) 0);
+
+        private static final byte REDIRECT = 1;
+        private static final byte DISAMBIG = 2;
+
+        final short langId;
+        final int pageId;
+        final String title;
+        final short nameSpace;
+        final byte flags;
+
+        PageRecord(short langId, int pageId, String title, short nameSpace, byte flags) {
+            this.langId = langId;
+            this.pageId = pageId;
+            this.title = title;
+            this.nameSpace = nameSpace;
+            this.flags = flags;
+        }
+
+        static PageRecord fromPage(LocalPage page) {
+            if (page == null) {
+                return MISSING;
+            }
+            byte flags = 0;
+            if (page.isRedirect()) flags |= REDIRECT;
+            if (page.isDisambig()) flags |= DISAMBIG;
+            return new PageRecord(
+                    page.getLanguage().getId(),
+                    page.getLocalId(),
+                    page.getTitle().getCanonicalTitle(),
+                    page.getNameSpace().getArbitraryId(),
+                    flags);
+        }
+
+        LocalPage toPage() {
+            if (this == MISSING) {
+                return null;
+            }
+            Language lang = Language.getById(langId);
+            return new LocalPage(
+                    lang,
+                    pageId,
+                    new Title(title, true, LanguageInfo.getByLanguage(lang)),
+                    NameSpace.getNameSpaceByArbitraryId(nameSpace),
+                    (flags & REDIRECT) != 0,
+                    (flags & DISAMBIG) != 0);
+        }
+    }
+
+    public static class Provider extends org.wikibrain.conf.Provider<LocalPageDao> {
+        public Provider(Configurator configurator, Configuration config) throws ConfigurationException {
+            super(configurator, config);
+        }
+
+        @Override
+        public Class getType() {
+            return LocalPageDao.class;
+        }
+
+        @Override
+        public String getPath() {
+            return "dao.localPage";
+        }
+
+        @Override
+        public LocalPageDao get(String name, Config config, Map<String, String> runtimeParams) throws ConfigurationException {
+            if (!config.getString("type").equals("cached")) {
+                return null;
+            }
+            MetaInfoDao metaDao = config.hasPath("metaInfoDao")
+                    ? getConfigurator().get(MetaInfoDao.class, config.getString("metaInfoDao"))
+                    : null;
+            return new CachedLocalPageDao(
+                    getConfigurator().get(LocalPageDao.class, config.getString("delegate")),
+                    metaDao,
+                    config.getInt("maxEntries"),
+                    config.getLong("checkInterval"));
+        }
+    }
+}
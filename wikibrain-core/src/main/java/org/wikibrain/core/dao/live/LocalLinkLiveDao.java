@@ -2,6 +2,7 @@ package org.wikibrain.core.dao.live;
 
 
 import com.typesafe.config.Config;
+import gnu.trove.list.array.TIntArrayList;
 import gnu.trove.map.TIntIntMap;
 import gnu.trove.map.TIntObjectMap;
 import gnu.trove.map.hash.TIntIntHashMap;
@@ -136,6 +137,44 @@ public class LocalLinkLiveDao implements LocalLinkDao {
         throw new UnsupportedOperationException();
     }
 
+    @Override
+    public double[] getPageRanks(Language language, int[] pageIds) throws DaoException {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public int[] getTopPageRankIds(Language language, int n) throws DaoException {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public int getLinkIds(Language language, int localId, boolean outlinks, int buffer[]) throws DaoException {
+        int ids[] = getLinkIds(language, localId, outlinks);
+        System.arraycopy(ids, 0, buffer, 0, Math.min(ids.length, buffer.length));
+        return ids.length;
+    }
+
+    @Override
+    public int[] getLinkIds(Language language, int localId, boolean outlinks) throws DaoException {
+        TIntArrayList ids = new TIntArrayList();
+        for (LocalLink link : getLinks(language, localId, outlinks)) {
+            int id = outlinks ? link.getDestId() : link.getSourceId();
+            if (id >= 0) {
+                ids.add(id);
+            }
+        }
+        return ids.toArray();
+    }
+
+    @Override
+    public int[][] getLinkIds(Language language, int localIds[], boolean outlinks) throws DaoException {
+        int result[][] = new int[localIds.length][];
+        for (int i = 0; i < localIds.length; i++) {
+            result[i] = getLinkIds(language, localIds[i], outlinks);
+        }
+        return result;
+    }
+
     //Notice: A DaoException will be thrown if you call this method!
     //Can't specify isParseable or LocationType through the live API
     public Iterable<LocalLink> getLinks(Language language, int localId, boolean outlinks, boolean isParseable, LocalLink.LocationType locationType) throws DaoException {
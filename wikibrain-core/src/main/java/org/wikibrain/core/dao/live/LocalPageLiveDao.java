@@ -171,6 +171,15 @@ public class LocalPageLiveDao implements LocalPageDao  {
         return info.getId();
     }
 
+    @Override
+    public int[] getIdsByTitles(Language language, String titles[], NameSpace nameSpaces[]) throws DaoException {
+        int ids[] = new int[titles.length];
+        for (int i = 0; i < titles.length; i++) {
+            ids[i] = getIdByTitle(titles[i], language, nameSpaces[i]);
+        }
+        return ids;
+    }
+
     /**
      * Gets the list of all local page ids for lang = langId and a given namespace
      * @param lang
@@ -42,8 +42,9 @@ import org.slf4j.LoggerFactory;
  * 1. The three-argument version of getLinks()
  * 2. get() if a) a language and b) either a src or dest is specified.
  * 3. count() for the same requirements as 2.
- * 4. PageRank values (beware that PageRank estimates are lazily calculated
- * the first time a pagerank value is requested.)
+ * 4. PageRank values. They are calculated when the matrix is built and stored in
+ * a memory mapped {@link PageRankFile} next to it. For matrices built before the
+ * file existed, they are lazily calculated the first time a pagerank value is requested.
  * </p>
  *
  * <p>
@@ -58,14 +59,14 @@ public class MatrixLocalLinkDao implements LocalLinkDao {
 
     private final File dir;
     private LocalLinkDao delegate;
-    private SparseMatrix matrix = null;
-    private SparseMatrix transpose = null;
-    private Map<Language, TIntDoubleMap> pageRanks = null;
+    private volatile SparseMatrix matrix = null;
+    private volatile SparseMatrix transpose = null;
+    private volatile PageRankFile pageRanks = null;
 
     private Set<File> allWriterFiles = Collections.newSetFromMap(new ConcurrentHashMap<File, Boolean>());
     private Set<BufferedWriter> allWriters = Collections.newSetFromMap(
             new ConcurrentHashMap<BufferedWriter, Boolean>());
-    private ThreadLocal<BufferedWriter> writers = new ThreadLocal<BufferedWriter>();
+    private volatile ThreadLocal<BufferedWriter> writers = new ThreadLocal<BufferedWriter>();
 
 
     public MatrixLocalLinkDao(LocalLinkDao delegate, File dir) throws DaoException {
@@ -80,6 +81,8 @@ public class MatrixLocalLinkDao implements LocalLinkDao {
     }
 
     private void load() throws IOException {
+        // PageRanks were serialized to this file before they were memory mapped
+        FileUtils.deleteQuietly(new File(dir, "pageRanks.bin"));
         if (!getMatrixFile().isFile()) {
             LOG.warn("Matrix" + getMatrixFile()+ " missing, disabling fast lookups.");
         } else if (!getTransposeFile().isFile()) {
@@ -88,8 +91,12 @@ public class MatrixLocalLinkDao implements LocalLinkDao {
             matrix = new SparseMatrix(getMatrixFile());
             transpose = new SparseMatrix(getTransposeFile());
         }
-        if (getPageRanksFile().isFile() && getPageRanksFile().lastModified() > getMatrixFile().lastModified()) {
-            pageRanks = (Map<Language, TIntDoubleMap>) WpIOUtils.readObjectFromFile(getPageRanksFile());
+        if (getPageRanksFile().isFile() && getPageRanksFile().lastModified() >= getMatrixFile().lastModified()) {
+            try {
+                pageRanks = new PageRankFile(getPageRanksFile());
+            } catch (IOException e) {
+                LOG.warn("Invalid pagerank file " + getPageRanksFile() + ", pageranks will be recalculated: " + e.getMessage());
+            }
         }
     }
 
@@ -100,7 +107,13 @@ public class MatrixLocalLinkDao implements LocalLinkDao {
 
     @Override
     public void beginLoad() throws DaoException {
+        // Writers and sorted files of a previous load were closed and merged by its endLoad
         allWriters.clear();
+        for (File file : allWriterFiles) {
+            FileUtils.deleteQuietly(file);
+        }
+        allWriterFiles.clear();
+        writers = new ThreadLocal<BufferedWriter>();
         delegate.beginLoad();
         // Initialize object database with existing links
         if (matrix != null) {
@@ -119,8 +132,8 @@ public class MatrixLocalLinkDao implements LocalLinkDao {
     /**
      * Calculates the PageRank associated with a particular page.
      * Currently only implemented by the MatrixLocalLinkDao.
-     * PageRank estimation is performed lazily, so the first time this method is called
-     * will be very expensive, and future invocations will be cached.
+     * If the pagerank file is missing, PageRank estimation is performed lazily, so the
+     * first time this method is called will be very expensive.
      *
      * @param language
      * @param pageId
@@ -129,24 +142,58 @@ public class MatrixLocalLinkDao implements LocalLinkDao {
      */
     @Override
     public double getPageRank(Language language, int pageId) {
+        try {
+            return getPageRankFile().getPageRank(language, pageId);
+        } catch (IOException e) {
+            throw new IllegalStateException("Unexpected exception:", e);
+        }
+    }
+
+    @Override
+    public double[] getPageRanks(Language language, int[] pageIds) throws DaoException {
+        try {
+            return getPageRankFile().getPageRanks(language, pageIds);
+        } catch (IOException e) {
+            throw new DaoException(e);
+        }
+    }
+
+    @Override
+    public int[] getTopPageRankIds(Language language, int n) throws DaoException {
+        try {
+            return getPageRankFile().getTopPageIds(language, n);
+        } catch (IOException e) {
+            throw new DaoException(e);
+        }
+    }
+
+    private PageRankFile getPageRankFile() throws IOException {
         if (pageRanks == null) {
             synchronized (this) {
                 if (pageRanks == null) {
-                    pageRanks = computePageRanks();
-                    try {
-                        WpIOUtils.writeObjectToFile(getPageRanksFile(), pageRanks);
-                    } catch (IOException e) {
-                        throw new IllegalStateException("Unexpected exception:", e);
-                    }
+                    writePageRanks();
                 }
             }
         }
-        TIntDoubleMap langRanks = pageRanks.get(language);
-        if (langRanks != null && langRanks.containsKey(pageId)) {
-            return langRanks.get(pageId);
-        } else {
-            return 0.0;
-        }
+        return pageRanks;
+    }
+
+    /**
+     * Calculates the PageRanks of the pages in the matrix, writes them next to it and opens them.
+     * Must be called while holding the lock on this dao, which endLoad holds while it
+     * swaps matrices.
+     *
+     * The previous rank file is not closed, because concurrent readers may still use it.
+     * Its mapped buffers are released once they are no longer referenced.
+     */
+    private void writePageRanks() throws IOException {
+        if (matrix == null) {
+            throw new IllegalStateException("PageRank requires the matrix " + getMatrixFile() +
+                    ", which is missing or being rebuilt");
+        }
+        LOG.info("calculating pageranks");
+        PageRankFile.write(getPageRanksFile(), computePageRanks());
+        pageRanks = new PageRankFile(getPageRanksFile());
     }
 
     /**
@@ -278,7 +325,7 @@ public class MatrixLocalLinkDao implements LocalLinkDao {
     }
 
     public File getPageRanksFile() {
-        return new File(dir, "pageRanks.bin");
+        return new File(dir, "links-pagerank.bin");
     }
 
     public File getTransposeFile() {
@@ -290,6 +337,8 @@ public class MatrixLocalLinkDao implements LocalLinkDao {
         delegate.clear();
         FileUtils.deleteQuietly(getMatrixFile());
         FileUtils.deleteQuietly(getTransposeFile());
+        FileUtils.deleteQuietly(getPageRanksFile());
+        pageRanks = null;
     }
 
 
@@ -349,10 +398,15 @@ public class MatrixLocalLinkDao implements LocalLinkDao {
         delegate.endLoad();
 
         try {
-            // close the old matrix and transpose
+            // close the old matrix and transpose. PageRank lookups keep using the
+            // existing rank file until the new one is published below.
             LOG.info("closing existing matrix and transpose.");
-            if (matrix != null) IOUtils.closeQuietly(matrix);
-            if (transpose != null) IOUtils.closeQuietly(transpose);
+            synchronized (this) {
+                if (matrix != null) IOUtils.closeQuietly(matrix);
+                if (transpose != null) IOUtils.closeQuietly(transpose);
+                matrix = null;
+                transpose = null;
+            }
 
             LOG.info("sorting files");
             File file = sortFiles();
@@ -411,14 +465,20 @@ public class MatrixLocalLinkDao implements LocalLinkDao {
             writer.finish();
 
             LOG.info("loading adjacency matrix");
-            matrix = new SparseMatrix(getMatrixFile());
+            SparseMatrix newMatrix = new SparseMatrix(getMatrixFile());
 
             LOG.info("writing transpose of adjacency matrix");
-            SparseMatrixTransposer transposer = new SparseMatrixTransposer(matrix, getTransposeFile());
+            SparseMatrixTransposer transposer = new SparseMatrixTransposer(newMatrix, getTransposeFile());
             transposer.transpose();
 
             LOG.info("loading transpose of adjacency matrix");
-            transpose = new SparseMatrix(getTransposeFile());
+            SparseMatrix newTranspose = new SparseMatrix(getTransposeFile());
+
+            synchronized (this) {
+                matrix = newMatrix;
+                transpose = newTranspose;
+                writePageRanks();
+            }
         } catch (IOException e) {
             throw new DaoException(e);
         }
@@ -432,12 +492,13 @@ public class MatrixLocalLinkDao implements LocalLinkDao {
     @Override
     public Iterable<LocalLink> getLinks(Language language, int localId, boolean outlinks) throws DaoException {
         LocalId id = new LocalId(language, localId);
-        if (!id.canPackInInt()) {
+        SparseMatrix m = getLinkMatrix(outlinks);
+        if (m == null || !id.canPackInInt()) {
             return delegate.getLinks(language, localId, outlinks);
         }
         List<LocalLink> links = new ArrayList<LocalLink>();
         try {
-            SparseMatrixRow row = outlinks ? matrix.getRow(id.toInt()) : transpose.getRow(id.toInt());
+            SparseMatrixRow row = m.getRow(id.toInt());
             if (row == null) {
                 return links;
             }
@@ -463,6 +524,85 @@ public class MatrixLocalLinkDao implements LocalLinkDao {
         }
     }
 
+    /**
+     * Returns a zero-copy view of the memory mapped adjacency row for a page.
+     * Column indexes are packed LocalIds (see {@link LocalId#unpackId(int)}).
+     *
+     * @param language
+     * @param localId
+     * @param outlinks true for outlinks, false for inlinks
+     * @return The row, or null if the page has no links or the matrix is not loaded.
+     * @throws DaoException
+     */
+    public SparseMatrixRow getRow(Language language, int localId, boolean outlinks) throws DaoException {
+        LocalId id = new LocalId(language, localId);
+        SparseMatrix m = getLinkMatrix(outlinks);
+        if (m == null || !id.canPackInInt()) {
+            return null;
+        }
+        return getRow(m, id);
+    }
+
+    private static SparseMatrixRow getRow(SparseMatrix m, LocalId id) throws DaoException {
+        try {
+            return m.getRow(id.toInt());
+        } catch (IOException e) {
+            throw new DaoException(e);
+        }
+    }
+
+    /**
+     * Reads the matrix or transpose field once. endLoad() clears both fields while it
+     * rebuilds them, so callers must use the returned matrix rather than the field.
+     *
+     * @return The matrix for outlinks, the transpose for inlinks, or null if it is not loaded.
+     */
+    private SparseMatrix getLinkMatrix(boolean outlinks) {
+        return outlinks ? matrix : transpose;
+    }
+
+    @Override
+    public int getLinkIds(Language language, int localId, boolean outlinks, int[] buffer) throws DaoException {
+        LocalId id = new LocalId(language, localId);
+        SparseMatrix m = getLinkMatrix(outlinks);
+        if (m == null || !id.canPackInInt()) {
+            return delegate.getLinkIds(language, localId, outlinks, buffer);
+        }
+        SparseMatrixRow row = getRow(m, id);
+        if (row == null) {
+            return 0;
+        }
+        int n = Math.min(buffer.length, row.getNumCols());
+        for (int i = 0; i < n; i++) {
+            buffer[i] = LocalId.unpackId(row.getColIndex(i));
+        }
+        return row.getNumCols();
+    }
+
+    @Override
+    public int[] getLinkIds(Language language, int localId, boolean outlinks) throws DaoException {
+        LocalId id = new LocalId(language, localId);
+        SparseMatrix m = getLinkMatrix(outlinks);
+        if (m == null || !id.canPackInInt()) {
+            return delegate.getLinkIds(language, localId, outlinks);
+        }
+        SparseMatrixRow row = getRow(m, id);
+        int ids[] = new int[row == null ? 0 : row.getNumCols()];
+        for (int i = 0; i < ids.length; i++) {
+            ids[i] = LocalId.unpackId(row.getColIndex(i));
+        }
+        return ids;
+    }
+
+    @Override
+    public int[][] getLinkIds(Language language, int[] localIds, boolean outlinks) throws DaoException {
+        int result[][] = new int[localIds.length][];
+        for (int i = 0; i < localIds.length; i++) {
+            result[i] = getLinkIds(language, localIds[i], outlinks);
+        }
+        return result;
+    }
+
     @Override
     public Iterable<LocalLink> get(DaoFilter daoFilter) throws DaoException {
         // there must be languages
@@ -527,28 +667,16 @@ public class MatrixLocalLinkDao implements LocalLinkDao {
         }
 
         // collect link count
+        SparseMatrix m = getLinkMatrix(daoFilter.getSourceIds() != null);
+        List<Integer> packed = getPackedIds(daoFilter);
+        if (m == null || packed == null) {
+            return delegate.getCount(daoFilter);
+        }
         try {
             int count = 0;
-            if (daoFilter.getSourceIds() != null) {
-                List<Integer> packed = getPackedIds(daoFilter);
-                if (packed == null) {
-                    return delegate.getCount(daoFilter);
-                }
-                for (int key : packed) {
-                    SparseMatrixRow row = matrix.getRow(key);
-                    count += (row == null) ? 0 : row.getNumCols();
-                }
-            } else if (daoFilter.getDestIds() != null) {
-                List<Integer> packed = getPackedIds(daoFilter);
-                if (packed == null) {
-                    return delegate.getCount(daoFilter);
-                }
-                for (int key : packed) {
-                    SparseMatrixRow row = transpose.getRow(key);
-                    count += (row == null) ? 0 : row.getNumCols();
-                }
-            } else {
-                throw new IllegalArgumentException();
+            for (int key : packed) {
+                SparseMatrixRow row = m.getRow(key);
+                count += (row == null) ? 0 : row.getNumCols();
             }
             return count;
         } catch (IOException e) {
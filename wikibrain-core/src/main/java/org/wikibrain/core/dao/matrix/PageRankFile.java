@@ -0,0 +1,272 @@
+package org.wikibrain.core.dao.matrix;
+
+import gnu.trove.map.TIntDoubleMap;
+import org.apache.commons.io.FileUtils;
+import org.wikibrain.core.lang.Language;
+import org.wikibrain.utils.WpIOUtils;
+
+import java.io.*;
+import java.nio.FloatBuffer;
+import java.nio.IntBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.*;
+
+/**
+ * PageRank values of the pages in one or more languages, stored in a flat memory mapped file.
+ *
+ * Each language has a section with a sorted table of page ids and a dense array of
+ * ranks, where ranks[i] is the PageRank of ids[i]. A lookup is a binary search in the
+ * id table, so nothing has to be deserialized onto the heap when the file is opened.
+ * Each section also stores the positions of its pages in descending order of PageRank
+ * to answer top-k queries.
+ *
+ * The file layout is:
+ * <pre>
+ *     int magic, int version, int numLanguages
+ *     numLanguages * (int langId, int numPages)
+ *     for each language: int ids[numPages], float ranks[numPages], int byRank[numPages]
+ * </pre>
+ *
+ * Files are written once by {@link #write(File, Map)} and are threadsafe for reading.
+ * Rewriting a file replaces it with a new one, so instances that mapped the old file
+ * keep reading the old values.
+ *
+ * @author Shilad Sen
+ */
+public class PageRankFile implements Closeable {
+    public static final int MAGIC = 0x57425052;   // "WBPR"
+    public static final int VERSION = 1;
+
+    private final File file;
+    private final Map<Language, Section> sections = new HashMap<Language, Section>();
+
+    public PageRankFile(File file) throws IOException {
+        this.file = file;
+        RandomAccessFile raf = new RandomAccessFile(file, "r");
+        try {
+            if (raf.length() < 12) {
+                throw new IOException("truncated pagerank file " + file);
+            }
+            if (raf.readInt() != MAGIC) {
+                throw new IOException("invalid magic number in pagerank file " + file);
+            }
+            int version = raf.readInt();
+            if (version != VERSION) {
+                throw new IOException("unsupported version " + version + " of pagerank file " + file);
+            }
+            int numLangs = raf.readInt();
+            int langIds[] = new int[numLangs];
+            int sizes[] = new int[numLangs];
+            long length = 12 + 8L * numLangs;
+            for (int i = 0; i < numLangs; i++) {
+                langIds[i] = raf.readInt();
+                sizes[i] = raf.readInt();
+                length += 12L * sizes[i];
+            }
+            if (raf.length() != length) {
+                throw new IOException("truncated pagerank file " + file);
+            }
+
+            // Map each array separately so files are not limited to 2GB.
+            FileChannel channel = raf.getChannel();
+            long offset = 12 + 8L * numLangs;
+            for (int i = 0; i < numLangs; i++) {
+                long bytes = 4L * sizes[i];
+                Section s = new Section(
+                        map(channel, offset, bytes).asIntBuffer(),
+                        map(channel, offset + bytes, bytes).asFloatBuffer(),
+                        map(channel, offset + 2 * bytes, bytes).asIntBuffer());
+                sections.put(Language.getById(langIds[i]), s);
+                offset += 3 * bytes;
+            }
+        } finally {
+            raf.close();     // mappings remain valid after the channel is closed
+        }
+    }
+
+    private static MappedByteBuffer map(FileChannel channel, long offset, long bytes) throws IOException {
+        return channel.map(FileChannel.MapMode.READ_ONLY, offset, bytes);
+    }
+
+    /**
+     * Writes the PageRank values of each language to a file, replacing any existing file.
+     * The values are written to a unique temporary file beside the file that is renamed to
+     * the file when it is complete, so the file is never seen partially written and
+     * concurrent writers do not share a temporary file.
+     *
+     * @param file
+     * @param ranks Maps each language to the PageRank of its pages.
+     * @throws IOException
+     */
+    public static void write(File file, Map<Language, TIntDoubleMap> ranks) throws IOException {
+        File tmp = WpIOUtils.createTempFileBeside(file);
+        try {
+            writeRanks(tmp, ranks);
+            WpIOUtils.replaceFile(tmp, file);
+        } finally {
+            FileUtils.deleteQuietly(tmp);
+        }
+    }
+
+    private static void writeRanks(File file, Map<Language, TIntDoubleMap> ranks) throws IOException {
+        List<Language> langs = new ArrayList<Language>(ranks.keySet());
+        Collections.sort(langs);
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file)));
+        try {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeInt(langs.size());
+            for (Language lang : langs) {
+                out.writeInt(lang.getId());
+                out.writeInt(ranks.get(lang).size());
+            }
+            for (Language lang : langs) {
+                TIntDoubleMap langRanks = ranks.get(lang);
+                int ids[] = langRanks.keys();
+                Arrays.sort(ids);
+                float values[] = new float[ids.length];
+                for (int i = 0; i < ids.length; i++) {
+                    values[i] = (float) langRanks.get(ids[i]);
+                    out.writeInt(ids[i]);
+                }
+                for (float v : values) {
+                    out.writeFloat(v);
+                }
+                for (int i : orderByRank(values)) {
+                    out.writeInt(i);
+                }
+            }
+        } finally {
+            out.close();
+        }
+    }
+
+    /**
+     * Returns the positions of the values in descending order, breaking ties by position.
+     * Ranks are non-negative, so their float bits sort in the same order as the floats.
+     */
+    private static int[] orderByRank(float values[]) {
+        long packed[] = new long[values.length];
+        for (int i = 0; i < values.length; i++) {
+            long bits = Float.floatToIntBits(Math.max(0.0f, values[i]));
+            packed[i] = (bits << 32) | (Integer.MAX_VALUE - i);
+        }
+        Arrays.sort(packed);
+        int order[] = new int[values.length];
+        for (int i = 0; i < packed.length; i++) {
+            order[i] = Integer.MAX_VALUE - (int) packed[packed.length - 1 - i];
+        }
+        return order;
+    }
+
+    /**
+     * @return The languages with PageRank values in the file.
+     */
+    public Set<Language> getLanguages() {
+        return Collections.unmodifiableSet(sections.keySet());
+    }
+
+    /**
+     * @return The number of pages with a PageRank in the language.
+     */
+    public int size(Language language) {
+        Section s = sections.get(language);
+        return (s == null) ? 0 : s.ids.limit();
+    }
+
+    /**
+     * @return The PageRank of the page, or 0.0 if the page is not in the file.
+     */
+    public double getPageRank(Language language, int pageId) {
+        Section s = sections.get(language);
+        if (s == null) {
+            return 0.0;
+        }
+        int i = s.indexOf(pageId);
+        return (i < 0) ? 0.0 : s.ranks.get(i);
+    }
+
+    /**
+     * Looks up the PageRank of many pages at once.
+     *
+     * @param language
+     * @param pageIds
+     * @return An array whose i'th entry is the PageRank of pageIds[i], or 0.0 if the page is not in the file.
+     */
+    public double[] getPageRanks(Language language, int pageIds[]) {
+        double result[] = new double[pageIds.length];
+        Section s = sections.get(language);
+        if (s != null) {
+            for (int i = 0; i < pageIds.length; i++) {
+                int j = s.indexOf(pageIds[i]);
+                result[i] = (j < 0) ? 0.0 : s.ranks.get(j);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Returns the pages with the highest PageRank in a language.
+     *
+     * @param language
+     * @param n
+     * @return Up to n page ids in descending order of PageRank.
+     */
+    public int[] getTopPageIds(Language language, int n) {
+        Section s = sections.get(language);
+        if (s == null) {
+            return new int[0];
+        }
+        int ids[] = new int[Math.max(0, Math.min(n, s.byRank.limit()))];
+        for (int i = 0; i < ids.length; i++) {
+            ids[i] = s.ids.get(s.byRank.get(i));
+        }
+        return ids;
+    }
+
+    public File getFile() {
+        return file;
+    }
+
+    /**
+     * Mapped buffers are released by the garbage collector, so this only drops
+     * the references to them.
+     */
+    @Override
+    public void close() throws IOException {
+        sections.clear();
+    }
+
+    private static class Section {
+        private final IntBuffer ids;
+        private final FloatBuffer ranks;
+        private final IntBuffer byRank;
+
+        Section(IntBuffer ids, FloatBuffer ranks, IntBuffer byRank) {
+            this.ids = ids;
+            this.ranks = ranks;
+            this.byRank = byRank;
+        }
+
+        /**
+         * Absolute gets only, so that concurrent readers can share the buffers.
+         */
+        int indexOf(int pageId) {
+            int lo = 0;
+            int hi = ids.limit() - 1;
+            while (lo <= hi) {
+                int mid = (lo + hi) >>> 1;
+                int id = ids.get(mid);
+                if (id < pageId) {
+                    lo = mid + 1;
+                } else if (id > pageId) {
+                    hi = mid - 1;
+                } else {
+                    return mid;
+                }
+            }
+            return -1;
+        }
+    }
+}
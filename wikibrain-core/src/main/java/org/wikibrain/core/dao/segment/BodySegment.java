@@ -0,0 +1,345 @@
+package org.wikibrain.core.dao.segment;
+
+import gnu.trove.impl.Constants;
+import gnu.trove.map.TIntLongMap;
+import gnu.trove.map.hash.TIntLongHashMap;
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * <p>A single language's page texts (e.g. wikitext bodies or plain text), stored as an
+ * append-only segment file of individually compressed records plus a sorted id to offset index.</p>
+ *
+ * <p>The segment file is a sequence of records of the form:
+ * <pre>
+ *     int pageId, int rawLength, int compressedLength, byte compressed[compressedLength]
+ * </pre>
+ * where rawLength is the length of the UTF-8 encoded body.
+ * </p>
+ *
+ * <p>The index file is written at the end of each load and memory mapped for lookups:
+ * <pre>
+ *     int magic, int version, int numPages, int pageIds[numPages], long offsets[numPages]
+ * </pre>
+ * Page ids are sorted, so lookups are a binary search over the mapped buffer.
+ * </p>
+ *
+ * <p>Records are compressed with raw deflate at its fastest setting. Reads use positional
+ * channel reads, so a segment can be safely read by many threads at once, including while
+ * a load appends to it. Each load publishes a new index only after it is fully written.</p>
+ *
+ * @author Shilad Sen
+ */
+public class BodySegment implements Closeable {
+    private static final Logger LOG = LoggerFactory.getLogger(BodySegment.class);
+
+    public static final int MAGIC = 0x57425347;   // "WBSG"
+    public static final int VERSION = 1;
+
+    private static final int RECORD_HEADER_BYTES = 12;
+    private static final int INDEX_HEADER_BYTES = 12;
+
+    private static final ThreadLocal<Deflater> DEFLATERS = new ThreadLocal<Deflater>() {
+        @Override
+        protected Deflater initialValue() {
+            return new Deflater(Deflater.BEST_SPEED, true);
+        }
+    };
+
+    private static final ThreadLocal<Inflater> INFLATERS = new ThreadLocal<Inflater>() {
+        @Override
+        protected Inflater initialValue() {
+            return new Inflater(true);
+        }
+    };
+
+    private final File segmentFile;
+    private final File indexFile;
+
+    // Open for reading until the segment is closed. Records are only ever appended,
+    // so the channel remains valid across loads.
+    private volatile FileChannel reader = null;
+
+    // Lookup structure of the last completed load, replaced as a whole at the end of each load.
+    private volatile Index index = null;
+
+    // Offsets of all records and the append state, valid while loading. Guarded by this.
+    private volatile TIntLongMap offsets = null;
+    private RandomAccessFile writer = null;
+    private long writePosition = 0;
+
+    /**
+     * @param dir Directory containing the segment.
+     * @param name Name of the segment (e.g. "bodies"). Files are named NAME.seg and NAME.idx.
+     * @throws IOException
+     */
+    public BodySegment(File dir, String name) throws IOException {
+        this.segmentFile = new File(dir, name + ".seg");
+        this.indexFile = new File(dir, name + ".idx");
+        dir.mkdirs();
+        if (segmentFile.isFile() && indexFile.isFile()) {
+            openReader();
+            index = new Index(indexFile);
+            LOG.info("opened body segment {} containing {} pages", segmentFile, index.numPages);
+        }
+    }
+
+    private void openReader() throws IOException {
+        if (reader == null) {
+            reader = new RandomAccessFile(segmentFile, "r").getChannel();
+        }
+    }
+
+    /**
+     * Prepares the segment for appending. Existing records are retained.
+     * @throws IOException
+     */
+    public synchronized void beginLoad() throws IOException {
+        if (offsets != null) {
+            return;
+        }
+        TIntLongMap loading = new TIntLongHashMap(
+                Constants.DEFAULT_CAPACITY, Constants.DEFAULT_LOAD_FACTOR, -1, -1);
+        Index index = this.index;
+        if (index != null) {
+            for (int i = 0; i < index.numPages; i++) {
+                loading.put(index.getId(i), index.getOffset(i));
+            }
+        }
+        writer = new RandomAccessFile(segmentFile, "rw");
+        writePosition = writer.length();
+        openReader();
+        offsets = loading;
+    }
+
+    public boolean isLoading() {
+        return offsets != null;
+    }
+
+    /**
+     * Compresses and appends a body to the segment.
+     * Compression happens in the calling thread; only the append itself is serialized.
+     * @param pageId
+     * @param body
+     * @throws IOException
+     */
+    public void put(int pageId, String body) throws IOException {
+        byte [] raw = body.getBytes("UTF-8");
+        Deflater deflater = DEFLATERS.get();
+        deflater.reset();
+        deflater.setInput(raw);
+        deflater.finish();
+
+        byte [] compressed = new byte[RECORD_HEADER_BYTES + raw.length / 2 + 64];
+        int n = RECORD_HEADER_BYTES;
+        while (!deflater.finished()) {
+            if (n == compressed.length) {
+                compressed = Arrays.copyOf(compressed, compressed.length * 2);
+            }
+            n += deflater.deflate(compressed, n, compressed.length - n);
+        }
+
+        ByteBuffer record = ByteBuffer.wrap(compressed, 0, n);
+        record.putInt(0, pageId);
+        record.putInt(4, raw.length);
+        record.putInt(8, n - RECORD_HEADER_BYTES);
+
+        synchronized (this) {
+            if (offsets == null) {
+                throw new IllegalStateException("put() called on body segment " + segmentFile + " before beginLoad()");
+            }
+            long offset = writePosition;
+            FileChannel channel = writer.getChannel();
+            while (record.hasRemaining()) {
+                channel.write(record, offset + record.position());
+            }
+            writePosition += n;
+            offsets.put(pageId, offset);
+        }
+    }
+
+    /**
+     * Writes the sorted index and publishes it to readers.
+     * @throws IOException
+     */
+    public synchronized void endLoad() throws IOException {
+        if (offsets == null) {
+            return;
+        }
+        int ids[] = offsets.keys();
+        Arrays.sort(ids);
+
+        File tmp = new File(indexFile.getPath() + ".tmp");
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp)));
+        try {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeInt(ids.length);
+            for (int id : ids) {
+                out.writeInt(id);
+            }
+            for (int id : ids) {
+                out.writeLong(offsets.get(id));
+            }
+        } finally {
+            out.close();
+        }
+
+        IOUtils.closeQuietly(writer);
+        writer = null;
+        // Readers holding the old index keep their own mapping of the replaced file
+        FileUtils.deleteQuietly(indexFile);
+        if (!tmp.renameTo(indexFile)) {
+            throw new IOException("renaming " + tmp + " to " + indexFile + " failed");
+        }
+        index = new Index(indexFile);
+        offsets = null;
+    }
+
+    /**
+     * Bodies saved during a load are visible as soon as they are put.
+     *
+     * @param pageId
+     * @return The body associated with the page, or null if it is not stored in this segment.
+     * @throws IOException
+     */
+    public String get(int pageId) throws IOException {
+        long offset = getOffset(pageId);
+        if (offset < 0) {
+            return null;
+        }
+        FileChannel channel = reader;
+        if (channel == null) {
+            throw new IOException("body segment " + segmentFile + " is closed");
+        }
+        ByteBuffer header = ByteBuffer.allocate(RECORD_HEADER_BYTES);
+        readFully(channel, header, offset);
+        if (header.getInt(0) != pageId) {
+            throw new IOException("corrupt body segment " + segmentFile + ": expected page " + pageId +
+                    " at offset " + offset + ", found " + header.getInt(0));
+        }
+        int rawLength = header.getInt(4);
+        int compressedLength = header.getInt(8);
+
+        byte compressed[] = new byte[compressedLength];
+        readFully(channel, ByteBuffer.wrap(compressed), offset + RECORD_HEADER_BYTES);
+
+        byte raw[] = new byte[rawLength];
+        Inflater inflater = INFLATERS.get();
+        inflater.reset();
+        inflater.setInput(compressed);
+        try {
+            int n = 0;
+            while (n < rawLength) {
+                int k = inflater.inflate(raw, n, rawLength - n);
+                if (k == 0 && (inflater.finished() || inflater.needsInput())) {
+                    break;
+                }
+                n += k;
+            }
+            if (n != rawLength) {
+                throw new IOException("corrupt body record for page " + pageId + " in " + segmentFile);
+            }
+        } catch (DataFormatException e) {
+            throw new IOException(e);
+        }
+        return new String(raw, "UTF-8");
+    }
+
+    private void readFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            int n = channel.read(buffer, position + buffer.position());
+            if (n < 0) {
+                throw new EOFException("unexpected end of body segment " + segmentFile);
+            }
+        }
+    }
+
+    private long getOffset(int pageId) {
+        // The load's offsets are checked first: endLoad publishes the new index before clearing them.
+        if (offsets != null) {
+            synchronized (this) {
+                if (offsets != null) {
+                    return offsets.get(pageId);
+                }
+            }
+        }
+        Index index = this.index;
+        return (index == null) ? -1 : index.find(pageId);
+    }
+
+    public int getNumPages() {
+        Index index = this.index;
+        return (index == null) ? 0 : index.numPages;
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        IOUtils.closeQuietly(writer);
+        IOUtils.closeQuietly(reader);
+        writer = null;
+        reader = null;
+        offsets = null;
+        index = null;
+    }
+
+    /**
+     * A memory mapped, read-only id to offset index. Immutable once constructed.
+     */
+    private static final class Index {
+        private final MappedByteBuffer buffer;
+        private final int numPages;
+
+        Index(File file) throws IOException {
+            RandomAccessFile raf = new RandomAccessFile(file, "r");
+            try {
+                buffer = raf.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, raf.length());
+            } finally {
+                raf.close();
+            }
+            if (buffer.getInt(0) != MAGIC) {
+                throw new IOException("invalid magic number in body index " + file);
+            }
+            if (buffer.getInt(4) != VERSION) {
+                throw new IOException("unsupported body index version " + buffer.getInt(4) + " in " + file);
+            }
+            numPages = buffer.getInt(8);
+        }
+
+        long find(int pageId) {
+            int lo = 0;
+            int hi = numPages - 1;
+            while (lo <= hi) {
+                int mid = (lo + hi) >>> 1;
+                int id = getId(mid);
+                if (id < pageId) {
+                    lo = mid + 1;
+                } else if (id > pageId) {
+                    hi = mid - 1;
+                } else {
+                    return getOffset(mid);
+                }
+            }
+            return -1;
+        }
+
+        int getId(int i) {
+            return buffer.getInt(INDEX_HEADER_BYTES + 4 * i);
+        }
+
+        long getOffset(int i) {
+            return buffer.getLong(INDEX_HEADER_BYTES + 4 * numPages + 8 * i);
+        }
+    }
+}
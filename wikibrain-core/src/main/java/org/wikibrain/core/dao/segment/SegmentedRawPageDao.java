@@ -0,0 +1,312 @@
+package org.wikibrain.core.dao.segment;
+
+import com.typesafe.config.Config;
+import org.apache.commons.io.FileUtils;
+import org.wikibrain.conf.Configuration;
+import org.wikibrain.conf.ConfigurationException;
+import org.wikibrain.conf.Configurator;
+import org.wikibrain.core.dao.DaoException;
+import org.wikibrain.core.dao.DaoFilter;
+import org.wikibrain.core.dao.RawPageDao;
+import org.wikibrain.core.lang.Language;
+import org.wikibrain.core.lang.LanguageSet;
+import org.wikibrain.core.model.RawPage;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * <p>This class wraps a raw page dao delegate and stores page bodies in compressed,
+ * per-language segment files instead of the delegate. The delegate only stores page
+ * metadata (its body column is left empty).</p>
+ *
+ * <p>Bodies are retrieved by id through a memory-mapped index, and the get() iterator
+ * fills in bodies from the segment as it streams metadata from the delegate. Pages that
+ * were loaded before the segment store was enabled fall back to the delegate's body.</p>
+ *
+ * <p>The dao can also store each page's plain text alongside its body (see
+ * {@link #savePlainText(Language, int, String)}). Pages returned by the dao carry their
+ * precomputed plain text, so {@link RawPage#getPlainText(boolean)} becomes a lookup.</p>
+ *
+ * @author Shilad Sen
+ */
+public class SegmentedRawPageDao implements RawPageDao {
+    private static final Logger LOG = LoggerFactory.getLogger(SegmentedRawPageDao.class);
+
+    private static final String BODIES = "bodies";
+    private static final String PLAIN_TEXTS = "plaintext";
+
+    private final RawPageDao delegate;
+    private final File dir;
+    private final Map<Language, BodySegment> segments = new ConcurrentHashMap<Language, BodySegment>();
+    private final Map<Language, BodySegment> plainTexts = new ConcurrentHashMap<Language, BodySegment>();
+
+    public SegmentedRawPageDao(RawPageDao delegate, File dir) throws DaoException {
+        this.delegate = delegate;
+        this.dir = dir;
+        dir.mkdirs();
+        File langDirs[] = dir.listFiles();
+        if (langDirs == null) {
+            return;
+        }
+        for (File langDir : langDirs) {
+            if (!langDir.isDirectory()) {
+                continue;
+            }
+            try {
+                Language lang = Language.getByLangCode(langDir.getName());
+                getSegment(segments, lang, BODIES);
+                getSegment(plainTexts, lang, PLAIN_TEXTS);
+            } catch (IllegalArgumentException e) {
+                LOG.warn("ignoring unknown language directory " + langDir);
+            }
+        }
+    }
+
+    private BodySegment getSegment(Map<Language, BodySegment> segments, Language lang, String name) throws DaoException {
+        BodySegment segment = segments.get(lang);
+        if (segment == null) {
+            synchronized (segments) {
+                segment = segments.get(lang);
+                if (segment == null) {
+                    try {
+                        segment = new BodySegment(new File(dir, lang.getLangCode()), name);
+                    } catch (IOException e) {
+                        throw new DaoException(e);
+                    }
+                    segments.put(lang, segment);
+                }
+            }
+        }
+        return segment;
+    }
+
+    @Override
+    public void clear() throws DaoException {
+        delegate.clear();
+        synchronized (segments) {
+            closeAll(segments);
+            closeAll(plainTexts);
+            FileUtils.deleteQuietly(dir);
+            dir.mkdirs();
+        }
+    }
+
+    private void closeAll(Map<Language, BodySegment> segments) {
+        for (BodySegment segment : segments.values()) {
+            try {
+                segment.close();
+            } catch (IOException e) {
+                LOG.warn("closing body segment failed: ", e);
+            }
+        }
+        segments.clear();
+    }
+
+    @Override
+    public void beginLoad() throws DaoException {
+        delegate.beginLoad();
+    }
+
+    @Override
+    public void save(RawPage page) throws DaoException {
+        append(getSegment(segments, page.getLanguage(), BODIES),
+                page.getLocalId(),
+                page.getBody() == null ? "" : page.getBody());
+        delegate.save(withBody(page, ""));
+    }
+
+    /**
+     * Stores the precomputed plain text (without templates) for a page.
+     * Plain text is typically computed while parsing wikitext, after the bodies are loaded.
+     * Call {@link #endPlainTextLoad()} once all plain text has been saved.
+     *
+     * @param lang
+     * @param pageId
+     * @param plainText
+     * @throws DaoException
+     */
+    public void savePlainText(Language lang, int pageId, String plainText) throws DaoException {
+        append(getSegment(plainTexts, lang, PLAIN_TEXTS), pageId, plainText);
+    }
+
+    /**
+     * Writes the indexes for all plain text saved since the last call.
+     * @throws DaoException
+     */
+    public void endPlainTextLoad() throws DaoException {
+        endLoad(plainTexts);
+    }
+
+    private void append(BodySegment segment, int pageId, String text) throws DaoException {
+        try {
+            if (!segment.isLoading()) {
+                segment.beginLoad();
+            }
+            segment.put(pageId, text);
+        } catch (IOException e) {
+            throw new DaoException(e);
+        }
+    }
+
+    private void endLoad(Map<Language, BodySegment> segments) throws DaoException {
+        for (BodySegment segment : segments.values()) {
+            try {
+                segment.endLoad();
+            } catch (IOException e) {
+                throw new DaoException(e);
+            }
+        }
+    }
+
+    @Override
+    public void endLoad() throws DaoException {
+        endLoad(segments);
+        endLoad(plainTexts);
+        delegate.endLoad();
+    }
+
+    @Override
+    public Iterable<RawPage> get(DaoFilter daoFilter) throws DaoException {
+        final Iterable<RawPage> pages = delegate.get(daoFilter);
+        return new Iterable<RawPage>() {
+            @Override
+            public Iterator<RawPage> iterator() {
+                final Iterator<RawPage> iter = pages.iterator();
+                return new Iterator<RawPage>() {
+                    @Override
+                    public boolean hasNext() {
+                        return iter.hasNext();
+                    }
+
+                    @Override
+                    public RawPage next() {
+                        try {
+                            return fillBody(iter.next());
+                        } catch (DaoException e) {
+                            throw new RuntimeException(e);
+                        }
+                    }
+
+                    @Override
+                    public void remove() {
+                        throw new UnsupportedOperationException();
+                    }
+                };
+            }
+        };
+    }
+
+    @Override
+    public int getCount(DaoFilter daoFilter) throws DaoException {
+        return delegate.getCount(daoFilter);
+    }
+
+    @Override
+    public LanguageSet getLoadedLanguages() throws DaoException {
+        return delegate.getLoadedLanguages();
+    }
+
+    @Override
+    public RawPage getById(Language language, int rawLocalPageId) throws DaoException {
+        return fillBody(delegate.getById(language, rawLocalPageId));
+    }
+
+    @Override
+    public String getBody(Language language, int rawLocalPageId) throws DaoException {
+        String body = getStored(segments, language, rawLocalPageId);
+        return (body == null) ? delegate.getBody(language, rawLocalPageId) : body;
+    }
+
+    /**
+     * @param language
+     * @param pageId
+     * @return The precomputed plain text of the page, or null if it was not precomputed.
+     * @throws DaoException
+     */
+    public String getStoredPlainText(Language language, int pageId) throws DaoException {
+        return getStored(plainTexts, language, pageId);
+    }
+
+    private String getStored(Map<Language, BodySegment> segments, Language language, int pageId) throws DaoException {
+        BodySegment segment = segments.get(language);
+        if (segment == null) {
+            return null;
+        }
+        try {
+            return segment.get(pageId);
+        } catch (IOException e) {
+            throw new DaoException(e);
+        }
+    }
+
+    private RawPage fillBody(RawPage page) throws DaoException {
+        if (page == null) {
+            return null;
+        }
+        String body = getStored(segments, page.getLanguage(), page.getLocalId());
+        RawPage filled = (body == null) ? page : withBody(page, body);
+        String plainText = getStored(plainTexts, page.getLanguage(), page.getLocalId());
+        if (plainText != null) {
+            filled.setPlainText(plainText);
+        }
+        return filled;
+    }
+
+    private static RawPage withBody(RawPage page, String body) {
+        RawPage copy = new RawPage(
+                page.getLocalId(),
+                page.getRevisionId(),
+                page.getTitle().getCanonicalTitle(),
+                body,
+                page.getLastEdit(),
+                page.getLanguage(),
+                page.getNamespace(),
+                page.isRedirect(),
+                page.isDisambig(),
+                page.getRedirectTitle()
+        );
+        copy.setModel(page.getModel());
+        copy.setFormat(page.getFormat());
+        copy.setPlainText(page.getCachedPlainText());
+        return copy;
+    }
+
+    public static class Provider extends org.wikibrain.conf.Provider<RawPageDao> {
+        public Provider(Configurator configurator, Configuration config) throws ConfigurationException {
+            super(configurator, config);
+        }
+
+        @Override
+        public Class<RawPageDao> getType() {
+            return RawPageDao.class;
+        }
+
+        @Override
+        public String getPath() {
+            return "dao.rawPage";
+        }
+
+        @Override
+        public RawPageDao get(String name, Config config, Map<String, String> runtimeParams) throws ConfigurationException {
+            if (!config.getString("type").equals("segment")) {
+                return null;
+            }
+            try {
+                return new SegmentedRawPageDao(
+                        getConfigurator().get(
+                                RawPageDao.class,
+                                config.getString("delegate")),
+                        new File(config.getString("path"))
+                );
+            } catch (DaoException e) {
+                throw new ConfigurationException(e);
+            }
+        }
+    }
+}
@@ -0,0 +1,24 @@
+package org.wikibrain.core.dao.sql;
+
+/**
+ * How a {@link FastLoader} moves rows into the database.
+ *
+ * @author Shilad Sen
+ */
+public enum BulkLoadStrategy {
+    /**
+     * JDBC batches of prepared inserts. Works with every database.
+     */
+    BATCH,
+
+    /**
+     * The database's native bulk import: CSV segments read with CSVREAD for H2,
+     * and the COPY protocol for PostgreSQL. Falls back to BATCH for other databases.
+     * For H2 the database must be able to read the loader's temporary directory.
+     */
+    NATIVE;
+
+    public static BulkLoadStrategy fromString(String s) {
+        return valueOf(s.trim().toUpperCase());
+    }
+}
@@ -0,0 +1,348 @@
+package org.wikibrain.core.dao.sql;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.lang3.StringUtils;
+import org.jooq.tools.jdbc.JDBCUtils;
+import org.postgresql.PGConnection;
+import org.postgresql.copy.CopyIn;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.*;
+import java.nio.charset.Charset;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Writes the rows taken from the queue by one {@link FastLoader} inserter thread.
+ * Each writer owns a single connection and commits whenever it flushes a segment of rows.
+ * Rows are added to the shared committed count only once their segment commits.
+ *
+ * @author Shilad Sen
+ */
+abstract class BulkRowWriter {
+    static final Logger LOG = LoggerFactory.getLogger(BulkRowWriter.class);
+    static final Charset UTF8 = Charset.forName("UTF-8");
+    private static final char HEX_DIGITS[] = "0123456789abcdef".toCharArray();
+
+    protected final Connection cnx;
+    protected final String table;
+    protected final String[] fields;
+    protected final AtomicLong numCommitted;
+
+    BulkRowWriter(Connection cnx, String table, String[] fields, AtomicLong numCommitted) {
+        this.cnx = cnx;
+        this.table = table;
+        this.fields = fields;
+        this.numCommitted = numCommitted;
+    }
+
+    /**
+     * Adds a row. The writer may flush the current segment.
+     */
+    abstract void write(Object row[]) throws SQLException, IOException;
+
+    /**
+     * Writes and commits all rows that have been added.
+     */
+    abstract void flush() throws SQLException, IOException;
+
+    void close() {}
+
+    /**
+     * Appends a value as a CSV field. NULL is an empty unquoted field and strings are
+     * always quoted, which both H2's CSVREAD and PostgreSQL's CSV COPY format understand.
+     * Byte arrays are written as quoted hex digits after binaryPrefix: H2 converts plain
+     * hex strings to binary, and PostgreSQL reads bytea in the "\x" hex format.
+     */
+    static void appendCsv(StringBuilder out, Object value, String binaryPrefix) {
+        if (value == null) {
+            return;
+        }
+        if (value instanceof Number || value instanceof Boolean) {
+            out.append(value.toString());
+            return;
+        }
+        if (value instanceof byte[]) {
+            out.append('"').append(binaryPrefix);
+            for (byte b : (byte[]) value) {
+                out.append(HEX_DIGITS[(b >> 4) & 0xF]).append(HEX_DIGITS[b & 0xF]);
+            }
+            out.append('"');
+            return;
+        }
+        String s = value.toString();
+        out.append('"');
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            if (c == '"') {
+                out.append('"');
+            }
+            out.append(c);
+        }
+        out.append('"');
+    }
+
+    static void appendCsvRow(StringBuilder out, Object row[], String binaryPrefix) {
+        for (int i = 0; i < row.length; i++) {
+            if (i > 0) {
+                out.append(',');
+            }
+            appendCsv(out, row[i], binaryPrefix);
+        }
+        out.append('\n');
+    }
+
+    /**
+     * The original JDBC batch insert path.
+     */
+    static class Batch extends BulkRowWriter {
+        private final PreparedStatement statement;
+        private int batchSize = 0;
+
+        Batch(Connection cnx, String table, String[] fields, AtomicLong numCommitted) throws SQLException {
+            super(cnx, table, fields, numCommitted);
+            String [] questions = new String[fields.length];
+            for (int i = 0; i < fields.length; i++) {
+                questions[i] = "?";
+            }
+            String sql = "INSERT INTO " +
+                    table + "(" + StringUtils.join(fields, ",") + ") " +
+                    "VALUES (" + StringUtils.join(questions, ",") + ");";
+            statement = cnx.prepareStatement(sql);
+        }
+
+        @Override
+        void write(Object row[]) throws SQLException {
+            for (int i = 0; i < row.length; i++) {
+                if(row[i] != null && row[i].getClass().equals(java.lang.Character.class))
+                    statement.setObject(i + 1, row[i].toString());
+                else
+                    statement.setObject(i + 1, row[i]);
+            }
+            statement.addBatch();
+            if (++batchSize >= FastLoader.BATCH_SIZE) {
+                flush();
+            }
+        }
+
+        @Override
+        void flush() throws SQLException {
+            try {
+                statement.executeBatch();
+                cnx.commit();
+                numCommitted.addAndGet(batchSize);
+            } catch (SQLException e) {
+                cnx.rollback();
+                while (e != null) {
+                    LOG.error("insert batch of " + batchSize + " rows into " + table + " failed, attempting to continue:", e);
+                    e = e.getNextException();
+                }
+            }
+            statement.clearBatch();
+            batchSize = 0;
+        }
+
+        @Override
+        void close() {
+            JDBCUtils.safeClose(statement);
+        }
+    }
+
+    /**
+     * Base class for the native writers, which import rows in segments.
+     * The rows of the current segment are kept until it commits. If the import of a segment
+     * fails they are replayed through JDBC batches, so a bad row costs at most one batch.
+     */
+    static abstract class Segmented extends BulkRowWriter {
+        static final int SEGMENT_ROWS = 20000;
+
+        protected final List<Object[]> rows = new ArrayList<Object[]>();
+        private Batch fallback;
+
+        Segmented(Connection cnx, String table, String[] fields, AtomicLong numCommitted) {
+            super(cnx, table, fields, numCommitted);
+        }
+
+        @Override
+        void write(Object row[]) throws SQLException, IOException {
+            rows.add(row);
+            append(row);
+            if (rows.size() >= SEGMENT_ROWS) {
+                flush();
+            }
+        }
+
+        @Override
+        void flush() throws SQLException, IOException {
+            if (rows.isEmpty()) {
+                return;
+            }
+            try {
+                importSegment();
+                cnx.commit();
+                numCommitted.addAndGet(rows.size());
+            } catch (SQLException e) {
+                cnx.rollback();
+                LOG.warn("bulk import of " + rows.size() + " rows into " + table + " failed, retrying them in batches:", e);
+                replay();
+            } finally {
+                rows.clear();
+            }
+        }
+
+        private void replay() throws SQLException {
+            if (fallback == null) {
+                fallback = new Batch(cnx, table, fields, numCommitted);
+            }
+            for (Object row[] : rows) {
+                fallback.write(row);
+            }
+            fallback.flush();
+        }
+
+        /**
+         * Adds a row to the current segment.
+         */
+        abstract void append(Object row[]) throws SQLException, IOException;
+
+        /**
+         * Imports the current segment and releases its resources. The caller commits.
+         */
+        abstract void importSegment() throws SQLException, IOException;
+
+        @Override
+        void close() {
+            if (fallback != null) {
+                fallback.close();
+            }
+        }
+    }
+
+    /**
+     * Spools rows to a CSV segment file and imports each segment with H2's CSVREAD.
+     */
+    static class H2Csv extends Segmented {
+        static final String BINARY_PREFIX = "";
+
+        private final StringBuilder line = new StringBuilder();
+        private File segment;
+        private Writer out;
+
+        H2Csv(Connection cnx, String table, String[] fields, AtomicLong numCommitted) {
+            super(cnx, table, fields, numCommitted);
+        }
+
+        @Override
+        void append(Object row[]) throws IOException {
+            if (out == null) {
+                segment = File.createTempFile("wikibrain-" + table + "-", ".csv");
+                segment.deleteOnExit();
+                out = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(segment), UTF8), 1 << 16);
+                out.write(StringUtils.join(fields, ",") + "\n");
+            }
+            line.setLength(0);
+            appendCsvRow(line, row, BINARY_PREFIX);
+            out.write(line.toString());
+        }
+
+        @Override
+        void importSegment() throws SQLException, IOException {
+            Statement statement = null;
+            try {
+                out.close();
+                out = null;
+                String sql = "INSERT INTO " + table + "(" + StringUtils.join(fields, ",") + ") " +
+                        "SELECT * FROM CSVREAD('" + segment.getAbsolutePath().replace("'", "''") + "', NULL, 'charset=UTF-8')";
+                statement = cnx.createStatement();
+                statement.execute(sql);
+            } finally {
+                JDBCUtils.safeClose(statement);
+                FileUtils.deleteQuietly(segment);
+            }
+        }
+
+        @Override
+        void close() {
+            if (out != null) {
+                try {
+                    out.close();
+                } catch (IOException e) {
+                    LOG.warn("closing segment " + segment + " failed", e);
+                }
+                FileUtils.deleteQuietly(segment);
+            }
+            super.close();
+        }
+    }
+
+    /**
+     * Streams rows to PostgreSQL with the COPY protocol, committing after each segment.
+     */
+    static class PostgresCopy extends Segmented {
+        static final String BINARY_PREFIX = "\\x";
+        static final int BUFFER_CHARS = 1 << 16;
+
+        private final PGConnection pgCnx;
+        private final StringBuilder buffer = new StringBuilder();
+        private CopyIn copy;
+
+        PostgresCopy(Connection cnx, String table, String[] fields, AtomicLong numCommitted) throws SQLException {
+            super(cnx, table, fields, numCommitted);
+            this.pgCnx = cnx.isWrapperFor(PGConnection.class)
+                    ? cnx.unwrap(PGConnection.class)
+                    : (PGConnection) cnx;
+        }
+
+        @Override
+        void append(Object row[]) throws SQLException {
+            if (copy == null) {
+                copy = pgCnx.getCopyAPI().copyIn(
+                        "COPY " + table + " (" + StringUtils.join(fields, ",") + ") FROM STDIN WITH CSV");
+            }
+            appendCsvRow(buffer, row, BINARY_PREFIX);
+            if (buffer.length() >= BUFFER_CHARS) {
+                sendBuffer();
+            }
+        }
+
+        private void sendBuffer() throws SQLException {
+            byte bytes[] = buffer.toString().getBytes(UTF8);
+            copy.writeToCopy(bytes, 0, bytes.length);
+            buffer.setLength(0);
+        }
+
+        @Override
+        void importSegment() throws SQLException {
+            try {
+                sendBuffer();
+                copy.endCopy();
+            } catch (SQLException e) {
+                if (copy.isActive()) {
+                    copy.cancelCopy();
+                }
+                throw e;
+            } finally {
+                copy = null;
+                buffer.setLength(0);
+            }
+        }
+
+        @Override
+        void close() {
+            if (copy != null && copy.isActive()) {
+                try {
+                    copy.cancelCopy();
+                } catch (SQLException e) {
+                    LOG.warn("cancelling copy into " + table + " failed", e);
+                }
+            }
+            super.close();
+        }
+    }
+}
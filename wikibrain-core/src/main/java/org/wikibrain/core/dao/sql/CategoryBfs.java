@@ -6,17 +6,19 @@ import org.wikibrain.core.dao.DaoException;
 import org.wikibrain.core.dao.LocalCategoryMemberDao;
 import org.wikibrain.core.lang.Language;
 import org.wikibrain.core.model.CategoryGraph;
-import org.wikibrain.core.model.LocalPage;
 import org.wikibrain.core.model.NameSpace;
 
-import java.util.Collection;
-import java.util.Map;
-import java.util.PriorityQueue;
+import java.nio.IntBuffer;
 
 /**
  * Conducts Dijkstra on the category hierarchy from a starting document.
  * Pages attached to visited categories are recorded, and iterations stop
  * when a certain number of unique pages have been discovered.
+ *
+ * The search runs over the compiled form of the category graph and keeps its
+ * state in a workspace from a shared pool, so a search does not allocate
+ * memory proportional to the graph. Call {@link #close()} when the search is
+ * finished to return the workspace to the pool.
 
  * @author Shilad Sen
  * @author Matt Lesicko
@@ -25,23 +27,30 @@ public class CategoryBfs {
     private CategoryGraph graph;
     private int startPage;
     private int maxResults;
-    private LocalCategoryMemberDao categoryMemberDao;
     private Language language;
 
     /**
-     * Observed distances to visited categories.
+     * Distances to open and visited categories and pages.
      */
-    private TIntDoubleHashMap catDistances = new TIntDoubleHashMap();
+    private CategorySearchWorkspace workspace;
 
     /**
-     * Observed distances to visited pages.
+     * True if the start page is an article in the category graph.
+     * Otherwise its distance is not stored in the workspace.
      */
-    private TIntDoubleHashMap pageDistances = new TIntDoubleHashMap();
+    private boolean startPageIndexed;
 
     /**
-     * Categories that have been seen, but not visited.
+     * Number of pages with observed distances, including the start page.
      */
-    private PriorityQueue<CategoryDistance> openCats = new PriorityQueue<CategoryDistance>();
+    private int numPages;
+
+    private final IntBuffer parentOffsets;
+    private final IntBuffer parentIndexes;
+    private final IntBuffer childOffsets;
+    private final IntBuffer childIndexes;
+    private final IntBuffer pageOffsets;
+    private final IntBuffer pageIndexes;
 
     /**
      * Results of the current iteration.
@@ -68,33 +77,62 @@ public class CategoryBfs {
         this(graph, startCatId, NameSpace.ARTICLE, language, maxResults, validWpIds, categoryMemberDao, (byte)+1);
     }
 
+    /**
+     * The categories of a starting article are read from the graph, so the
+     * categoryMemberDao is no longer queried. It is kept for compatibility.
+     * If the start page of an article search is a category page, the search
+     * starts at the parents of the category.
+     */
     public CategoryBfs(CategoryGraph graph, int startId, NameSpace startNamespace, Language language, int maxResults, TIntSet validWpIds, LocalCategoryMemberDao categoryMemberDao, int direction) throws DaoException {
+        if (startNamespace != NameSpace.ARTICLE && startNamespace != NameSpace.CATEGORY) {
+            throw new IllegalArgumentException();
+        }
         this.startPage = startId;
         this.maxResults = maxResults;
         this.graph = graph;
         this.validWpIds = validWpIds;
-        this.categoryMemberDao = categoryMemberDao;
         this.language = language;
-        pageDistances.put(startPage, 0.000000);
+
+        graph.compile();
+        this.parentOffsets = graph.getParentOffsets();
+        this.parentIndexes = graph.getParentIndexes();
+        this.childOffsets = graph.getChildOffsets();
+        this.childIndexes = graph.getChildIndexes();
+        this.pageOffsets = graph.getPageOffsets();
+        this.pageIndexes = graph.getPageIndexes();
+        this.workspace = CategorySearchWorkspace.acquire(graph);
+
+        int startIndex = graph.getArticleIndex(startId);
+        startPageIndexed = (startIndex >= 0);
+        if (startPageIndexed) {
+            workspace.setPage(startIndex, 0.000000);
+        }
+        numPages = 1;
+
         if (startNamespace == NameSpace.ARTICLE) {
-            Collection<Integer> cats = categoryMemberDao.getCategoryIds(language, startId);
-            if (cats!=null){
-                for (int catId : cats) {
-                    int ci = graph.getCategoryIndex(catId);
-                    if (ci >= 0) {
-                        openCats.add(new CategoryDistance(ci, graph.cats[ci], graph.catCosts[ci], (byte)direction));
+            if (startPageIndexed) {
+                IntBuffer offsets = graph.getArticleCategoryOffsets();
+                IntBuffer cats = graph.getArticleCategoryIndexes();
+                for (int j = offsets.get(startIndex); j < offsets.get(startIndex + 1); j++) {
+                    int ci = cats.get(j);
+                    workspace.offer(ci, graph.catCosts[ci], (byte)direction);
+                }
+            } else {
+                // Category pages are not article vertices, so start from the parents of the category.
+                int startCat = graph.getCategoryIndex(startId);
+                if (startCat >= 0) {
+                    for (int j = parentOffsets.get(startCat); j < parentOffsets.get(startCat + 1); j++) {
+                        int ci = parentIndexes.get(j);
+                        workspace.offer(ci, graph.catCosts[ci], (byte)direction);
                     }
                 }
             }
-        } else if (startNamespace == NameSpace.CATEGORY) {
+        } else {
             int ci = graph.getCategoryIndex(startId);
             if (ci >= 0) {
-                openCats.add(new CategoryDistance(ci, graph.cats[ci], 0.000000001, (byte)direction));
+                workspace.offer(ci, 0.000000001, (byte)direction);
             }
-        } else {
-            throw new IllegalArgumentException();
         }
-
     }
 
     public void setAddPages(boolean addPages) {
@@ -106,7 +144,7 @@ public class CategoryBfs {
     }
 
     public boolean hasMoreResults() {
-        return openCats.size() > 0 && pageDistances.size() < maxResults;
+        return workspace.hasOpenCategories() && numPages < maxResults;
     }
 
     /**
@@ -118,26 +156,27 @@ public class CategoryBfs {
         if (!hasMoreResults()) {
             return visited;
         }
-        CategoryDistance cs;
-        do {
-            cs = openCats.poll();
-        } while (hasMoreResults() && catDistances.contains(cs.getCatIndex()));
-
-        visited.cats.put(cs.getCatIndex(), cs.getDistance());
-        catDistances.put(cs.getCatIndex(), cs.getDistance());
-//        System.out.println("visited " + cs.toString());
+        int ci = workspace.poll();
+        double distance = workspace.getCategoryDistance(ci);
+        visited.cats.put(ci, distance);
 
         // add directly linked pages
         if (addPages) {
-            for (int i : graph.catPages[cs.getCatIndex()]) {
-                if (validWpIds != null && !validWpIds.contains(i)) {
+            for (int j = pageOffsets.get(ci); j < pageOffsets.get(ci + 1); j++) {
+                int ai = pageIndexes.get(j);
+                int pageId = graph.getArticleId(ai);
+                if (validWpIds != null && !validWpIds.contains(pageId)) {
                     continue;
                 }
-                if (!pageDistances.containsKey(i) || pageDistances.get(i) > cs.getDistance()) {
-                    pageDistances.put(i, cs.getDistance());
-                    visited.pages.put(i, cs.getDistance());
+                if (!workspace.hasPage(ai)) {
+                    workspace.setPage(ai, distance);
+                    visited.pages.put(pageId, distance);
+                    numPages++;
+                } else if (workspace.getPageDistance(ai) > distance) {
+                    workspace.setPage(ai, distance);
+                    visited.pages.put(pageId, distance);
                 }
-                if (pageDistances.size() >= maxResults) {
+                if (numPages >= maxResults) {
                     break;  // may be an issue for huge categories
                 }
             }
@@ -145,47 +184,74 @@ public class CategoryBfs {
 
         // next steps downwards
         if (exploreChildren) {
-            for (int i : graph.catChildren[cs.getCatIndex()]) {
-                if (!catDistances.containsKey(i)) {
-                    double d = cs.getDistance() + graph.catCosts[i];
-                    openCats.add(new CategoryDistance(i, graph.cats[i], d, (byte)-1));
-                }
+            for (int j = childOffsets.get(ci); j < childOffsets.get(ci + 1); j++) {
+                int i = childIndexes.get(j);
+                workspace.offer(i, distance + graph.catCosts[i], (byte)-1);
             }
         }
 
         // next steps upwards (if still possible)
-        if (cs.getDirection() == +1) {
-            for (int i : graph.catParents[cs.getCatIndex()]) {
-                if (!catDistances.containsKey(i)) {
-                    double d = cs.getDistance() + graph.catCosts[i];
-                    openCats.add(new CategoryDistance(i, graph.cats[i], d, (byte)+1));
-                }
+        if (workspace.getDirection(ci) == +1) {
+            for (int j = parentOffsets.get(ci); j < parentOffsets.get(ci + 1); j++) {
+                int i = parentIndexes.get(j);
+                workspace.offer(i, distance + graph.catCosts[i], (byte)+1);
             }
         }
 
         return visited;
     }
 
+    /**
+     * Returns the workspace of this search to the shared pool.
+     * The search may not be used after it is closed.
+     */
+    public void close() {
+        if (workspace != null) {
+            workspace.release();
+            workspace = null;
+        }
+    }
+
+    /**
+     * @return A new map from page id to distance for all pages found so far.
+     */
     public TIntDoubleHashMap getPageDistances() {
-        return pageDistances;
+        TIntDoubleHashMap distances = new TIntDoubleHashMap(numPages * 2);
+        distances.put(startPage, 0.0);
+        for (int i = 0; i < workspace.getNumPages(); i++) {
+            int ai = workspace.getPage(i);
+            distances.put(graph.getArticleId(ai), workspace.getPageDistance(ai));
+        }
+        return distances;
+    }
+    public int getNumPages() {
+        return numPages;
     }
     public boolean hasPageDistance(int pageId) {
-        return pageDistances.containsKey(pageId);
+        if (pageId == startPage) {
+            return true;
+        }
+        int ai = graph.getArticleIndex(pageId);
+        return ai >= 0 && workspace.hasPage(ai);
     }
     public double getPageDistance(int pageId) {
-        return pageDistances.get(pageId);
+        if (pageId == startPage) {
+            return 0.0;
+        }
+        int ai = graph.getArticleIndex(pageId);
+        return (ai >= 0 && workspace.hasPage(ai)) ? workspace.getPageDistance(ai) : 0.0;
     }
     public boolean hasCategoryDistanceForIndex(int categoryId) {
-        return catDistances.containsKey(categoryId);
+        return workspace.isVisited(categoryId);
     }
     public boolean hasCategoryDistance(int pageId) {
-        return catDistances.containsKey(graph.getCategoryIndex(pageId));
+        return workspace.isVisited(graph.getCategoryIndex(pageId));
     }
     public double getCategoryDistance(int categoryId) {
-        return catDistances.get(graph.getCategoryIndex(categoryId));
+        return getCategoryDistanceForIndex(graph.getCategoryIndex(categoryId));
     }
     public double getCategoryDistanceForIndex(int catIndex) {
-        return catDistances.get(catIndex);
+        return workspace.isVisited(catIndex) ? workspace.getCategoryDistance(catIndex) : 0.0;
     }
 
     public class BfsVisited {
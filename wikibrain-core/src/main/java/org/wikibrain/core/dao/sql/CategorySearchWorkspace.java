@@ -0,0 +1,219 @@
+package org.wikibrain.core.dao.sql;
+
+import gnu.trove.list.array.TIntArrayList;
+import gnu.trove.map.hash.TIntDoubleHashMap;
+import org.wikibrain.core.model.CategoryGraph;
+
+import java.util.Arrays;
+import java.util.concurrent.ArrayBlockingQueue;
+
+/**
+ * Reusable state for a Dijkstra search over a compiled category graph.
+ *
+ * Open categories are kept in an indexed binary heap keyed by distance, so each category
+ * appears at most once and improvements are decrease-key operations. Category distances
+ * are stored in arrays sized to the graph and tagged with the epoch of the search that
+ * wrote them, so starting a new search is O(1) instead of clearing the arrays. A search
+ * only reaches a small fraction of the articles, so page distances are kept in a hash map.
+ *
+ * Workspaces are kept in one pool shared by all threads, with at most one idle workspace
+ * per processor. A search must call {@link #release()} when it is finished, and nothing
+ * may read from the workspace afterwards.
+ *
+ * @author Shilad Sen
+ */
+final class CategorySearchWorkspace {
+    private static final int MAX_POOLED = Runtime.getRuntime().availableProcessors();
+
+    // Page collections that grew beyond this many pages are not kept in the pool
+    private static final int MAX_RETAINED_PAGES = 100000;
+
+    private static final ArrayBlockingQueue<CategorySearchWorkspace> POOL =
+            new ArrayBlockingQueue<CategorySearchWorkspace>(MAX_POOLED);
+
+    private int epoch = 0;
+
+    // Categories, indexed by dense category index
+    private int catSeen[] = new int[0];         // epoch in which the category was first offered
+    private int catDone[] = new int[0];         // epoch in which the category was visited
+    private double catDistances[] = new double[0];
+    private byte catDirections[] = new byte[0]; // +1 (heading upwards) or -1 (heading downwards)
+
+    // Indexed binary heap of open categories
+    private int heap[] = new int[0];
+    private int heapPositions[] = new int[0];
+    private int heapSize = 0;
+
+    // Pages, keyed by dense article index
+    private TIntDoubleHashMap pageDistances = new TIntDoubleHashMap();
+    private TIntArrayList pages = new TIntArrayList();  // article indexes in the order they were found
+
+    private CategorySearchWorkspace() {}
+
+    /**
+     * Returns a workspace that is ready for a new search of the graph.
+     */
+    static CategorySearchWorkspace acquire(CategoryGraph graph) {
+        CategorySearchWorkspace ws = POOL.poll();
+        if (ws == null) {
+            ws = new CategorySearchWorkspace();
+        }
+        ws.reset(graph.catIds.length);
+        return ws;
+    }
+
+    /**
+     * Returns the workspace to the shared pool, unless the pool is full.
+     */
+    void release() {
+        if (pages.size() > MAX_RETAINED_PAGES) {
+            pageDistances = new TIntDoubleHashMap();
+            pages = new TIntArrayList();
+        }
+        POOL.offer(this);
+    }
+
+    private void reset(int numCats) {
+        if (catSeen.length < numCats) {
+            catSeen = new int[numCats];
+            catDone = new int[numCats];
+            catDistances = new double[numCats];
+            catDirections = new byte[numCats];
+            heap = new int[numCats];
+            heapPositions = new int[numCats];
+        }
+        if (++epoch == Integer.MAX_VALUE) {
+            Arrays.fill(catSeen, 0);
+            Arrays.fill(catDone, 0);
+            epoch = 1;
+        }
+        heapSize = 0;
+        pageDistances.clear();
+        pages.resetQuick();
+    }
+
+    /**
+     * Adds an unvisited category to the open set, or lowers its distance if it is already open.
+     */
+    void offer(int catIndex, double distance, byte direction) {
+        if (catDone[catIndex] == epoch) {
+            return;
+        }
+        if (catSeen[catIndex] != epoch) {
+            catSeen[catIndex] = epoch;
+            catDistances[catIndex] = distance;
+            catDirections[catIndex] = direction;
+            heap[heapSize] = catIndex;
+            heapPositions[catIndex] = heapSize;
+            siftUp(heapSize++);
+        } else if (distance < catDistances[catIndex]) {
+            catDistances[catIndex] = distance;
+            catDirections[catIndex] = direction;
+            siftUp(heapPositions[catIndex]);
+        }
+    }
+
+    boolean hasOpenCategories() {
+        return heapSize > 0;
+    }
+
+    /**
+     * Removes the closest open category and marks it visited.
+     * @return The dense category index.
+     */
+    int poll() {
+        int catIndex = heap[0];
+        heapSize--;
+        if (heapSize > 0) {
+            heap[0] = heap[heapSize];
+            heapPositions[heap[0]] = 0;
+            siftDown(0);
+        }
+        catDone[catIndex] = epoch;
+        return catIndex;
+    }
+
+    boolean isVisited(int catIndex) {
+        return catIndex >= 0 && catDone[catIndex] == epoch;
+    }
+
+    double getCategoryDistance(int catIndex) {
+        return catDistances[catIndex];
+    }
+
+    byte getDirection(int catIndex) {
+        return catDirections[catIndex];
+    }
+
+    boolean hasPage(int articleIndex) {
+        return pageDistances.containsKey(articleIndex);
+    }
+
+    double getPageDistance(int articleIndex) {
+        return pageDistances.get(articleIndex);
+    }
+
+    /**
+     * Records the distance to a page.
+     * @return True if the page had not been seen before in this search.
+     */
+    boolean setPage(int articleIndex, double distance) {
+        boolean isNew = !pageDistances.containsKey(articleIndex);
+        pageDistances.put(articleIndex, distance);
+        if (isNew) {
+            pages.add(articleIndex);
+        }
+        return isNew;
+    }
+
+    int getNumPages() {
+        return pages.size();
+    }
+
+    /**
+     * @return The article index of the i'th page found in this search.
+     */
+    int getPage(int i) {
+        return pages.get(i);
+    }
+
+    private void siftUp(int pos) {
+        int catIndex = heap[pos];
+        double d = catDistances[catIndex];
+        while (pos > 0) {
+            int parent = (pos - 1) >>> 1;
+            int p = heap[parent];
+            if (catDistances[p] <= d) {
+                break;
+            }
+            heap[pos] = p;
+            heapPositions[p] = pos;
+            pos = parent;
+        }
+        heap[pos] = catIndex;
+        heapPositions[catIndex] = pos;
+    }
+
+    private void siftDown(int pos) {
+        int catIndex = heap[pos];
+        double d = catDistances[catIndex];
+        while (true) {
+            int child = 2 * pos + 1;
+            if (child >= heapSize) {
+                break;
+            }
+            if (child + 1 < heapSize && catDistances[heap[child + 1]] < catDistances[heap[child]]) {
+                child++;
+            }
+            int c = heap[child];
+            if (catDistances[c] >= d) {
+                break;
+            }
+            heap[pos] = c;
+            heapPositions[c] = pos;
+            pos = child;
+        }
+        heap[pos] = catIndex;
+        heapPositions[catIndex] = pos;
+    }
+}
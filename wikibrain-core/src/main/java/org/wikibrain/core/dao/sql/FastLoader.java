@@ -1,14 +1,12 @@
 package org.wikibrain.core.dao.sql;
 
-import org.apache.commons.lang3.StringUtils;
-import org.jooq.Table;
+import org.jooq.SQLDialect;
 import org.jooq.TableField;
-import org.jooq.tools.jdbc.JDBCUtils;
 import org.wikibrain.core.dao.DaoException;
 import org.wikibrain.utils.WpThreadUtils;
 
+import java.io.IOException;
 import java.sql.Connection;
-import java.sql.PreparedStatement;
 import java.sql.SQLException;
 import java.sql.Timestamp;
 import java.text.DateFormat;
@@ -17,6 +15,7 @@ import java.util.Date;
 import java.util.concurrent.ArrayBlockingQueue;
 import java.util.concurrent.BlockingQueue;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.slf4j.Logger;
@@ -25,11 +24,17 @@ import org.slf4j.LoggerFactory;
 /**
  * Bulk loads data in batch form to speed up insertions.
  *
+ * Rows are handed to a pool of inserter threads that each write through a
+ * {@link BulkRowWriter}. The data source's {@link BulkLoadStrategy} chooses between
+ * JDBC batches and the database's native bulk import. The number of committed rows and
+ * the load rate of each table are logged when the load ends.
+ *
  * @author Shilad Sen
  */
 public class FastLoader {
 
-    private static final int NUM_INSERTERS = Math.min(WpThreadUtils.getMaxThreads(), 4);
+    private static final int NUM_BATCH_INSERTERS = Math.min(WpThreadUtils.getMaxThreads(), 4);
+    private static final int NUM_NATIVE_INSERTERS = Math.min(WpThreadUtils.getMaxThreads(), 8);
 
     private static final Object POSION_PILL = new Object();
     private boolean isPostGisLoader = false;
@@ -37,12 +42,21 @@ public class FastLoader {
     static final Logger LOG = LoggerFactory.getLogger(FastLoader.class);
     static final int BATCH_SIZE = 1000;
 
+    /**
+     * How long endLoad waits for the inserters to write their last rows.
+     */
+    static final long SHUTDOWN_TIMEOUT_MILLIS = 10 * 60 * 1000;
+
     private final WpDataSource ds;
     private final String table;
     private final String[] fields;
+    private final SQLDialect dialect;
+    private final BulkLoadStrategy strategy;
+
+    private final BlockingQueue<Object[]> rowBuffer;
 
-    private BlockingQueue<Object[]> rowBuffer =
-            new ArrayBlockingQueue<Object[]>(BATCH_SIZE * NUM_INSERTERS * 2);
+    private final AtomicLong numRows = new AtomicLong();    // committed rows
+    private final long startMillis = System.currentTimeMillis();
 
     static enum InserterState {
         RUNNING,            // In normal working mode
@@ -51,22 +65,35 @@ public class FastLoader {
         SHUTDOWN            // Already shutdown
     }
 
-    private Thread [] inserters = new Thread[NUM_INSERTERS];
+    private Thread [] inserters;
     private volatile InserterState inserterState = null;
+    private volatile Exception failure = null;
 
     public FastLoader(WpDataSource ds, TableField[] fields) throws DaoException {
         this(ds, fields[0].getTable().getName(), getFieldNames(fields));
     }
 
-    public FastLoader(WpDataSource ds, String table, String[] fields, boolean isPostGisLoader) throws DaoException {
-        this(ds,table, fields);
-        this.isPostGisLoader = isPostGisLoader;
+    public FastLoader(WpDataSource ds, String table, String[] fields) throws DaoException {
+        this(ds, table, fields, false);
     }
 
-    public FastLoader(WpDataSource ds, String table, String[] fields) throws DaoException {
+    public FastLoader(WpDataSource ds, String table, String[] fields, boolean isPostGisLoader) throws DaoException {
         this.ds = ds;
         this.table = table;
         this.fields = fields;
+        this.isPostGisLoader = isPostGisLoader;
+        this.dialect = ds.getDialect();
+
+        // PostGIS geometries are bound as objects, so they always use batches
+        if (ds.getBulkLoadStrategy() == BulkLoadStrategy.NATIVE && !isPostGisLoader
+                && (dialect == SQLDialect.H2 || dialect == SQLDialect.POSTGRES)) {
+            strategy = BulkLoadStrategy.NATIVE;
+        } else {
+            strategy = BulkLoadStrategy.BATCH;
+        }
+        int numInserters = (strategy == BulkLoadStrategy.NATIVE) ? NUM_NATIVE_INSERTERS : NUM_BATCH_INSERTERS;
+        rowBuffer = new ArrayBlockingQueue<Object[]>(BATCH_SIZE * numInserters * 2);
+        inserters = new Thread[numInserters];
 
         for (int i = 0; i < inserters.length; i++) {
             inserters[i] = new Thread(new Runnable() {
@@ -74,17 +101,13 @@ public class FastLoader {
                     try {
                         insertBatches();
                     } catch (DaoException e) {
-                        LOG.error("inserter failed", e);
-                        inserterState = InserterState.FAILED;
-                        rowBuffer.clear();  // allow any existing puts to go through
+                        fail("inserter failed", e);
                     } catch (SQLException e) {
-                        LOG.error("inserter failed", e);
-                        inserterState = InserterState.FAILED;
-                        rowBuffer.clear();  // allow any existing puts to go through
+                        fail("inserter failed", e);
+                    } catch (IOException e) {
+                        fail("inserter failed", e);
                     } catch (InterruptedException e) {
-                        LOG.error("inserter interrupted", e);
-                        inserterState = InserterState.FAILED;
-                        rowBuffer.clear();  // allow any existing puts to go through
+                        fail("inserter interrupted", e);
                     }
                 }
             });
@@ -93,6 +116,15 @@ public class FastLoader {
         inserterState = InserterState.RUNNING;
     }
 
+    private void fail(String message, Exception e) {
+        LOG.error(message, e);
+        if (failure == null) {
+            failure = e;
+        }
+        inserterState = InserterState.FAILED;
+        rowBuffer.clear();  // allow any existing puts to go through
+    }
+
     private static String[] getFieldNames(TableField[] fields) {
         String names[] = new String[fields.length];
         for (int i = 0; i < fields.length; i++) {
@@ -127,7 +159,17 @@ public class FastLoader {
         }
     }
 
-    private void insertBatches() throws DaoException, SQLException, InterruptedException {
+    private BulkRowWriter createWriter(Connection cnx) throws SQLException {
+        if (strategy == BulkLoadStrategy.NATIVE && dialect == SQLDialect.H2) {
+            return new BulkRowWriter.H2Csv(cnx, table, fields, numRows);
+        } else if (strategy == BulkLoadStrategy.NATIVE && dialect == SQLDialect.POSTGRES) {
+            return new BulkRowWriter.PostgresCopy(cnx, table, fields, numRows);
+        } else {
+            return new BulkRowWriter.Batch(cnx, table, fields, numRows);
+        }
+    }
+
+    private void insertBatches() throws DaoException, SQLException, IOException, InterruptedException {
         boolean finished = false;
 
         Connection cnx = ds.getConnection();
@@ -142,79 +184,79 @@ public class FastLoader {
             }
         }
 
-        PreparedStatement statement = null;
+        BulkRowWriter writer = null;
         try {
-            String [] names = new String[fields.length];
-            String [] questions = new String[fields.length];
-            for (int i = 0; i < fields.length; i++) {
-                names[i] = fields[i];
-                questions[i] = "?";
-            }
-            String sql = "INSERT INTO " +
-                    table + "(" + StringUtils.join(names, ",") + ") " +
-                    "VALUES (" + StringUtils.join(questions, ",") + ");";
-            statement = cnx.prepareStatement(sql);
-
+            writer = createWriter(cnx);
             while (!finished && inserterState != InserterState.FAILED) {
-                // accumulate batch
-                int batchSize = 0;
-                while (!finished && batchSize < BATCH_SIZE && inserterState != InserterState.FAILED) {
-                    Object row[] = rowBuffer.poll(100, TimeUnit.MILLISECONDS);
-                    if (row == null) {
-                        // do nothing
-                    } else if (row[0] == POSION_PILL) {
-                        rowBuffer.put(new Object[]{POSION_PILL});
-                        finished = true;
-                    } else {
-                        batchSize++;
-                        for (int i = 0; i < row.length; i++) {
-                            if(row[i] != null && row[i].getClass().equals(java.lang.Character.class))
-                                 statement.setObject(i + 1, row[i].toString());
-                            else
-                                statement.setObject(i + 1, row[i]);
-                        }
-                        statement.addBatch();
-                    }
+                Object row[] = rowBuffer.poll(100, TimeUnit.MILLISECONDS);
+                if (row == null) {
+                    // do nothing
+                } else if (row[0] == POSION_PILL) {
+                    rowBuffer.put(new Object[]{POSION_PILL});
+                    finished = true;
+                } else {
+                    writer.write(row);
                 }
-                try {
-                    statement.executeBatch();
-                    cnx.commit();
-                } catch (SQLException e) {
-                    cnx.rollback();
-                    while (e != null) {
-                        LOG.error("insert batch failed, attempting to continue:", e);
-                        e = e.getNextException();
-                    }
-                }
-                statement.clearBatch();
             }
+            writer.flush();
         } finally {
-            if (statement != null) {
-                JDBCUtils.safeClose(statement);
+            if (writer != null) {
+                writer.close();
             }
             AbstractSqlDao.quietlyCloseConn(cnx);
         }
     }
 
     public void endLoad() throws DaoException {
+        if (inserterState == InserterState.SHUTDOWN) {
+            return;
+        }
         try {
+            // A failed loader stays FAILED so the surviving inserters stop polling
             if (inserterState == InserterState.RUNNING) {
                 rowBuffer.put(new Object[]{POSION_PILL});
+                inserterState = InserterState.SHUTTING_DOWN;
             }
-            inserterState = InserterState.SHUTTING_DOWN;
         } catch (InterruptedException e) {
             throw new DaoException(e);
         }
+        long deadline = System.currentTimeMillis() + SHUTDOWN_TIMEOUT_MILLIS;
+        int numAlive = 0;
         for (Thread inserter : inserters) {
             if (inserter != null) {
                 try {
-                    inserter.join(60000);
+                    inserter.join(Math.max(1, deadline - System.currentTimeMillis()));
                 } catch (InterruptedException e) {
                     throw new DaoException(e);
                 }
+                if (inserter.isAlive()) {
+                    numAlive++;
+                }
             }
         }
         inserterState = InserterState.SHUTDOWN;
+
+        double seconds = Math.max(0.001, (System.currentTimeMillis() - startMillis) / 1000.0);
+        LOG.info(String.format("loaded %d rows into %s in %.1f seconds (%.0f rows/sec) using %s loading",
+                numRows.get(), table, seconds, numRows.get() / seconds, strategy.toString().toLowerCase()));
+        if (failure != null) {
+            throw new DaoException("loading " + table + " failed after " + numRows.get() + " rows", failure);
+        }
+        if (numAlive > 0) {
+            throw new DaoException(numAlive + " inserters for " + table + " did not finish within " +
+                    (SHUTDOWN_TIMEOUT_MILLIS / 1000) + " seconds; " + numRows.get() + " rows were committed");
+        }
+    }
+
+    /**
+     * @return The number of rows committed so far.
+     */
+    public long getNumRows() {
+        return numRows.get();
+    }
+
+    public BulkLoadStrategy getStrategy() {
+        return strategy;
     }
 
     public void close() throws  DaoException {
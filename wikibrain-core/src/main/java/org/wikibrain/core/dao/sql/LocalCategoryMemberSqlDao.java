@@ -1,6 +1,7 @@
 package org.wikibrain.core.dao.sql;
 
 import com.typesafe.config.Config;
+import org.apache.commons.io.FileUtils;
 import org.jooq.*;
 import org.wikibrain.conf.Configuration;
 import org.wikibrain.conf.ConfigurationException;
@@ -10,8 +11,10 @@ import org.wikibrain.core.dao.*;
 import org.wikibrain.core.jooq.Tables;
 import org.wikibrain.core.lang.Language;
 import org.wikibrain.core.model.*;
+import org.wikibrain.utils.WpIOUtils;
 
 import java.io.File;
+import java.io.IOException;
 import java.util.*;
 import java.util.concurrent.ConcurrentHashMap;
 
@@ -66,13 +69,17 @@ public class LocalCategoryMemberSqlDao extends AbstractSqlDao<LocalCategoryMembe
         }
 
         List<LocalPage> matches = new ArrayList<LocalPage>();
-        while (bfs.hasMoreResults() && matches.isEmpty()) {
-            CategoryBfs.BfsVisited visited = bfs.step();
-            for (int catId : visited.cats.keys()) {
-                if (indexToCandidates.containsKey(catId)) {
-                    matches.add(indexToCandidates.get(catId));
+        try {
+            while (bfs.hasMoreResults() && matches.isEmpty()) {
+                CategoryBfs.BfsVisited visited = bfs.step();
+                for (int catId : visited.cats.keys()) {
+                    if (indexToCandidates.containsKey(catId)) {
+                        matches.add(indexToCandidates.get(catId));
+                    }
                 }
             }
+        } finally {
+            bfs.close();
         }
         if (matches.isEmpty()) {
             return null;
@@ -199,20 +206,53 @@ public class LocalCategoryMemberSqlDao extends AbstractSqlDao<LocalCategoryMembe
             return graphs.get(language);
         }
         String key = "cat-graph-" + language.getLangCode();
+        CategoryGraph graph = null;
         if (cache != null) {
-            CategoryGraph graph = (CategoryGraph) cache.get(key, LocalPage.class, LocalCategoryMember.class);
-            if (graph != null) {
-                graphs.put(language, graph);
-                return graph;
+            graph = (CategoryGraph) cache.get(key, LocalPage.class, LocalCategoryMember.class);
+        }
+        if (graph == null) {
+            LocalCategoryGraphBuilder builder = new LocalCategoryGraphBuilder(localPageDao, this);
+            graph =  builder.build(language);
+            if (cache != null) {
+                cache.put(key, graph);
             }
         }
-        LocalCategoryGraphBuilder builder = new LocalCategoryGraphBuilder(localPageDao, this);
-        CategoryGraph graph =  builder.build(language);
-        cache.put(key, graph);
+        compileGraph(graph, key + ".csr");
         graphs.put(language, graph);
         return graph;
     }
 
+    /**
+     * Memory maps the CSR form of the graph from the cache, rebuilding the cached copy if necessary.
+     */
+    private void compileGraph(CategoryGraph graph, String key) throws DaoException {
+        if (cache == null) {
+            graph.compile();
+            return;
+        }
+        File tmp = null;
+        try {
+            File file = cache.getCacheFile(key);
+            if (cache.isUpToDate(key, LocalPage.class, LocalCategoryMember.class) && graph.mapCompiled(file)) {
+                return;
+            }
+            LOG.info("writing compiled category graph to " + file);
+            tmp = WpIOUtils.createTempFileBeside(file);
+            graph.writeCompiled(tmp);
+
+            // Map the file we wrote before it replaces the cached copy, so a concurrent
+            // writer replacing the cached copy cannot change the graph we map.
+            if (!graph.mapCompiled(tmp)) {
+                throw new DaoException("could not map compiled category graph " + tmp);
+            }
+            WpIOUtils.replaceFile(tmp, file);
+        } catch (IOException e) {
+            throw new DaoException(e);
+        } finally {
+            FileUtils.deleteQuietly(tmp);
+        }
+    }
+
     private Collection<Integer> extractIds(Result<Record> result, boolean categoryIds) {
         if (result.isEmpty()) {
             return null;
@@ -1,6 +1,9 @@
 package org.wikibrain.core.dao.sql;
 
 import com.typesafe.config.Config;
+import gnu.trove.list.array.TIntArrayList;
+import gnu.trove.map.TIntObjectMap;
+import gnu.trove.map.hash.TIntObjectHashMap;
 import org.jooq.*;
 import org.wikibrain.conf.Configuration;
 import org.wikibrain.conf.ConfigurationException;
@@ -15,11 +18,13 @@ import org.wikibrain.core.model.LocalLink;
 
 import java.util.ArrayList;
 import java.util.Collection;
+import java.util.List;
 import java.util.Map;
 import java.util.concurrent.atomic.AtomicLong;
 
 
 public class LocalLinkSqlDao extends AbstractSqlDao<LocalLink> implements LocalLinkDao {
+    private static final int BULK_QUERY_SIZE = 1000;
 
     public LocalLinkSqlDao(WpDataSource dataSource) throws DaoException {
         super(dataSource, INSERT_FIELDS, "/db/local-link");
@@ -149,6 +154,16 @@ public class LocalLinkSqlDao extends AbstractSqlDao<LocalLink> implements LocalL
         throw new UnsupportedOperationException();
     }
 
+    @Override
+    public double[] getPageRanks(Language language, int[] pageIds) throws DaoException {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public int[] getTopPageRankIds(Language language, int n) throws DaoException {
+        throw new UnsupportedOperationException();
+    }
+
     @Override
     public Iterable<LocalLink> getLinks(Language language, int localId, boolean outlinks, boolean isParseable, LocalLink.LocationType locationType) throws DaoException{
         DSLContext context = getJooq();
@@ -204,6 +219,64 @@ public class LocalLinkSqlDao extends AbstractSqlDao<LocalLink> implements LocalL
         }
     }
 
+    @Override
+    public int getLinkIds(Language language, int localId, boolean outlinks, int buffer[]) throws DaoException {
+        int ids[] = getLinkIds(language, localId, outlinks);
+        System.arraycopy(ids, 0, buffer, 0, Math.min(ids.length, buffer.length));
+        return ids.length;
+    }
+
+    @Override
+    public int[] getLinkIds(Language language, int localId, boolean outlinks) throws DaoException {
+        return getLinkIds(language, new int[] { localId }, outlinks)[0];
+    }
+
+    /**
+     * Selects only the source and destination columns, and queries for
+     * up to BULK_QUERY_SIZE pages in each statement.
+     */
+    @Override
+    public int[][] getLinkIds(Language language, int localIds[], boolean outlinks) throws DaoException {
+        TableField<?, Integer> keyField = outlinks ? Tables.LOCAL_LINK.SOURCE_ID : Tables.LOCAL_LINK.DEST_ID;
+        TableField<?, Integer> valueField = outlinks ? Tables.LOCAL_LINK.DEST_ID : Tables.LOCAL_LINK.SOURCE_ID;
+        TIntObjectMap<TIntArrayList> links = new TIntObjectHashMap<TIntArrayList>();
+        DSLContext context = getJooq();
+        try {
+            for (int i = 0; i < localIds.length; i += BULK_QUERY_SIZE) {
+                List<Integer> batch = new ArrayList<Integer>();
+                for (int j = i; j < Math.min(localIds.length, i + BULK_QUERY_SIZE); j++) {
+                    batch.add(localIds[j]);
+                }
+                Cursor<Record2<Integer, Integer>> result = context.select(keyField, valueField)
+                        .from(Tables.LOCAL_LINK)
+                        .where(Tables.LOCAL_LINK.LANG_ID.equal(language.getId()))
+                        .and(keyField.in(batch))
+                        .and(valueField.greaterOrEqual(0))
+                        .fetchLazy(getFetchSize());
+                try {
+                    for (Record2<Integer, Integer> record : result) {
+                        TIntArrayList ids = links.get(record.value1());
+                        if (ids == null) {
+                            ids = new TIntArrayList();
+                            links.put(record.value1(), ids);
+                        }
+                        ids.add(record.value2());
+                    }
+                } finally {
+                    result.close();
+                }
+            }
+        } finally {
+            freeJooq(context);
+        }
+        int result[][] = new int[localIds.length][];
+        for (int i = 0; i < localIds.length; i++) {
+            TIntArrayList ids = links.get(localIds[i]);
+            result[i] = (ids == null) ? new int[0] : ids.toArray();
+        }
+        return result;
+    }
+
     private Iterable<LocalLink> buildLocalLinks(Cursor<Record> result, final boolean outlink, DSLContext context){
         return new SimpleSqlDaoIterable<LocalLink>(result, context) {
             @Override
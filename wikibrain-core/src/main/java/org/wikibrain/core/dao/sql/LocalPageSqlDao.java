@@ -1,9 +1,9 @@
 package org.wikibrain.core.dao.sql;
 
 import com.typesafe.config.Config;
-import gnu.trove.impl.Constants;
-import gnu.trove.map.hash.TLongIntHashMap;
+import org.apache.commons.io.FileUtils;
 import org.jooq.*;
+import org.jooq.impl.DSL;
 import org.wikibrain.conf.Configuration;
 import org.wikibrain.conf.ConfigurationException;
 import org.wikibrain.conf.Configurator;
@@ -17,20 +17,21 @@ import org.wikibrain.core.lang.LocalId;
 import org.wikibrain.core.model.LocalPage;
 import org.wikibrain.core.model.NameSpace;
 import org.wikibrain.core.model.Title;
-import org.wikibrain.utils.ParallelForEach;
-import org.wikibrain.utils.Procedure;
-import org.wikibrain.utils.WpThreadUtils;
+import org.wikibrain.utils.MappedLongIntTable;
+import org.wikibrain.utils.WpIOUtils;
 
 import java.io.File;
+import java.io.IOException;
 import java.util.*;
-import java.util.concurrent.atomic.AtomicInteger;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 /**
  */
 public class LocalPageSqlDao extends AbstractSqlDao<LocalPage> implements LocalPageDao {
-    private volatile TLongIntHashMap titlesToIds = null;
+    private static final int IDS_PER_QUERY = 1000;
+
+    private volatile MappedLongIntTable titlesToIds = null;
     private RedirectSqlDao redirectSqlDao;
 
     public LocalPageSqlDao(WpDataSource dataSource) throws DaoException {
@@ -218,14 +219,37 @@ public class LocalPageSqlDao extends AbstractSqlDao<LocalPage> implements LocalP
         return getByTitle(new Title(title, language), ns);
     }
 
+    /**
+     * Fetches the pages with one query per IDS_PER_QUERY ids.
+     * Ids that do not exist are mapped to null.
+     */
     @Override
     public Map<Integer, LocalPage> getByIds(Language language, Collection<Integer> pageIds) throws DaoException {
         if (pageIds == null || pageIds.isEmpty()) {
             return null;
         }
         Map<Integer, LocalPage> map = new HashMap<Integer, LocalPage>();
-        for (Integer pageId : pageIds){
-            map.put(pageId, getById(language, pageId));
+        List<Integer> ids = new ArrayList<Integer>(new LinkedHashSet<Integer>(pageIds));
+        DSLContext context = getJooq();
+        try {
+            for (int i = 0; i < ids.size(); i += IDS_PER_QUERY) {
+                List<Integer> chunk = ids.subList(i, Math.min(ids.size(), i + IDS_PER_QUERY));
+                Result<Record> result = context.select().
+                        from(Tables.LOCAL_PAGE).
+                        where(Tables.LOCAL_PAGE.PAGE_ID.in(chunk)).
+                        and(Tables.LOCAL_PAGE.LANG_ID.eq(language.getId())).
+                        fetch();
+                for (Record record : result) {
+                    map.put(record.getValue(Tables.LOCAL_PAGE.PAGE_ID), buildLocalPage(record));
+                }
+            }
+        } finally {
+            freeJooq(context);
+        }
+        for (Integer pageId : ids) {
+            if (!map.containsKey(pageId)) {
+                map.put(pageId, null);
+            }
         }
         return map;
     }
@@ -258,6 +282,20 @@ public class LocalPageSqlDao extends AbstractSqlDao<LocalPage> implements LocalP
         return titlesToIds.get(title.longHashCode());
     }
 
+    @Override
+    public int[] getIdsByTitles(Language language, String[] titles, NameSpace[] nameSpaces) throws DaoException {
+        if (titlesToIds==null){
+            buildTitlesToIds();
+        }
+        long hashes[] = new long[titles.length];
+        for (int i = 0; i < titles.length; i++) {
+            hashes[i] = Title.longHashCode(language, titles[i], nameSpaces[i]);
+        }
+        int ids[] = new int[titles.length];
+        titlesToIds.get(hashes, ids);
+        return ids;
+    }
+
     /**
      * Build a LocalPage from a database record representation.
      * Classes that extend class this should override this method.
@@ -301,71 +339,94 @@ public class LocalPageSqlDao extends AbstractSqlDao<LocalPage> implements LocalP
         );
     }
 
+    /**
+     * Builds the title to id table from a single scan over pages. If redirects are followed
+     * and the redirect table exists, the scan is joined against it so that redirects resolve
+     * to their destinations in the same pass.
+     *
+     * The table is memory mapped from the sql cache directory, so other JVMs using the
+     * same cache share it instead of rebuilding it on their heaps.
+     *
+     * @throws DaoException
+     */
     protected synchronized void buildTitlesToIds() throws DaoException {
         if (titlesToIds != null) {
             return;
         }
-        String key = "titlesToIds";
+        String key = "titlesToIds.table";
         if (redirectSqlDao == null) {
             key += ".noRedirect";
         }
-        if (cache!=null) {
-            TLongIntHashMap map = (TLongIntHashMap)cache.get(key, LocalPage.class);
-            if (map!=null){
-                titlesToIds = map;
-                return;
+        File file;
+        try {
+            if (cache != null) {
+                file = cache.getCacheFile(key);
+                if (cache.isUpToDate(key, LocalPage.class)) {
+                    titlesToIds = MappedLongIntTable.open(file, -1);
+                    return;
+                }
+            } else {
+                file = File.createTempFile("titlesToIds", ".table");
+                file.deleteOnExit();
             }
+        } catch (IOException e) {
+            throw new DaoException(e);
         }
+
         LOG.info("Building title to id cache. This will only happen once!");
-        final int n = getCount(new DaoFilter());
+        int n = getCount(new DaoFilter());
+        File tmp = null;
         DSLContext context = getJooq();
         try {
-            Cursor<Record> cursor = context.select().
-                    from(Tables.LOCAL_PAGE).
-                    fetchLazy(getFetchSize());
-            final TLongIntHashMap map = new TLongIntHashMap(
-                    Constants.DEFAULT_CAPACITY,
-                    Constants.DEFAULT_LOAD_FACTOR,
-                    -1, -1);
-            final AtomicInteger numRedirects = new AtomicInteger();
-            final AtomicInteger numResolved = new AtomicInteger();
-            ParallelForEach.iterate(
-                    cursor.iterator(), WpThreadUtils.getMaxThreads(), 10000,
-                    new Procedure<Record>() {
-                        @Override
-                        public void call(Record record) throws Exception {
-                            long hash = Title.longHashCode(
-                                record.getValue(Tables.LOCAL_PAGE.LANG_ID),
-                                record.getValue(Tables.LOCAL_PAGE.TITLE),
-                                record.getValue(Tables.LOCAL_PAGE.NAME_SPACE));
-                            if (redirectSqlDao != null && record.getValue(Tables.LOCAL_PAGE.IS_REDIRECT)){
-                                numRedirects.incrementAndGet();
-                                Integer dest = redirectSqlDao.resolveRedirect(
-                                        Language.getById(record.getValue(Tables.LOCAL_PAGE.LANG_ID)),
-                                        record.getValue(Tables.LOCAL_PAGE.PAGE_ID));
-                                if (dest != null) {
-                                    numResolved.incrementAndGet();
-                                    synchronized (map) {
-                                        map.put(hash, dest);
-                                    }
-                                }
-                            } else {
-                                synchronized (map) {
-                                    map.put(hash, record.getValue(Tables.LOCAL_PAGE.PAGE_ID));
-                                }
-                            }
-                            if (map.size() % 500000 == 0) {
-                                LOG.info("built title cache entry " + map.size() + " of " + n);
-                            }
-
-                        }
-                    }, Integer.MAX_VALUE);
-            LOG.info("resolved " + numResolved + " of " + numRedirects + " redirects.");
-            if (cache!=null){
-                cache.put(key, map);
+            // Other processes may build the same table, so each writes its own temporary file
+            tmp = WpIOUtils.createTempFileBeside(file);
+            // The redirect table is only needed (and may only exist) if redirects are followed
+            boolean joinRedirects = redirectSqlDao != null && JooqUtils.tableExists(context, Tables.REDIRECT);
+            SelectJoinStep<Record6<Short, String, Short, Integer, Boolean, Integer>> select = context.select(
+                        Tables.LOCAL_PAGE.LANG_ID,
+                        Tables.LOCAL_PAGE.TITLE,
+                        Tables.LOCAL_PAGE.NAME_SPACE,
+                        Tables.LOCAL_PAGE.PAGE_ID,
+                        Tables.LOCAL_PAGE.IS_REDIRECT,
+                        joinRedirects ? Tables.REDIRECT.DEST_PAGE_ID : DSL.castNull(Integer.class)).
+                    from(Tables.LOCAL_PAGE);
+            Cursor<Record6<Short, String, Short, Integer, Boolean, Integer>> cursor;
+            if (joinRedirects) {
+                cursor = select.
+                        leftOuterJoin(Tables.REDIRECT).
+                        on(Tables.REDIRECT.LANG_ID.eq(Tables.LOCAL_PAGE.LANG_ID)).
+                        and(Tables.REDIRECT.SRC_PAGE_ID.eq(Tables.LOCAL_PAGE.PAGE_ID)).
+                        fetchLazy(getFetchSize());
+            } else {
+                cursor = select.fetchLazy(getFetchSize());
+            }
+            MappedLongIntTable table = MappedLongIntTable.create(tmp, n, -1);
+            int numPages = 0;
+            int numRedirects = 0;
+            int numResolved = 0;
+            for (Record6<Short, String, Short, Integer, Boolean, Integer> record : cursor) {
+                long hash = Title.longHashCode(record.value1(), record.value2(), record.value3());
+                if (redirectSqlDao != null && record.value5()) {
+                    numRedirects++;
+                    if (record.value6() != null) {
+                        numResolved++;
+                        table.put(hash, record.value6());
+                    }
+                } else {
+                    table.put(hash, record.value4());
+                }
+                if (++numPages % 500000 == 0) {
+                    LOG.info("built title cache entry " + numPages + " of " + n);
+                }
             }
-            titlesToIds = map;
+            table.close();
+            LOG.info("resolved " + numResolved + " of " + numRedirects + " redirects.");
+            WpIOUtils.replaceFile(tmp, file);
+            titlesToIds = MappedLongIntTable.open(file, -1);
+        } catch (IOException e) {
+            throw new DaoException(e);
         } finally {
+            FileUtils.deleteQuietly(tmp);
             freeJooq(context);
         }
     }
@@ -47,25 +47,29 @@ public class SqlCache {
         FileUtils.deleteQuietly(getCacheFile(name));
     }
 
-    private File getCacheFile(String name) {
+    /**
+     * Returns the file that backs a cache entry. Entries that are not serialized
+     * objects (e.g. memory mapped tables) can be written directly to this file.
+     * @param name
+     * @return
+     */
+    public File getCacheFile(String name) {
         return new File(directory, name);
     }
 
     /**
-     * Returns the object if it exists and is up to date, otherwise returns null.
+     * Returns true iff the entry exists and is up to date.
+     * See {@link #get(String, Class[])} for a description of the dependsOn argument.
      *
-     * @param name Name of the object as passed to "put"
-     * @param dependsOn List of classes the object depends on.
-     *                  The cache is up to date iff for each class k in dependsOn:
-     *                  - The MetaInfoDao knows about k
-     *                  - The cache entry was created after k was last updated.
+     * @param name
+     * @param dependsOn
      * @return
      * @throws DaoException
      */
-    public Object get(String name, Class ... dependsOn) throws DaoException {
+    public boolean isUpToDate(String name, Class ... dependsOn) throws DaoException {
         File cacheFile = getCacheFile(name);
         if (!cacheFile.isFile()) {
-            return null;
+            return false;
         }
         Date cacheTstamp = new Date(cacheFile.lastModified());
         for (Class klass : dependsOn) {
@@ -75,9 +79,27 @@ public class SqlCache {
             }
             Date tableTstamp = info.getLastUpdated();
             if (tableTstamp == null || tableTstamp.after(cacheTstamp)) {
-                return null;
+                return false;
             }
         }
+        return true;
+    }
+
+    /**
+     * Returns the object if it exists and is up to date, otherwise returns null.
+     *
+     * @param name Name of the object as passed to "put"
+     * @param dependsOn List of classes the object depends on.
+     *                  The cache is up to date iff for each class k in dependsOn:
+     *                  - The MetaInfoDao knows about k
+     *                  - The cache entry was created after k was last updated.
+     * @return
+     * @throws DaoException
+     */
+    public Object get(String name, Class ... dependsOn) throws DaoException {
+        if (!isUpToDate(name, dependsOn)) {
+            return null;
+        }
         try {
             FileInputStream fis = new FileInputStream(getCacheFile(name));
             ObjectInputStream ois = new ObjectInputStream(fis);
@@ -37,6 +37,7 @@ public class WpDataSource implements Closeable {
     private DataSource dataSource;
     private Settings settings;
     private SQLDialect dialect;
+    private BulkLoadStrategy bulkLoadStrategy = BulkLoadStrategy.BATCH;
 
     public WpDataSource(DataSource dataSource) throws DaoException {
         this.settings = new Settings();
@@ -56,6 +57,22 @@ public class WpDataSource implements Closeable {
         }
     }
 
+    public SQLDialect getDialect() {
+        return dialect;
+    }
+
+    public BulkLoadStrategy getBulkLoadStrategy() {
+        return bulkLoadStrategy;
+    }
+
+    /**
+     * Sets how FastLoaders created after this call load rows. Defaults to BATCH.
+     * @param bulkLoadStrategy
+     */
+    public void setBulkLoadStrategy(BulkLoadStrategy bulkLoadStrategy) {
+        this.bulkLoadStrategy = bulkLoadStrategy;
+    }
+
     public Connection getConnection() throws SQLException {
         Connection conn = dataSource.getConnection();
         if (conn.getAutoCommit()) {
@@ -320,7 +337,11 @@ public class WpDataSource implements Closeable {
                 }
                 ds.setMaxConnectionsPerPartition(cnxPerPartition);
 
-                return new WpDataSource(ds);
+                WpDataSource wpDs = new WpDataSource(ds);
+                if (config.hasPath("bulkLoad")) {
+                    wpDs.setBulkLoadStrategy(BulkLoadStrategy.fromString(config.getString("bulkLoad")));
+                }
+                return wpDs;
             } catch (ClassNotFoundException e) {
                 throw new ConfigurationException(e);
             } catch (DaoException e) {
@@ -74,6 +74,24 @@ public class LocalId {
         return (language.getId() << 26) | id;
     }
 
+    /**
+     * Returns the page id of a LocalId packed by {@link #toInt()} without creating a LocalId.
+     * @param packed
+     * @return
+     */
+    public static int unpackId(int packed) {
+        return packed & MAX_PACKED_ID;
+    }
+
+    /**
+     * Returns the language id of a LocalId packed by {@link #toInt()} without creating a LocalId.
+     * @param packed
+     * @return
+     */
+    public static int unpackLanguageId(int packed) {
+        return packed >>> 26;
+    }
+
     public static LocalId fromInt(int packed) {
         int languageId = packed >>> 26;
         if (languageId < 0 || languageId > MAX_PACKED_ID)
@@ -4,7 +4,9 @@ import gnu.trove.map.TIntIntMap;
 import gnu.trove.set.TIntSet;
 import org.wikibrain.core.lang.Language;
 
-import java.io.Serializable;
+import java.io.*;
+import java.nio.IntBuffer;
+import java.nio.channels.FileChannel;
 import java.util.Arrays;
 import java.util.Map;
 import java.util.Set;
@@ -15,6 +17,14 @@ import java.util.Set;
  * The internals of this data structure are public for historical reasons.
  * TODO: It would probably be better to not expose the internal id scheme if it's not a performance hit.
  *
+ * Searches should use the compressed sparse row (CSR) form of the graph created by
+ * {@link #compile()}. Each adjacency list is stored as one flat array of neighbors and
+ * an offsets array with one more entry than there are rows, so the neighbors of row i are
+ * at [offsets[i], offsets[i+1]). Pages attached to categories are stored as dense article
+ * indexes, and the CSR form also contains the reverse article to category membership so
+ * searches starting at an article do not need to query the database. The CSR arrays can
+ * be written to a file and memory mapped by {@link #mapCompiled(java.io.File)}.
+ *
  * @author Matt Lesicko
  * @author Shilad Sen
  */
@@ -33,6 +43,20 @@ public class CategoryGraph implements Serializable{
     public String[] cats;
     public double minCost = -1;
 
+    public static final int CSR_MAGIC = 0x57424347;   // "WBCG"
+    public static final int CSR_VERSION = 1;
+
+    // CSR form of the graph, built by compile() or mapped by mapCompiled().
+    private transient IntBuffer parentOffsets;
+    private transient IntBuffer parentIndexes;
+    private transient IntBuffer childOffsets;
+    private transient IntBuffer childIndexes;
+    private transient IntBuffer pageOffsets;
+    private transient IntBuffer pageIndexes;        // dense article indexes
+    private transient IntBuffer articleIds;         // dense article indexes to sparse local page ids, sorted
+    private transient IntBuffer articleCatOffsets;
+    private transient IntBuffer articleCatIndexes;  // dense category indexes
+
     public CategoryGraph(Language language){
         this.language = language;
     }
@@ -66,4 +90,241 @@ public class CategoryGraph implements Serializable{
         }
         return catPages[parentIndex];
     }
+
+    public boolean isCompiled() {
+        return articleCatIndexes != null;
+    }
+
+    /**
+     * Builds the CSR form of the graph from the jagged arrays. Does nothing if
+     * the graph is already compiled or mapped.
+     */
+    public synchronized void compile() {
+        if (isCompiled()) {
+            return;
+        }
+        int numCats = catIds.length;
+        int parents[][] = toCsr(catParents);
+        int children[][] = toCsr(catChildren);
+
+        // Collect the unique article ids
+        int numMemberships = 0;
+        for (int pages[] : catPages) {
+            numMemberships += pages.length;
+        }
+        int ids[] = new int[numMemberships];
+        int n = 0;
+        for (int pages[] : catPages) {
+            System.arraycopy(pages, 0, ids, n, pages.length);
+            n += pages.length;
+        }
+        Arrays.sort(ids);
+        int numArticles = 0;
+        for (int i = 0; i < ids.length; i++) {
+            if (i == 0 || ids[i] != ids[i-1]) {
+                ids[numArticles++] = ids[i];
+            }
+        }
+        ids = Arrays.copyOf(ids, numArticles);
+
+        // Category to article edges, and counts for the reverse edges
+        int pageOffs[] = new int[numCats + 1];
+        int pageIdx[] = new int[numMemberships];
+        int articleCounts[] = new int[numArticles + 1];
+        n = 0;
+        for (int ci = 0; ci < numCats; ci++) {
+            pageOffs[ci] = n;
+            for (int pageId : catPages[ci]) {
+                int ai = Arrays.binarySearch(ids, pageId);
+                pageIdx[n++] = ai;
+                articleCounts[ai + 1]++;
+            }
+        }
+        pageOffs[numCats] = n;
+
+        // Article to category edges
+        for (int ai = 0; ai < numArticles; ai++) {
+            articleCounts[ai + 1] += articleCounts[ai];
+        }
+        int articleOffs[] = Arrays.copyOf(articleCounts, numArticles + 1);
+        int articleCats[] = new int[numMemberships];
+        for (int ci = 0; ci < numCats; ci++) {
+            for (int j = pageOffs[ci]; j < pageOffs[ci + 1]; j++) {
+                articleCats[articleCounts[pageIdx[j]]++] = ci;
+            }
+        }
+
+        parentOffsets = IntBuffer.wrap(parents[0]);
+        parentIndexes = IntBuffer.wrap(parents[1]);
+        childOffsets = IntBuffer.wrap(children[0]);
+        childIndexes = IntBuffer.wrap(children[1]);
+        pageOffsets = IntBuffer.wrap(pageOffs);
+        pageIndexes = IntBuffer.wrap(pageIdx);
+        articleIds = IntBuffer.wrap(ids);
+        articleCatOffsets = IntBuffer.wrap(articleOffs);
+        articleCatIndexes = IntBuffer.wrap(articleCats);
+    }
+
+    private static int[][] toCsr(int adjacencies[][]) {
+        int offsets[] = new int[adjacencies.length + 1];
+        for (int i = 0; i < adjacencies.length; i++) {
+            offsets[i + 1] = offsets[i] + adjacencies[i].length;
+        }
+        int values[] = new int[offsets[adjacencies.length]];
+        for (int i = 0; i < adjacencies.length; i++) {
+            System.arraycopy(adjacencies[i], 0, values, offsets[i], adjacencies[i].length);
+        }
+        return new int[][] { offsets, values };
+    }
+
+    private IntBuffer[] getCsrBuffers() {
+        return new IntBuffer[] {
+                parentOffsets, parentIndexes, childOffsets, childIndexes,
+                pageOffsets, pageIndexes, articleIds, articleCatOffsets, articleCatIndexes
+        };
+    }
+
+    /**
+     * Writes the CSR form of the graph, compiling it first if necessary.
+     * The layout is a header (magic, version, number of categories, number of articles),
+     * the length of each of the nine CSR arrays, and then the arrays themselves.
+     * @param path
+     * @throws IOException
+     */
+    public void writeCompiled(File path) throws IOException {
+        compile();
+        IntBuffer buffers[] = getCsrBuffers();
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(path), 1 << 16));
+        try {
+            out.writeInt(CSR_MAGIC);
+            out.writeInt(CSR_VERSION);
+            out.writeInt(catIds.length);
+            out.writeInt(getNumArticles());
+            for (IntBuffer b : buffers) {
+                out.writeInt(b.capacity());
+            }
+            for (IntBuffer b : buffers) {
+                for (int i = 0; i < b.capacity(); i++) {
+                    out.writeInt(b.get(i));
+                }
+            }
+        } finally {
+            out.close();
+        }
+    }
+
+    /**
+     * Memory maps a CSR file written by {@link #writeCompiled(java.io.File)} for this graph.
+     * @param path
+     * @return False if the file does not describe a graph with the same categories.
+     * @throws IOException
+     */
+    public synchronized boolean mapCompiled(File path) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(path, "r");
+        try {
+            long length = raf.length();
+            if (length < 52) {
+                return false;
+            }
+            if (raf.readInt() != CSR_MAGIC || raf.readInt() != CSR_VERSION || raf.readInt() != catIds.length) {
+                return false;
+            }
+            raf.readInt();    // number of articles
+            int lengths[] = new int[9];
+            long total = 0;
+            for (int i = 0; i < lengths.length; i++) {
+                lengths[i] = raf.readInt();
+                if (lengths[i] < 0) {
+                    return false;
+                }
+                total += 4L * lengths[i];
+            }
+            if (raf.getFilePointer() + total != length) {
+                return false;
+            }
+
+            // Map each array separately so graphs are not limited to 2GB.
+            FileChannel channel = raf.getChannel();
+            long offset = raf.getFilePointer();
+            IntBuffer buffers[] = new IntBuffer[lengths.length];
+            for (int i = 0; i < lengths.length; i++) {
+                long bytes = 4L * lengths[i];
+                buffers[i] = channel.map(FileChannel.MapMode.READ_ONLY, offset, bytes).asIntBuffer();
+                offset += bytes;
+            }
+            parentOffsets = buffers[0];
+            parentIndexes = buffers[1];
+            childOffsets = buffers[2];
+            childIndexes = buffers[3];
+            pageOffsets = buffers[4];
+            pageIndexes = buffers[5];
+            articleIds = buffers[6];
+            articleCatOffsets = buffers[7];
+            articleCatIndexes = buffers[8];
+            return true;
+        } finally {
+            raf.close();    // mappings remain valid after the file is closed
+        }
+    }
+
+    public int getNumArticles() {
+        return articleIds.capacity();
+    }
+
+    /**
+     * @param articleId Local page id of an article.
+     * @return The dense article index, or -1 if the article is in no categories.
+     */
+    public int getArticleIndex(int articleId) {
+        int lo = 0;
+        int hi = articleIds.capacity() - 1;
+        while (lo <= hi) {
+            int mid = (lo + hi) >>> 1;
+            int id = articleIds.get(mid);
+            if (id < articleId) {
+                lo = mid + 1;
+            } else if (id > articleId) {
+                hi = mid - 1;
+            } else {
+                return mid;
+            }
+        }
+        return -1;
+    }
+
+    public int getArticleId(int articleIndex) {
+        return articleIds.get(articleIndex);
+    }
+
+    public IntBuffer getParentOffsets() {
+        return parentOffsets;
+    }
+
+    public IntBuffer getParentIndexes() {
+        return parentIndexes;
+    }
+
+    public IntBuffer getChildOffsets() {
+        return childOffsets;
+    }
+
+    public IntBuffer getChildIndexes() {
+        return childIndexes;
+    }
+
+    public IntBuffer getPageOffsets() {
+        return pageOffsets;
+    }
+
+    public IntBuffer getPageIndexes() {
+        return pageIndexes;
+    }
+
+    public IntBuffer getArticleCategoryOffsets() {
+        return articleCatOffsets;
+    }
+
+    public IntBuffer getArticleCategoryIndexes() {
+        return articleCatIndexes;
+    }
 }
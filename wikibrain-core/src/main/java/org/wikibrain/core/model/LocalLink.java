@@ -120,6 +120,17 @@ public class LocalLink implements Comparable<LocalLink> {
     }
 
     public long longHashCode() {
+        return longHashCode(language, sourceId, destId);
+    }
+
+    /**
+     * Returns the same value as {@link #longHashCode()} without creating a link.
+     * @param language
+     * @param sourceId
+     * @param destId
+     * @return
+     */
+    public static long longHashCode(Language language, int sourceId, int destId) {
         return ((long)sourceId << 32) | destId + 232421 * language.getId();
     }
 
@@ -1,6 +1,7 @@
 package org.wikibrain.core.model;
 
 import de.tudarmstadt.ukp.wikipedia.parser.mediawiki.FlushTemplates;
+import de.tudarmstadt.ukp.wikipedia.parser.mediawiki.MediaWikiParser;
 import de.tudarmstadt.ukp.wikipedia.parser.mediawiki.MediaWikiParserFactory;
 import org.wikibrain.core.lang.Language;
 import org.wikibrain.core.lang.LanguageInfo;
@@ -16,6 +17,22 @@ import org.slf4j.LoggerFactory;
 public class RawPage {
     private static final Logger LOG = LoggerFactory.getLogger(RawPage.class);
 
+    // Parsers are expensive to construct, so each thread reuses its own.
+    private static final ThreadLocal<MediaWikiParser> PLAIN_PARSERS = new ThreadLocal<MediaWikiParser>() {
+        @Override
+        protected MediaWikiParser initialValue() {
+            MediaWikiParserFactory factory = new MediaWikiParserFactory();
+            factory.setTemplateParserClass(FlushTemplates.class);
+            return factory.createParser();
+        }
+    };
+    private static final ThreadLocal<MediaWikiParser> TEMPLATE_PARSERS = new ThreadLocal<MediaWikiParser>() {
+        @Override
+        protected MediaWikiParser initialValue() {
+            return new MediaWikiParserFactory().createParser();
+        }
+    };
+
     private final Title title;
     private final String body;
     private final Date lastEdit;
@@ -33,6 +50,9 @@ public class RawPage {
     private String model = null;
     private String format = null;
 
+    // Plain text without templates, computed lazily or supplied by the dao.
+    private volatile String plainText = null;
+
     public RawPage(int localId, int revisionId, String title, String body, Date lastEdit, Language lang, NameSpace namespace) {
         this.title = new Title(title, LanguageInfo.getByLanguage(lang));
         this.body = body;
@@ -127,21 +147,39 @@ public class RawPage {
         return getPlainText(false);
     }
     /**
-     * Returns a plain text output of the body of this RawPage
+     * Returns a plain text output of the body of this RawPage.
+     * The plain text without templates is computed once and cached, or
+     * supplied by the dao if it was precomputed during loading.
      * @return
      */
     public String getPlainText(boolean includeTemplates) {
         if (body.isEmpty()) {
             return "";
+        } else if (includeTemplates) {
+            return TEMPLATE_PARSERS.get().parse(body).getText();
         } else {
-            MediaWikiParserFactory factory = new MediaWikiParserFactory();
-            if (!includeTemplates) {
-                factory.setTemplateParserClass(FlushTemplates.class);
+            if (plainText == null) {
+                plainText = PLAIN_PARSERS.get().parse(body).getText();
             }
-            return factory.createParser().parse(body).getText();
+            return plainText;
         }
     }
 
+    /**
+     * Sets the precomputed plain text (without templates) for this page.
+     * @param plainText
+     */
+    public void setPlainText(String plainText) {
+        this.plainText = plainText;
+    }
+
+    /**
+     * @return The plain text without templates if it has already been computed, or null.
+     */
+    public String getCachedPlainText() {
+        return plainText;
+    }
+
     public String toString(){
         return String.format("%s / %s (%s)", this.getTitle(), this.localId, lang.getLangCode());
     }
@@ -3,6 +3,7 @@ package org.wikibrain.core.dao;
 import com.jolbox.bonecp.BoneCPDataSource;
 import org.apache.commons.io.FileUtils;
 import org.jooq.TableField;
+import org.wikibrain.core.dao.sql.BulkLoadStrategy;
 import org.wikibrain.core.dao.sql.FastLoader;
 import org.wikibrain.core.dao.sql.WpDataSource;
 import org.wikibrain.core.jooq.Tables;
@@ -63,7 +64,12 @@ public class BenchmarkFastLoader {
 
         ds.getConnection().createStatement().execute(schema);
 
-        FastLoader loader = new FastLoader(new WpDataSource(ds), INSERT_FIELDS);
+        // Optional argument: "batch" or "native"
+        WpDataSource wpDs = new WpDataSource(ds);
+        if (args.length > 0) {
+            wpDs.setBulkLoadStrategy(BulkLoadStrategy.fromString(args[0]));
+        }
+        FastLoader loader = new FastLoader(wpDs, INSERT_FIELDS);
 
         long t1 = System.currentTimeMillis();
         for (int i = 0; i < NUM_ENTRIES; i++) {
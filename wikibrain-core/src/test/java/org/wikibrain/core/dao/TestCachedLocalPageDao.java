@@ -0,0 +1,124 @@
+package org.wikibrain.core.dao;
+
+import org.junit.Test;
+import org.wikibrain.core.dao.cache.CachedLocalPageDao;
+import org.wikibrain.core.dao.sql.LocalPageSqlDao;
+import org.wikibrain.core.dao.sql.MetaInfoSqlDao;
+import org.wikibrain.core.dao.sql.TestDaoUtil;
+import org.wikibrain.core.dao.sql.WpDataSource;
+import org.wikibrain.core.lang.Language;
+import org.wikibrain.core.lang.LanguageInfo;
+import org.wikibrain.core.model.LocalPage;
+import org.wikibrain.core.model.NameSpace;
+import org.wikibrain.core.model.Title;
+
+import java.util.Arrays;
+import java.util.Map;
+
+import static org.junit.Assert.*;
+
+/**
+ * @author Shilad Sen
+ */
+public class TestCachedLocalPageDao {
+    private static final LanguageInfo EN = LanguageInfo.getByLangCode("en");
+
+    @Test
+    public void testCache() throws Exception {
+        WpDataSource wpDs = TestDaoUtil.getWpDataSource();
+        LocalPageSqlDao sqlDao = new LocalPageSqlDao(wpDs);
+        MetaInfoSqlDao loaderMetaDao = new MetaInfoSqlDao(wpDs);
+        loaderMetaDao.beginLoad();
+
+        // The cache reads stamps with its own meta info dao, as it would in a separate process
+        CachedLocalPageDao dao = new CachedLocalPageDao(sqlDao, new MetaInfoSqlDao(wpDs), 100, 0);
+        dao.beginLoad();
+        dao.save(page(7, "test"));
+        dao.save(page(8, "other"));
+        dao.endLoad();
+        loaderMetaDao.incrementRecords(LocalPage.class, EN.getLanguage());
+        loaderMetaDao.sync(LocalPage.class);
+
+        Language lang = EN.getLanguage();
+        assertEquals(page(7, "test"), dao.getById(lang, 7));
+        assertEquals(page(7, "test"), dao.getById(lang, 7));
+        assertEquals(1, dao.getNumHits());
+        assertEquals(1, dao.getNumMisses());
+
+        assertEquals(page(8, "other"), dao.getByTitle(lang, "Other"));
+        assertEquals(page(8, "other"), dao.getByTitle(new Title("other", EN), NameSpace.ARTICLE));
+        assertEquals(2, dao.getNumHits());
+
+        // Pages that do not exist are cached as well
+        assertNull(dao.getById(lang, 9));
+        assertNull(dao.getById(lang, 9));
+        assertEquals(3, dao.getNumHits());
+
+        Map<Integer, LocalPage> pages = dao.getByIds(lang, Arrays.asList(7, 8, 9));
+        assertEquals(3, pages.size());
+        assertEquals(page(7, "test"), pages.get(7));
+        assertEquals(page(8, "other"), pages.get(8));
+        assertNull(pages.get(9));
+        // Page 8 was only looked up by title so far
+        assertEquals(5, dao.getNumHits());
+        assertEquals(4, dao.getNumMisses());
+
+        Map<Title, LocalPage> byTitle = dao.getByTitles(lang,
+                Arrays.asList(new Title("test", EN), new Title("other", EN)), NameSpace.ARTICLE);
+        assertEquals(page(7, "test"), byTitle.get(new Title("test", EN)));
+        assertEquals(page(8, "other"), byTitle.get(new Title("other", EN)));
+        // Page 7 was only looked up by id so far
+        assertEquals(6, dao.getNumHits());
+        assertEquals(5, dao.getNumMisses());
+        assertEquals(6.0 / 11, dao.getHitRate(), 0.0001);
+
+        // Pages loaded by another process are picked up once the meta info stamp changes
+        sqlDao.beginLoad();
+        sqlDao.save(page(9, "new"));
+        sqlDao.endLoad();
+        assertNull(dao.getById(lang, 9));
+
+        Thread.sleep(10);
+        loaderMetaDao.incrementRecords(LocalPage.class, lang);
+        loaderMetaDao.sync(LocalPage.class);
+        assertEquals(page(9, "new"), dao.getById(lang, 9));
+
+        // Loading through the cache invalidates it
+        assertNull(dao.getById(lang, 10));
+        dao.beginLoad();
+        dao.save(page(10, "saved"));
+        dao.endLoad();
+        assertEquals(page(10, "saved"), dao.getById(lang, 10));
+    }
+
+    @Test
+    public void testInvalidateDuringFetch() throws Exception {
+        WpDataSource wpDs = TestDaoUtil.getWpDataSource();
+        final CachedLocalPageDao cacheRef[] = new CachedLocalPageDao[1];
+        LocalPageSqlDao sqlDao = new LocalPageSqlDao(wpDs) {
+            @Override
+            public LocalPage getById(Language language, int pageId) throws DaoException {
+                LocalPage page = super.getById(language, pageId);
+                cacheRef[0].invalidate();  // as if another thread reloaded pages during the fetch
+                return page;
+            }
+        };
+        cacheRef[0] = new CachedLocalPageDao(sqlDao, null, 100, 0);
+        CachedLocalPageDao dao = cacheRef[0];
+        dao.beginLoad();
+        dao.save(page(7, "test"));
+        dao.endLoad();
+
+        // The page fetched before the invalidation is returned but not cached
+        Language lang = EN.getLanguage();
+        assertEquals(page(7, "test"), dao.getById(lang, 7));
+        assertEquals(0, dao.size());
+        assertEquals(page(7, "test"), dao.getById(lang, 7));
+        assertEquals(0, dao.getNumHits());
+        assertEquals(2, dao.getNumMisses());
+    }
+
+    private static LocalPage page(int id, String title) {
+        return new LocalPage(EN.getLanguage(), id, new Title(title, EN), NameSpace.ARTICLE);
+    }
+}
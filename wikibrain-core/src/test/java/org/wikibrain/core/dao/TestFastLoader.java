@@ -0,0 +1,118 @@
+package org.wikibrain.core.dao;
+
+import org.junit.Test;
+import org.wikibrain.core.dao.sql.BulkLoadStrategy;
+import org.wikibrain.core.dao.sql.FastLoader;
+import org.wikibrain.core.dao.sql.TestDaoUtil;
+import org.wikibrain.core.dao.sql.WpDataSource;
+
+import java.io.IOException;
+import java.sql.*;
+
+import static org.junit.Assert.*;
+
+/**
+ * @author Shilad Sen
+ */
+public class TestFastLoader {
+    private static final int NUM_ROWS = 1234;
+
+    @Test
+    public void testBatch() throws Exception {
+        testLoad(BulkLoadStrategy.BATCH);
+    }
+
+    @Test
+    public void testNative() throws Exception {
+        testLoad(BulkLoadStrategy.NATIVE);
+    }
+
+    @Test
+    public void testNativeBadRow() throws Exception {
+        WpDataSource wpDs = TestDaoUtil.getWpDataSource();
+        wpDs.setBulkLoadStrategy(BulkLoadStrategy.NATIVE);
+        Connection cnx = wpDs.getConnection();
+        try {
+            cnx.createStatement().execute("CREATE TABLE test_bad_row (id INT NOT NULL, name TEXT)");
+            cnx.commit();
+        } finally {
+            cnx.close();
+        }
+
+        // The failed segment is retried in batches, so only the bad row's batch is lost
+        FastLoader loader = new FastLoader(wpDs, "test_bad_row", new String[] { "id", "name" });
+        for (int i = 0; i < NUM_ROWS; i++) {
+            loader.load((i == 7) ? null : i, name(i));
+        }
+        loader.endLoad();
+
+        cnx = wpDs.getConnection();
+        try {
+            ResultSet rs = cnx.createStatement().executeQuery("SELECT COUNT(*) FROM test_bad_row");
+            assertTrue(rs.next());
+            assertEquals(loader.getNumRows(), rs.getLong(1));
+            assertTrue(loader.getNumRows() < NUM_ROWS);
+            assertTrue(loader.getNumRows() >= NUM_ROWS - 1000);
+        } finally {
+            cnx.close();
+        }
+    }
+
+    private void testLoad(BulkLoadStrategy strategy) throws ClassNotFoundException, IOException, DaoException, SQLException {
+        WpDataSource wpDs = TestDaoUtil.getWpDataSource();
+        wpDs.setBulkLoadStrategy(strategy);
+        Connection cnx = wpDs.getConnection();
+        try {
+            cnx.createStatement().execute(
+                    "CREATE TABLE test_load (id INT NOT NULL, name TEXT, flag BOOLEAN, " +
+                    "score DOUBLE, tstamp TIMESTAMP, data BYTEA)");
+            cnx.commit();
+        } finally {
+            cnx.close();
+        }
+
+        FastLoader loader = new FastLoader(wpDs, "test_load", new String[] { "id", "name", "flag", "score", "tstamp", "data" });
+        assertEquals(strategy, loader.getStrategy());
+        Timestamp tstamp = Timestamp.valueOf("2014-06-01 12:34:56.0");
+        for (int i = 0; i < NUM_ROWS; i++) {
+            loader.load(i, name(i), i % 2 == 0, i / 4.0, (i % 5 == 0) ? null : tstamp, data(i));
+        }
+        loader.endLoad();
+        assertEquals(NUM_ROWS, loader.getNumRows());
+
+        cnx = wpDs.getConnection();
+        try {
+            ResultSet rs = cnx.createStatement().executeQuery("SELECT * FROM test_load ORDER BY id");
+            int n = 0;
+            while (rs.next()) {
+                int i = rs.getInt(1);
+                assertEquals(n++, i);
+                assertEquals(name(i), rs.getString(2));
+                assertEquals(i % 2 == 0, rs.getBoolean(3));
+                assertEquals(i / 4.0, rs.getDouble(4), 0.0);
+                assertEquals((i % 5 == 0) ? null : tstamp, rs.getTimestamp(5));
+                assertArrayEquals(data(i), rs.getBytes(6));
+            }
+            assertEquals(NUM_ROWS, n);
+        } finally {
+            cnx.close();
+        }
+    }
+
+    private static String name(int i) {
+        switch (i % 4) {
+            case 0: return null;
+            case 1: return "";
+            case 2: return "quoted \"name\", with comma " + i;
+            default: return "multi\nline " + i;
+        }
+    }
+
+    private static byte[] data(int i) {
+        switch (i % 3) {
+            case 0: return null;
+            case 1: return new byte[0];
+            default: return new byte[] { (byte) i, (byte) (i >> 8), (byte) 0xff, 0 };
+        }
+    }
+}
@@ -15,6 +15,7 @@ import java.io.File;
 import java.io.IOException;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
 
 public class TestLocalLinkDao3 {
 
@@ -65,6 +66,50 @@ public class TestLocalLinkDao3 {
         }
     }
 
+    @Test
+    public void testLinkIds() throws ClassNotFoundException, IOException, DaoException {
+        WpDataSource ds = TestDaoUtil.getWpDataSource();
+
+        File f = new File(".tmp/links");
+        FileUtils.deleteQuietly(f);
+        Language lang = Language.getByLangCode("simple");
+        LocalLinkSqlDao sqlDao = new LocalLinkSqlDao(ds);
+        MatrixLocalLinkDao matrixDao = new MatrixLocalLinkDao(sqlDao, f);
+        matrixDao.beginLoad();
+        for (int i = 1; i <= 50; i++) {
+            for (int j = i+1; j <= 50; j++) {
+                matrixDao.save(new LocalLink(lang, "", i + STARTING_ID, j + STARTING_ID,
+                        true, 0, true, LocalLink.LocationType.NONE));
+            }
+            // red links are skipped
+            matrixDao.save(new LocalLink(lang, "", i + STARTING_ID, -1,
+                    true, 0, true, LocalLink.LocationType.NONE));
+        }
+        matrixDao.endLoad();
+
+        int pageIds[] = new int[50];
+        for (int i = 1; i <= 50; i++) {
+            pageIds[i - 1] = i + STARTING_ID;
+        }
+        for (LocalLinkDao dao : new LocalLinkDao[] { sqlDao, matrixDao }) {
+            int outlinks[][] = dao.getLinkIds(lang, pageIds, true);
+            int inlinks[][] = dao.getLinkIds(lang, pageIds, false);
+            for (int i = 1; i <= 50; i++) {
+                assertEquals(rangeSet(i + 1 + STARTING_ID, 50 + STARTING_ID), new TIntHashSet(outlinks[i - 1]));
+                assertEquals(rangeSet(1 + STARTING_ID, i + STARTING_ID - 1), new TIntHashSet(inlinks[i - 1]));
+                assertEquals(new TIntHashSet(outlinks[i - 1]), new TIntHashSet(dao.getLinkIds(lang, i + STARTING_ID, true)));
+            }
+
+            // Page 1 links to 49 pages; a short buffer is filled and the full count returned.
+            int buffer[] = new int[10];
+            assertEquals(49, dao.getLinkIds(lang, 1 + STARTING_ID, true, buffer));
+            for (int id : buffer) {
+                assertTrue(id > 1 + STARTING_ID && id <= 50 + STARTING_ID);
+            }
+            assertEquals(0, dao.getLinkIds(lang, 1 + STARTING_ID, false, buffer));
+        }
+    }
+
     /**
      * returns a set containing the numbers in a range (inclusive)
      * @param from
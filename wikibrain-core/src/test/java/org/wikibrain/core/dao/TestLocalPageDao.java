@@ -58,5 +58,11 @@ public class TestLocalPageDao {
 
         int savedId = dao.getIdByTitle("Test", lang.getLanguage(), NameSpace.ARTICLE);
         assert (savedId==7);
+
+        int savedIds[] = dao.getIdsByTitles(lang.getLanguage(),
+                new String[] { "Test", "Missing" },
+                new NameSpace[] { NameSpace.ARTICLE, NameSpace.ARTICLE });
+        assert (savedIds[0]==7);
+        assert (savedIds[1]==-1);
     }
 }
@@ -0,0 +1,92 @@
+package org.wikibrain.core.dao;
+
+
+import org.apache.commons.io.FileUtils;
+import org.junit.Test;
+import org.wikibrain.core.dao.segment.SegmentedRawPageDao;
+import org.wikibrain.core.dao.sql.RawPageSqlDao;
+import org.wikibrain.core.dao.sql.TestDaoUtil;
+import org.wikibrain.core.dao.sql.WpDataSource;
+import org.wikibrain.core.lang.Language;
+import org.wikibrain.core.model.NameSpace;
+import org.wikibrain.core.model.RawPage;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+public class TestSegmentedRawPageDao {
+    @Test
+    public void test() throws ClassNotFoundException, IOException, DaoException {
+        WpDataSource wpDs = TestDaoUtil.getWpDataSource();
+        File dir = File.createTempFile("wikibrain-bodies", null);
+        FileUtils.deleteQuietly(dir);
+        FileUtils.forceDeleteOnExit(dir);
+
+        Language simple = Language.getByLangCode("simple");
+        Language la = Language.getByLangCode("la");
+        RawPageSqlDao sqlDao = new RawPageSqlDao(wpDs);
+        SegmentedRawPageDao dao = new SegmentedRawPageDao(sqlDao, dir);
+
+        Random random = new Random();
+        Map<Integer, String> bodies = new HashMap<Integer, String>();
+        dao.beginLoad();
+        for (int i = 0; i < 200; i++) {
+            StringBuilder body = new StringBuilder("foo bar \000baz\n\n\324 ");
+            for (int j = random.nextInt(1000); j > 0; j--) {
+                body.append("[[link ").append(random.nextInt(100)).append("]] ");
+            }
+            bodies.put(i, body.toString());
+            dao.save(new RawPage(i, 3242, "test " + i, body.toString(), new Date(),
+                    simple, NameSpace.ARTICLE, i % 2 == 0, false, "POOP"));
+        }
+        dao.save(new RawPage(1, 4, "la page", "latin body", new Date(), la, NameSpace.ARTICLE));
+        dao.endLoad();
+
+        // bodies are not stored in the sql delegate
+        assertEquals("", sqlDao.getBody(simple, 7));
+        assertEquals(bodies.get(7), dao.getBody(simple, 7));
+        assertEquals("latin body", dao.getBody(la, 1));
+
+        RawPage page = dao.getById(simple, 8);
+        assertEquals(bodies.get(8), page.getBody());
+        assertEquals("Test 8", page.getTitle().getCanonicalTitle());
+        assertTrue(page.isRedirect());
+        assertEquals("POOP", page.getRedirectTitle());
+
+        int n = 0;
+        for (RawPage rp : dao.get(new DaoFilter().setLanguages(simple))) {
+            assertEquals(bodies.get(rp.getLocalId()), rp.getBody());
+            n++;
+        }
+        assertEquals(200, n);
+
+        // Reopening the store should read the persisted index
+        SegmentedRawPageDao dao2 = new SegmentedRawPageDao(sqlDao, dir);
+        for (int i = 0; i < 200; i++) {
+            assertEquals(bodies.get(i), dao2.getBody(simple, i));
+        }
+
+        // Appending to an existing segment retains old bodies and replaces updated ones
+        dao2.beginLoad();
+        dao2.save(new RawPage(3, 3242, "test 3", "new body", new Date(), simple, NameSpace.ARTICLE));
+        // Bodies remain readable in the middle of a load
+        assertEquals("new body", dao2.getBody(simple, 3));
+        assertEquals(bodies.get(4), dao2.getBody(simple, 4));
+        dao2.endLoad();
+        assertEquals("new body", dao2.getBody(simple, 3));
+        assertEquals(bodies.get(4), dao2.getBody(simple, 4));
+
+        // Precomputed plain text is attached to returned pages
+        dao2.savePlainText(simple, 5, "plain text 5");
+        dao2.endPlainTextLoad();
+        assertEquals("plain text 5", dao2.getStoredPlainText(simple, 5));
+        assertEquals("plain text 5", dao2.getById(simple, 5).getPlainText(false));
+        assertNull(dao2.getById(simple, 6).getCachedPlainText());
+    }
+}
@@ -0,0 +1,185 @@
+package org.wikibrain.core.dao.matrix;
+
+import gnu.trove.map.TIntDoubleMap;
+import gnu.trove.map.hash.TIntDoubleHashMap;
+import org.apache.commons.io.FileUtils;
+import org.junit.AfterClass;
+import org.junit.Test;
+import org.wikibrain.core.dao.DaoException;
+import org.wikibrain.core.dao.LocalLinkDao;
+import org.wikibrain.core.lang.Language;
+import org.wikibrain.core.model.LocalLink;
+
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.*;
+
+import static org.junit.Assert.*;
+import static org.mockito.Mockito.mock;
+
+/**
+ * @author Shilad Sen
+ */
+public class TestPageRankFile {
+    private static final Language SIMPLE = Language.getByLangCode("simple");
+    private static final Language EN = Language.getByLangCode("en");
+
+    private static File matrixDir;
+
+    @AfterClass
+    public static void deleteMatrixDir() {
+        FileUtils.deleteQuietly(matrixDir);
+    }
+
+    @Test
+    public void testReadWrite() throws IOException {
+        Random random = new Random(1);
+        Map<Language, TIntDoubleMap> ranks = new HashMap<Language, TIntDoubleMap>();
+        ranks.put(SIMPLE, new TIntDoubleHashMap());
+        ranks.put(EN, new TIntDoubleHashMap());
+        for (int i = 0; i < 1000; i++) {
+            ranks.get(SIMPLE).put(random.nextInt(100000), random.nextDouble());
+        }
+        ranks.get(EN).put(7, 0.5);
+
+        File file = File.createTempFile("pagerank", ".bin");
+        file.deleteOnExit();
+        PageRankFile.write(file, ranks);
+        assertEquals(12 + 2 * 8 + 12 * (ranks.get(SIMPLE).size() + 1), file.length());
+
+        PageRankFile prf = new PageRankFile(file);
+        assertEquals(new HashSet<Language>(Arrays.asList(SIMPLE, EN)), prf.getLanguages());
+        assertEquals(ranks.get(SIMPLE).size(), prf.size(SIMPLE));
+        assertEquals(1, prf.size(EN));
+        for (int id : ranks.get(SIMPLE).keys()) {
+            assertEquals(ranks.get(SIMPLE).get(id), prf.getPageRank(SIMPLE, id), 0.000001);
+        }
+        assertEquals(0.5, prf.getPageRank(EN, 7), 0.000001);
+
+        // missing pages and languages
+        assertEquals(0.0, prf.getPageRank(EN, 8), 0.0);
+        assertEquals(0.0, prf.getPageRank(SIMPLE, -1), 0.0);
+        assertEquals(0.0, prf.getPageRank(Language.getByLangCode("de"), 7), 0.0);
+        assertEquals(0, prf.getTopPageIds(Language.getByLangCode("de"), 10).length);
+
+        int ids[] = { 7, 8, ranks.get(SIMPLE).keys()[0] };
+        double bulk[] = prf.getPageRanks(SIMPLE, ids);
+        assertEquals(3, bulk.length);
+        for (int i = 0; i < ids.length; i++) {
+            assertEquals(prf.getPageRank(SIMPLE, ids[i]), bulk[i], 0.0);
+        }
+    }
+
+    @Test
+    public void testTopPageIds() throws IOException {
+        TIntDoubleMap simple = new TIntDoubleHashMap();
+        simple.put(10, 0.1);
+        simple.put(3, 0.4);
+        simple.put(5, 0.2);
+        simple.put(4, 0.2);
+        simple.put(1, 0.0);
+        File file = File.createTempFile("pagerank", ".bin");
+        file.deleteOnExit();
+        PageRankFile.write(file, Collections.singletonMap(SIMPLE, simple));
+        PageRankFile prf = new PageRankFile(file);
+
+        // ties are broken by page id
+        assertArrayEquals(new int[] { 3, 4, 5, 10, 1 }, prf.getTopPageIds(SIMPLE, 10));
+        assertArrayEquals(new int[] { 3, 4 }, prf.getTopPageIds(SIMPLE, 2));
+        assertEquals(0, prf.getTopPageIds(SIMPLE, 0).length);
+    }
+
+    @Test
+    public void testReplace() throws IOException {
+        TIntDoubleMap before = new TIntDoubleHashMap();
+        before.put(1, 0.7);
+        TIntDoubleMap after = new TIntDoubleHashMap();
+        after.put(1, 0.2);
+        after.put(2, 0.8);
+        File file = File.createTempFile("pagerank", ".bin");
+        file.deleteOnExit();
+        PageRankFile.write(file, Collections.singletonMap(SIMPLE, before));
+        PageRankFile old = new PageRankFile(file);
+
+        // the new file replaces the old one, which stays readable where it was opened
+        PageRankFile.write(file, Collections.singletonMap(SIMPLE, after));
+        for (String name : file.getParentFile().list()) {
+            assertFalse(name.startsWith(file.getName() + ".") && name.endsWith(".tmp"));
+        }
+        assertEquals(0.7, old.getPageRank(SIMPLE, 1), 0.000001);
+        assertEquals(0.2, new PageRankFile(file).getPageRank(SIMPLE, 1), 0.000001);
+        assertEquals(0.8, new PageRankFile(file).getPageRank(SIMPLE, 2), 0.000001);
+    }
+
+    @Test
+    public void testInvalidFile() throws IOException {
+        File file = File.createTempFile("pagerank", ".bin");
+        file.deleteOnExit();
+        DataOutputStream out = new DataOutputStream(new FileOutputStream(file));
+        out.writeInt(0xcafebabe);
+        out.writeInt(PageRankFile.VERSION);
+        out.writeInt(0);
+        out.close();
+        try {
+            new PageRankFile(file);
+            fail();
+        } catch (IOException e) {
+            // expected
+        }
+
+        PageRankFile.write(file, Collections.singletonMap(SIMPLE, (TIntDoubleMap) new TIntDoubleHashMap()));
+        assertEquals(0, new PageRankFile(file).size(SIMPLE));
+        out = new DataOutputStream(new FileOutputStream(file, true));
+        out.writeInt(42);
+        out.close();
+        try {
+            new PageRankFile(file);
+            fail();
+        } catch (IOException e) {
+            // expected
+        }
+    }
+
+    /**
+     * Every page links to page 1 and page 1 links to page 2.
+     */
+    @Test
+    public void testMatrixLocalLinkDao() throws IOException, DaoException {
+        File dir = File.createTempFile("matrix", null);
+        dir.delete();
+        matrixDir = dir;
+
+        MatrixLocalLinkDao dao = new MatrixLocalLinkDao(mock(LocalLinkDao.class), dir);
+        dao.beginLoad();
+        for (int i = 2; i <= 6; i++) {
+            dao.save(makeLink(i, 1));
+        }
+        dao.save(makeLink(1, 2));
+        dao.save(makeLink(3, 4));
+        dao.endLoad();
+        assertTrue(dao.getPageRanksFile().isFile());
+
+        assertArrayEquals(new int[] { 1, 2 }, dao.getTopPageRankIds(SIMPLE, 2));
+        int ids[] = { 1, 2, 3, 100 };
+        double ranks[] = dao.getPageRanks(SIMPLE, ids);
+        for (int i = 0; i < ids.length; i++) {
+            assertEquals(dao.getPageRank(SIMPLE, ids[i]), ranks[i], 0.0);
+        }
+        assertTrue(ranks[0] > ranks[1]);
+        assertTrue(ranks[1] > ranks[2]);
+        assertEquals(0.0, ranks[3], 0.0);
+
+        // a new dao reads the ranks from the file and removes the legacy rank file
+        File legacy = new File(dir, "pageRanks.bin");
+        FileUtils.write(legacy, "stale");
+        MatrixLocalLinkDao reopened = new MatrixLocalLinkDao(mock(LocalLinkDao.class), dir);
+        assertArrayEquals(ranks, reopened.getPageRanks(SIMPLE, ids), 0.0);
+        assertFalse(legacy.exists());
+    }
+
+    private static LocalLink makeLink(int src, int dest) {
+        return new LocalLink(SIMPLE, "", src, dest, true, 0, true, LocalLink.LocationType.NONE);
+    }
+}
@@ -0,0 +1,142 @@
+package org.wikibrain.core.model;
+
+import gnu.trove.map.TIntDoubleMap;
+import gnu.trove.map.hash.TIntIntHashMap;
+import org.junit.Test;
+import org.wikibrain.core.dao.DaoException;
+import org.wikibrain.core.dao.sql.CategoryBfs;
+import org.wikibrain.core.lang.Language;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.IntBuffer;
+
+import static org.junit.Assert.*;
+
+/**
+ * @author Shilad Sen
+ */
+public class TestCategoryGraph {
+
+    /**
+     * Categories 100 (root), 101 and 102 (children of 100) and 103 (child of 101).
+     * Articles 1 and 2 are in 103, article 3 is in 102 and article 4 is in 101 and 102.
+     */
+    private CategoryGraph makeGraph() {
+        CategoryGraph graph = new CategoryGraph(Language.getByLangCode("simple"));
+        graph.catIds = new int[] { 100, 101, 102, 103 };
+        graph.cats = new String[] { "Root", "A", "B", "C" };
+        graph.catIndexes = new TIntIntHashMap();
+        for (int i = 0; i < graph.catIds.length; i++) {
+            graph.catIndexes.put(graph.catIds[i], i);
+        }
+        graph.catCosts = new double[] { 0.5, 1.0, 2.0, 4.0 };
+        graph.catParents = new int[][] { {}, {0}, {0}, {1} };
+        graph.catChildren = new int[][] { {1, 2}, {3}, {}, {} };
+        graph.catPages = new int[][] { {}, {4}, {3, 4}, {2, 1} };
+        graph.minCost = 0.5;
+        return graph;
+    }
+
+    @Test
+    public void testCompile() {
+        CategoryGraph graph = makeGraph();
+        assertFalse(graph.isCompiled());
+        graph.compile();
+        assertTrue(graph.isCompiled());
+        assertEquals(4, graph.getNumArticles());
+        for (int id = 1; id <= 4; id++) {
+            assertEquals(id, graph.getArticleId(graph.getArticleIndex(id)));
+        }
+        assertEquals(-1, graph.getArticleIndex(5));
+        assertEquals(-1, graph.getArticleIndex(100));
+
+        IntBuffer offsets = graph.getArticleCategoryOffsets();
+        IntBuffer cats = graph.getArticleCategoryIndexes();
+        int ai = graph.getArticleIndex(4);
+        assertEquals(2, offsets.get(ai + 1) - offsets.get(ai));
+        assertEquals(1, cats.get(offsets.get(ai)));
+        assertEquals(2, cats.get(offsets.get(ai) + 1));
+
+        assertEquals(2, graph.getChildOffsets().get(1) - graph.getChildOffsets().get(0));
+        assertEquals(0, graph.getParentIndexes().get(graph.getParentOffsets().get(2)));
+    }
+
+    @Test
+    public void testMapCompiled() throws IOException {
+        File file = File.createTempFile("category", ".csr");
+        file.deleteOnExit();
+        makeGraph().writeCompiled(file);
+
+        CategoryGraph graph = makeGraph();
+        assertTrue(graph.mapCompiled(file));
+        assertTrue(graph.isCompiled());
+        assertEquals(4, graph.getNumArticles());
+        assertEquals(3, graph.getArticleId(graph.getArticleIndex(3)));
+
+        CategoryGraph other = makeGraph();
+        other.catIds = new int[] { 100, 101, 102 };
+        assertFalse(other.mapCompiled(file));
+
+        // a truncated file is rejected
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        raf.setLength(raf.length() - 4);
+        raf.close();
+        assertFalse(makeGraph().mapCompiled(file));
+    }
+
+    @Test
+    public void testBfs() throws DaoException {
+        CategoryGraph graph = makeGraph();
+        CategoryBfs bfs = new CategoryBfs(graph, 1, graph.language, 100, null, null);
+        try {
+            while (bfs.hasMoreResults()) {
+                bfs.step();
+            }
+            TIntDoubleMap distances = bfs.getPageDistances();
+            assertEquals(4, distances.size());
+            assertEquals(0.0, distances.get(1), 0.0001);
+            assertEquals(4.0, distances.get(2), 0.0001);
+            assertEquals(5.0, distances.get(4), 0.0001);   // 1 -> C -> A
+            assertEquals(7.5, distances.get(3), 0.0001);   // 1 -> C -> A -> Root -> B
+            assertTrue(bfs.hasCategoryDistance(100));
+            assertEquals(5.5, bfs.getCategoryDistance(100), 0.0001);
+        } finally {
+            bfs.close();
+        }
+
+        // A second search on the same thread reuses the workspace
+        bfs = new CategoryBfs(graph, 3, graph.language, 2, null, null);
+        try {
+            while (bfs.hasMoreResults()) {
+                bfs.step();
+            }
+            assertEquals(2, bfs.getNumPages());
+            assertTrue(bfs.hasPageDistance(3));
+            assertTrue(bfs.hasPageDistance(4));
+            assertFalse(bfs.hasPageDistance(1));
+            assertEquals(2.0, bfs.getPageDistance(4), 0.0001);
+            assertFalse(bfs.hasCategoryDistance(103));
+        } finally {
+            bfs.close();
+        }
+
+        // A category page starts at the parents of the category
+        bfs = new CategoryBfs(graph, 103, graph.language, 100, null, null);
+        try {
+            while (bfs.hasMoreResults()) {
+                bfs.step();
+            }
+            TIntDoubleMap distances = bfs.getPageDistances();
+            assertEquals(5, distances.size());
+            assertEquals(0.0, distances.get(103), 0.0001);
+            assertEquals(1.0, distances.get(4), 0.0001);   // C -> A
+            assertEquals(3.5, distances.get(3), 0.0001);   // C -> A -> Root -> B
+            assertEquals(5.0, distances.get(1), 0.0001);   // C -> A -> C
+            assertEquals(1.0, bfs.getCategoryDistance(101), 0.0001);
+        } finally {
+            bfs.close();
+        }
+    }
+}
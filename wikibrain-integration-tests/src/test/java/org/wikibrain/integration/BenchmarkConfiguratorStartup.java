@@ -0,0 +1,50 @@
+package org.wikibrain.integration;
+
+import org.wikibrain.conf.Configuration;
+import org.wikibrain.conf.ConfigurationException;
+import org.wikibrain.conf.Configurator;
+
+import java.util.Arrays;
+
+/**
+ * Measures the time to construct a Configurator on the class path of this module,
+ * which includes every module the loader depends on.
+ *
+ * Compares reading the provider indexes with scanning the class path
+ * (wikibrain.providerScan). Each mode is run several times and the median is reported,
+ * so class loading and JIT warmup of the first construction do not dominate.
+ *
+ * @author Shilad Sen
+ */
+public class BenchmarkConfiguratorStartup {
+    private static final int ROUNDS = 7;
+
+    public static void main(String args[]) throws ConfigurationException {
+        Configuration conf = new Configuration();
+
+        // Warm up the classes shared by both modes
+        new Configurator(conf);
+
+        double indexed = time(conf, false);
+        double scanned = time(conf, true);
+        System.out.println(String.format("provider indexes: %.1f millis (median of %d)", indexed, ROUNDS));
+        System.out.println(String.format("classpath scan: %.1f millis (median of %d)", scanned, ROUNDS));
+        System.out.println(String.format("speedup: %.1fx", scanned / indexed));
+    }
+
+    private static double time(Configuration conf, boolean scan) throws ConfigurationException {
+        System.setProperty("wikibrain.providerScan", "" + scan);
+        try {
+            double millis[] = new double[ROUNDS];
+            for (int i = 0; i < ROUNDS; i++) {
+                long start = System.nanoTime();
+                new Configurator(conf);
+                millis[i] = (System.nanoTime() - start) / 1E6;
+            }
+            Arrays.sort(millis);
+            return millis[ROUNDS / 2];
+        } finally {
+            System.clearProperty("wikibrain.providerScan");
+        }
+    }
+}
@@ -0,0 +1,82 @@
+package org.wikibrain.integration;
+
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.wikibrain.conf.ConfigurationException;
+import org.wikibrain.conf.Configurator;
+import org.wikibrain.core.cmd.Env;
+import org.wikibrain.core.dao.*;
+import org.wikibrain.sr.SRMetric;
+
+import java.io.IOException;
+import java.sql.SQLException;
+import java.util.*;
+import java.util.concurrent.*;
+
+import static org.junit.Assert.*;
+
+/**
+ * Requests DAOs and SR metrics from a single configurator in many threads at once.
+ * Every thread must receive the same instances.
+ *
+ * @author Shilad Sen
+ */
+public class ConfiguratorConcurrencyIT {
+    private static final int NUM_THREADS = 24;
+    private static final int ROUNDS = 20;
+    private static final Class DAOS[] = {
+            LocalPageDao.class, RawPageDao.class, LocalLinkDao.class, RedirectDao.class,
+            LocalCategoryMemberDao.class, MetaInfoDao.class, UniversalPageDao.class
+    };
+    private static final String METRICS[] = { "inlinknotrain", "ESAnotrain" };
+
+    private static Env env;
+
+    @BeforeClass
+    public static void prepareDb() throws ConfigurationException, IOException, SQLException {
+        TestDB db = TestUtils.getTestDb();
+        db.restoreLucene();
+        env = TestUtils.getEnv();
+    }
+
+    @Test
+    public void testManyThreads() throws Exception {
+        final Configurator conf = env.getConfigurator();
+        final CyclicBarrier barrier = new CyclicBarrier(NUM_THREADS);
+        ExecutorService exec = Executors.newFixedThreadPool(NUM_THREADS);
+        List<Future<List<Object>>> futures = new ArrayList<Future<List<Object>>>();
+        for (int i = 0; i < NUM_THREADS; i++) {
+            final int offset = i;
+            futures.add(exec.submit(new Callable<List<Object>>() {
+                @Override
+                public List<Object> call() throws Exception {
+                    barrier.await();
+                    Object components[] = new Object[DAOS.length + METRICS.length];
+                    // Each thread requests the components in a different order
+                    for (int r = 0; r < ROUNDS; r++) {
+                        for (int j = 0; j < components.length; j++) {
+                            int k = (offset + r + j) % components.length;
+                            Object c = (k < DAOS.length)
+                                    ? conf.get(DAOS[k])
+                                    : conf.get(SRMetric.class, METRICS[k - DAOS.length], "language", "simple");
+                            assertNotNull(c);
+                            if (components[k] != null) {
+                                assertSame(components[k], c);
+                            }
+                            components[k] = c;
+                        }
+                    }
+                    return Arrays.asList(components);
+                }
+            }));
+        }
+        List<Object> first = futures.get(0).get(10, TimeUnit.MINUTES);
+        for (Future<List<Object>> f : futures) {
+            List<Object> components = f.get(10, TimeUnit.MINUTES);
+            for (int i = 0; i < components.size(); i++) {
+                assertSame(first.get(i), components.get(i));
+            }
+        }
+        exec.shutdown();
+    }
+}
@@ -22,6 +22,7 @@ import org.wikibrain.core.model.UniversalPage;
 import org.wikibrain.download.DumpFileDownloader;
 import org.wikibrain.download.RequestedLinkGetter;
 import org.wikibrain.mapper.ConceptMapper;
+import org.wikibrain.loader.pipeline.LoaderStage;
 
 import java.io.File;
 import java.io.IOException;
@@ -93,7 +94,7 @@ public class ConceptLoader {
         }
     }
 
-    public static void main(String args[]) throws ClassNotFoundException, SQLException, IOException, ConfigurationException, WikiBrainException, DaoException, java.text.ParseException, InterruptedException {
+    private static Options makeOptions() {
         Options options = new Options();
         options.addOption(
                 new DefaultOptionBuilder()
@@ -107,6 +108,11 @@ public class ConceptLoader {
                         .withDescription("algorithm")
                         .create("n"));
         EnvBuilder.addStandardOptions(options);
+        return options;
+    }
+
+    public static void main(String args[]) throws ClassNotFoundException, SQLException, IOException, ConfigurationException, WikiBrainException, DaoException, java.text.ParseException, InterruptedException {
+        Options options = makeOptions();
 
         CommandLineParser parser = new PosixParser();
         CommandLine cmd;
@@ -119,6 +125,10 @@ public class ConceptLoader {
         }
 
         Env env = new EnvBuilder(cmd).build();
+        load(env, cmd);
+    }
+
+    private static void load(Env env, CommandLine cmd) throws ClassNotFoundException, SQLException, IOException, ConfigurationException, WikiBrainException, DaoException, java.text.ParseException, InterruptedException {
         Configurator conf = env.getConfigurator();
         String algorithm = cmd.getOptionValue("n", null);
 
@@ -147,4 +157,19 @@ public class ConceptLoader {
 
         LOG.info("DONE");
     }
+
+    /**
+     * Runs the loader inside the pipeline loader's JVM (see {@link LoaderStage}).
+     */
+    public static class InProcessStage extends LoaderStage {
+        @Override
+        protected Options makeOptions() {
+            return ConceptLoader.makeOptions();
+        }
+
+        @Override
+        protected void load(Env env, CommandLine cmd) throws Exception {
+            ConceptLoader.load(env, cmd);
+        }
+    }
 }
@@ -27,6 +27,7 @@ import org.wikibrain.parser.xml.PageXmlParser;
 import org.wikibrain.utils.ParallelForEach;
 import org.wikibrain.utils.Procedure;
 import org.wikibrain.utils.WpThreadUtils;
+import org.wikibrain.loader.pipeline.LoaderStage;
 
 import java.io.*;
 import java.sql.SQLException;
@@ -174,7 +175,7 @@ public class DumpLoader {
 
     }
 
-    public static void main(String args[]) throws ClassNotFoundException, SQLException, IOException, ConfigurationException, DaoException {
+    private static Options makeOptions() {
         Options options = new Options();
         options.addOption(
                 new DefaultOptionBuilder()
@@ -194,6 +195,11 @@ public class DumpLoader {
                         .withDescription("list of valid ids")
                         .create("v"));
         EnvBuilder.addStandardOptions(options);
+        return options;
+    }
+
+    public static void main(String args[]) throws ClassNotFoundException, SQLException, IOException, ConfigurationException, DaoException {
+        Options options = makeOptions();
 
         CommandLineParser parser = new PosixParser();
         CommandLine cmd;
@@ -206,11 +212,19 @@ public class DumpLoader {
             return;
         }
 
+        Env env = makeEnvBuilder(cmd).build();
+        load(env, cmd);
+    }
+
+    private static EnvBuilder makeEnvBuilder(CommandLine cmd) {
         EnvBuilder builder = new EnvBuilder(cmd);
         if (!builder.hasExplicitLanguageSet()) {
             builder.setUseDownloadedLanguages();
         }
-        Env env = builder.build();
+        return builder;
+    }
+
+    private static void load(Env env, CommandLine cmd) throws ClassNotFoundException, SQLException, IOException, ConfigurationException, DaoException {
         Configurator conf = env.getConfigurator();
         List<File> paths;
         if (cmd.getArgList().isEmpty()) {
@@ -261,4 +275,24 @@ public class DumpLoader {
         rpDao.endLoad();
         metaDao.endLoad();
     }
+
+    /**
+     * Runs the loader inside the pipeline loader's JVM (see {@link LoaderStage}).
+     */
+    public static class InProcessStage extends LoaderStage {
+        @Override
+        protected Options makeOptions() {
+            return DumpLoader.makeOptions();
+        }
+
+        @Override
+        protected void load(Env env, CommandLine cmd) throws Exception {
+            DumpLoader.load(env, cmd);
+        }
+
+        @Override
+        protected EnvBuilder makeEnvBuilder(CommandLine cmd) {
+            return DumpLoader.makeEnvBuilder(cmd);
+        }
+    }
 }
@@ -1,121 +1,398 @@
 package org.wikibrain.loader;
 
-import org.mapdb.DB;
-import org.mapdb.DBMaker;
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.wikibrain.core.lang.Language;
 import org.wikibrain.core.model.LocalLink;
 
-import java.util.Iterator;
-import java.util.Set;
-import java.util.concurrent.ArrayBlockingQueue;
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.LongBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
 
 /**
+ * A set of link hashes (see {@link LocalLink#longHashCode()}) that may be much larger than memory.
+ *
+ * <p>Each thread that adds links accumulates hashes in its own long[] buffer. When a buffer
+ * fills it is sorted, deduplicated, and spilled to disk as a binary run. finish() merges the
+ * runs into a single sorted file that is memory mapped, and builds a Bloom filter in front of
+ * it, so most queries for missing links never touch the mapped file.</p>
+ *
+ * <p>addLink() may be called concurrently from many threads. finish() must be called once
+ * all threads are done adding links and before any calls to contains(). close() deletes
+ * the spilled and merged files, after which the set can no longer be used.</p>
+ *
  * @author Shilad Sen
  */
-public class LocalLinkSet {
-    private static final long MIN_SORT_MEMORY = 100 * 1024 * 1024;  // 100MB
-    private static final int LONG_MEMORY_BYTES = 30;                     // bit of a guess
-    private static final Long POISON_PILL = new Long(Long.MIN_VALUE);
-    private final DB db;
-    private final DB.BTreeSetMaker setMaker;
-
-    private ArrayBlockingQueue<Long> queue = new ArrayBlockingQueue<Long>(10000);
-    private volatile Long next = null;
-    private Thread worker = null;
-    private Set<Long> set = null;
+public class LocalLinkSet implements Closeable {
+    private static final Logger LOG = LoggerFactory.getLogger(LocalLinkSet.class);
 
-    public LocalLinkSet() {
-        this.db = DBMaker
-                .newTempFileDB()
-                .mmapFileEnable()
-                .transactionDisable()
-                .asyncWriteEnable()
-                .asyncWriteFlushDelay(100)
-                .make();
-        this.setMaker = db.createTreeSet("linkHashes");
+    private static final int MIN_BUFFER_LONGS = 64 * 1024;
+    private static final int MAX_BUFFER_LONGS = 4 * 1024 * 1024;
 
-        long heapMaxSize = Runtime.getRuntime().maxMemory();
-        int presortMem = (int) Math.min(Integer.MAX_VALUE, Math.max(MIN_SORT_MEMORY, heapMaxSize / 20));
+    private static final int BLOOM_BITS_PER_LINK = 10;
+    private static final int BLOOM_HASHES = 7;
 
-        setMaker.pumpIgnoreDuplicates();
-        setMaker.pumpPresort(presortMem / LONG_MEMORY_BYTES);
+    // Mapped chunks of the merged file are 2^27 longs (1GB) each.
+    private static final int CHUNK_BITS = 27;
+    private static final int CHUNK_MASK = (1 << CHUNK_BITS) - 1;
 
-        worker = new Thread() {
-            @Override
-            public void run() {
-                setMaker.pumpSource(new LinkHashIterator());
-                set = setMaker.makeLongSet();
+    private final File dir;
+    private final int bufferLongs;
+    private final List<File> runs = new ArrayList<File>();
+    private final List<Buffer> buffers = new ArrayList<Buffer>();
+    private final ThreadLocal<Buffer> localBuffer = new ThreadLocal<Buffer>() {
+        @Override
+        protected Buffer initialValue() {
+            Buffer buffer = new Buffer();
+            synchronized (buffers) {
+                buffers.add(buffer);
             }
-        };
-        worker.start();
+            return buffer;
+        }
+    };
+
+    // Lookup structures, valid after finish()
+    private long size = -1;
+    private int numRuns = 0;
+    private LongBuffer chunks[];
+    private long bloom[];
+    private long bloomMask;
+
+    public LocalLinkSet() {
+        this(getDefaultBufferLongs());
     }
 
-    public void addLink(LocalLink link) {
+    /**
+     * @param bufferLongs The number of hashes each adding thread buffers before it spills a run.
+     */
+    LocalLinkSet(int bufferLongs) {
+        this.bufferLongs = bufferLongs;
         try {
-            queue.put(link.longHashCode());
-        } catch (InterruptedException e) {
+            dir = File.createTempFile("wikibrain-links", null);
+            FileUtils.deleteQuietly(dir);
+            dir.mkdirs();
+            FileUtils.forceDeleteOnExit(dir);
+        } catch (IOException e) {
             throw new RuntimeException(e);
         }
+    }
 
+    /**
+     * Every parsing thread holds a buffer, so give each of them a slice of 1/20th of the heap.
+     */
+    private static int getDefaultBufferLongs() {
+        long heapMaxSize = Runtime.getRuntime().maxMemory();
+        long perThread = heapMaxSize / 20 / 8 / Math.max(1, Runtime.getRuntime().availableProcessors());
+        return (int) Math.max(MIN_BUFFER_LONGS, Math.min(MAX_BUFFER_LONGS, perThread));
     }
 
+    public void addLink(LocalLink link) {
+        add(link.longHashCode());
+    }
+
+    /**
+     * Adds a link hash. Does not allocate unless the calling thread's buffer is spilled.
+     * @param hash
+     */
+    public void add(long hash) {
+        if (size >= 0) {
+            throw new IllegalStateException("add() called after finish()");
+        }
+        Buffer buffer = localBuffer.get();
+        buffer.add(hash);
+    }
+
+    /**
+     * Spills all thread buffers, merges the spilled runs and maps the result.
+     */
     public void finish() {
+        if (size >= 0) {
+            return;
+        }
         try {
-            queue.put(POISON_PILL);
-            synchronized (worker) {
-                worker.wait();
-                worker = null;
+            synchronized (buffers) {
+                for (Buffer buffer : buffers) {
+                    buffer.spill();
+                    buffer.values = null;
+                }
+                buffers.clear();
+            }
+            File merged = new File(dir, "merged.bin");
+            size = merge(merged);
+            map(merged);
+            buildBloomFilter();
+            numRuns = runs.size();
+            LOG.info("built link set with " + size + " links from " + numRuns + " runs");
+            for (File run : runs) {
+                FileUtils.deleteQuietly(run);
             }
-        } catch (InterruptedException e) {
+            runs.clear();
+        } catch (IOException e) {
             throw new RuntimeException(e);
         }
     }
 
     public boolean contains(LocalLink link) {
-        return set.contains(link.longHashCode());
+        return contains(link.longHashCode());
+    }
+
+    /**
+     * Checks for a link without creating a LocalLink.
+     * @see LocalLink#longHashCode(Language, int, int)
+     */
+    public boolean contains(Language language, int sourceId, int destId) {
+        return contains(LocalLink.longHashCode(language, sourceId, destId));
     }
 
-    class LinkHashIterator implements Iterator<Long> {
-        private boolean fillBuffer() {
-            if (next != null) {
+    public boolean contains(long hash) {
+        if (size < 0) {
+            throw new IllegalStateException("contains() called before finish()");
+        }
+        if (chunks == null) {
+            throw new IllegalStateException("contains() called after close()");
+        }
+        if (!bloomContains(hash)) {
+            return false;
+        }
+        long lo = 0;
+        long hi = size - 1;
+        while (lo <= hi) {
+            long mid = (lo + hi) >>> 1;
+            long v = get(mid);
+            if (v < hash) {
+                lo = mid + 1;
+            } else if (v > hash) {
+                hi = mid - 1;
+            } else {
                 return true;
             }
-            if (queue == null) {
-                return false;
+        }
+        return false;
+    }
+
+    /**
+     * @return The number of runs that were spilled and merged by finish().
+     */
+    int getNumRuns() {
+        return numRuns;
+    }
+
+    /**
+     * @return The number of distinct links in the set. Only valid after finish().
+     */
+    public long size() {
+        return size;
+    }
+
+    /**
+     * Releases the buffers and lookup structures and deletes the set's temporary files.
+     * The mapped chunks are unmapped by the garbage collector once they are unreachable.
+     */
+    @Override
+    public void close() {
+        synchronized (buffers) {
+            for (Buffer buffer : buffers) {
+                buffer.values = null;
+            }
+            buffers.clear();
+        }
+        synchronized (runs) {
+            runs.clear();
+        }
+        if (size < 0) {
+            size = 0;   // keeps add() from refilling the released buffers
+        }
+        chunks = null;
+        bloom = null;
+        FileUtils.deleteQuietly(dir);
+    }
+
+    /**
+     * @return The directory that holds the set's temporary files.
+     */
+    File getDirectory() {
+        return dir;
+    }
+
+    private long get(long i) {
+        return chunks[(int) (i >>> CHUNK_BITS)].get((int) (i & CHUNK_MASK));
+    }
+
+    private void writeRun(long values[], int n) throws IOException {
+        if (n == 0) {
+            return;
+        }
+        Arrays.sort(values, 0, n);
+        File run;
+        synchronized (runs) {
+            run = new File(dir, "run-" + runs.size() + ".bin");
+            runs.add(run);
+        }
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(run), 1 << 16));
+        try {
+            long last = 0;
+            for (int i = 0; i < n; i++) {
+                if (i == 0 || values[i] != last) {
+                    out.writeLong(values[i]);
+                }
+                last = values[i];
             }
-            while (next == null) {
+        } finally {
+            out.close();
+        }
+    }
+
+    /**
+     * K-way merge of the sorted runs into a single sorted file without duplicates.
+     * @return The number of distinct values written.
+     */
+    private long merge(File dest) throws IOException {
+        int k = runs.size();
+        DataInputStream inputs[] = new DataInputStream[k];
+        long heads[] = new long[k];
+        int heap[] = new int[k];
+        int heapSize = 0;
+        long n = 0;
+
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(dest), 1 << 16));
+        try {
+            for (int i = 0; i < k; i++) {
+                inputs[i] = new DataInputStream(new BufferedInputStream(new FileInputStream(runs.get(i)), 1 << 16));
+                heads[i] = inputs[i].readLong();     // runs are never empty
+                heap[heapSize++] = i;
+            }
+            for (int i = heapSize / 2 - 1; i >= 0; i--) {
+                siftDown(heap, heapSize, heads, i);
+            }
+            long last = 0;
+            while (heapSize > 0) {
+                int r = heap[0];
+                long v = heads[r];
+                if (n == 0 || v != last) {
+                    out.writeLong(v);
+                    last = v;
+                    n++;
+                }
                 try {
-                    Long l = queue.take();
-                    if (l == POISON_PILL) {
-                        queue = null;
-                        return false;
-                    }
-                    next = l;
-                } catch (InterruptedException e) {
-                    throw new RuntimeException(e);
+                    heads[r] = inputs[r].readLong();
+                } catch (EOFException e) {
+                    inputs[r].close();
+                    heap[0] = heap[--heapSize];
                 }
+                siftDown(heap, heapSize, heads, 0);
+            }
+        } finally {
+            out.close();
+            for (DataInputStream in : inputs) {
+                IOUtils.closeQuietly(in);
             }
-            return true;
         }
+        return n;
+    }
 
-        @Override
-        public synchronized boolean hasNext() {
-            return fillBuffer();
+    private static void siftDown(int heap[], int heapSize, long heads[], int i) {
+        while (true) {
+            int smallest = i;
+            int l = 2 * i + 1;
+            int r = l + 1;
+            if (l < heapSize && heads[heap[l]] < heads[heap[smallest]]) smallest = l;
+            if (r < heapSize && heads[heap[r]] < heads[heap[smallest]]) smallest = r;
+            if (smallest == i) {
+                return;
+            }
+            int tmp = heap[i];
+            heap[i] = heap[smallest];
+            heap[smallest] = tmp;
+            i = smallest;
         }
+    }
 
-        @Override
-        public Long next() {
-            if (fillBuffer()) {
-                Long result = next;
-                next = null;
-                return result;
-            } else {
-                return null;
+    private void map(File file) throws IOException {
+        int numChunks = (int) ((size + CHUNK_MASK) >>> CHUNK_BITS);
+        chunks = new LongBuffer[numChunks];
+        RandomAccessFile raf = new RandomAccessFile(file, "r");
+        try {
+            FileChannel channel = raf.getChannel();
+            for (int i = 0; i < numChunks; i++) {
+                long start = ((long) i) << CHUNK_BITS;
+                long longs = Math.min(size - start, 1L << CHUNK_BITS);
+                chunks[i] = channel.map(FileChannel.MapMode.READ_ONLY, start * 8, longs * 8).asLongBuffer();
             }
+        } finally {
+            raf.close();     // mappings remain valid after the channel is closed
         }
+    }
 
-        @Override
-        public void remove() {
-            throw new UnsupportedOperationException();
+    private void buildBloomFilter() {
+        // Power of two number of bits, capped at 1/10th of the heap.
+        long maxBits = Math.max(64, Runtime.getRuntime().maxMemory() / 10 * 8);
+        long bits = 64;
+        while (bits < size * BLOOM_BITS_PER_LINK && bits * 2 <= maxBits) {
+            bits *= 2;
+        }
+        bloom = new long[(int) (bits / 64)];
+        bloomMask = bits - 1;
+        for (long i = 0; i < size; i++) {
+            long h1 = mix(get(i));
+            long h2 = (h1 >>> 32) | 1;
+            for (int j = 0; j < BLOOM_HASHES; j++) {
+                long bit = (h1 + j * h2) & bloomMask;
+                bloom[(int) (bit >>> 6)] |= 1L << bit;
+            }
+        }
+    }
+
+    private boolean bloomContains(long hash) {
+        long h1 = mix(hash);
+        long h2 = (h1 >>> 32) | 1;
+        for (int j = 0; j < BLOOM_HASHES; j++) {
+            long bit = (h1 + j * h2) & bloomMask;
+            if ((bloom[(int) (bit >>> 6)] & (1L << bit)) == 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * The murmur3 64-bit finalizer. Link hashes are highly structured, so they must be mixed.
+     */
+    private static long mix(long h) {
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        h *= 0xc4ceb9fe1a85ec53L;
+        h ^= h >>> 33;
+        return h;
+    }
+
+    /**
+     * A buffer owned by a single adding thread.
+     */
+    private class Buffer {
+        long values[] = new long[bufferLongs];
+        int n = 0;
+
+        void add(long hash) {
+            if (n == values.length) {
+                spill();
+            }
+            values[n++] = hash;
+        }
+
+        void spill() {
+            try {
+                writeRun(values, n);
+            } catch (IOException e) {
+                throw new RuntimeException(e);
+            }
+            n = 0;
         }
     }
 }
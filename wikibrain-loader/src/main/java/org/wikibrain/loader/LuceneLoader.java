@@ -20,6 +20,7 @@ import org.wikibrain.lucene.LuceneIndexer;
 import org.wikibrain.lucene.LuceneOptions;
 import org.wikibrain.lucene.LuceneSearcher;
 import org.wikibrain.utils.WpThreadUtils;
+import org.wikibrain.loader.pipeline.LoaderStage;
 
 import java.io.IOException;
 import java.util.ArrayList;
@@ -166,7 +167,7 @@ public class LuceneLoader {
         }
     }
 
-    public static void main(String args[]) throws ConfigurationException, WikiBrainException, IOException, DaoException {
+    private static Options makeOptions() {
         Options options = new Options();
         options.addOption(
                 new DefaultOptionBuilder()
@@ -188,6 +189,11 @@ public class LuceneLoader {
                         .withDescription("the types of indexes to store, separated by commas")
                         .create("i"));
         EnvBuilder.addStandardOptions(options);
+        return options;
+    }
+
+    public static void main(String args[]) throws ConfigurationException, WikiBrainException, IOException, DaoException {
+        Options options = makeOptions();
 
         CommandLineParser parser = new PosixParser();
         CommandLine cmd;
@@ -200,6 +206,10 @@ public class LuceneLoader {
         }
 
         Env env = new EnvBuilder(cmd).build();
+        load(env, cmd);
+    }
+
+    private static void load(Env env, CommandLine cmd) throws ConfigurationException, WikiBrainException, IOException, DaoException {
         Configurator conf = env.getConfigurator();
 
         LuceneOptions[] luceneOptions;
@@ -246,4 +256,19 @@ public class LuceneLoader {
 
         LOG.info("Done indexing");
     }
+
+    /**
+     * Runs the loader inside the pipeline loader's JVM (see {@link LoaderStage}).
+     */
+    public static class InProcessStage extends LoaderStage {
+        @Override
+        protected Options makeOptions() {
+            return LuceneLoader.makeOptions();
+        }
+
+        @Override
+        protected void load(Env env, CommandLine cmd) throws Exception {
+            LuceneLoader.load(env, cmd);
+        }
+    }
 }
@@ -13,6 +13,7 @@ import org.wikibrain.core.dao.sql.WpDataSource;
 import org.wikibrain.core.lang.Language;
 import org.wikibrain.core.lang.LanguageInfo;
 import org.wikibrain.core.model.*;
+import org.wikibrain.loader.pipeline.LoaderStage;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -94,7 +95,7 @@ public class RedirectLoader {
         LOG.info("End loading redirects into database.");
     }
 
-    public static void main(String args[]) throws ConfigurationException, DaoException {
+    private static Options makeOptions() {
         Options options = new Options();
         options.addOption(
                 new DefaultOptionBuilder()
@@ -102,6 +103,11 @@ public class RedirectLoader {
                         .withDescription("drop and recreate all tables")
                         .create("d"));
         EnvBuilder.addStandardOptions(options);
+        return options;
+    }
+
+    public static void main(String args[]) throws ConfigurationException, DaoException {
+        Options options = makeOptions();
 
         CommandLineParser parser = new PosixParser();
         CommandLine cmd;
@@ -114,6 +120,10 @@ public class RedirectLoader {
         }
 
         Env env = new EnvBuilder(cmd).build();
+        load(env, cmd);
+    }
+
+    private static void load(Env env, CommandLine cmd) throws ConfigurationException, DaoException {
         Configurator conf = env.getConfigurator();
 
         MetaInfoDao metaDao = conf.get(MetaInfoDao.class);
@@ -150,4 +160,18 @@ public class RedirectLoader {
         LocalPage page = pageDao.getByTitle(env.getDefaultLanguage(), NameSpace.ARTICLE, "FooBar");
     }
 
+    /**
+     * Runs the loader inside the pipeline loader's JVM (see {@link LoaderStage}).
+     */
+    public static class InProcessStage extends LoaderStage {
+        @Override
+        protected Options makeOptions() {
+            return RedirectLoader.makeOptions();
+        }
+
+        @Override
+        protected void load(Env env, CommandLine cmd) throws Exception {
+            RedirectLoader.load(env, cmd);
+        }
+    }
 }
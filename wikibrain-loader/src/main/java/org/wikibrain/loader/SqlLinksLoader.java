@@ -99,14 +99,11 @@ public class SqlLinksLoader {
             // Handle red link
         } else if (validIds != null && (!validIds.contains(srcPageId) || !validIds.contains(destId))) {
             // Skip
-        } else {
-
+        } else if (!existing.contains(language, srcPageId, destId)) {
             LocalLink ll = new LocalLink(language, "", srcPageId, destId,
                     true, -1, false, LocalLink.LocationType.NONE);
-            if (!existing.contains(ll)) {
-                newLinks.incrementAndGet();
-                dao.save(ll);
-            }
+            newLinks.incrementAndGet();
+            dao.save(ll);
         }
     }
 
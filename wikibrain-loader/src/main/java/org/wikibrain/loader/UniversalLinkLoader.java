@@ -17,6 +17,7 @@ import org.wikibrain.core.model.LocalLink;
 import org.wikibrain.core.lang.LanguageSet;
 import org.wikibrain.core.model.UniversalLink;
 import org.wikibrain.mapper.ConceptMapper;
+import org.wikibrain.loader.pipeline.LoaderStage;
 
 import java.io.IOException;
 import java.sql.SQLException;
@@ -116,7 +117,7 @@ public class UniversalLinkLoader {
         LOG.info("Time (s): " + seconds);
     }
 
-    public static void main(String args[]) throws ClassNotFoundException, SQLException, IOException, ConfigurationException, WikiBrainException, DaoException {
+    private static Options makeOptions() {
         Options options = new Options();
         options.addOption(
                 new DefaultOptionBuilder()
@@ -124,6 +125,11 @@ public class UniversalLinkLoader {
                         .withDescription("drop and recreate all tables")
                         .create("d"));
         EnvBuilder.addStandardOptions(options);
+        return options;
+    }
+
+    public static void main(String args[]) throws ClassNotFoundException, SQLException, IOException, ConfigurationException, WikiBrainException, DaoException {
+        Options options = makeOptions();
 
         CommandLineParser parser = new PosixParser();
         CommandLine cmd;
@@ -136,6 +142,10 @@ public class UniversalLinkLoader {
         }
 
         Env env = new EnvBuilder(cmd).build();
+        load(env, cmd);
+    }
+
+    private static void load(Env env, CommandLine cmd) throws ClassNotFoundException, SQLException, IOException, ConfigurationException, WikiBrainException, DaoException {
         Configurator conf = env.getConfigurator();
         String algorithm = cmd.getOptionValue("n", null);
 
@@ -160,4 +170,19 @@ public class UniversalLinkLoader {
         loader.endLoad();
         LOG.info("DONE");
     }
+
+    /**
+     * Runs the loader inside the pipeline loader's JVM (see {@link LoaderStage}).
+     */
+    public static class InProcessStage extends LoaderStage {
+        @Override
+        protected Options makeOptions() {
+            return UniversalLinkLoader.makeOptions();
+        }
+
+        @Override
+        protected void load(Env env, CommandLine cmd) throws Exception {
+            UniversalLinkLoader.load(env, cmd);
+        }
+    }
 }
@@ -8,6 +8,7 @@ import org.wikibrain.core.cmd.Env;
 import org.wikibrain.core.cmd.EnvBuilder;
 import org.wikibrain.core.cmd.FileMatcher;
 import org.wikibrain.core.dao.*;
+import org.wikibrain.core.dao.segment.SegmentedRawPageDao;
 import org.wikibrain.core.dao.sql.WpDataSource;
 import org.wikibrain.core.lang.Language;
 import org.wikibrain.core.lang.LanguageInfo;
@@ -16,6 +17,7 @@ import org.wikibrain.core.model.InterLanguageLink;
 import org.wikibrain.core.model.LocalCategoryMember;
 import org.wikibrain.core.model.LocalLink;
 import org.wikibrain.parser.wiki.*;
+import org.wikibrain.loader.pipeline.LoaderStage;
 
 import java.io.File;
 import java.io.IOException;
@@ -32,7 +34,7 @@ public class WikiTextLoader {
 
     private static final Logger LOG = LoggerFactory.getLogger(WikiTextLoader.class);
 
-    public static void main(String args[]) throws ConfigurationException, DaoException, IOException {
+    private static Options makeOptions() {
         Options options = new Options();
         options.addOption(
                 new DefaultOptionBuilder()
@@ -40,6 +42,11 @@ public class WikiTextLoader {
                         .withDescription("drop and recreate all tables")
                         .create("d"));
         EnvBuilder.addStandardOptions(options);
+        return options;
+    }
+
+    public static void main(String args[]) throws ConfigurationException, DaoException, IOException {
+        Options options = makeOptions();
 
         CommandLineParser parser = new PosixParser();
         CommandLine cmd;
@@ -52,6 +59,14 @@ public class WikiTextLoader {
         }
 
         Env env = new EnvBuilder(cmd).build();
+        load(env, cmd);
+
+        // Why is this necessary???
+        // It seems like things die without it :(
+        System.exit(0);
+    }
+
+    private static void load(Env env, CommandLine cmd) throws ConfigurationException, DaoException, IOException {
         Configurator conf = env.getConfigurator();
 
         List<ParserVisitor> visitors = new ArrayList<ParserVisitor>();
@@ -73,6 +88,13 @@ public class WikiTextLoader {
         visitors.add(catVisitor);
         visitors.add(illVisitor);
 
+        // If bodies are stored in segments, precompute plain text alongside them.
+        PlainTextVisitor plainTextVisitor = null;
+        if (rpDao instanceof SegmentedRawPageDao) {
+            plainTextVisitor = new PlainTextVisitor((SegmentedRawPageDao) rpDao);
+            visitors.add(plainTextVisitor);
+        }
+
         if(cmd.hasOption("d")) {
             llDao.clear();
             lcmDao.clear();
@@ -98,29 +120,47 @@ public class WikiTextLoader {
 
             WikiTextDumpParser dumpParser = new WikiTextDumpParser(
                     rpDao, LanguageInfo.getByLanguage(lang), LanguageSet.ALL);
-            dumpParser.parse(visitors);
-
-            linkSet.finish();
-
-            List<File> paths = env.getFiles(lang, FileMatcher.LINK_SQL);
-            if (paths.size() > 1) {
-                throw new IllegalStateException();
-            }
-            if (paths.size() == 1) {
-                SqlLinksLoader sqlLoader = new SqlLinksLoader(llDao, lpDao, metaDao, paths.get(0), linkSet);
-                sqlLoader.load();
+            try {
+                dumpParser.parse(visitors);
+
+                linkSet.finish();
+
+                List<File> paths = env.getFiles(lang, FileMatcher.LINK_SQL);
+                if (paths.size() > 1) {
+                    throw new IllegalStateException();
+                }
+                if (paths.size() == 1) {
+                    SqlLinksLoader sqlLoader = new SqlLinksLoader(llDao, lpDao, metaDao, paths.get(0), linkSet);
+                    sqlLoader.load();
+                }
+            } finally {
+                linkSet.close();
             }
         }
 
+        if (plainTextVisitor != null) {
+            plainTextVisitor.finish();
+        }
         illDao.endLoad();
         llDao.endLoad();
         lcmDao.endLoad();
         metaDao.endLoad();
 
         System.out.println("encountered " + metaDao.getInfo(LocalLink.class).getNumErrors() + " parse errors");
+    }
 
-        // Why is this necessary???
-        // It seems like things die without it :(
-        System.exit(0);
+    /**
+     * Runs the loader inside the pipeline loader's JVM (see {@link LoaderStage}).
+     */
+    public static class InProcessStage extends LoaderStage {
+        @Override
+        protected Options makeOptions() {
+            return WikiTextLoader.makeOptions();
+        }
+
+        @Override
+        protected void load(Env env, CommandLine cmd) throws Exception {
+            WikiTextLoader.load(env, cmd);
+        }
     }
 }
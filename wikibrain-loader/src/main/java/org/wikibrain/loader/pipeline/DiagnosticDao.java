@@ -2,6 +2,7 @@ package org.wikibrain.loader.pipeline;
 
 import com.typesafe.config.Config;
 import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.LineIterator;
 import org.apache.commons.lang3.StringUtils;
 import org.parse4j.Parse;
 import org.parse4j.ParseException;
@@ -21,26 +22,36 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 /**
+ * Stores the diagnostics of each stage run.
+ *
+ * Summaries are appended to a local log and sent to Parse. Resource profiles are kept
+ * locally in a directory per run, which also records the run's language set. Each
+ * combination of language set and stage has its own baseline run for regression
+ * comparisons, because the resources a stage needs depend on the languages it loads.
+ *
  * @author Shilad Sen
  */
 public class DiagnosticDao {
     private static final Logger LOG = LoggerFactory.getLogger(DiagnosticDao.class);
+    private static final String LOG_HEADER = "stage\tdate\tlangs\telapsed\tsingleCoreSpeed\tmultiCoreSpeed\tmegabytes\tsucceeded\tstart\tend";
     private final String token;
     private final File logFile;
+    private final File profileDir;
 
     public DiagnosticDao(String appId, String restApiId, String token, File logFile) {
+        this(appId, restApiId, token, logFile, new File(logFile.getParentFile(), "profiles"));
+    }
+
+    public DiagnosticDao(String appId, String restApiId, String token, File logFile, File profileDir) {
         Parse.initialize(appId, restApiId);
         this.logFile = logFile;
         this.token = token;
+        this.profileDir = profileDir;
         logFile.getParentFile().mkdirs();
     }
 
     public void save(StageDiagnostic diagnostic) throws ParseException, IOException {
-        String contents = "";
-        if (!logFile.exists()) {
-            contents = "stage\tdate\tlangs\telapsed\tsingleCoreSpeed\tmultiCoreSpeed\tmegabytes\tsucceeded\n";
-        }
-        contents += StringUtils.join(Arrays.asList(
+        appendToLog(StringUtils.join(Arrays.asList(
                             diagnostic.getStage(),
                             diagnostic.getDate().toString(),
                             diagnostic.getLangs().getLangCodeString(),
@@ -48,9 +59,10 @@ public class DiagnosticDao {
                             diagnostic.getSingleCoreSpeed(),
                             diagnostic.getMultiCoreSpeed(),
                             diagnostic.getMegabytesUsed(),
-                            diagnostic.getSucceeded()
-                    ), "\t") + "\n";
-        FileUtils.write(logFile, contents, true);
+                            diagnostic.getSucceeded(),
+                            diagnostic.getStartTime() == null ? "" : diagnostic.getStartTime().getTime(),
+                            diagnostic.getEndTime() == null ? "" : diagnostic.getEndTime().getTime()
+                    ), "\t"));
         ParseObject object = new ParseObject("StageDiagnostic");
         object.put("installToken", token);
         object.put("runId", diagnostic.getRunId());
@@ -63,10 +75,37 @@ public class DiagnosticDao {
         object.put("multiCoreSpeed", diagnostic.getMultiCoreSpeed());
         object.put("megabytes", diagnostic.getMegabytesUsed());
         object.put("suceeded", diagnostic.getSucceeded());
+        if (diagnostic.getStartTime() != null && diagnostic.getEndTime() != null) {
+            object.put("startTime", diagnostic.getStartTime());
+            object.put("endTime", diagnostic.getEndTime());
+        }
         object.put("version", "0.4-SNAPSHOT");
         object.save();
     }
 
+    /**
+     * Appends a row to the local log. A log written with different columns is moved aside
+     * to a file suffixed with its modification time, and a new log is started.
+     */
+    private synchronized void appendToLog(String row) throws IOException {
+        if (logFile.exists() && !LOG_HEADER.equals(readLogHeader())) {
+            File old = new File(logFile.getPath() + "." + logFile.lastModified());
+            LOG.info("columns of diagnostic log " + logFile + " have changed; moving it to " + old);
+            FileUtils.moveFile(logFile, old);
+        }
+        String contents = logFile.exists() ? "" : LOG_HEADER + "\n";
+        FileUtils.write(logFile, contents + row + "\n", true);
+    }
+
+    private String readLogHeader() throws IOException {
+        LineIterator lines = FileUtils.lineIterator(logFile);
+        try {
+            return lines.hasNext() ? lines.nextLine() : null;
+        } finally {
+            LineIterator.closeQuietly(lines);
+        }
+    }
+
     public void saveQuietly(StageDiagnostic diagnostic) {
         try {
             save(diagnostic);
@@ -75,6 +114,133 @@ public class DiagnosticDao {
         }
     }
 
+    /**
+     * Saves the resource profile of a stage in the directory of a run.
+     */
+    public void saveProfile(long runId, LanguageSet langs, ResourceProfile profile) throws IOException {
+        File dir = new File(profileDir, "" + runId);
+        dir.mkdirs();
+        FileUtils.write(new File(dir, "langs.txt"), getLangsKey(langs));
+        profile.write(new File(dir, profile.getStage() + ".tsv"));
+    }
+
+    public void saveProfileQuietly(long runId, LanguageSet langs, ResourceProfile profile) {
+        try {
+            saveProfile(runId, langs, profile);
+        } catch (Exception e) {
+            LOG.warn("Save of resource profile failed: ", e);
+        }
+    }
+
+    /**
+     * @return The resource profiles of a run, by stage name.
+     */
+    public Map<String, ResourceProfile> getProfiles(long runId) throws IOException {
+        Map<String, ResourceProfile> profiles = new TreeMap<String, ResourceProfile>();
+        File dir = new File(profileDir, "" + runId);
+        File files[] = dir.listFiles();
+        if (files == null) {
+            return profiles;
+        }
+        for (File file : files) {
+            if (file.getName().endsWith(".tsv")) {
+                ResourceProfile profile = ResourceProfile.read(file);
+                profiles.put(profile.getStage(), profile);
+            }
+        }
+        return profiles;
+    }
+
+    /**
+     * @return The id of the most recently profiled run of the language set, or null if there is none.
+     */
+    public Long getLatestProfiledRun(LanguageSet langs) throws IOException {
+        String key = getLangsKey(langs);
+        Long latest = null;
+        long latestModified = Long.MIN_VALUE;
+        File dirs[] = profileDir.listFiles();
+        if (dirs == null) {
+            return null;
+        }
+        for (File dir : dirs) {
+            File langsFile = new File(dir, "langs.txt");
+            if (dir.isDirectory() && dir.getName().matches("\\d+") && dir.lastModified() > latestModified
+                    && langsFile.isFile() && FileUtils.readFileToString(langsFile).trim().equals(key)) {
+                latest = Long.valueOf(dir.getName());
+                latestModified = dir.lastModified();
+            }
+        }
+        return latest;
+    }
+
+    /**
+     * @return The id of the run that later runs of the stage with the language set are
+     * compared against, or null if there is none.
+     */
+    public Long getBaselineRun(LanguageSet langs, String stage) throws IOException {
+        return readBaselines().get(getBaselineKey(langs, stage));
+    }
+
+    public synchronized void setBaselineRun(LanguageSet langs, String stage, long runId) throws IOException {
+        Map<String, Long> baselines = readBaselines();
+        baselines.put(getBaselineKey(langs, stage), runId);
+        StringBuilder contents = new StringBuilder();
+        for (Map.Entry<String, Long> entry : baselines.entrySet()) {
+            contents.append(entry.getKey()).append("\t").append(entry.getValue()).append("\n");
+        }
+        FileUtils.write(new File(profileDir, "baselines.tsv"), contents.toString());
+    }
+
+    /**
+     * @return The baseline profile of each stage that has one for the language set, by stage name.
+     */
+    public Map<String, ResourceProfile> getBaselineProfiles(LanguageSet langs) throws IOException {
+        Map<String, ResourceProfile> profiles = new TreeMap<String, ResourceProfile>();
+        String prefix = getLangsKey(langs) + "\t";
+        for (Map.Entry<String, Long> entry : readBaselines().entrySet()) {
+            if (!entry.getKey().startsWith(prefix)) {
+                continue;
+            }
+            String stage = entry.getKey().substring(prefix.length());
+            File file = new File(new File(profileDir, "" + entry.getValue()), stage + ".tsv");
+            if (file.isFile()) {
+                profiles.put(stage, ResourceProfile.read(file));
+            }
+        }
+        return profiles;
+    }
+
+    /**
+     * @return Baseline run ids by language set and stage, separated by a tab.
+     */
+    private Map<String, Long> readBaselines() throws IOException {
+        Map<String, Long> baselines = new TreeMap<String, Long>();
+        File file = new File(profileDir, "baselines.tsv");
+        if (!file.isFile()) {
+            return baselines;
+        }
+        for (String line : FileUtils.readLines(file)) {
+            int i = line.lastIndexOf('\t');
+            if (i > 0) {
+                baselines.put(line.substring(0, i), Long.valueOf(line.substring(i + 1).trim()));
+            }
+        }
+        return baselines;
+    }
+
+    private static String getBaselineKey(LanguageSet langs, String stage) {
+        return getLangsKey(langs) + "\t" + stage;
+    }
+
+    /**
+     * @return The sorted language codes, which identify a language set regardless of its default language.
+     */
+    private static String getLangsKey(LanguageSet langs) {
+        List<String> codes = new ArrayList<String>(langs.getLangCodes());
+        Collections.sort(codes);
+        return StringUtils.join(codes, ",");
+    }
+
     public List<StageDiagnostic> getAll() throws ParseException {
         List<StageDiagnostic> result = new ArrayList<StageDiagnostic>();
         ParseQuery<ParseObject> query = ParseQuery.getQuery("StageDiagnostic");
@@ -119,7 +285,8 @@ public class DiagnosticDao {
                 String appId = config.getString("appId");
                 String restApiId = config.getString("restApiId");
                 File logFile = new File(config.getString("log"));
-                return new DiagnosticDao(appId, restApiId, token, logFile);
+                File profileDir = new File(config.getString("profileDir"));
+                return new DiagnosticDao(appId, restApiId, token, logFile, profileDir);
             } catch (IOException e) {
                 throw new ConfigurationException(e);
             }
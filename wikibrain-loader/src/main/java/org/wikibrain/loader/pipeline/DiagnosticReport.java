@@ -15,6 +15,7 @@ import org.wikibrain.spatial.loader.SpatialDataLoader;
 import java.io.IOException;
 import java.io.PrintWriter;
 import java.io.StringWriter;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.LinkedHashMap;
 import java.util.List;
@@ -57,7 +58,8 @@ public class DiagnosticReport {
                 new DiskSpaceDiagnostic(),
                 new MemoryDiagnostic(),
                 new DatabaseDiagnostic(),
-                new SpatialDatabaseDiagnostic()
+                new SpatialDatabaseDiagnostic(),
+                new ResourceDiagnostic()
         );
     }
 
@@ -274,6 +276,84 @@ public class DiagnosticReport {
         }
     }
 
+    /**
+     * Reports the resources used by each stage in the most recent profiled run with the
+     * current languages and flags metrics that regressed compared to the stage's baseline
+     * for the same languages. Regressions are warnings; they do not fail the diagnostics.
+     */
+    class ResourceDiagnostic implements Diagnostic {
+        @Override
+        public boolean runDiagnostic(PrintWriter writer) {
+            try {
+                DiagnosticDao dao = env.getConfigurator().get(DiagnosticDao.class);
+                Long latest = dao.getLatestProfiledRun(langs);
+                if (latest == null) {
+                    return true;
+                }
+                // A stage's baseline may be the latest run itself
+                Map<String, ResourceProfile> baselineProfiles = dao.getBaselineProfiles(langs);
+                for (String stage : new ArrayList<String>(baselineProfiles.keySet())) {
+                    if (latest.equals(dao.getBaselineRun(langs, stage))) {
+                        baselineProfiles.remove(stage);
+                    }
+                }
+                double threshold = env.getConfiguration().get().getDouble("loader.profiler.regressionThreshold");
+                writer.write("Resource usage of the most recent profiled load of " + langs + " (run " + latest + ")");
+                writer.write(baselineProfiles.isEmpty() ? ":\n" : " compared to the baselines for the same languages:\n");
+                writeComparison(writer, dao.getProfiles(latest), baselineProfiles, threshold);
+            } catch (Exception e) {
+                LOG.warn("failed to read resource profiles:", e);
+            }
+            return true;
+        }
+    }
+
+    /**
+     * Writes the metrics of each profiled stage, along with the change relative to the
+     * baseline. A metric is marked as a regression if it grew by more than the threshold
+     * (e.g. 0.25 for 25%) and by at least one unit (second or MB).
+     *
+     * @return The number of regressions.
+     */
+    static int writeComparison(PrintWriter writer, Map<String, ResourceProfile> profiles, Map<String, ResourceProfile> baselines, double threshold) {
+        int regressions = 0;
+        for (ResourceProfile profile : profiles.values()) {
+            ResourceProfile baseline = baselines.get(profile.getStage());
+            Map<String, Double> baseMetrics = (baseline == null) ? null : baseline.getMetrics();
+            writer.write("\tstage " + profile.getStage() + ":\n");
+            for (Map.Entry<String, Double> entry : profile.getMetrics().entrySet()) {
+                double value = entry.getValue();
+                writer.write(String.format("\t\t%s: %.1f", entry.getKey(), value));
+                Double base = (baseMetrics == null) ? null : baseMetrics.get(entry.getKey());
+                if (base != null) {
+                    writer.write(String.format(" (baseline %.1f", base));
+                    if (base > 0) {
+                        writer.write(String.format(", %+.0f%%", 100.0 * (value - base) / base));
+                    }
+                    writer.write(")");
+                    if (value > base * (1.0 + threshold) && value - base >= 1.0) {
+                        writer.write(" REGRESSION");
+                        regressions++;
+                    }
+                }
+                writer.write("\n");
+            }
+            if (!profile.getThreadCpuNanos().isEmpty()) {
+                writer.write("\t\tbusiest threads (cpu seconds, peak cores):");
+                int i = 0;
+                for (Map.Entry<String, Long> entry : profile.getThreadCpuNanos().entrySet()) {
+                    if (i++ == 5) {
+                        break;
+                    }
+                    writer.write(String.format(" %s %.1f %.1f", entry.getKey(), entry.getValue() / 1E9,
+                            profile.getPeakThreadCores(entry.getKey())));
+                }
+                writer.write("\n");
+            }
+        }
+        return regressions;
+    }
+
     private double getAvailableDiskInMBs() {
         try {
             return FileSystemUtils.freeSpaceKb(10000) / 1024;
@@ -0,0 +1,200 @@
+package org.wikibrain.loader.pipeline;
+
+import com.typesafe.config.Config;
+import com.typesafe.config.ConfigFactory;
+import com.typesafe.config.ConfigUtil;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.wikibrain.conf.Configuration;
+import org.wikibrain.conf.ConfigurationException;
+import org.wikibrain.core.cmd.Env;
+import org.wikibrain.core.lang.LanguageSet;
+
+import java.io.IOException;
+import java.lang.reflect.Modifier;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * Runs stages in the current JVM through the {@link Stage} interface.
+ *
+ * Every run gets its own scope of a shared environment, so the classpath scan, the
+ * configuration and the shared components (e.g. the connection pool) are only created
+ * once for the whole pipeline.
+ *
+ * Before a stage runs, the configuration its main method would build from its arguments
+ * (see {@link Stage#getEnvBuilder(String[])}) is compared to the shared one. If only the
+ * languages differ (e.g. the dump loader uses the downloaded languages), the stage's scope
+ * gets its own language set. Other differences cannot be applied to a shared environment.
+ *
+ * Stages whose main class does not implement Stage, stages whose environment options
+ * differ from the shared environment in more than their languages, and stages marked with
+ * "inProcess : false" (e.g. because they need a full heap) fall back to a child JVM.
+ * If the database can only be opened by one process (embedded H2), a fallback stage
+ * waits for all in-process stages to finish and the shared components are closed
+ * before it is launched.
+ *
+ * If profiling is enabled, each in-process run is sampled by a {@link StageProfiler}.
+ * The profile covers the whole JVM, so it includes stages that run concurrently.
+ *
+ * @author Shilad Sen
+ */
+public class InProcessStageExecutor implements StageExecutor {
+    private static final Logger LOG = LoggerFactory.getLogger(InProcessStageExecutor.class);
+
+    private final Env env;
+    private final List<Class> sharedTypes;
+    private final boolean exclusiveFallback;
+    private final StageExecutor fallback;
+    private final long profileIntervalMillis;
+    private final ReadWriteLock lock = new ReentrantReadWriteLock();
+
+    /**
+     * @param env The shared environment.
+     * @param sharedTypes Component types shared by all stages.
+     * @param exclusiveFallback If true, child JVM stages run alone with the shared components closed.
+     * @param fallback Executor for stages that cannot run in process.
+     * @param profileIntervalMillis Milliseconds between resource samples, or 0 to disable profiling.
+     */
+    public InProcessStageExecutor(Env env, Collection<Class> sharedTypes, boolean exclusiveFallback, StageExecutor fallback, long profileIntervalMillis) {
+        this.env = env;
+        this.sharedTypes = new ArrayList<Class>(sharedTypes);
+        this.exclusiveFallback = exclusiveFallback;
+        this.fallback = fallback;
+        this.profileIntervalMillis = profileIntervalMillis;
+    }
+
+    @Override
+    public int execute(PipelineStage stage, String[] args) throws IOException, InterruptedException {
+        Class<? extends Stage> stageClass = getStageClass(stage.getKlass());
+        if (stageClass == null || !stage.isInProcess()) {
+            LOG.info("running stage " + stage.getName() + " in a child JVM");
+            return executeInJvm(stage, args);
+        }
+
+        Stage instance;
+        Configuration stageConf;
+        try {
+            instance = stageClass.newInstance();
+            stageConf = instance.getEnvBuilder(args).buildConfiguration();
+        } catch (Exception e) {
+            LOG.error("stage " + stage.getName() + " failed:", e);
+            return 1;
+        }
+        if (!withoutLocalKeys(stageConf.get()).equals(withoutLocalKeys(env.getConfiguration().get()))) {
+            LOG.info("running stage " + stage.getName() + " in a child JVM because its environment options differ from the pipeline's");
+            return executeInJvm(stage, args);
+        }
+
+        Lock l = lock.readLock();
+        l.lockInterruptibly();
+        try {
+            Env scope = createScope(stage, stageConf.get());
+            StageProfiler profiler = null;
+            if (profileIntervalMillis > 0) {
+                profiler = new StageProfiler(stage.getName(), profileIntervalMillis);
+                profiler.start();
+            }
+            try {
+                return instance.run(scope, args);
+            } finally {
+                try {
+                    instance.teardown();
+                } catch (Exception e) {
+                    LOG.warn("teardown of stage " + stage.getName() + " failed:", e);
+                }
+                scope.close();
+                if (profiler != null) {
+                    stage.setProfile(profiler.stop());
+                }
+            }
+        } catch (InterruptedException e) {
+            throw e;
+        } catch (Exception e) {
+            // Treated like a child JVM that died with an exception
+            LOG.error("stage " + stage.getName() + " failed:", e);
+            return 1;
+        } finally {
+            l.unlock();
+        }
+    }
+
+    /**
+     * Creates the scope for a stage. If the stage selects other languages than the
+     * pipeline, the scope gets its own language set instead of the shared one.
+     */
+    private Env createScope(PipelineStage stage, Config stageConf) throws ConfigurationException {
+        if (stageConf.getConfig("languages").equals(env.getConfiguration().get().getConfig("languages"))) {
+            return env.createScope(sharedTypes);
+        }
+        String name = stageConf.getString("languages.default");
+        LanguageSet langs = env.getConfigurator().construct(
+                LanguageSet.class, name, stageConf.getConfig("languages." + name), null);
+        LOG.info("stage " + stage.getName() + " uses languages " + langs);
+
+        List<Class> types = new ArrayList<Class>(sharedTypes);
+        types.remove(LanguageSet.class);
+        Env scope = env.createScope(types);
+        scope.getConfigurator().set(LanguageSet.class, null, langs);
+        return scope;
+    }
+
+    /**
+     * Removes the languages, which can be applied to a scope, and the system properties,
+     * which may change while the pipeline runs (e.g. java.io.tmpdir).
+     */
+    private static Config withoutLocalKeys(Config config) {
+        config = config.withoutPath("languages");
+        for (String key : ConfigFactory.systemProperties().root().keySet()) {
+            config = config.withoutPath(ConfigUtil.joinPath(key));
+        }
+        return config;
+    }
+
+    private int executeInJvm(PipelineStage stage, String[] args) throws IOException, InterruptedException {
+        if (!exclusiveFallback) {
+            return fallback.execute(stage, args);
+        }
+        Lock l = lock.writeLock();
+        l.lockInterruptibly();
+        try {
+            // Release the database so the child JVM can open it. Shared components are reopened on demand.
+            env.getConfigurator().close();
+            return fallback.execute(stage, args);
+        } finally {
+            l.unlock();
+        }
+    }
+
+    /**
+     * @return The class itself or its first public static nested class that implements Stage,
+     * or null if there is none.
+     */
+    static Class<? extends Stage> getStageClass(Class klass) {
+        if (isStage(klass)) {
+            return klass;
+        }
+        for (Class nested : klass.getClasses()) {
+            if (Modifier.isStatic(nested.getModifiers()) && isStage(nested)) {
+                return nested;
+            }
+        }
+        return null;
+    }
+
+    private static boolean isStage(Class klass) {
+        if (!Stage.class.isAssignableFrom(klass) || Modifier.isAbstract(klass.getModifiers())) {
+            return false;
+        }
+        try {
+            klass.getConstructor();
+            return true;
+        } catch (NoSuchMethodException e) {
+            return false;
+        }
+    }
+}
@@ -0,0 +1,71 @@
+package org.wikibrain.loader.pipeline;
+
+import org.apache.commons.lang3.ArrayUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.wikibrain.utils.JvmUtils;
+
+import java.io.File;
+import java.io.IOException;
+
+/**
+ * Runs each stage in a fresh JVM that uses the running configuration settings.
+ *
+ * If profiling is enabled, the stage is launched through {@link ProfiledMain} and the
+ * resulting profile is attached to the stage.
+ *
+ * @author Shilad Sen
+ */
+public class JvmStageExecutor implements StageExecutor {
+    private static final Logger LOG = LoggerFactory.getLogger(JvmStageExecutor.class);
+
+    private final long profileIntervalMillis;
+
+    public JvmStageExecutor() {
+        this(0);
+    }
+
+    /**
+     * @param profileIntervalMillis Milliseconds between resource samples, or 0 to disable profiling.
+     */
+    public JvmStageExecutor(long profileIntervalMillis) {
+        this.profileIntervalMillis = profileIntervalMillis;
+    }
+
+    @Override
+    public int execute(PipelineStage stage, String[] args) throws IOException, InterruptedException {
+        if (profileIntervalMillis <= 0) {
+            return waitFor(JvmUtils.launch(stage.getKlass(), args));
+        }
+        File profileFile = File.createTempFile("wikibrain-profile-", ".tsv");
+        profileFile.delete();
+        try {
+            String profiledArgs[] = ArrayUtils.addAll(new String[] {
+                    profileFile.getAbsolutePath(),
+                    "" + profileIntervalMillis,
+                    stage.getName(),
+                    stage.getKlass().getName()
+            }, args);
+            int retVal = waitFor(JvmUtils.launch(ProfiledMain.class, profiledArgs));
+            if (profileFile.isFile()) {
+                try {
+                    stage.setProfile(ResourceProfile.read(profileFile));
+                } catch (IOException e) {
+                    LOG.warn("reading resource profile of stage " + stage.getName() + " failed:", e);
+                }
+            }
+            return retVal;
+        } finally {
+            profileFile.delete();
+        }
+    }
+
+    private static int waitFor(Process p) throws InterruptedException {
+        try {
+            return p.waitFor();
+        } catch (InterruptedException e) {
+            p.destroy();
+            throw e;
+        }
+    }
+}
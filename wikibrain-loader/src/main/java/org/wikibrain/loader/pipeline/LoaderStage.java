@@ -0,0 +1,65 @@
+package org.wikibrain.loader.pipeline;
+
+import org.apache.commons.cli.CommandLine;
+import org.apache.commons.cli.Options;
+import org.apache.commons.cli.ParseException;
+import org.apache.commons.cli.PosixParser;
+import org.wikibrain.core.cmd.Env;
+import org.wikibrain.core.cmd.EnvBuilder;
+
+/**
+ * Adapts a loader whose main method parses its options and then calls a static
+ * load(env, cmd) method to a {@link Stage}.
+ *
+ * A loader supports in-process execution by declaring a public static nested subclass
+ * that delegates to its makeOptions() and load(env, cmd) methods.
+ *
+ * @author Shilad Sen
+ */
+public abstract class LoaderStage implements Stage {
+
+    /**
+     * @return The command line options of the loader's main method.
+     */
+    protected abstract Options makeOptions();
+
+    /**
+     * Runs the loader in the environment with the parsed command line.
+     *
+     * @param env
+     * @param cmd
+     * @throws Exception
+     */
+    protected abstract void load(Env env, CommandLine cmd) throws Exception;
+
+    /**
+     * Returns the builder the loader's main method creates its environment with.
+     * Loaders that apply options of their own to the builder override this.
+     *
+     * @param cmd
+     * @return
+     * @throws Exception
+     */
+    protected EnvBuilder makeEnvBuilder(CommandLine cmd) throws Exception {
+        return new EnvBuilder(cmd);
+    }
+
+    @Override
+    public int run(Env env, String[] args) throws Exception {
+        load(env, parse(args));
+        return 0;
+    }
+
+    @Override
+    public EnvBuilder getEnvBuilder(String[] args) throws Exception {
+        return makeEnvBuilder(parse(args));
+    }
+
+    @Override
+    public void teardown() throws Exception {
+    }
+
+    private CommandLine parse(String args[]) throws ParseException {
+        return new PosixParser().parse(makeOptions(), args);
+    }
+}
@@ -1,15 +1,20 @@
 package org.wikibrain.loader.pipeline;
 
 import com.typesafe.config.Config;
+import org.jooq.SQLDialect;
 import org.wikibrain.conf.Configuration;
 import org.wikibrain.conf.ConfigurationException;
 import org.wikibrain.core.cmd.Env;
 import org.wikibrain.core.dao.DaoException;
 import org.wikibrain.core.dao.MetaInfoDao;
+import org.wikibrain.core.dao.sql.WpDataSource;
 import org.wikibrain.core.lang.LanguageSet;
 import org.wikibrain.core.model.MetaInfo;
+import org.wikibrain.utils.WpThreadUtils;
 
 import java.io.*;
+import java.lang.management.ManagementFactory;
+import java.lang.management.OperatingSystemMXBean;
 import java.util.*;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -34,8 +39,23 @@ public class PipelineLoader {
     private final LinkedHashMap<String, PipelineStage> stages = new LinkedHashMap<String, PipelineStage>();
     private final Map<String, List<String>> groups = new HashMap<String, List<String>>();
     private final DiagnosticDao diagnosticDao;
+    private final Env env;
     private boolean forceRerun = false;
 
+    // How stages are executed
+    private boolean inProcess;
+    private boolean embeddedDatabase;
+    private List<Class> sharedComponents = new ArrayList<Class>();
+
+    // Resource profiling of stages
+    private long profileIntervalMillis;
+    private boolean updateBaseline;
+
+    // Budget for running stages concurrently
+    private int maxCpus;
+    private int maxMemoryMb;
+    private int maxParallel;
+
     public PipelineLoader(Env env) throws ConfigurationException, DaoException, ClassNotFoundException, InterruptedException {
         this(env, null);
     }
@@ -45,8 +65,14 @@ public class PipelineLoader {
         this.langs = env.getLanguages();
         this.state = metaDao.getAllCummulativeInfo();
         this.diagnosticDao = env.getConfigurator().get(DiagnosticDao.class);
+        this.env = env;
 
         initConfig(env.getConfiguration());
+        embeddedDatabase = env.getConfigurator().get(WpDataSource.class).getDialect() == SQLDialect.H2;
+        if (embeddedDatabase && !inProcess) {
+            LOG.info("running stages one at a time because an embedded H2 database can only be opened by one stage JVM");
+            maxParallel = 1;
+        }
         if (args == null) {
             if (langs.size() == 0) {
                 throw new IllegalArgumentException("No languages specified to pipeline loader");
@@ -100,14 +126,25 @@ public class PipelineLoader {
             stage.reset();
         }
         LOG.info("Beginning loading");
-        try {
-            for (PipelineStage stage : stages.values()) {
-                if (stage.getShouldRun() != null && stage.getShouldRun()) {
-                    LOG.info("Beginning stage " + stage.getName());
-                    stage.runWithDependenciesIfNeeded(args, forceRerun);
-                    LOG.info("Successfully completed stage " + stage.getName());
-                }
+        StageExecutor executor = new JvmStageExecutor(profileIntervalMillis);
+        if (inProcess) {
+            executor = new InProcessStageExecutor(env, sharedComponents, embeddedDatabase, executor, profileIntervalMillis);
+        }
+        for (PipelineStage stage : stages.values()) {
+            stage.setExecutor(executor);
+        }
+        StageScheduler scheduler = new StageScheduler(
+                stages.values(), maxCpus, maxMemoryMb, maxParallel,
+                (int) (Runtime.getRuntime().maxMemory() / (1024 * 1024)));
+        for (PipelineStage stage : stages.values()) {
+            try {
+                scheduler.setEstimate(stage, stage.estimateSeconds(langs));
+            } catch (RuntimeException e) {
+                LOG.warn("Could not estimate runtime of stage " + stage.getName() + ": " + e.getMessage());
             }
+        }
+        try {
+            scheduler.run(args, forceRerun);
             LOG.info("Loading successfully finished");
         } finally {
             quietlySaveDiagnostics();
@@ -129,7 +166,12 @@ public class PipelineLoader {
                             -1.0
                     );
                     sd.setSucceeded(stage.getSucceeded());
+                    sd.setTimes(stage.getStartTime(), stage.getEndTime());
                     diagnosticDao.saveQuietly(sd);
+                    if (stage.getProfile() != null) {
+                        diagnosticDao.saveProfileQuietly(runId, langs, stage.getProfile());
+                        updateBaseline(runId, stage);
+                    }
                 }
             }
         } catch (Exception e) {
@@ -137,6 +179,19 @@ public class PipelineLoader {
         }
     }
 
+    /**
+     * The first successful profiled run of a stage with the current languages becomes
+     * the baseline for later runs of that stage with the same languages.
+     */
+    private void updateBaseline(long runId, PipelineStage stage) throws IOException {
+        if (Boolean.TRUE.equals(stage.getSucceeded())
+                && (updateBaseline || diagnosticDao.getBaselineRun(langs, stage.getName()) == null)) {
+            LOG.info("Using the resource profile of stage " + stage.getName() + " in run " + runId +
+                    " as the baseline for languages " + langs);
+            diagnosticDao.setBaselineRun(langs, stage.getName(), runId);
+        }
+    }
+
     private void initConfig(Configuration config) throws ClassNotFoundException {
         for (Config stageConfig : config.get().getConfigList("loader.stages")) {
             PipelineStage stage = new PipelineStage(stageConfig, stages.values(), state);
@@ -152,6 +207,52 @@ public class PipelineLoader {
                 groups.get(g).add(s);
             }
         }
+
+        // Set up the concurrency budget
+        Config schedulerConfig = config.get().getConfig("loader.scheduler");
+        maxCpus = schedulerConfig.getInt("maxCpus");
+        if (maxCpus <= 0) {
+            maxCpus = WpThreadUtils.getMaxThreads();
+        }
+        maxMemoryMb = schedulerConfig.getInt("maxMemoryMb");
+        if (maxMemoryMb <= 0) {
+            maxMemoryMb = getPhysicalMemoryMb();
+        }
+        maxParallel = schedulerConfig.getInt("maxParallel");
+        if (maxParallel <= 0) {
+            maxParallel = Integer.MAX_VALUE;
+        }
+
+        // Set up the execution mode
+        Config executionConfig = config.get().getConfig("loader.execution");
+        String mode = executionConfig.getString("mode");
+        if (mode.equals("inProcess")) {
+            inProcess = true;
+        } else if (mode.equals("jvm")) {
+            inProcess = false;
+        } else {
+            throw new IllegalArgumentException("Unknown loader execution mode: " + mode);
+        }
+        for (String name : executionConfig.getStringList("sharedComponents")) {
+            sharedComponents.add(Class.forName(name));
+        }
+
+        // Set up the resource profiler
+        Config profilerConfig = config.get().getConfig("loader.profiler");
+        profileIntervalMillis = profilerConfig.getBoolean("enabled") ? profilerConfig.getLong("intervalMillis") : 0;
+        updateBaseline = profilerConfig.getBoolean("updateBaseline");
+    }
+
+    /**
+     * @return The physical memory of the machine, or Integer.MAX_VALUE if the JVM does not report it.
+     */
+    private static int getPhysicalMemoryMb() {
+        OperatingSystemMXBean os = ManagementFactory.getOperatingSystemMXBean();
+        if (os instanceof com.sun.management.OperatingSystemMXBean) {
+            long bytes = ((com.sun.management.OperatingSystemMXBean) os).getTotalPhysicalMemorySize();
+            return (int) Math.min(Integer.MAX_VALUE, bytes / (1024 * 1024));
+        }
+        return Integer.MAX_VALUE;
     }
 
     private void setStageArguments(List<StageArgs> stageArgs) {
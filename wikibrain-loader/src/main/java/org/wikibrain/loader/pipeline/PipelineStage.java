@@ -8,7 +8,6 @@ import org.wikibrain.core.lang.Language;
 import org.wikibrain.core.lang.LanguageInfo;
 import org.wikibrain.core.lang.LanguageSet;
 import org.wikibrain.core.model.MetaInfo;
-import org.wikibrain.utils.JvmUtils;
 
 import java.io.IOException;
 import java.util.*;
@@ -74,6 +73,11 @@ public class PipelineStage {
      */
     private Date startTime = null;
 
+    /**
+     * Time the stage finished (or failed).
+     */
+    private Date endTime = null;
+
     /**
      * Time the stage required.
      */
@@ -99,6 +103,31 @@ public class PipelineStage {
      */
     private final String downloadEstimateEquation;
 
+    /**
+     * Number of cores the stage keeps busy, or -1 if it uses all of them.
+     */
+    private final int cpus;
+
+    /**
+     * Megabytes of memory the stage needs, or -1 if it needs a full default heap.
+     */
+    private final int memoryMb;
+
+    /**
+     * False if the stage must always run in a child JVM (e.g. because it needs a full heap).
+     */
+    private final boolean inProcess;
+
+    /**
+     * Runs the stage's main class.
+     */
+    private StageExecutor executor = new JvmStageExecutor();
+
+    /**
+     * Resources used by the last run, if it was profiled.
+     */
+    private ResourceProfile profile = null;
+
     public PipelineStage(Config config, Collection<PipelineStage> previousStages, Map<String, MetaInfo> loadedInfo) throws ClassNotFoundException {
         this.name = config.getString("name");
         this.klass = Class.forName(config.getString("class"));
@@ -123,6 +152,9 @@ public class PipelineStage {
         } else {
             this.downloadEstimateEquation = "0.0";
         }
+        this.cpus = config.hasPath("cpus") ? config.getInt("cpus") : -1;
+        this.memoryMb = config.hasPath("memoryMb") ? config.getInt("memoryMb") : -1;
+        this.inProcess = !config.hasPath("inProcess") || config.getBoolean("inProcess");
         this.loadedInfo = loadsClass == null ? null : loadedInfo.get(loadsClass);
     }
 
@@ -162,16 +194,16 @@ public class PipelineStage {
         if (!dryRun) {
             startTime = new Date();
             long before = System.currentTimeMillis();
-            Process p = JvmUtils.launch(klass, actualArgs);
-            int retVal = p.waitFor();
+            int retVal = executor.execute(this, actualArgs);
+            endTime = new Date();
+            long after = System.currentTimeMillis();
+            elapsedSeconds = (after - before) / 1000.0;
             if (retVal != 0) {
                 hasBeenRun = true;
                 succeeded = false;
                 throw new StageFailedException(this, retVal);
             }
             succeeded = true;
-            long after = System.currentTimeMillis();
-            elapsedSeconds = (after - before) / 1000.0;
         }
         hasBeenRun = true;
     }
@@ -189,6 +221,41 @@ public class PipelineStage {
         return klass;
     }
 
+    /**
+     * @return The stages that must be run before this stage.
+     */
+    public List<PipelineStage> getDependsOn() {
+        return Collections.unmodifiableList(dependsOn);
+    }
+
+    public int getCpus() {
+        return cpus;
+    }
+
+    public int getMemoryMb() {
+        return memoryMb;
+    }
+
+    public boolean isInProcess() {
+        return inProcess;
+    }
+
+    public StageExecutor getExecutor() {
+        return executor;
+    }
+
+    public void setExecutor(StageExecutor executor) {
+        this.executor = executor;
+    }
+
+    public ResourceProfile getProfile() {
+        return profile;
+    }
+
+    public void setProfile(ResourceProfile profile) {
+        this.profile = profile;
+    }
+
     public boolean hasBeenRun() {
         return hasBeenRun;
     }
@@ -223,6 +290,7 @@ public class PipelineStage {
         dryRun = false;
         hasBeenRun = false;
         argsOverride = null;
+        profile = null;
     }
 
     public String[] getActualArgs() {
@@ -233,6 +301,10 @@ public class PipelineStage {
         return startTime;
     }
 
+    public Date getEndTime() {
+        return endTime;
+    }
+
     public double getElapsedSeconds() {
         return elapsedSeconds;
     }
@@ -0,0 +1,47 @@
+package org.wikibrain.loader.pipeline;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.util.Arrays;
+
+/**
+ * Runs the main class of a stage in a child JVM with a {@link StageProfiler}.
+ *
+ * Usage: ProfiledMain profile-file interval-millis stage-name main-class [args...]
+ *
+ * The profile is written by a shutdown hook because some stages call System.exit.
+ *
+ * @author Shilad Sen
+ */
+public class ProfiledMain {
+    public static void main(String args[]) throws Throwable {
+        if (args.length < 4) {
+            System.err.println("usage: java " + ProfiledMain.class.getName() +
+                    " profile-file interval-millis stage-name main-class [args...]");
+            System.exit(1);
+        }
+        final File output = new File(args[0]);
+        final StageProfiler profiler = new StageProfiler(args[2], Long.valueOf(args[1]));
+        Method main = Class.forName(args[3]).getMethod("main", String[].class);
+        String mainArgs[] = Arrays.copyOfRange(args, 4, args.length);
+
+        Runtime.getRuntime().addShutdownHook(new Thread() {
+            @Override
+            public void run() {
+                try {
+                    profiler.stop().write(output);
+                } catch (IOException e) {
+                    System.err.println("writing resource profile to " + output + " failed: " + e);
+                }
+            }
+        });
+        profiler.start();
+        try {
+            main.invoke(null, (Object) mainArgs);
+        } catch (InvocationTargetException e) {
+            throw e.getCause();
+        }
+    }
+}
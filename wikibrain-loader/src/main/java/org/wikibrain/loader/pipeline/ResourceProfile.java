@@ -0,0 +1,209 @@
+package org.wikibrain.loader.pipeline;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.lang3.StringUtils;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.*;
+
+/**
+ * The resources used by one run of a stage, as recorded by a {@link StageProfiler}.
+ *
+ * @author Shilad Sen
+ */
+public class ResourceProfile {
+    private static final double MB = 1024.0 * 1024.0;
+
+    private final String stage;
+    private final List<ResourceSample> samples;
+    private final LinkedHashMap<String, long[]> threadCpuNanos;
+
+    /**
+     * @param stage Name of the stage.
+     * @param samples Samples in time order. There must be at least one.
+     * @param threadCpuNanos Cumulative cpu time of the busiest threads at each sample, by thread name.
+     */
+    public ResourceProfile(String stage, List<ResourceSample> samples, Map<String, long[]> threadCpuNanos) {
+        if (samples.isEmpty()) {
+            throw new IllegalArgumentException("no samples for stage " + stage);
+        }
+        for (Map.Entry<String, long[]> entry : threadCpuNanos.entrySet()) {
+            if (entry.getValue().length != samples.size()) {
+                throw new IllegalArgumentException("thread " + entry.getKey() + " of stage " + stage +
+                        " has " + entry.getValue().length + " cpu samples, expected " + samples.size());
+            }
+        }
+        this.stage = stage;
+        this.samples = new ArrayList<ResourceSample>(samples);
+        this.threadCpuNanos = new LinkedHashMap<String, long[]>(threadCpuNanos);
+    }
+
+    public String getStage() {
+        return stage;
+    }
+
+    public List<ResourceSample> getSamples() {
+        return Collections.unmodifiableList(samples);
+    }
+
+    /**
+     * @return Total cpu time of the busiest threads, by thread name.
+     */
+    public Map<String, Long> getThreadCpuNanos() {
+        Map<String, Long> totals = new LinkedHashMap<String, Long>();
+        for (Map.Entry<String, long[]> entry : threadCpuNanos.entrySet()) {
+            totals.put(entry.getKey(), entry.getValue()[samples.size() - 1]);
+        }
+        return totals;
+    }
+
+    /**
+     * @return Cumulative cpu time of a thread at each sample, or null if it is not one of the busiest threads.
+     */
+    public long[] getThreadCpuSeries(String thread) {
+        long series[] = threadCpuNanos.get(thread);
+        return (series == null) ? null : series.clone();
+    }
+
+    /**
+     * @return The highest number of cores a thread used between two consecutive samples.
+     */
+    public double getPeakThreadCores(String thread) {
+        long series[] = threadCpuNanos.get(thread);
+        double peak = 0.0;
+        for (int i = 1; series != null && i < series.length; i++) {
+            long millis = samples.get(i).getMillis() - samples.get(i - 1).getMillis();
+            if (millis > 0) {
+                peak = Math.max(peak, (series[i] - series[i - 1]) / (millis * 1E6));
+            }
+        }
+        return peak;
+    }
+
+    public ResourceSample getLast() {
+        return samples.get(samples.size() - 1);
+    }
+
+    public double getElapsedSeconds() {
+        return getLast().getMillis() / 1000.0;
+    }
+
+    /**
+     * Summarizes the profile. Metrics the JVM or OS did not report are omitted.
+     *
+     * @return Metric name to value, in a fixed order.
+     */
+    public LinkedHashMap<String, Double> getMetrics() {
+        ResourceSample last = getLast();
+        long peakHeap = 0, peakDirect = 0, peakMapped = 0;
+        for (ResourceSample s : samples) {
+            peakHeap = Math.max(peakHeap, s.getHeapBytes());
+            peakDirect = Math.max(peakDirect, s.getDirectBytes());
+            peakMapped = Math.max(peakMapped, s.getMappedBytes());
+        }
+        double elapsed = Math.max(0.001, getElapsedSeconds());
+        LinkedHashMap<String, Double> metrics = new LinkedHashMap<String, Double>();
+        metrics.put("elapsed seconds", getElapsedSeconds());
+        if (last.getCpuNanos() >= 0) {
+            metrics.put("cpu seconds", last.getCpuNanos() / 1E9);
+        }
+        if (last.getAllocatedBytes() >= 0) {
+            metrics.put("allocated MB per second", last.getAllocatedBytes() / MB / elapsed);
+        }
+        if (last.getGcMillis() >= 0) {
+            metrics.put("gc seconds", last.getGcMillis() / 1000.0);
+        }
+        if (last.getHeapBytes() >= 0) {
+            metrics.put("peak heap MB", peakHeap / MB);
+        }
+        if (last.getDirectBytes() >= 0) {
+            metrics.put("peak direct MB", peakDirect / MB);
+        }
+        if (last.getMappedBytes() >= 0) {
+            metrics.put("peak mapped MB", peakMapped / MB);
+        }
+        if (last.getReadBytes() >= 0) {
+            metrics.put("read MB", last.getReadBytes() / MB);
+        }
+        if (last.getWrittenBytes() >= 0) {
+            metrics.put("written MB", last.getWrittenBytes() / MB);
+        }
+        return metrics;
+    }
+
+    /**
+     * Writes the profile as tab separated lines.
+     */
+    public void write(File file) throws IOException {
+        StringBuilder contents = new StringBuilder();
+        contents.append("stage\t").append(clean(stage)).append("\n");
+        contents.append("columns\t").append(StringUtils.join(ResourceSample.COLUMNS, "\t"));
+        for (String thread : threadCpuNanos.keySet()) {
+            contents.append("\tthread:").append(clean(thread));
+        }
+        contents.append("\n");
+        for (int i = 0; i < samples.size(); i++) {
+            contents.append("sample");
+            for (long value : samples.get(i).toArray()) {
+                contents.append("\t").append(value);
+            }
+            for (long series[] : threadCpuNanos.values()) {
+                contents.append("\t").append(series[i]);
+            }
+            contents.append("\n");
+        }
+        FileUtils.write(file, contents.toString(), "UTF-8");
+    }
+
+    /**
+     * Reads a profile written by {@link #write(java.io.File)}. Each sample line holds the
+     * resource columns followed by the cumulative cpu time of each thread in the columns line.
+     */
+    public static ResourceProfile read(File file) throws IOException {
+        String stage = null;
+        List<ResourceSample> samples = new ArrayList<ResourceSample>();
+        List<String> threads = new ArrayList<String>();
+        List<long[]> threadValues = new ArrayList<long[]>();
+        for (String line : FileUtils.readLines(file, "UTF-8")) {
+            String[] tokens = line.split("\t", -1);
+            if (tokens[0].equals("stage")) {
+                stage = tokens[1];
+            } else if (tokens[0].equals("columns")) {
+                for (int i = ResourceSample.COLUMNS.length + 1; i < tokens.length; i++) {
+                    threads.add(tokens[i].substring("thread:".length()));
+                }
+            } else if (tokens[0].equals("sample")) {
+                if (tokens.length != ResourceSample.COLUMNS.length + threads.size() + 1) {
+                    throw new IOException("invalid sample in " + file + ": " + line);
+                }
+                long[] values = new long[ResourceSample.COLUMNS.length];
+                for (int i = 0; i < values.length; i++) {
+                    values[i] = Long.valueOf(tokens[i + 1]);
+                }
+                samples.add(ResourceSample.fromArray(values));
+                long[] cpus = new long[threads.size()];
+                for (int i = 0; i < cpus.length; i++) {
+                    cpus[i] = Long.valueOf(tokens[values.length + i + 1]);
+                }
+                threadValues.add(cpus);
+            }
+        }
+        if (stage == null || samples.isEmpty()) {
+            throw new IOException("invalid resource profile: " + file);
+        }
+        Map<String, long[]> threadCpu = new LinkedHashMap<String, long[]>();
+        for (int t = 0; t < threads.size(); t++) {
+            long series[] = new long[samples.size()];
+            for (int i = 0; i < series.length; i++) {
+                series[i] = threadValues.get(i)[t];
+            }
+            threadCpu.put(threads.get(t), series);
+        }
+        return new ResourceProfile(stage, samples, threadCpu);
+    }
+
+    private static String clean(String s) {
+        return s.replaceAll("[\t\r\n]", " ");
+    }
+}
@@ -0,0 +1,116 @@
+package org.wikibrain.loader.pipeline;
+
+/**
+ * A single sample of the resources used by a stage.
+ *
+ * Counters (cpu, allocation, gc and io) are cumulative since the stage started.
+ * Memory values are the usage at the time of the sample.
+ * A value of -1 means the JVM or OS does not report it.
+ *
+ * @author Shilad Sen
+ */
+public class ResourceSample {
+    private final long millis;
+    private final long cpuNanos;
+    private final long allocatedBytes;
+    private final long gcCount;
+    private final long gcMillis;
+    private final long heapBytes;
+    private final long directBytes;
+    private final long mappedBytes;
+    private final long readBytes;
+    private final long writtenBytes;
+
+    public ResourceSample(long millis, long cpuNanos, long allocatedBytes, long gcCount, long gcMillis,
+                          long heapBytes, long directBytes, long mappedBytes, long readBytes, long writtenBytes) {
+        this.millis = millis;
+        this.cpuNanos = cpuNanos;
+        this.allocatedBytes = allocatedBytes;
+        this.gcCount = gcCount;
+        this.gcMillis = gcMillis;
+        this.heapBytes = heapBytes;
+        this.directBytes = directBytes;
+        this.mappedBytes = mappedBytes;
+        this.readBytes = readBytes;
+        this.writtenBytes = writtenBytes;
+    }
+
+    /**
+     * @return Milliseconds since the stage started.
+     */
+    public long getMillis() {
+        return millis;
+    }
+
+    /**
+     * @return Cpu time used by all threads of the process.
+     */
+    public long getCpuNanos() {
+        return cpuNanos;
+    }
+
+    public long getAllocatedBytes() {
+        return allocatedBytes;
+    }
+
+    public long getGcCount() {
+        return gcCount;
+    }
+
+    /**
+     * @return Total time of all collections. Concurrent collectors include time the application was not paused.
+     */
+    public long getGcMillis() {
+        return gcMillis;
+    }
+
+    public long getHeapBytes() {
+        return heapBytes;
+    }
+
+    /**
+     * @return Bytes in direct (off-heap) buffers.
+     */
+    public long getDirectBytes() {
+        return directBytes;
+    }
+
+    /**
+     * @return Bytes in memory mapped buffers.
+     */
+    public long getMappedBytes() {
+        return mappedBytes;
+    }
+
+    /**
+     * @return Bytes read from storage (not including the page cache).
+     */
+    public long getReadBytes() {
+        return readBytes;
+    }
+
+    /**
+     * @return Bytes written to storage.
+     */
+    public long getWrittenBytes() {
+        return writtenBytes;
+    }
+
+    long[] toArray() {
+        return new long[] {
+                millis, cpuNanos, allocatedBytes, gcCount, gcMillis,
+                heapBytes, directBytes, mappedBytes, readBytes, writtenBytes
+        };
+    }
+
+    static ResourceSample fromArray(long[] values) {
+        return new ResourceSample(
+                values[0], values[1], values[2], values[3], values[4],
+                values[5], values[6], values[7], values[8], values[9]);
+    }
+
+    static final String[] COLUMNS = {
+            "millis", "cpuNanos", "allocatedBytes", "gcCount", "gcMillis",
+            "heapBytes", "directBytes", "mappedBytes", "readBytes", "writtenBytes"
+    };
+}
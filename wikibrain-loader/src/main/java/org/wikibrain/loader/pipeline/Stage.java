@@ -0,0 +1,57 @@
+package org.wikibrain.loader.pipeline;
+
+import org.wikibrain.core.cmd.Env;
+import org.wikibrain.core.cmd.EnvBuilder;
+
+/**
+ * A pipeline stage that can run inside the pipeline loader's JVM.
+ *
+ * A stage's main class supports in-process execution if it, or one of its public static
+ * nested classes, implements this interface and has a public no-argument constructor.
+ * See {@link InProcessStageExecutor}.
+ *
+ * The contract for a stage run is:
+ * <ul>
+ *     <li>The stage gets all its components from the configurator of the environment it is
+ *     passed. The environment is a scope created for this run, and it is closed after the
+ *     run, which closes every component created in it.</li>
+ *     <li>The stage must not call System.exit() and must not close shared components
+ *     (such as the data source).</li>
+ *     <li>teardown() is called after the run, whether or not it succeeded. It should release
+ *     anything the scope does not own, such as threads or static caches, so that the JVM
+ *     is ready for the next stage.</li>
+ * </ul>
+ *
+ * @author Shilad Sen
+ */
+public interface Stage {
+
+    /**
+     * Runs the stage.
+     *
+     * @param env The environment for this run.
+     * @param args The same command line arguments the stage's main method would receive.
+     *             Environment options (e.g. languages) are already reflected in env.
+     * @return The exit code; 0 indicates success.
+     * @throws Exception
+     */
+    public int run(Env env, String args[]) throws Exception;
+
+    /**
+     * Returns the builder the stage's main method would create its environment with,
+     * including any options the stage applies itself (e.g. using the downloaded languages).
+     * The executor compares it to the shared environment before the stage runs.
+     *
+     * @param args The arguments that will be passed to run.
+     * @return
+     * @throws Exception
+     */
+    public EnvBuilder getEnvBuilder(String args[]) throws Exception;
+
+    /**
+     * Releases resources held by the stage that are not owned by its environment.
+     *
+     * @throws Exception
+     */
+    public void teardown() throws Exception;
+}
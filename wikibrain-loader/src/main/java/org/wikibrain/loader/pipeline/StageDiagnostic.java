@@ -30,6 +30,16 @@ public class StageDiagnostic {
      */
     private Date date;
 
+    /**
+     * Time the stage started, if it was run.
+     */
+    private Date startTime;
+
+    /**
+     * Time the stage finished or failed, if it was run.
+     */
+    private Date endTime;
+
     /**
      * Runtime, in seconds
      */
@@ -111,4 +121,20 @@ public class StageDiagnostic {
     public long getRunId() {
         return runId;
     }
+
+    public void setTimes(Date startTime, Date endTime) {
+        this.startTime = startTime;
+        this.endTime = endTime;
+        if (startTime != null) {
+            this.date = startTime;
+        }
+    }
+
+    public Date getStartTime() {
+        return startTime;
+    }
+
+    public Date getEndTime() {
+        return endTime;
+    }
 }
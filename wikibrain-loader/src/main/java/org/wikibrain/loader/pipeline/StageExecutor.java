@@ -0,0 +1,22 @@
+package org.wikibrain.loader.pipeline;
+
+import java.io.IOException;
+
+/**
+ * Executes the main class of a pipeline stage.
+ *
+ * @author Shilad Sen
+ */
+public interface StageExecutor {
+
+    /**
+     * Runs the stage's main class with the specified arguments and waits for it to finish.
+     *
+     * @param stage
+     * @param args
+     * @return The exit code of the stage; 0 indicates success.
+     * @throws IOException
+     * @throws InterruptedException
+     */
+    public int execute(PipelineStage stage, String args[]) throws IOException, InterruptedException;
+}
@@ -0,0 +1,344 @@
+package org.wikibrain.loader.pipeline;
+
+import org.apache.commons.io.FileUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import java.io.File;
+import java.io.IOException;
+import java.lang.management.*;
+import java.util.*;
+
+/**
+ * Samples the resources used by the current JVM while a stage runs.
+ *
+ * The profiler records the cpu time of the process and of each thread (grouped by thread
+ * name, because pooled threads often share a name), the bytes allocated
+ * by all threads, the count and total time of garbage collections, heap usage, the direct
+ * and memory mapped buffer pools, and the bytes read and written to storage according to
+ * /proc/self/io. Counters the JVM or OS does not support are recorded as -1.
+ *
+ * All measurements cover the whole JVM, so a profile of a stage that runs in the pipeline
+ * loader's JVM includes any stages that run concurrently with it.
+ *
+ * @author Shilad Sen
+ */
+public class StageProfiler {
+    private static final Logger LOG = LoggerFactory.getLogger(StageProfiler.class);
+
+    /**
+     * Number of thread names whose cpu time is kept in the profile.
+     */
+    public static final int MAX_THREADS = 20;
+
+    private static final File PROC_IO = new File("/proc/self/io");
+
+    private final String stage;
+    private final long intervalMillis;
+    private final List<ResourceSample> samples = new ArrayList<ResourceSample>();
+
+    private final ThreadMXBean threadBean = ManagementFactory.getThreadMXBean();
+    private final OperatingSystemMXBean osBean = ManagementFactory.getOperatingSystemMXBean();
+
+    /**
+     * Cpu and allocation counters of every thread seen so far, by thread id.
+     */
+    private final Map<Long, ThreadCounters> threads = new HashMap<Long, ThreadCounters>();
+
+    /**
+     * Cumulative cpu time of each thread name at every sample. Arrays grow with the samples,
+     * and names first seen after the first sample have zeros for the earlier samples.
+     */
+    private final Map<String, long[]> threadSeries = new HashMap<String, long[]>();
+
+    private long startMillis;
+    private long startProcessCpu;
+    private long startGcCount;
+    private long startGcMillis;
+    private long startRead;
+    private long startWritten;
+
+    private Thread sampler;
+    private ResourceProfile profile;
+
+    /**
+     * @param stage Name of the stage being profiled.
+     * @param intervalMillis Milliseconds between samples.
+     */
+    public StageProfiler(String stage, long intervalMillis) {
+        this.stage = stage;
+        this.intervalMillis = intervalMillis;
+    }
+
+    /**
+     * Starts sampling in a daemon thread.
+     */
+    public synchronized void start() {
+        if (sampler != null) {
+            throw new IllegalStateException("profiler for stage " + stage + " was already started");
+        }
+        startMillis = System.currentTimeMillis();
+        startProcessCpu = getProcessCpuNanos();
+        long gc[] = getGcCounters();
+        startGcCount = gc[0];
+        startGcMillis = gc[1];
+        long io[] = getIoCounters();
+        startRead = io[0];
+        startWritten = io[1];
+        updateThreads(true);
+        samples.add(sample());
+
+        sampler = new Thread("profiler-" + stage) {
+            @Override
+            public void run() {
+                while (true) {
+                    try {
+                        Thread.sleep(intervalMillis);
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                    synchronized (StageProfiler.this) {
+                        if (profile != null) {
+                            return;
+                        }
+                        samples.add(sample());
+                    }
+                }
+            }
+        };
+        sampler.setDaemon(true);
+        sampler.start();
+    }
+
+    /**
+     * Takes a final sample and stops sampling. Calling stop more than once returns the same profile.
+     */
+    public synchronized ResourceProfile stop() {
+        if (sampler == null) {
+            throw new IllegalStateException("profiler for stage " + stage + " was never started");
+        }
+        if (profile == null) {
+            sampler.interrupt();
+            samples.add(sample());
+            profile = new ResourceProfile(stage, samples, getBusiestThreads());
+            threadSeries.clear();
+        }
+        return profile;
+    }
+
+    private ResourceSample sample() {
+        // Read the clock before the counters, which can take a while to collect
+        long millis = System.currentTimeMillis() - startMillis;
+        long allocated = updateThreads(false);
+        long cpu = getProcessCpuNanos();
+        if (cpu >= 0) {
+            cpu -= startProcessCpu;
+        } else if (threadBean.isThreadCpuTimeSupported()) {
+            cpu = 0;
+            for (ThreadCounters tc : threads.values()) {
+                cpu += tc.lastCpu - tc.startCpu;
+            }
+        }
+        recordThreadCpu(samples.size());
+        long gc[] = getGcCounters();
+        long io[] = getIoCounters();
+        long pools[] = getBufferPoolBytes();
+        return new ResourceSample(
+                millis,
+                cpu,
+                allocated,
+                gc[0] - startGcCount,
+                gc[1] - startGcMillis,
+                ManagementFactory.getMemoryMXBean().getHeapMemoryUsage().getUsed(),
+                pools[0],
+                pools[1],
+                io[0] < 0 ? -1 : io[0] - startRead,
+                io[1] < 0 ? -1 : io[1] - startWritten
+        );
+    }
+
+    /**
+     * Updates the counters of all live threads. Counters of threads that have died are kept.
+     *
+     * @param atStart If true, the current values are the baseline of the profile.
+     * @return Bytes allocated by all threads since the profile started, or -1 if not supported.
+     */
+    private long updateThreads(boolean atStart) {
+        boolean cpuSupported = threadBean.isThreadCpuTimeSupported() && threadBean.isThreadCpuTimeEnabled();
+        com.sun.management.ThreadMXBean allocBean = null;
+        if (threadBean instanceof com.sun.management.ThreadMXBean) {
+            allocBean = (com.sun.management.ThreadMXBean) threadBean;
+            if (!allocBean.isThreadAllocatedMemorySupported() || !allocBean.isThreadAllocatedMemoryEnabled()) {
+                allocBean = null;
+            }
+        }
+        for (ThreadInfo info : threadBean.getThreadInfo(threadBean.getAllThreadIds())) {
+            if (info == null) {
+                continue;   // died since the ids were listed
+            }
+            long id = info.getThreadId();
+            long cpu = cpuSupported ? threadBean.getThreadCpuTime(id) : -1;
+            long allocated = (allocBean == null) ? -1 : allocBean.getThreadAllocatedBytes(id);
+            ThreadCounters tc = threads.get(id);
+            if (tc == null) {
+                tc = new ThreadCounters(info.getThreadName());
+                threads.put(id, tc);
+                if (atStart) {
+                    tc.startCpu = Math.max(0, cpu);
+                    tc.startAllocated = Math.max(0, allocated);
+                }
+            }
+            if (cpu >= 0) {
+                tc.lastCpu = cpu;
+            }
+            if (allocated >= 0) {
+                tc.lastAllocated = allocated;
+            }
+        }
+        if (allocBean == null) {
+            return -1;
+        }
+        long total = 0;
+        for (ThreadCounters tc : threads.values()) {
+            total += Math.max(0, tc.lastAllocated - tc.startAllocated);
+        }
+        return total;
+    }
+
+    /**
+     * Records the cpu time of each thread name as of the sample with the given index.
+     */
+    private void recordThreadCpu(int index) {
+        Map<String, Long> byName = new HashMap<String, Long>();
+        for (ThreadCounters tc : threads.values()) {
+            if (tc.getCpu() > 0) {
+                Long prev = byName.get(tc.name);
+                byName.put(tc.name, tc.getCpu() + (prev == null ? 0 : prev));
+            }
+        }
+        for (Map.Entry<String, Long> entry : byName.entrySet()) {
+            long series[] = threadSeries.get(entry.getKey());
+            if (series == null || series.length <= index) {
+                long grown[] = new long[Math.max(16, 2 * (index + 1))];
+                if (series != null) {
+                    System.arraycopy(series, 0, grown, 0, series.length);
+                }
+                series = grown;
+                threadSeries.put(entry.getKey(), series);
+            }
+            series[index] = entry.getValue();
+        }
+    }
+
+    /**
+     * @return The cpu series of the thread names that used the most cpu, busiest first.
+     */
+    private Map<String, long[]> getBusiestThreads() {
+        final int last = samples.size() - 1;
+        List<Map.Entry<String, long[]>> sorted = new ArrayList<Map.Entry<String, long[]>>(threadSeries.entrySet());
+        Collections.sort(sorted, new Comparator<Map.Entry<String, long[]>>() {
+            @Override
+            public int compare(Map.Entry<String, long[]> e1, Map.Entry<String, long[]> e2) {
+                return Long.valueOf(e2.getValue()[last]).compareTo(e1.getValue()[last]);
+            }
+        });
+        Map<String, long[]> busiest = new LinkedHashMap<String, long[]>();
+        for (Map.Entry<String, long[]> entry : sorted) {
+            if (busiest.size() >= MAX_THREADS) {
+                break;
+            }
+            busiest.put(entry.getKey(), Arrays.copyOf(entry.getValue(), samples.size()));
+        }
+        return busiest;
+    }
+
+    private long getProcessCpuNanos() {
+        if (osBean instanceof com.sun.management.OperatingSystemMXBean) {
+            return ((com.sun.management.OperatingSystemMXBean) osBean).getProcessCpuTime();
+        }
+        return -1;
+    }
+
+    /**
+     * @return The total number of collections and milliseconds spent collecting.
+     */
+    private static long[] getGcCounters() {
+        long count = 0;
+        long millis = 0;
+        for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans()) {
+            count += Math.max(0, gc.getCollectionCount());
+            millis += Math.max(0, gc.getCollectionTime());
+        }
+        return new long[] { count, millis };
+    }
+
+    /**
+     * Reads the direct and mapped buffer pools. The pools are read as MBean attributes
+     * because BufferPoolMXBean is not available before Java 7.
+     *
+     * @return The bytes used by the direct and mapped pools, or -1 if they are not reported.
+     */
+    private static long[] getBufferPoolBytes() {
+        long pools[] = { -1, -1 };
+        try {
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            for (ObjectName name : server.queryNames(new ObjectName("java.nio:type=BufferPool,*"), null)) {
+                Object used = server.getAttribute(name, "MemoryUsed");
+                if (!(used instanceof Number)) {
+                    continue;
+                }
+                if ("direct".equals(name.getKeyProperty("name"))) {
+                    pools[0] = ((Number) used).longValue();
+                } else if ("mapped".equals(name.getKeyProperty("name"))) {
+                    pools[1] = ((Number) used).longValue();
+                }
+            }
+        } catch (JMException e) {
+            LOG.debug("reading buffer pools failed:", e);
+        }
+        return pools;
+    }
+
+    /**
+     * @return The bytes read from and written to storage by this process, or -1 if unknown.
+     */
+    private static long[] getIoCounters() {
+        long io[] = { -1, -1 };
+        if (!PROC_IO.canRead()) {
+            return io;
+        }
+        try {
+            for (String line : FileUtils.readLines(PROC_IO)) {
+                if (line.startsWith("read_bytes:")) {
+                    io[0] = Long.valueOf(line.substring("read_bytes:".length()).trim());
+                } else if (line.startsWith("write_bytes:")) {
+                    io[1] = Long.valueOf(line.substring("write_bytes:".length()).trim());
+                }
+            }
+        } catch (IOException e) {
+            LOG.debug("reading " + PROC_IO + " failed:", e);
+        } catch (NumberFormatException e) {
+            LOG.debug("reading " + PROC_IO + " failed:", e);
+        }
+        return io;
+    }
+
+    private static class ThreadCounters {
+        final String name;
+        long startCpu = 0;
+        long lastCpu = 0;
+        long startAllocated = 0;
+        long lastAllocated = 0;
+
+        ThreadCounters(String name) {
+            this.name = name;
+        }
+
+        long getCpu() {
+            return lastCpu - startCpu;
+        }
+    }
+}
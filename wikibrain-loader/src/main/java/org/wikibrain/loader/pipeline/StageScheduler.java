@@ -0,0 +1,226 @@
+package org.wikibrain.loader.pipeline;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+ * Runs pipeline stages concurrently in dependency order.
+ *
+ * A stage becomes ready once all the stages it depends on have completed. Ready stages
+ * are started in decreasing order of their critical path (the estimated seconds of the
+ * stage plus the longest chain of stages that depend on it) as long as the sum of the
+ * cpus and memory of the running stages stays within the budget. A stage that exceeds
+ * the budget on its own runs by itself.
+ *
+ * If a stage fails, no new stages are started. Stages that are already running are
+ * allowed to finish, and then the first failure is rethrown.
+ *
+ * @author Shilad Sen
+ */
+public class StageScheduler {
+    private static final Logger LOG = LoggerFactory.getLogger(StageScheduler.class);
+
+    private final Collection<PipelineStage> stages;
+    private final int maxCpus;
+    private final int maxMemoryMb;
+    private final int maxParallel;
+    private final int defaultMemoryMb;
+    private final Map<PipelineStage, Double> estimates = new HashMap<PipelineStage, Double>();
+
+    private int maxObservedParallelism = 0;
+
+    /**
+     * @param stages All stages in the pipeline. Dependencies must be among them.
+     * @param maxCpus Budget for the sum of the cpus of running stages.
+     * @param maxMemoryMb Budget for the sum of the memory of running stages.
+     * @param maxParallel Maximum number of running stages.
+     * @param defaultMemoryMb Memory of stages that do not specify their memory.
+     */
+    public StageScheduler(Collection<PipelineStage> stages, int maxCpus, int maxMemoryMb, int maxParallel, int defaultMemoryMb) {
+        this.stages = stages;
+        this.maxCpus = Math.max(1, maxCpus);
+        this.maxMemoryMb = Math.max(1, maxMemoryMb);
+        this.maxParallel = Math.max(1, maxParallel);
+        this.defaultMemoryMb = defaultMemoryMb;
+    }
+
+    /**
+     * Sets the estimated runtime of a stage used to prioritize the critical path.
+     * Stages without an estimate are treated as taking no time.
+     */
+    public void setEstimate(PipelineStage stage, double seconds) {
+        estimates.put(stage, seconds);
+    }
+
+    /**
+     * Runs every stage whose shouldRun is true, along with the stages they depend on,
+     * if they are needed.
+     *
+     * @param args
+     * @param forceRerun
+     * @throws IOException
+     * @throws InterruptedException
+     * @throws StageFailedException
+     */
+    public void run(final String args[], boolean forceRerun) throws IOException, InterruptedException, StageFailedException {
+        Set<PipelineStage> pending = new LinkedHashSet<PipelineStage>();
+        for (PipelineStage stage : stages) {
+            if (stage.getShouldRun() != null && stage.getShouldRun()) {
+                addWithDependencies(stage, pending);
+            }
+        }
+        final Map<PipelineStage, Double> priorities = getCriticalPaths(pending);
+
+        Set<PipelineStage> completed = new HashSet<PipelineStage>();
+        Set<PipelineStage> running = new HashSet<PipelineStage>();
+        Throwable failure = null;
+        int usedCpus = 0;
+        int usedMemory = 0;
+        maxObservedParallelism = 0;
+
+        ExecutorService exec = Executors.newCachedThreadPool();
+        CompletionService<PipelineStage> completion = new ExecutorCompletionService<PipelineStage>(exec);
+        Map<Future<PipelineStage>, PipelineStage> futures = new HashMap<Future<PipelineStage>, PipelineStage>();
+        try {
+            while (true) {
+                // Start all ready stages that fit in the budget, longest critical path first
+                List<PipelineStage> ready = new ArrayList<PipelineStage>();
+                for (PipelineStage stage : pending) {
+                    if (completed.containsAll(stage.getDependsOn())) {
+                        ready.add(stage);
+                    }
+                }
+                Collections.sort(ready, new Comparator<PipelineStage>() {
+                    @Override
+                    public int compare(PipelineStage s1, PipelineStage s2) {
+                        return -1 * priorities.get(s1).compareTo(priorities.get(s2));
+                    }
+                });
+                for (final PipelineStage stage : ready) {
+                    if (!stage.isNeeded(forceRerun)) {
+                        pending.remove(stage);
+                        completed.add(stage);
+                        continue;
+                    }
+                    if (failure != null) {
+                        break;
+                    }
+                    int cpus = getCpus(stage);
+                    int memory = getMemoryMb(stage);
+                    if (!running.isEmpty() && (running.size() >= maxParallel
+                            || usedCpus + cpus > maxCpus
+                            || usedMemory + memory > maxMemoryMb)) {
+                        continue;
+                    }
+                    LOG.info("Beginning stage " + stage.getName() + " (" + (running.size() + 1) + " running)");
+                    Future<PipelineStage> future = completion.submit(new Callable<PipelineStage>() {
+                        @Override
+                        public PipelineStage call() throws Exception {
+                            stage.run(args);
+                            return stage;
+                        }
+                    });
+                    futures.put(future, stage);
+                    pending.remove(stage);
+                    running.add(stage);
+                    usedCpus += cpus;
+                    usedMemory += memory;
+                    maxObservedParallelism = Math.max(maxObservedParallelism, running.size());
+                }
+
+                // Skipping stages that are not needed may have made others ready
+                if (running.isEmpty()) {
+                    if (pending.isEmpty() || failure != null) {
+                        break;
+                    }
+                    continue;
+                }
+
+                Future<PipelineStage> future = completion.take();
+                PipelineStage stage = futures.remove(future);
+                running.remove(stage);
+                usedCpus -= getCpus(stage);
+                usedMemory -= getMemoryMb(stage);
+                try {
+                    future.get();
+                    completed.add(stage);
+                    LOG.info("Successfully completed stage " + stage.getName());
+                } catch (ExecutionException e) {
+                    LOG.error("Stage " + stage.getName() + " failed", e.getCause());
+                    if (failure == null) {
+                        failure = e.getCause();
+                    }
+                }
+            }
+        } finally {
+            // Only reached with running stages after an interruption
+            exec.shutdownNow();
+        }
+
+        if (failure instanceof StageFailedException) {
+            throw (StageFailedException) failure;
+        } else if (failure instanceof IOException) {
+            throw (IOException) failure;
+        } else if (failure instanceof InterruptedException) {
+            throw (InterruptedException) failure;
+        } else if (failure != null) {
+            throw new RuntimeException(failure);
+        }
+    }
+
+    private void addWithDependencies(PipelineStage stage, Set<PipelineStage> stages) {
+        if (stages.contains(stage)) {
+            return;
+        }
+        for (PipelineStage dep : stage.getDependsOn()) {
+            addWithDependencies(dep, stages);
+        }
+        stages.add(stage);
+    }
+
+    /**
+     * Stages are added after their dependencies, so walking them in reverse visits
+     * every stage after all the stages that depend on it.
+     */
+    private Map<PipelineStage, Double> getCriticalPaths(Set<PipelineStage> stages) {
+        List<PipelineStage> reversed = new ArrayList<PipelineStage>(stages);
+        Collections.reverse(reversed);
+        Map<PipelineStage, Double> paths = new HashMap<PipelineStage, Double>();
+        for (PipelineStage stage : reversed) {
+            paths.put(stage, 0.0);
+        }
+        for (PipelineStage stage : reversed) {
+            double path = paths.get(stage) + getEstimate(stage);
+            paths.put(stage, path);
+            for (PipelineStage dep : stage.getDependsOn()) {
+                paths.put(dep, Math.max(paths.get(dep), path));
+            }
+        }
+        return paths;
+    }
+
+    private double getEstimate(PipelineStage stage) {
+        Double estimate = estimates.get(stage);
+        return (estimate == null) ? 0.0 : estimate;
+    }
+
+    private int getCpus(PipelineStage stage) {
+        return (stage.getCpus() < 0) ? maxCpus : Math.min(maxCpus, stage.getCpus());
+    }
+
+    private int getMemoryMb(PipelineStage stage) {
+        int memory = (stage.getMemoryMb() < 0) ? defaultMemoryMb : stage.getMemoryMb();
+        return Math.min(maxMemoryMb, memory);
+    }
+
+    /**
+     * @return The largest number of stages that ran at the same time during the last run.
+     */
+    public int getMaxObservedParallelism() {
+        return maxObservedParallelism;
+    }
+}
@@ -0,0 +1,89 @@
+package org.wikibrain.loader;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+/**
+ * @author Shilad Sen
+ */
+public class TestLocalLinkSet {
+
+    @Test
+    public void testBuildLookupAndClose() throws InterruptedException {
+        final LocalLinkSet set = new LocalLinkSet(1000);
+        assertTrue(set.getDirectory().isDirectory());
+
+        // Each thread spills a run for every 1000 hashes it adds, and the threads overlap,
+        // so the merge has to remove duplicates across runs.
+        List<Thread> threads = new ArrayList<Thread>();
+        for (int t = 0; t < 3; t++) {
+            final int offset = t * 100000;
+            threads.add(new Thread() {
+                @Override
+                public void run() {
+                    for (long i = 0; i < 300000; i++) {
+                        set.add(hash(offset + i));
+                    }
+                }
+            });
+        }
+        for (Thread t : threads) t.start();
+        for (Thread t : threads) t.join();
+
+        set.finish();
+        assertEquals(900, set.getNumRuns());
+        assertEquals(500000, set.size());
+        for (long i = 0; i < 500000; i++) {
+            assertTrue(set.contains(hash(i)));
+        }
+        for (long i = 500000; i < 600000; i++) {
+            assertFalse(set.contains(hash(i)));
+        }
+        assertFalse(set.contains(Long.MIN_VALUE));
+        assertFalse(set.contains(Long.MAX_VALUE));
+
+        set.close();
+        assertFalse(set.getDirectory().exists());
+        try {
+            set.contains(hash(0));
+            fail();
+        } catch (IllegalStateException e) {
+            // expected
+        }
+    }
+
+    @Test
+    public void testEmpty() {
+        LocalLinkSet set = new LocalLinkSet();
+        set.finish();
+        assertEquals(0, set.size());
+        assertFalse(set.contains(0L));
+        set.close();
+        assertFalse(set.getDirectory().exists());
+    }
+
+    @Test
+    public void testCloseBeforeFinish() {
+        LocalLinkSet set = new LocalLinkSet();
+        set.add(42L);
+        set.close();
+        assertFalse(set.getDirectory().exists());
+        try {
+            set.add(43L);
+            fail();
+        } catch (IllegalStateException e) {
+            // expected
+        }
+    }
+
+    /**
+     * Spreads consecutive values over the whole range of longs, like link hashes.
+     */
+    private static long hash(long i) {
+        return i * 0x9E3779B97F4A7C15L;
+    }
+}
@@ -0,0 +1,48 @@
+package org.wikibrain.loader.pipeline;
+
+import org.wikibrain.core.cmd.Env;
+import org.wikibrain.core.cmd.EnvBuilder;
+
+/**
+ * Compares the wall clock time of the core pipeline when stages are launched in
+ * child JVMs and when they run in the pipeline loader's JVM.
+ *
+ * Expects a base directory with the downloaded simple english dumps
+ * (e.g. after running the loader once with "-l simple").
+ * Usage: BenchmarkInProcessPipeline base-dir
+ *
+ * @author Shilad Sen
+ */
+public class BenchmarkInProcessPipeline {
+    private static final String STAGE_ARGS[] = { "-l", "simple" };
+
+    public static void main(String args[]) throws Exception {
+        if (args.length != 1) {
+            System.err.println("usage: java " + BenchmarkInProcessPipeline.class.getName() + " base-dir");
+            System.exit(1);
+        }
+        String baseDir = args[0];
+        long jvm = time(baseDir, "jvm");
+        long inProcess = time(baseDir, "inProcess");
+        System.out.println("jvm mode: " + jvm + " millis");
+        System.out.println("in process mode: " + inProcess + " millis");
+        System.out.println("speedup: " + (1.0 * jvm / inProcess));
+    }
+
+    private static long time(String baseDir, String mode) throws Exception {
+        Env env = new EnvBuilder()
+                .setBaseDir(baseDir)
+                .setLanguages("simple")
+                .setProperty("loader.execution.mode", mode)
+                .build();
+        try {
+            PipelineLoader loader = new PipelineLoader(env);
+            loader.setForceRerun(true);
+            long start = System.currentTimeMillis();
+            loader.run(STAGE_ARGS);
+            return System.currentTimeMillis() - start;
+        } finally {
+            env.close();
+        }
+    }
+}
@@ -0,0 +1,226 @@
+package org.wikibrain.loader.pipeline;
+
+import com.typesafe.config.ConfigFactory;
+import org.apache.commons.io.FileUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.wikibrain.core.cmd.Env;
+import org.wikibrain.core.cmd.EnvBuilder;
+import org.wikibrain.core.dao.MetaInfoDao;
+import org.wikibrain.core.dao.sql.WpDataSource;
+import org.wikibrain.core.lang.LanguageSet;
+import org.wikibrain.core.model.MetaInfo;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.*;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+/**
+ * Runs stub stages through an InProcessStageExecutor.
+ *
+ * @author Shilad Sen
+ */
+public class TestInProcessStageExecutor {
+
+    /**
+     * Records the environment and components of each run.
+     */
+    public static class RecordingStage implements Stage {
+        static final List<Env> envs = Collections.synchronizedList(new ArrayList<Env>());
+        static final List<WpDataSource> dataSources = Collections.synchronizedList(new ArrayList<WpDataSource>());
+        static final List<MetaInfoDao> metaDaos = Collections.synchronizedList(new ArrayList<MetaInfoDao>());
+        static final List<LanguageSet> languages = Collections.synchronizedList(new ArrayList<LanguageSet>());
+        static final AtomicInteger running = new AtomicInteger();
+        static final AtomicInteger teardowns = new AtomicInteger();
+        static volatile CountDownLatch started = null;
+        static volatile CountDownLatch release = null;
+
+        static void reset() {
+            envs.clear();
+            dataSources.clear();
+            metaDaos.clear();
+            languages.clear();
+            running.set(0);
+            teardowns.set(0);
+            started = null;
+            release = null;
+        }
+
+        @Override
+        public int run(Env env, String[] args) throws Exception {
+            running.incrementAndGet();
+            try {
+                envs.add(env);
+                dataSources.add(env.getConfigurator().get(WpDataSource.class));
+                metaDaos.add(env.getConfigurator().get(MetaInfoDao.class));
+                languages.add(env.getLanguages());
+                if (started != null) {
+                    started.countDown();
+                }
+                if (release != null) {
+                    release.await();
+                }
+                return 0;
+            } finally {
+                running.decrementAndGet();
+            }
+        }
+
+        @Override
+        public EnvBuilder getEnvBuilder(String[] args) throws Exception {
+            return EnvBuilder.builderFromArgs(getClass().getName(), args);
+        }
+
+        @Override
+        public void teardown() {
+            teardowns.incrementAndGet();
+        }
+    }
+
+    /**
+     * Selects the downloaded languages like the dump loader.
+     */
+    public static class DownloadedLanguagesStage extends RecordingStage {
+        @Override
+        public EnvBuilder getEnvBuilder(String[] args) throws Exception {
+            return super.getEnvBuilder(args).setUseDownloadedLanguages();
+        }
+    }
+
+    /**
+     * Stands in for the child JVM executor.
+     */
+    static class FallbackExecutor implements StageExecutor {
+        final List<String> executed = Collections.synchronizedList(new ArrayList<String>());
+        final AtomicInteger overlaps = new AtomicInteger();
+
+        @Override
+        public int execute(PipelineStage stage, String[] args) throws IOException, InterruptedException {
+            if (RecordingStage.running.get() > 0) {
+                overlaps.incrementAndGet();
+            }
+            executed.add(stage.getName());
+            return 0;
+        }
+    }
+
+    private File baseDir;
+    private Env env;
+    private String args[];
+    private FallbackExecutor fallback;
+    private InProcessStageExecutor executor;
+
+    @Before
+    public void setUp() throws Exception {
+        RecordingStage.reset();
+        baseDir = File.createTempFile("wikibrain-stages", null);
+        FileUtils.deleteQuietly(baseDir);
+        baseDir.mkdirs();
+        args = new String[] { "--base-dir", baseDir.getAbsolutePath(), "-l", "simple" };
+        env = EnvBuilder.builderFromArgs(getClass().getName(), args).build();
+        fallback = new FallbackExecutor();
+        executor = new InProcessStageExecutor(env,
+                Arrays.<Class>asList(WpDataSource.class, LanguageSet.class),
+                true, fallback, 0);
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        env.close();
+        FileUtils.deleteQuietly(baseDir);
+    }
+
+    @Test
+    public void testSharedAndScopedComponents() throws Exception {
+        assertEquals(0, executor.execute(stage("a", RecordingStage.class), args));
+        assertEquals(0, executor.execute(stage("b", RecordingStage.class), args));
+        assertTrue(fallback.executed.isEmpty());
+        assertEquals(2, RecordingStage.teardowns.get());
+
+        // Shared components come from the pipeline's configurator and stay open
+        WpDataSource ds = env.getConfigurator().get(WpDataSource.class);
+        assertSame(ds, RecordingStage.dataSources.get(0));
+        assertSame(ds, RecordingStage.dataSources.get(1));
+        ds.getConnection().close();
+        assertEquals(new LanguageSet("simple"), RecordingStage.languages.get(0));
+
+        // Other components are private to each run and released when it ends
+        MetaInfoDao dao0 = RecordingStage.metaDaos.get(0);
+        MetaInfoDao dao1 = RecordingStage.metaDaos.get(1);
+        assertNotSame(dao0, dao1);
+        assertNotSame(dao0, env.getConfigurator().get(MetaInfoDao.class));
+        assertNotSame(dao0, RecordingStage.envs.get(0).getConfigurator().get(MetaInfoDao.class));
+    }
+
+    @Test
+    public void testEnvironmentOptions() throws Exception {
+        // The stage's own language set replaces the shared one in its scope
+        assertEquals(0, executor.execute(stage("downloaded", DownloadedLanguagesStage.class), args));
+        assertEquals(0, RecordingStage.languages.get(0).size());
+        assertEquals(new LanguageSet("simple"), env.getLanguages());
+        assertTrue(fallback.executed.isEmpty());
+
+        // Options that would change the shared environment send the stage to a child JVM
+        String threadArgs[] = Arrays.copyOf(args, args.length + 2);
+        threadArgs[args.length] = "-h";
+        threadArgs[args.length + 1] = "3";
+        assertEquals(0, executor.execute(stage("threads", RecordingStage.class), threadArgs));
+        assertEquals(Arrays.asList("threads"), fallback.executed);
+        assertEquals(1, RecordingStage.envs.size());
+    }
+
+    @Test
+    public void testExclusiveFallback() throws Exception {
+        WpDataSource before = env.getConfigurator().get(WpDataSource.class);
+        RecordingStage.started = new CountDownLatch(1);
+        RecordingStage.release = new CountDownLatch(1);
+
+        Thread inProcess = runInThread(stage("a", RecordingStage.class));
+        assertTrue(RecordingStage.started.await(60, TimeUnit.SECONDS));
+        Thread jvm = runInThread(stage("jvm", Object.class));
+
+        // The child JVM stage waits for the running in-process stage
+        Thread.sleep(500);
+        assertTrue(fallback.executed.isEmpty());
+        RecordingStage.release.countDown();
+        inProcess.join(60000);
+        jvm.join(60000);
+        assertEquals(Arrays.asList("jvm"), fallback.executed);
+        assertEquals(0, fallback.overlaps.get());
+
+        // The shared components were closed for the child JVM and are reopened on demand
+        assertNotSame(before, env.getConfigurator().get(WpDataSource.class));
+    }
+
+    private Thread runInThread(final PipelineStage stage) {
+        Thread t = new Thread() {
+            @Override
+            public void run() {
+                try {
+                    assertEquals(0, executor.execute(stage, args));
+                } catch (Exception e) {
+                    throw new RuntimeException(e);
+                }
+            }
+        };
+        t.start();
+        return t;
+    }
+
+    private static PipelineStage stage(String name, Class klass) throws ClassNotFoundException {
+        return new PipelineStage(ConfigFactory.parseString(
+                "name : " + name + "\n" +
+                "class : \"" + klass.getName() + "\"\n" +
+                "extraArgs : []\n" +
+                "runtime : \"0\"\n" +
+                "diskSpace : \"0\"\n"),
+                new ArrayList<PipelineStage>(),
+                new HashMap<String, MetaInfo>());
+    }
+}
@@ -0,0 +1,151 @@
+package org.wikibrain.loader.pipeline;
+
+import org.apache.commons.io.FileUtils;
+import org.junit.Test;
+import org.wikibrain.core.lang.LanguageSet;
+
+import java.io.File;
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.util.*;
+
+import static org.junit.Assert.*;
+
+/**
+ * @author Shilad Sen
+ */
+public class TestStageProfiler {
+
+    @Test
+    public void testProfile() throws Exception {
+        StageProfiler profiler = new StageProfiler("busy", 20);
+        profiler.start();
+        List<int[]> garbage = new ArrayList<int[]>();
+        long end = System.currentTimeMillis() + 300;
+        while (System.currentTimeMillis() < end) {
+            garbage.add(new int[1000]);
+            if (garbage.size() > 100) {
+                garbage.clear();
+            }
+        }
+        ResourceProfile profile = profiler.stop();
+        assertSame(profile, profiler.stop());
+
+        assertEquals("busy", profile.getStage());
+        assertTrue(profile.getSamples().size() >= 3);
+        assertTrue(profile.getElapsedSeconds() >= 0.3);
+        long prevMillis = -1;
+        for (ResourceSample sample : profile.getSamples()) {
+            assertTrue(sample.getMillis() >= prevMillis);
+            prevMillis = sample.getMillis();
+        }
+
+        Map<String, Double> metrics = profile.getMetrics();
+        assertTrue(metrics.get("elapsed seconds") >= 0.3);
+        if (metrics.containsKey("cpu seconds")) {
+            assertTrue(metrics.get("cpu seconds") > 0.1);
+        }
+        if (metrics.containsKey("allocated MB per second")) {
+            assertTrue(metrics.get("allocated MB per second") > 1.0);
+        }
+        if (!profile.getThreadCpuNanos().isEmpty()) {
+            String name = Thread.currentThread().getName();
+            assertTrue(profile.getThreadCpuNanos().containsKey(name));
+
+            // The thread's cpu is sampled along with the other metrics
+            long series[] = profile.getThreadCpuSeries(name);
+            assertEquals(profile.getSamples().size(), series.length);
+            for (int i = 1; i < series.length; i++) {
+                assertTrue(series[i] >= series[i - 1]);
+            }
+            assertEquals(series[series.length - 1], (long) profile.getThreadCpuNanos().get(name));
+            assertTrue(profile.getPeakThreadCores(name) > 0.0);
+        }
+    }
+
+    @Test
+    public void testReadWrite() throws Exception {
+        ResourceProfile profile = makeProfile("lucene", 10.0, 5);
+        File file = File.createTempFile("profile", ".tsv");
+        file.deleteOnExit();
+        profile.write(file);
+
+        ResourceProfile read = ResourceProfile.read(file);
+        assertEquals("lucene", read.getStage());
+        assertEquals(2, read.getSamples().size());
+        assertEquals(profile.getMetrics(), read.getMetrics());
+        assertEquals(profile.getThreadCpuNanos(), read.getThreadCpuNanos());
+        assertArrayEquals(profile.getThreadCpuSeries("worker 1"), read.getThreadCpuSeries("worker 1"));
+        assertEquals(0.25, read.getPeakThreadCores("main"), 0.001);
+        assertEquals(-1, read.getLast().getMappedBytes());
+        assertFalse(read.getMetrics().containsKey("peak mapped MB"));
+    }
+
+    @Test
+    public void testComparison() throws Exception {
+        Map<String, ResourceProfile> baseline = new HashMap<String, ResourceProfile>();
+        baseline.put("lucene", makeProfile("lucene", 10.0, 5));
+        baseline.put("wikitext", makeProfile("wikitext", 10.0, 5));
+
+        Map<String, ResourceProfile> current = new LinkedHashMap<String, ResourceProfile>();
+        current.put("lucene", makeProfile("lucene", 10.5, 5));
+        current.put("wikitext", makeProfile("wikitext", 20.0, 5));
+        current.put("concepts", makeProfile("concepts", 20.0, 5));
+
+        StringWriter sw = new StringWriter();
+        int regressions = DiagnosticReport.writeComparison(new PrintWriter(sw), current, baseline, 0.25);
+        String report = sw.toString();
+
+        // wikitext doubled its cpu seconds; lucene is within the threshold and concepts has no baseline
+        assertEquals(1, regressions);
+        assertTrue(report.contains("stage wikitext"));
+        assertTrue(report.contains("stage concepts"));
+        assertTrue(report.contains("cpu seconds: 20.0 (baseline 10.0, +100%) REGRESSION"));
+        assertTrue(report.contains("cpu seconds: 10.5 (baseline 10.0, +5%)\n"));
+    }
+
+    @Test
+    public void testBaselines() throws Exception {
+        File dir = File.createTempFile("diagnostics", null);
+        FileUtils.deleteQuietly(dir);
+        try {
+            DiagnosticDao dao = new DiagnosticDao(null, null, null, new File(dir, "log.tsv"), new File(dir, "profiles"));
+            LanguageSet simple = new LanguageSet("simple");
+            LanguageSet both = new LanguageSet("simple,la");
+            assertNull(dao.getLatestProfiledRun(simple));
+
+            dao.saveProfile(1, simple, makeProfile("lucene", 10.0, 5));
+            dao.saveProfile(1, simple, makeProfile("wikitext", 10.0, 5));
+            dao.setBaselineRun(simple, "lucene", 1);
+            dao.saveProfile(2, both, makeProfile("lucene", 30.0, 5));
+            dao.setBaselineRun(both, "lucene", 2);
+
+            // Runs and baselines only match the same languages, in any order
+            assertEquals(1L, (long) dao.getLatestProfiledRun(simple));
+            assertEquals(2L, (long) dao.getLatestProfiledRun(new LanguageSet("la,simple")));
+            assertNull(dao.getLatestProfiledRun(new LanguageSet("la")));
+            assertEquals(1L, (long) dao.getBaselineRun(simple, "lucene"));
+            assertNull(dao.getBaselineRun(simple, "wikitext"));
+            assertEquals(2L, (long) dao.getBaselineRun(both, "lucene"));
+
+            Map<String, ResourceProfile> baselines = dao.getBaselineProfiles(simple);
+            assertEquals(Collections.singleton("lucene"), baselines.keySet());
+            assertEquals(10.0, baselines.get("lucene").getMetrics().get("cpu seconds"), 0.001);
+            assertEquals(30.0, dao.getBaselineProfiles(both).get("lucene").getMetrics().get("cpu seconds"), 0.001);
+        } finally {
+            FileUtils.deleteQuietly(dir);
+        }
+    }
+
+    private static ResourceProfile makeProfile(String stage, double cpuSeconds, int gcSeconds) {
+        long cpu = (long) (cpuSeconds * 1E9);
+        List<ResourceSample> samples = Arrays.asList(
+                new ResourceSample(0, 0, 0, 0, 0, 1 << 20, 0, -1, 0, 0),
+                new ResourceSample(20000, cpu, 100 << 20, 3, gcSeconds * 1000, 10 << 20, 1 << 20, -1, 5 << 20, 2 << 20)
+        );
+        Map<String, long[]> threads = new LinkedHashMap<String, long[]>();
+        threads.put("main", new long[] { 0, cpu / 2 });
+        threads.put("worker 1", new long[] { 0, cpu / 4 });
+        return new ResourceProfile(stage, samples, threads);
+    }
+}
@@ -0,0 +1,179 @@
+package org.wikibrain.loader.pipeline;
+
+import com.typesafe.config.ConfigFactory;
+import org.junit.Test;
+import org.wikibrain.core.model.MetaInfo;
+
+import java.io.IOException;
+import java.util.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+/**
+ * Runs the scheduler on dummy stages with synthetic dependencies.
+ *
+ * @author Shilad Sen
+ */
+public class TestStageScheduler {
+
+    /**
+     * Records the order in which stages start and finish instead of launching them.
+     */
+    static class DummyExecutor implements StageExecutor {
+        final List<String> started = Collections.synchronizedList(new ArrayList<String>());
+        final List<String> finished = Collections.synchronizedList(new ArrayList<String>());
+        final Map<String, Long> sleeps = new HashMap<String, Long>();
+        final Set<String> failures = new HashSet<String>();
+        final AtomicInteger running = new AtomicInteger();
+        final AtomicInteger maxRunning = new AtomicInteger();
+
+        @Override
+        public int execute(PipelineStage stage, String[] args) throws IOException, InterruptedException {
+            String name = stage.getName();
+            started.add(name);
+            int n = running.incrementAndGet();
+            synchronized (maxRunning) {
+                maxRunning.set(Math.max(maxRunning.get(), n));
+            }
+            Thread.sleep(sleeps.containsKey(name) ? sleeps.get(name) : 50);
+            running.decrementAndGet();
+            finished.add(name);
+            return failures.contains(name) ? 1 : 0;
+        }
+    }
+
+    private final DummyExecutor executor = new DummyExecutor();
+    private final LinkedHashMap<String, PipelineStage> stages = new LinkedHashMap<String, PipelineStage>();
+
+    private PipelineStage stage(String name, int cpus, String ... dependsOn) throws ClassNotFoundException {
+        String deps = "";
+        for (String d : dependsOn) {
+            deps += (deps.isEmpty() ? "" : ", ") + "\"" + d + "\"";
+        }
+        PipelineStage stage = new PipelineStage(ConfigFactory.parseString(
+                "name : " + name + "\n" +
+                "class : java.lang.Object\n" +
+                "extraArgs : []\n" +
+                "runtime : \"0\"\n" +
+                "diskSpace : \"0\"\n" +
+                "cpus : " + cpus + "\n" +
+                "dependsOnStage : [" + deps + "]\n"),
+                stages.values(),
+                new HashMap<String, MetaInfo>());
+        stage.setExecutor(executor);
+        stages.put(name, stage);
+        return stage;
+    }
+
+    private void shouldRun(String ... names) {
+        for (String name : names) {
+            stages.get(name).setOverrideOptions(true, null);
+        }
+    }
+
+    @Test
+    public void testOrdering() throws Exception {
+        stage("a", 1);
+        stage("b", 1, "a");
+        stage("c", 1, "a");
+        stage("d", 1, "b", "c");
+        stage("e", 1);
+        shouldRun("d");
+
+        StageScheduler scheduler = new StageScheduler(stages.values(), 4, 1000, 4, 100);
+        scheduler.run(new String[0], false);
+
+        // e was not requested
+        assertEquals(4, executor.started.size());
+        assertFalse(executor.started.contains("e"));
+        for (PipelineStage stage : stages.values()) {
+            for (PipelineStage dep : stage.getDependsOn()) {
+                assertTrue(executor.finished.indexOf(dep.getName()) < executor.started.indexOf(stage.getName()));
+            }
+        }
+
+        // b and c are independent and run together
+        assertEquals(2, scheduler.getMaxObservedParallelism());
+        assertTrue(stages.get("d").getStartTime().compareTo(stages.get("b").getEndTime()) >= 0);
+    }
+
+    @Test
+    public void testConcurrencyLimits() throws Exception {
+        for (int i = 0; i < 6; i++) {
+            stage("s" + i, 1);
+            shouldRun("s" + i);
+        }
+        stage("big", 8);
+        shouldRun("big");
+
+        // The cpu budget allows two single core stages at a time, and big runs alone
+        StageScheduler scheduler = new StageScheduler(stages.values(), 2, 1000, 10, 100);
+        scheduler.run(new String[0], false);
+        assertEquals(7, executor.finished.size());
+        assertEquals(2, executor.maxRunning.get());
+
+        // The memory budget allows three stages at a time
+        for (PipelineStage stage : stages.values()) {
+            stage.reset();
+        }
+        stages.get("big").setOverrideOptions(false, null);
+        shouldRun("s0", "s1", "s2", "s3", "s4", "s5");
+        executor.maxRunning.set(0);
+        scheduler = new StageScheduler(stages.values(), 10, 300, 10, 100);
+        scheduler.run(new String[0], false);
+        assertEquals(3, executor.maxRunning.get());
+
+        // The parallelism limit allows one stage at a time
+        for (PipelineStage stage : stages.values()) {
+            stage.reset();
+        }
+        shouldRun("s0", "s1", "s2", "s3", "s4", "s5");
+        executor.maxRunning.set(0);
+        scheduler = new StageScheduler(stages.values(), 10, 1000, 1, 100);
+        scheduler.run(new String[0], false);
+        assertEquals(1, executor.maxRunning.get());
+    }
+
+    @Test
+    public void testCriticalPath() throws Exception {
+        PipelineStage shortStage = stage("short", 1);
+        PipelineStage longStage = stage("long", 1);
+        stage("after", 1, "long");
+        shouldRun("short", "after");
+
+        StageScheduler scheduler = new StageScheduler(stages.values(), 1, 1000, 10, 100);
+        scheduler.setEstimate(shortStage, 10.0);
+        scheduler.setEstimate(longStage, 5.0);
+        scheduler.setEstimate(stages.get("after"), 20.0);
+        scheduler.run(new String[0], false);
+        // after becomes ready when long finishes and still has the longer path
+        assertEquals(Arrays.asList("long", "after", "short"), executor.started);
+    }
+
+    @Test
+    public void testFailure() throws Exception {
+        stage("slow", 1);
+        stage("broken", 1);
+        stage("dependent", 1, "broken");
+        stage("later", 1, "slow");
+        shouldRun("dependent", "later");
+        executor.sleeps.put("slow", 300L);
+        executor.failures.add("broken");
+
+        StageScheduler scheduler = new StageScheduler(stages.values(), 2, 1000, 10, 100);
+        try {
+            scheduler.run(new String[0], false);
+            fail();
+        } catch (StageFailedException e) {
+            assertEquals("broken", e.getStage().getName());
+            assertEquals(1, e.getExitCode());
+        }
+
+        // The running stage finishes, but nothing new starts after the failure
+        assertEquals(new HashSet<String>(Arrays.asList("slow", "broken")), new HashSet<String>(executor.finished));
+        assertFalse(stages.get("broken").getSucceeded());
+        assertTrue(stages.get("slow").getSucceeded());
+        assertNull(stages.get("dependent").getSucceeded());
+    }
+}
@@ -10,6 +10,7 @@ import org.wikibrain.core.lang.LocalId;
 import org.wikibrain.core.model.LocalPage;
 
 import java.util.*;
+import java.util.concurrent.atomic.AtomicInteger;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -21,7 +22,7 @@ public class Conceptualign3ConnectedComponentHandler implements ConnectedCompone
     private final double minVotesRatio;
     private final int maxVotesPerLang;
     private final boolean print;
-    private int curUnivId;
+    private final AtomicInteger curUnivId = new AtomicInteger();
     private final LocalPageDao lpDao;
 
     private static Logger LOG = LoggerFactory.getLogger(ConceptualignConceptMapper.class);
@@ -31,14 +32,15 @@ public class Conceptualign3ConnectedComponentHandler implements ConnectedCompone
         this.minVotesRatio = minVotesRatio;
         this.maxVotesPerLang = maxVotesPerLang;
         this.print = print;
-        this.curUnivId = 0;
         this.lpDao = lpDao;
 
     }
 
+    /**
+     * Returns the next universal id. Safe to call from concurrent handlers.
+     */
     public int getCurUnivId(){
-        curUnivId++;
-        return curUnivId;
+        return curUnivId.incrementAndGet();
     }
 
     @Override
@@ -17,9 +17,14 @@ import org.wikibrain.core.model.UniversalPage;
 import org.wikibrain.mapper.ConceptMapper;
 import org.wikibrain.mapper.MapperIterator;
 import org.wikibrain.mapper.algorithms.PureWikidataConceptMapper;
+import org.wikibrain.utils.Function;
+import org.wikibrain.utils.ParallelForEach;
+import org.wikibrain.utils.WpThreadUtils;
 
 import java.io.File;
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
 import java.util.Iterator;
 import java.util.List;
 import org.slf4j.Logger;
@@ -52,6 +57,10 @@ public class ConceptualignConceptMapper extends ConceptMapper{
 
     private final boolean print;
 
+    private boolean inMemory = false;
+
+    private int numThreads = WpThreadUtils.getMaxThreads();
+
     private static Logger LOG = LoggerFactory.getLogger(ConceptualignConceptMapper.class);
 
 
@@ -86,6 +95,19 @@ public class ConceptualignConceptMapper extends ConceptMapper{
 
     }
 
+    /**
+     * If true, loads all interlanguage links into a {@link PackedIllGraph} and handles the
+     * connected components in parallel instead of traversing the live ILL graph.
+     * This requires enough memory to hold every ILL, but is much faster.
+     */
+    public void setInMemory(boolean inMemory) {
+        this.inMemory = inMemory;
+    }
+
+    public void setNumThreads(int numThreads) {
+        this.numThreads = numThreads;
+    }
+
     @Override
     public Iterator<UniversalPage> getConceptMap(LanguageSet ls) throws WikiBrainException, DaoException {
 
@@ -103,6 +125,10 @@ public class ConceptualignConceptMapper extends ConceptMapper{
             }
         }
 
+        if (inMemory) {
+            return transform(getClusterResultsInMemory(maxEdge, minLang));
+        }
+
         // perform Conceptualign
         CombinedIllDao combinedDao = new CombinedIllDao(uPages.iterator(), illDao);
         ILLGraph illGraph = new ILLGraph(combinedDao, localPageDao, miDao);
@@ -121,14 +147,86 @@ public class ConceptualignConceptMapper extends ConceptMapper{
 
 
 
-        return new MapperIterator<UniversalPage>(listener.getClusterResults()) {
+        return transform(listener.getClusterResults());
+
+    }
+
+    private Iterator<UniversalPage> transform(Iterable<ClusterResult> clusterResults) {
+        return new MapperIterator<UniversalPage>(clusterResults) {
             @Override
             public UniversalPage transform(Object obj) {
                 ClusterResult curCluster = (ClusterResult)obj;
                 return new UniversalPage(curCluster.univId, getId(), NameSpace.ARTICLE, curCluster.vertices);
             }
         };
+    }
+
+    /**
+     * Runs the Conceptualign3 handler over the connected components of an in-memory
+     * ILL graph. Blocks of components are handled concurrently.
+     *
+     * The handler's universal ids depend on thread scheduling, so they are replaced by ids
+     * assigned in component order, and within a component in order of each cluster's
+     * smallest LocalId. The ids are therefore the same in every run over the same data.
+     */
+    private List<ClusterResult> getClusterResultsInMemory(int maxEdge, double minLang) throws WikiBrainException, DaoException {
+        final PackedIllGraph packed = PackedIllGraph.build(uPages, illDao, localPageDao, numThreads);
+        final ILLGraph illGraph = new ILLGraph(packed, localPageDao, miDao);
+        final ConnectedComponentHandler handler =
+                new Conceptualign3ConnectedComponentHandler(minLang, maxEdge, print, this.localPageDao);
+
+        final int numComponents = packed.getNumComponents();
+        final int blockSize = 1000;
+        List<List<ClusterResult>> blocks = ParallelForEach.range(
+                0, (numComponents + blockSize - 1) / blockSize, numThreads,
+                new Function<Integer, List<ClusterResult>>() {
+                    @Override
+                    public List<ClusterResult> call(Integer block) throws Exception {
+                        List<ClusterResult> results = new ArrayList<ClusterResult>();
+                        int end = Math.min(numComponents, (block + 1) * blockSize);
+                        for (int c = block * blockSize; c < end; c++) {
+                            try {
+                                List<ClusterResult> clusters = handler.handle(packed.getComponent(c), illGraph, c + 1);
+                                Collections.sort(clusters, CLUSTER_ORDER);
+                                results.addAll(clusters);
+                            } catch (WikiBrainException e) {
+                                LOG.error(e.getMessage());
+                            }
+                        }
+                        return results;
+                    }
+                });
+
+        List<ClusterResult> clusterResults = new ArrayList<ClusterResult>();
+        for (List<ClusterResult> block : blocks) {
+            if (block != null) {
+                for (ClusterResult cluster : block) {
+                    clusterResults.add(new ClusterResult(clusterResults.size() + 1, cluster.vertices));
+                }
+            }
+        }
+        LOG.info(String.format("Handled %d connected components", numComponents));
+        return clusterResults;
+    }
+
+    /**
+     * Orders the clusters of a component by their smallest LocalId.
+     */
+    private static final Comparator<ClusterResult> CLUSTER_ORDER = new Comparator<ClusterResult>() {
+        @Override
+        public int compare(ClusterResult c1, ClusterResult c2) {
+            long min1 = minLocalId(c1);
+            long min2 = minLocalId(c2);
+            return (min1 < min2) ? -1 : ((min1 == min2) ? 0 : 1);
+        }
+    };
 
+    private static long minLocalId(ClusterResult cluster) {
+        long min = Long.MAX_VALUE;
+        for (LocalId localId : cluster.vertices.values()) {
+            min = Math.min(min, localId.toLong());
+        }
+        return min;
     }
 
 
@@ -24,6 +24,9 @@ import org.wikibrain.mapper.algorithms.conceptualign3.ILLEdge;
 
 /**
  * Graph representation of ILL graph.
+ *
+ * By default this is a live view of the dao, so each traversal step queries the database.
+ * A graph constructed from a {@link PackedIllGraph} answers every query from memory.
  */
 public class ILLGraph implements UndirectedGraph<LocalId, ILLEdge>{
 
@@ -34,6 +37,8 @@ public class ILLGraph implements UndirectedGraph<LocalId, ILLEdge>{
 
     private Set<LocalId> validLocalIds;
 
+    private final PackedIllGraph packed;
+
     private final LanguageSet loadedLangs;
 
     public ILLGraph(CombinedIllDao dao, LocalPageDao lpDao, MetaInfoDao miDao) throws WikiBrainException {
@@ -45,6 +50,7 @@ public class ILLGraph implements UndirectedGraph<LocalId, ILLEdge>{
             this.dao = dao;
             this.lpDao = lpDao;
             this.miDao = miDao;
+            this.packed = null;
 
             loadedLangs = miDao.getLoadedLanguages();
 
@@ -65,6 +71,25 @@ public class ILLGraph implements UndirectedGraph<LocalId, ILLEdge>{
 
 
 
+    /**
+     * Creates a graph backed by an in-memory copy of the ILLs.
+     */
+    public ILLGraph(PackedIllGraph packed, LocalPageDao lpDao, MetaInfoDao miDao) throws WikiBrainException {
+        try {
+            this.dao = null;
+            this.lpDao = lpDao;
+            this.miDao = miDao;
+            this.packed = packed;
+            loadedLangs = miDao.getLoadedLanguages();
+        }catch(DaoException e){
+            throw new WikiBrainException(e);
+        }
+    }
+
+    public PackedIllGraph getPacked() {
+        return packed;
+    }
+
     @Override
     public ILLEdge addEdge(LocalId arg0, LocalId arg1) {
         throw new RuntimeException("Read only graph");
@@ -83,6 +108,9 @@ public class ILLGraph implements UndirectedGraph<LocalId, ILLEdge>{
 
     @Override
     public boolean containsEdge(ILLEdge arg0) {
+        if (packed != null) {
+            return packed.containsEdge(arg0.host, arg0.dest);
+        }
         try{
 
            return dao.getFromSource(arg0.host).contains(arg0.dest);
@@ -102,6 +130,9 @@ public class ILLGraph implements UndirectedGraph<LocalId, ILLEdge>{
 
     @Override
     public boolean containsVertex(LocalId arg0) {
+        if (packed != null) {
+            return packed.containsVertex(arg0);
+        }
         return validLocalIds.contains(arg0);
     }
 
@@ -133,6 +164,12 @@ public class ILLGraph implements UndirectedGraph<LocalId, ILLEdge>{
 
     @Override
     public Set<ILLEdge> edgesOf(LocalId arg0) {
+        if (packed != null) {
+            Set<ILLEdge> rVal = Sets.newHashSet();
+            rVal.addAll(toEdges(arg0, packed.getOutgoing(arg0), true));
+            rVal.addAll(toEdges(arg0, packed.getIncoming(arg0), false));
+            return rVal;
+        }
         try{
 
             Set<ILLEdge> rVal = Sets.newHashSet();
@@ -230,6 +267,29 @@ public class ILLGraph implements UndirectedGraph<LocalId, ILLEdge>{
     @Override
     public Set<LocalId> vertexSet() {
 
+        if (packed != null) {
+            return new AbstractSet<LocalId>() {
+                @Override
+                public Iterator<LocalId> iterator() {
+                    return new Iterator<LocalId>() {
+                        private int i = 0;
+                        public boolean hasNext() { return i < packed.getNumVertices(); }
+                        public LocalId next() { return packed.getLocalId(i++); }
+                        public void remove() { throw new UnsupportedOperationException(); }
+                    };
+                }
+
+                @Override
+                public int size() {
+                    return packed.getNumVertices();
+                }
+
+                @Override
+                public boolean contains(Object o) {
+                    return (o instanceof LocalId) && packed.containsVertex((LocalId) o);
+                }
+            };
+        }
         return this.validLocalIds;
 
     }
@@ -263,6 +323,9 @@ public class ILLGraph implements UndirectedGraph<LocalId, ILLEdge>{
 
     public Set<ILLEdge> incomingEdgesOf(LocalId arg0) {
 
+        if (packed != null) {
+            return toEdges(arg0, packed.getIncoming(arg0), false);
+        }
         try{
 
             Set<LocalId> incomingLocalIds = dao.getToDest(arg0);
@@ -282,6 +345,9 @@ public class ILLGraph implements UndirectedGraph<LocalId, ILLEdge>{
 
     public Set<ILLEdge> outgoingEdgesOf(LocalId arg0) {
 
+        if (packed != null) {
+            return toEdges(arg0, packed.getOutgoing(arg0), true);
+        }
         try{
 
             Set<LocalId> outgoingLocalIds = dao.getFromSource(arg0);
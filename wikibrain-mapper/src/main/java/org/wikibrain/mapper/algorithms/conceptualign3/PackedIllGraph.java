@@ -0,0 +1,346 @@
+package org.wikibrain.mapper.algorithms.conceptualign3;
+
+import gnu.trove.list.array.TIntArrayList;
+import gnu.trove.list.array.TLongArrayList;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.wikibrain.core.dao.DaoException;
+import org.wikibrain.core.dao.DaoFilter;
+import org.wikibrain.core.dao.InterLanguageLinkDao;
+import org.wikibrain.core.dao.LocalPageDao;
+import org.wikibrain.core.lang.Language;
+import org.wikibrain.core.lang.LocalId;
+import org.wikibrain.core.model.InterLanguageLink;
+import org.wikibrain.core.model.LocalPage;
+import org.wikibrain.core.model.NameSpace;
+import org.wikibrain.core.model.UniversalPage;
+import org.wikibrain.utils.ConcurrentUnionFind;
+import org.wikibrain.utils.ParallelForEach;
+import org.wikibrain.utils.Procedure;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * An in-memory copy of the interlanguage link graph stored in packed int arrays.
+ *
+ * Vertices are the articles in all loaded languages, identified by a dense index into
+ * the sorted array of their packed {@link LocalId#toLong()} values. Edges are the union of
+ * the ILLs in the dao and the links implied by Wikidata concepts (every pair of articles in
+ * a concept), exactly as in {@link CombinedIllDao}. Edges to pages that are not articles in
+ * a loaded language are dropped.
+ *
+ * Outgoing and incoming ILLs are stored in compressed sparse row form. Concept links are
+ * not expanded into edges, since a concept with k articles implies k^2 of them. Instead the
+ * members of each concept and the concepts of each article are stored in the same form,
+ * and edge queries consult both.
+ *
+ * Connected components are computed once, in parallel, with a lock-free union find. Each
+ * concept only contributes a star from its first member to the others.
+ *
+ * @author Shilad Sen
+ */
+public class PackedIllGraph {
+    private static final Logger LOG = LoggerFactory.getLogger(PackedIllGraph.class);
+
+    private static final int BLOCK_SIZE = 10000;
+
+    private final long vertices[];
+    private final int outOffsets[];
+    private final int outEdges[];
+    private final int inOffsets[];
+    private final int inEdges[];
+    private final int conceptOffsets[];
+    private final int conceptMembers[];     // sorted within each concept
+    private final int vertexConceptOffsets[];
+    private final int vertexConcepts[];
+    private final int componentOffsets[];
+    private final int componentVertices[];
+
+    private PackedIllGraph(long vertices[], long edges[], final int conceptOffsets[], final int conceptMembers[],
+                           int numThreads) {
+        this.vertices = vertices;
+        this.conceptOffsets = conceptOffsets;
+        this.conceptMembers = conceptMembers;
+        final int n = vertices.length;
+        final int numConcepts = conceptOffsets.length - 1;
+
+        // Edges are sorted by source, then by dest
+        outOffsets = new int[n + 1];
+        outEdges = new int[edges.length];
+        int inCounts[] = new int[n + 1];
+        for (int i = 0; i < edges.length; i++) {
+            int src = (int) (edges[i] >>> 32);
+            int dest = (int) edges[i];
+            outOffsets[src + 1]++;
+            outEdges[i] = dest;
+            inCounts[dest + 1]++;
+        }
+        for (int v = 0; v < n; v++) {
+            outOffsets[v + 1] += outOffsets[v];
+            inCounts[v + 1] += inCounts[v];
+        }
+        inOffsets = Arrays.copyOf(inCounts, n + 1);
+        inEdges = new int[edges.length];
+        for (int i = 0; i < edges.length; i++) {
+            int src = (int) (edges[i] >>> 32);
+            int dest = (int) edges[i];
+            inEdges[inCounts[dest]++] = src;    // sources arrive in sorted order
+        }
+
+        // Concepts of each vertex
+        vertexConceptOffsets = new int[n + 1];
+        for (int m : conceptMembers) {
+            vertexConceptOffsets[m + 1]++;
+        }
+        for (int v = 0; v < n; v++) {
+            vertexConceptOffsets[v + 1] += vertexConceptOffsets[v];
+        }
+        int conceptFill[] = Arrays.copyOf(vertexConceptOffsets, n);
+        vertexConcepts = new int[conceptMembers.length];
+        for (int c = 0; c < numConcepts; c++) {
+            for (int j = conceptOffsets[c]; j < conceptOffsets[c + 1]; j++) {
+                vertexConcepts[conceptFill[conceptMembers[j]]++] = c;
+            }
+        }
+
+        // Connected components
+        final ConcurrentUnionFind uf = new ConcurrentUnionFind(n);
+        ParallelForEach.range(0, (n + BLOCK_SIZE - 1) / BLOCK_SIZE, numThreads, new Procedure<Integer>() {
+            @Override
+            public void call(Integer block) throws Exception {
+                int end = Math.min(n, (block + 1) * BLOCK_SIZE);
+                for (int v = block * BLOCK_SIZE; v < end; v++) {
+                    for (int j = outOffsets[v]; j < outOffsets[v + 1]; j++) {
+                        uf.union(v, outEdges[j]);
+                    }
+                }
+            }
+        });
+        ParallelForEach.range(0, (numConcepts + BLOCK_SIZE - 1) / BLOCK_SIZE, numThreads, new Procedure<Integer>() {
+            @Override
+            public void call(Integer block) throws Exception {
+                int end = Math.min(numConcepts, (block + 1) * BLOCK_SIZE);
+                for (int c = block * BLOCK_SIZE; c < end; c++) {
+                    int first = conceptMembers[conceptOffsets[c]];
+                    for (int j = conceptOffsets[c] + 1; j < conceptOffsets[c + 1]; j++) {
+                        uf.union(first, conceptMembers[j]);
+                    }
+                }
+            }
+        });
+        int roots[] = uf.getRoots();
+
+        // Roots are the smallest vertex in each component, so components are ordered by their first vertex
+        int componentIds[] = new int[n];
+        int numComponents = 0;
+        for (int v = 0; v < n; v++) {
+            componentIds[v] = (roots[v] == v) ? numComponents++ : componentIds[roots[v]];
+        }
+        componentOffsets = new int[numComponents + 1];
+        for (int v = 0; v < n; v++) {
+            componentOffsets[componentIds[v] + 1]++;
+        }
+        for (int c = 0; c < numComponents; c++) {
+            componentOffsets[c + 1] += componentOffsets[c];
+        }
+        int fill[] = Arrays.copyOf(componentOffsets, numComponents);
+        componentVertices = new int[n];
+        for (int v = 0; v < n; v++) {
+            componentVertices[fill[componentIds[v]]++] = v;
+        }
+        LOG.info("packed ill graph has " + n + " vertices, " + edges.length + " ill edges, "
+                + numConcepts + " concepts, and " + numComponents + " connected components");
+    }
+
+    /**
+     * Loads all articles and interlanguage links into memory.
+     *
+     * @param uPages Wikidata concepts, whose articles are treated as linked to each other.
+     * @param illDao
+     * @param lpDao
+     * @param numThreads Threads used to compute the connected components.
+     * @return
+     * @throws DaoException
+     */
+    public static PackedIllGraph build(Iterable<UniversalPage> uPages, InterLanguageLinkDao illDao,
+                                       LocalPageDao lpDao, int numThreads) throws DaoException {
+        LOG.info("loading articles for packed ill graph");
+        TLongArrayList ids = new TLongArrayList();
+        for (LocalPage page : lpDao.get(new DaoFilter().setNameSpaces(NameSpace.ARTICLE))) {
+            if (page != null) {
+                ids.add(page.toLocalId().toLong());
+            }
+        }
+        long vertices[] = ids.toArray();
+        ids = null;
+        Arrays.sort(vertices);
+        vertices = unique(vertices);
+
+        LOG.info("loading interlanguage links for packed ill graph");
+        TLongArrayList edges = new TLongArrayList();
+        for (InterLanguageLink ill : illDao.get(new DaoFilter())) {
+            int src = indexOf(vertices, ill.getSource());
+            int dest = indexOf(vertices, ill.getDest());
+            if (src >= 0 && dest >= 0 && src != dest) {
+                edges.add(pack(src, dest));
+            }
+        }
+        // Concepts with at least two articles, each one's members sorted
+        TIntArrayList conceptOffsets = new TIntArrayList();
+        TIntArrayList conceptMembers = new TIntArrayList();
+        conceptOffsets.add(0);
+        if (uPages != null) {
+            TIntArrayList members = new TIntArrayList();
+            for (UniversalPage uPage : uPages) {
+                members.clear();
+                for (LocalId localId : uPage.getLocalEntities()) {
+                    int v = indexOf(vertices, localId);
+                    if (v >= 0) {
+                        members.add(v);
+                    }
+                }
+                members.sort();
+                int start = conceptMembers.size();
+                for (int i = 0; i < members.size(); i++) {
+                    if (i == 0 || members.get(i) != members.get(i - 1)) {
+                        conceptMembers.add(members.get(i));
+                    }
+                }
+                if (conceptMembers.size() - start < 2) {
+                    conceptMembers.remove(start, conceptMembers.size() - start);
+                } else {
+                    conceptOffsets.add(conceptMembers.size());
+                }
+            }
+        }
+        long packedEdges[] = edges.toArray();
+        edges = null;
+        Arrays.sort(packedEdges);
+        return new PackedIllGraph(vertices, unique(packedEdges),
+                conceptOffsets.toArray(), conceptMembers.toArray(), numThreads);
+    }
+
+    private static long pack(int src, int dest) {
+        return ((long) src << 32) | dest;
+    }
+
+    private static long[] unique(long sorted[]) {
+        int n = 0;
+        for (int i = 0; i < sorted.length; i++) {
+            if (i == 0 || sorted[i] != sorted[i - 1]) {
+                sorted[n++] = sorted[i];
+            }
+        }
+        return (n == sorted.length) ? sorted : Arrays.copyOf(sorted, n);
+    }
+
+    private static int indexOf(long vertices[], LocalId localId) {
+        int i = Arrays.binarySearch(vertices, localId.toLong());
+        return (i < 0) ? -1 : i;
+    }
+
+    public int getNumVertices() {
+        return vertices.length;
+    }
+
+    /**
+     * @return The dense index of the article, or -1 if it is not a vertex.
+     */
+    public int getVertexIndex(LocalId localId) {
+        return indexOf(vertices, localId);
+    }
+
+    public LocalId getLocalId(int vertex) {
+        long packed = vertices[vertex];
+        return new LocalId(Language.getById((int) (packed >>> 32)), (int) packed);
+    }
+
+    public boolean containsVertex(LocalId localId) {
+        return getVertexIndex(localId) >= 0;
+    }
+
+    public boolean containsEdge(LocalId source, LocalId dest) {
+        int src = getVertexIndex(source);
+        int dst = getVertexIndex(dest);
+        if (src < 0 || dst < 0) {
+            return false;
+        }
+        if (Arrays.binarySearch(outEdges, outOffsets[src], outOffsets[src + 1], dst) >= 0) {
+            return true;
+        }
+        if (src == dst) {
+            return false;
+        }
+        for (int j = vertexConceptOffsets[src]; j < vertexConceptOffsets[src + 1]; j++) {
+            int c = vertexConcepts[j];
+            if (Arrays.binarySearch(conceptMembers, conceptOffsets[c], conceptOffsets[c + 1], dst) >= 0) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * @return The destinations of ILLs from the article, or an empty list if it is not a vertex.
+     */
+    public List<LocalId> getOutgoing(LocalId source) {
+        return neighbors(getVertexIndex(source), outOffsets, outEdges);
+    }
+
+    /**
+     * @return The sources of ILLs to the article, or an empty list if it is not a vertex.
+     */
+    public List<LocalId> getIncoming(LocalId dest) {
+        return neighbors(getVertexIndex(dest), inOffsets, inEdges);
+    }
+
+    /**
+     * Returns the ILL neighbors of a vertex in the given direction plus the other articles
+     * in its concepts, ordered by vertex index.
+     */
+    private List<LocalId> neighbors(int v, int offsets[], int edges[]) {
+        if (v < 0) {
+            return new ArrayList<LocalId>();
+        }
+        TIntArrayList indexes = new TIntArrayList(offsets[v + 1] - offsets[v]);
+        for (int j = offsets[v]; j < offsets[v + 1]; j++) {
+            indexes.add(edges[j]);
+        }
+        for (int j = vertexConceptOffsets[v]; j < vertexConceptOffsets[v + 1]; j++) {
+            int c = vertexConcepts[j];
+            for (int k = conceptOffsets[c]; k < conceptOffsets[c + 1]; k++) {
+                if (conceptMembers[k] != v) {
+                    indexes.add(conceptMembers[k]);
+                }
+            }
+        }
+        indexes.sort();
+        List<LocalId> result = new ArrayList<LocalId>(indexes.size());
+        for (int i = 0; i < indexes.size(); i++) {
+            if (i == 0 || indexes.get(i) != indexes.get(i - 1)) {
+                result.add(getLocalId(indexes.get(i)));
+            }
+        }
+        return result;
+    }
+
+    public int getNumComponents() {
+        return componentOffsets.length - 1;
+    }
+
+    /**
+     * @param component Index in [0, getNumComponents())
+     * @return The articles in the connected component.
+     */
+    public List<LocalId> getComponent(int component) {
+        int start = componentOffsets[component];
+        int end = componentOffsets[component + 1];
+        List<LocalId> result = new ArrayList<LocalId>(end - start);
+        for (int i = start; i < end; i++) {
+            result.add(getLocalId(componentVertices[i]));
+        }
+        return result;
+    }
+}
@@ -0,0 +1,185 @@
+package org.wikibrain.mapper.algorithms.conceptualign3;
+
+import com.google.common.collect.HashMultimap;
+import com.google.common.collect.Multimap;
+import org.mockito.Mockito;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+import org.wikibrain.core.dao.*;
+import org.wikibrain.core.lang.Language;
+import org.wikibrain.core.lang.LanguageSet;
+import org.wikibrain.core.lang.LocalId;
+import org.wikibrain.core.model.InterLanguageLink;
+import org.wikibrain.core.model.LocalPage;
+import org.wikibrain.core.model.NameSpace;
+import org.wikibrain.core.model.UniversalPage;
+
+import java.util.*;
+
+/**
+ * A small interlanguage link graph in three languages, served by in-memory daos.
+ *
+ * @author Shilad Sen
+ */
+class IllGraphFixture {
+    static final Language SIMPLE = Language.SIMPLE;
+    static final Language EN = Language.EN;
+    static final Language DE = Language.DE;
+
+    final Map<LocalId, LocalPage> pages = new LinkedHashMap<LocalId, LocalPage>();
+    final List<InterLanguageLink> ills = new ArrayList<InterLanguageLink>();
+    final List<UniversalPage> concepts = new ArrayList<UniversalPage>();
+
+    final LocalPageDao lpDao;
+    final InterLanguageLinkDao illDao;
+    final MetaInfoDao miDao;
+    final LanguageSet langs = new LanguageSet(Arrays.asList(SIMPLE, EN, DE));
+
+    IllGraphFixture() throws DaoException {
+        lpDao = Mockito.mock(LocalPageDao.class);
+        Mockito.when(lpDao.get(Mockito.any(DaoFilter.class))).thenReturn(pages.values());
+        Mockito.when(lpDao.getById(Mockito.any(LocalId.class))).thenAnswer(new Answer<LocalPage>() {
+            @Override
+            public LocalPage answer(InvocationOnMock invocation) {
+                return pages.get((LocalId) invocation.getArguments()[0]);
+            }
+        });
+        illDao = new MemoryIllDao();
+        miDao = Mockito.mock(MetaInfoDao.class);
+        Mockito.when(miDao.getLoadedLanguages()).thenReturn(langs);
+    }
+
+    /**
+     * The graph has five connected components:
+     * a cycle of ILLs between three "Apple" articles, a single ILL, an isolated article,
+     * two articles linked only by a Wikidata concept, and an ambiguous component with two
+     * English articles that the Conceptualign3 handler splits.
+     */
+    static IllGraphFixture makeDefault() throws DaoException {
+        IllGraphFixture f = new IllGraphFixture();
+        f.addPage(SIMPLE, 1, "Apple");
+        f.addPage(EN, 10, "Apple");
+        f.addPage(DE, 100, "Apfel");
+        f.addIll(SIMPLE, 1, EN, 10);
+        f.addIll(EN, 10, DE, 100);
+        f.addIll(DE, 100, SIMPLE, 1);
+
+        f.addPage(SIMPLE, 2, "Pear");
+        f.addPage(EN, 20, "Pear");
+        f.addIll(SIMPLE, 2, EN, 20);
+
+        f.addPage(EN, 30, "Quince");
+
+        f.addPage(SIMPLE, 3, "Plum");
+        f.addPage(DE, 300, "Pflaume");
+        f.addConcept(1, new LocalId(SIMPLE, 3), new LocalId(DE, 300));
+
+        f.addPage(SIMPLE, 5, "Orange");
+        f.addPage(EN, 50, "Orange (fruit)");
+        f.addPage(EN, 51, "Orange (colour)");
+        f.addPage(DE, 500, "Orange");
+        f.addIll(SIMPLE, 5, EN, 50);
+        f.addIll(SIMPLE, 5, EN, 51);
+        f.addIll(EN, 50, SIMPLE, 5);
+        f.addIll(EN, 50, DE, 500);
+        f.addIll(DE, 500, EN, 50);
+        f.addIll(DE, 500, SIMPLE, 5);
+        return f;
+    }
+
+    void addPage(Language lang, int id, String title) {
+        pages.put(new LocalId(lang, id), new LocalPage(lang, id, title));
+    }
+
+    void addIll(Language srcLang, int srcId, Language destLang, int destId) {
+        ills.add(new InterLanguageLink(srcLang, srcId, destLang, destId));
+    }
+
+    void addConcept(int univId, LocalId ... members) {
+        Multimap<Language, LocalId> localIds = HashMultimap.create();
+        for (LocalId id : members) {
+            localIds.put(id.getLanguage(), id);
+        }
+        concepts.add(new UniversalPage(univId, 0, NameSpace.ARTICLE, localIds));
+    }
+
+    /**
+     * Converts universal pages to the sets of articles they contain.
+     */
+    static Set<Set<LocalId>> toClusters(Iterator<UniversalPage> uPages) {
+        Set<Set<LocalId>> clusters = new HashSet<Set<LocalId>>();
+        while (uPages.hasNext()) {
+            clusters.add(new HashSet<LocalId>(uPages.next().getLocalEntities()));
+        }
+        return clusters;
+    }
+
+    private class MemoryIllDao implements InterLanguageLinkDao {
+        @Override
+        public Set<LocalId> getFromSource(Language sourceLang, int sourceId) {
+            return getFromSource(new LocalId(sourceLang, sourceId));
+        }
+
+        @Override
+        public Set<LocalId> getFromSource(LocalId source) {
+            Set<LocalId> result = new HashSet<LocalId>();
+            for (InterLanguageLink ill : ills) {
+                if (ill.getSource().equals(source)) {
+                    result.add(ill.getDest());
+                }
+            }
+            return result;
+        }
+
+        @Override
+        public Set<LocalId> getToDest(Language destLang, int destId) {
+            return getToDest(new LocalId(destLang, destId));
+        }
+
+        @Override
+        public Set<LocalId> getToDest(LocalId dest) {
+            Set<LocalId> result = new HashSet<LocalId>();
+            for (InterLanguageLink ill : ills) {
+                if (ill.getDest().equals(dest)) {
+                    result.add(ill.getSource());
+                }
+            }
+            return result;
+        }
+
+        @Override
+        public Iterable<InterLanguageLink> get(DaoFilter daoFilter) {
+            return ills;
+        }
+
+        @Override
+        public int getCount(DaoFilter daoFilter) {
+            return ills.size();
+        }
+
+        @Override
+        public LanguageSet getLoadedLanguages() {
+            return langs;
+        }
+
+        @Override
+        public void clear() {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public void beginLoad() {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public void save(InterLanguageLink item) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public void endLoad() {
+            throw new UnsupportedOperationException();
+        }
+    }
+}
@@ -0,0 +1,67 @@
+package org.wikibrain.mapper.algorithms.conceptualign3;
+
+import org.junit.Test;
+import org.wikibrain.core.lang.LocalId;
+import org.wikibrain.core.model.UniversalPage;
+
+import java.util.*;
+
+import static org.junit.Assert.*;
+import static org.wikibrain.mapper.algorithms.conceptualign3.IllGraphFixture.*;
+
+/**
+ * @author Shilad Sen
+ */
+public class TestConceptualignConceptMapper {
+
+    @Test
+    public void testInMemoryMatchesLive() throws Exception {
+        IllGraphFixture f = IllGraphFixture.makeDefault();
+        Set<Set<LocalId>> live = toClusters(makeMapper(f, false, 1).getConceptMap(f.langs));
+        Set<Set<LocalId>> inMemory = toClusters(makeMapper(f, true, 3).getConceptMap(f.langs));
+        assertEquals(live, inMemory);
+
+        // Unambiguous components map to one concept each
+        assertTrue(inMemory.contains(set(new LocalId(SIMPLE, 1), new LocalId(EN, 10), new LocalId(DE, 100))));
+        assertTrue(inMemory.contains(set(new LocalId(SIMPLE, 3), new LocalId(DE, 300))));
+        assertTrue(inMemory.contains(set(new LocalId(EN, 30))));
+    }
+
+    @Test
+    public void testInMemoryIdsAreReproducible() throws Exception {
+        IllGraphFixture f = IllGraphFixture.makeDefault();
+        Map<Integer, Set<LocalId>> first = toIdMap(makeMapper(f, true, 4).getConceptMap(f.langs));
+        for (int i = 0; i < 5; i++) {
+            assertEquals(first, toIdMap(makeMapper(f, true, 4).getConceptMap(f.langs)));
+        }
+
+        // Ids are consecutive and follow the components' smallest articles
+        List<Integer> ids = new ArrayList<Integer>(first.keySet());
+        Collections.sort(ids);
+        for (int i = 0; i < ids.size(); i++) {
+            assertEquals(i + 1, (int) ids.get(i));
+        }
+        assertTrue(first.get(1).contains(new LocalId(SIMPLE, 1)));
+    }
+
+    private static ConceptualignConceptMapper makeMapper(IllGraphFixture f, boolean inMemory, int numThreads) {
+        ConceptualignConceptMapper mapper = new ConceptualignConceptMapper(
+                f.concepts, f.langs, 2, f.lpDao, f.illDao, f.miDao, false);
+        mapper.setInMemory(inMemory);
+        mapper.setNumThreads(numThreads);
+        return mapper;
+    }
+
+    private static Map<Integer, Set<LocalId>> toIdMap(Iterator<UniversalPage> uPages) {
+        Map<Integer, Set<LocalId>> result = new HashMap<Integer, Set<LocalId>>();
+        while (uPages.hasNext()) {
+            UniversalPage uPage = uPages.next();
+            assertNull(result.put(uPage.getUnivId(), new HashSet<LocalId>(uPage.getLocalEntities())));
+        }
+        return result;
+    }
+
+    private static Set<LocalId> set(LocalId ... ids) {
+        return new HashSet<LocalId>(Arrays.asList(ids));
+    }
+}
@@ -0,0 +1,94 @@
+package org.wikibrain.mapper.algorithms.conceptualign3;
+
+import org.junit.Test;
+import org.wikibrain.core.dao.DaoException;
+import org.wikibrain.core.lang.LocalId;
+
+import java.util.*;
+
+import static org.junit.Assert.*;
+import static org.wikibrain.mapper.algorithms.conceptualign3.IllGraphFixture.*;
+
+/**
+ * @author Shilad Sen
+ */
+public class TestPackedIllGraph {
+
+    @Test
+    public void testVerticesAndEdges() throws DaoException {
+        IllGraphFixture f = IllGraphFixture.makeDefault();
+        PackedIllGraph graph = PackedIllGraph.build(f.concepts, f.illDao, f.lpDao, 2);
+
+        assertEquals(f.pages.size(), graph.getNumVertices());
+        for (LocalId id : f.pages.keySet()) {
+            assertTrue(graph.containsVertex(id));
+            assertEquals(id, graph.getLocalId(graph.getVertexIndex(id)));
+        }
+        assertFalse(graph.containsVertex(new LocalId(EN, 999)));
+        assertEquals(-1, graph.getVertexIndex(new LocalId(EN, 999)));
+
+        assertTrue(graph.containsEdge(new LocalId(SIMPLE, 1), new LocalId(EN, 10)));
+        assertFalse(graph.containsEdge(new LocalId(EN, 10), new LocalId(SIMPLE, 1)));
+        assertEquals(Arrays.asList(new LocalId(EN, 50), new LocalId(EN, 51)),
+                     graph.getOutgoing(new LocalId(SIMPLE, 5)));
+        assertEquals(set(new LocalId(EN, 50), new LocalId(DE, 500)),
+                     new HashSet<LocalId>(graph.getIncoming(new LocalId(SIMPLE, 5))));
+        assertTrue(graph.getOutgoing(new LocalId(EN, 30)).isEmpty());
+        assertTrue(graph.getIncoming(new LocalId(EN, 999)).isEmpty());
+
+        // Wikidata concepts link their articles in both directions
+        assertTrue(graph.containsEdge(new LocalId(SIMPLE, 3), new LocalId(DE, 300)));
+        assertTrue(graph.containsEdge(new LocalId(DE, 300), new LocalId(SIMPLE, 3)));
+    }
+
+    @Test
+    public void testDropsEdgesToMissingArticles() throws DaoException {
+        IllGraphFixture f = IllGraphFixture.makeDefault();
+        f.addIll(EN, 30, DE, 999);
+        f.addIll(DE, 999, EN, 20);
+        f.addIll(EN, 30, EN, 30);
+        PackedIllGraph graph = PackedIllGraph.build(f.concepts, f.illDao, f.lpDao, 1);
+
+        assertEquals(f.pages.size(), graph.getNumVertices());
+        assertTrue(graph.getOutgoing(new LocalId(EN, 30)).isEmpty());
+        assertEquals(Arrays.asList(new LocalId(SIMPLE, 2)), graph.getIncoming(new LocalId(EN, 20)));
+    }
+
+    @Test
+    public void testComponents() throws DaoException {
+        IllGraphFixture f = IllGraphFixture.makeDefault();
+        PackedIllGraph graph = PackedIllGraph.build(f.concepts, f.illDao, f.lpDao, 3);
+
+        Set<Set<LocalId>> expected = new HashSet<Set<LocalId>>();
+        expected.add(set(new LocalId(SIMPLE, 1), new LocalId(EN, 10), new LocalId(DE, 100)));
+        expected.add(set(new LocalId(SIMPLE, 2), new LocalId(EN, 20)));
+        expected.add(set(new LocalId(EN, 30)));
+        expected.add(set(new LocalId(SIMPLE, 3), new LocalId(DE, 300)));
+        expected.add(set(new LocalId(SIMPLE, 5), new LocalId(EN, 50), new LocalId(EN, 51), new LocalId(DE, 500)));
+
+        assertEquals(expected.size(), graph.getNumComponents());
+        Set<Set<LocalId>> actual = new HashSet<Set<LocalId>>();
+        long lastFirst = Long.MIN_VALUE;
+        for (int c = 0; c < graph.getNumComponents(); c++) {
+            List<LocalId> component = graph.getComponent(c);
+            actual.add(new HashSet<LocalId>(component));
+
+            // Components are ordered by their smallest article
+            assertTrue(component.get(0).toLong() > lastFirst);
+            lastFirst = component.get(0).toLong();
+        }
+        assertEquals(expected, actual);
+    }
+
+    @Test
+    public void testEmpty() throws DaoException {
+        IllGraphFixture f = new IllGraphFixture();
+        PackedIllGraph graph = PackedIllGraph.build(null, f.illDao, f.lpDao, 2);
+        assertEquals(0, graph.getNumVertices());
+        assertEquals(0, graph.getNumComponents());
+    }
+
+    private static Set<LocalId> set(LocalId ... ids) {
+        return new HashSet<LocalId>(Arrays.asList(ids));
+    }
+}
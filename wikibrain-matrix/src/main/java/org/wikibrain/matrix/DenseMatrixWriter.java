@@ -75,6 +75,9 @@ public class DenseMatrixWriter {
 
     public void finish() throws IOException {
         body.close();
+        if (colIds == null) {
+            colIds = new int[0];    // an empty matrix has no columns
+        }
         info("wrote " + bodyOffset + " bytes in body of matrix");
 
         // write offset file
@@ -0,0 +1,381 @@
+package org.wikibrain.matrix;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ * A compressed companion to a dense matrix that stores each row as a product quantization code.
+ *
+ * The columns are split into contiguous subspaces and k-means learns 256 centroids for
+ * each subspace from a sample of the normalized rows. A row is then stored as one byte per
+ * subspace: the index of the nearest centroid. With four columns per subspace a row takes
+ * a quarter of a byte per column instead of two bytes in the dense matrix.
+ *
+ * Similarities are estimated with asymmetric distance tables. {@link #getTable(float[])}
+ * computes the dot product of the normalized query with every centroid once, after which
+ * the estimated cosine of a row is the sum of one table entry per subspace. Estimates are
+ * meant for choosing candidates that are then re-ranked with the exact rows.
+ *
+ * Rows are stored in the order of {@link DenseMatrix#getRowIds()}.
+ *
+ * @author Shilad Sen
+ */
+public class ProductQuantizedMatrix {
+    private static final Logger LOG = LoggerFactory.getLogger(ProductQuantizedMatrix.class);
+
+    public static final int MAGIC = 0x57425051;     // "WBPQ"
+    public static final int VERSION = 1;
+
+    public static final int NUM_CENTROIDS = 256;
+
+    /**
+     * Seed of the random number generator used when no seed is given.
+     */
+    public static final long DEFAULT_SEED = 0x57425051L;
+
+    private static final int MAX_SAMPLE = 20000;
+    private static final int KMEANS_ITERATIONS = 10;
+
+    // Mapped chunks of codes are at most 2^30 bytes
+    private static final int CHUNK_BYTES = 1 << 30;
+
+    private final int ids[];
+    private final int dims;
+    private final int numSubspaces;
+    private final int bounds[];         // subspace s covers columns [bounds[s], bounds[s+1])
+    private final float centroids[][];  // centroids[s] holds NUM_CENTROIDS vectors of the subspace's columns
+    private final int rowsPerChunk;
+    private final ByteBuffer codes[];
+
+    private ProductQuantizedMatrix(int ids[], int dims, int bounds[], float centroids[][], ByteBuffer codes[]) {
+        this.ids = ids;
+        this.dims = dims;
+        this.numSubspaces = bounds.length - 1;
+        this.bounds = bounds;
+        this.centroids = centroids;
+        this.rowsPerChunk = CHUNK_BYTES / numSubspaces;
+        this.codes = codes;
+    }
+
+    /**
+     * Learns codebooks from a sample of the matrix with the default seed and encodes all its rows.
+     * @see #build(DenseMatrix, int, long)
+     */
+    public static ProductQuantizedMatrix build(DenseMatrix matrix, int numSubspaces) throws IOException {
+        return build(matrix, numSubspaces, DEFAULT_SEED);
+    }
+
+    /**
+     * Learns codebooks from a sample of the matrix and encodes all its rows.
+     * The centroids of an empty matrix are all zero.
+     *
+     * @param matrix
+     * @param numSubspaces The number of bytes per row. Must be at most the number of columns,
+     *                     or 1 if the matrix has no columns.
+     * @param seed Seed for sampling rows and initializing centroids, so builds are reproducible.
+     * @return
+     * @throws IOException
+     */
+    public static ProductQuantizedMatrix build(DenseMatrix matrix, int numSubspaces, long seed) throws IOException {
+        int ids[] = matrix.getRowIds();
+        int dims = matrix.getColIds().length;
+        if (numSubspaces < 1 || numSubspaces > Math.max(1, dims)) {
+            throw new IllegalArgumentException("number of subspaces must be between 1 and " + Math.max(1, dims));
+        }
+        int bounds[] = new int[numSubspaces + 1];
+        for (int s = 0; s <= numSubspaces; s++) {
+            bounds[s] = (int) ((long) s * dims / numSubspaces);
+        }
+
+        // Sample normalized rows to train on
+        Random random = new Random(seed);
+        int sampleSize = Math.min(MAX_SAMPLE, ids.length);
+        int shuffled[] = Arrays.copyOf(ids, ids.length);
+        for (int i = 0; i < sampleSize; i++) {
+            int j = i + random.nextInt(shuffled.length - i);
+            int tmp = shuffled[i];
+            shuffled[i] = shuffled[j];
+            shuffled[j] = tmp;
+        }
+        float sample[][] = new float[sampleSize][];
+        for (int i = 0; i < sampleSize; i++) {
+            sample[i] = normalize(matrix.getRow(shuffled[i]).getValues());
+        }
+
+        float centroids[][] = new float[numSubspaces][];
+        for (int s = 0; s < numSubspaces; s++) {
+            if (sampleSize == 0) {
+                centroids[s] = new float[NUM_CENTROIDS * (bounds[s + 1] - bounds[s])];
+            } else {
+                centroids[s] = kmeans(sample, bounds[s], bounds[s + 1], random);
+            }
+        }
+        LOG.info("trained product quantizer with " + numSubspaces + " subspaces on " + sampleSize + " rows");
+
+        int rowsPerChunk = CHUNK_BYTES / numSubspaces;
+        ByteBuffer codes[] = new ByteBuffer[(ids.length + rowsPerChunk - 1) / rowsPerChunk];
+        for (int i = 0; i < codes.length; i++) {
+            int rows = Math.min(rowsPerChunk, ids.length - i * rowsPerChunk);
+            codes[i] = ByteBuffer.allocate(rows * numSubspaces);
+        }
+        ProductQuantizedMatrix pq = new ProductQuantizedMatrix(ids, dims, bounds, centroids, codes);
+        for (int i = 0; i < ids.length; i++) {
+            float v[] = normalize(matrix.getRow(ids[i]).getValues());
+            ByteBuffer chunk = codes[i / rowsPerChunk];
+            int base = (i % rowsPerChunk) * numSubspaces;
+            for (int s = 0; s < numSubspaces; s++) {
+                chunk.put(base + s, (byte) nearest(centroids[s], v, bounds[s], bounds[s + 1]));
+            }
+        }
+        return pq;
+    }
+
+    /**
+     * Memory maps the codes of a quantized matrix written by {@link #write(java.io.File)}.
+     * @param path
+     * @return
+     * @throws IOException
+     */
+    public static ProductQuantizedMatrix load(File path) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(path, "r");
+        try {
+            DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(raf.getFD())));
+            if (in.readInt() != MAGIC) {
+                throw new IOException("invalid magic number in quantized matrix " + path);
+            }
+            int version = in.readInt();
+            if (version != VERSION) {
+                throw new IOException("unsupported version " + version + " of quantized matrix " + path);
+            }
+            int numRows = in.readInt();
+            int dims = in.readInt();
+            int numSubspaces = in.readInt();
+            int bounds[] = new int[numSubspaces + 1];
+            for (int s = 0; s <= numSubspaces; s++) {
+                bounds[s] = in.readInt();
+            }
+            float centroids[][] = new float[numSubspaces][];
+            for (int s = 0; s < numSubspaces; s++) {
+                centroids[s] = new float[NUM_CENTROIDS * (bounds[s + 1] - bounds[s])];
+                for (int i = 0; i < centroids[s].length; i++) {
+                    centroids[s][i] = in.readFloat();
+                }
+            }
+            int ids[] = new int[numRows];
+            for (int i = 0; i < numRows; i++) {
+                ids[i] = in.readInt();
+            }
+            long pos = 4L * (5 + bounds.length + numRows) + 4L * NUM_CENTROIDS * dims;
+            if (raf.length() != pos + (long) numRows * numSubspaces) {
+                throw new IOException("truncated quantized matrix " + path);
+            }
+            int rowsPerChunk = CHUNK_BYTES / numSubspaces;
+            ByteBuffer codes[] = new ByteBuffer[(numRows + rowsPerChunk - 1) / rowsPerChunk];
+            for (int i = 0; i < codes.length; i++) {
+                int bytes = Math.min(rowsPerChunk, numRows - i * rowsPerChunk) * numSubspaces;
+                codes[i] = raf.getChannel().map(FileChannel.MapMode.READ_ONLY, pos, bytes);
+                pos += bytes;
+            }
+            return new ProductQuantizedMatrix(ids, dims, bounds, centroids, codes);
+        } finally {
+            raf.close();    // mappings remain valid after the file is closed
+        }
+    }
+
+    /**
+     * Writes the codebooks and codes to a file.
+     * @param path
+     * @throws IOException
+     */
+    public void write(File path) throws IOException {
+        path.getAbsoluteFile().getParentFile().mkdirs();
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(path), 1 << 16));
+        try {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeInt(ids.length);
+            out.writeInt(dims);
+            out.writeInt(numSubspaces);
+            for (int b : bounds) {
+                out.writeInt(b);
+            }
+            for (float c[] : centroids) {
+                for (float x : c) {
+                    out.writeFloat(x);
+                }
+            }
+            for (int id : ids) {
+                out.writeInt(id);
+            }
+            byte buffer[] = new byte[1 << 16];
+            for (ByteBuffer chunk : codes) {
+                chunk = chunk.duplicate();
+                chunk.clear();
+                while (chunk.hasRemaining()) {
+                    int n = Math.min(buffer.length, chunk.remaining());
+                    chunk.get(buffer, 0, n);
+                    out.write(buffer, 0, n);
+                }
+            }
+        } finally {
+            out.close();
+        }
+    }
+
+    /**
+     * Computes the asymmetric distance table for a query.
+     * Entry s * NUM_CENTROIDS + c is the dot product of the normalized query with centroid c of subspace s.
+     *
+     * @param query
+     * @return
+     */
+    public float[] getTable(float query[]) {
+        if (query.length != dims) {
+            throw new IllegalArgumentException("Expected " + dims + " dimensions, found " + query.length);
+        }
+        float q[] = normalize(Arrays.copyOf(query, query.length));
+        float table[] = new float[numSubspaces * NUM_CENTROIDS];
+        for (int s = 0; s < numSubspaces; s++) {
+            int start = bounds[s];
+            int len = bounds[s + 1] - start;
+            float c[] = centroids[s];
+            for (int j = 0; j < NUM_CENTROIDS; j++) {
+                float sum = 0;
+                for (int d = 0; d < len; d++) {
+                    sum += q[start + d] * c[j * len + d];
+                }
+                table[s * NUM_CENTROIDS + j] = sum;
+            }
+        }
+        return table;
+    }
+
+    /**
+     * Estimates the cosine between the query of a table and a row.
+     * @param table A table from {@link #getTable(float[])}
+     * @param rowIndex The index of the row, not its id.
+     * @return
+     */
+    public float score(float table[], int rowIndex) {
+        ByteBuffer chunk = codes[rowIndex / rowsPerChunk];
+        int base = (rowIndex % rowsPerChunk) * numSubspaces;
+        float sum = 0;
+        for (int s = 0; s < numSubspaces; s++) {
+            sum += table[s * NUM_CENTROIDS + (chunk.get(base + s) & 0xFF)];
+        }
+        return sum;
+    }
+
+    /**
+     * Estimates the cosine between the query of a table and every row with one sequential scan of the codes.
+     * @param table A table from {@link #getTable(float[])}
+     * @param scores Output array with one entry per row.
+     */
+    public void scoreAll(float table[], float scores[]) {
+        int i = 0;
+        for (ByteBuffer chunk : codes) {
+            int limit = chunk.capacity();
+            for (int base = 0; base < limit; base += numSubspaces) {
+                float sum = 0;
+                for (int s = 0; s < numSubspaces; s++) {
+                    sum += table[s * NUM_CENTROIDS + (chunk.get(base + s) & 0xFF)];
+                }
+                scores[i++] = sum;
+            }
+        }
+    }
+
+    public int[] getRowIds() {
+        return ids;
+    }
+
+    public int getNumRows() {
+        return ids.length;
+    }
+
+    public int getNumSubspaces() {
+        return numSubspaces;
+    }
+
+    public int getNumCols() {
+        return dims;
+    }
+
+    private static float[] kmeans(float sample[][], int start, int end, Random random) {
+        int len = end - start;
+        float c[] = new float[NUM_CENTROIDS * len];
+        for (int j = 0; j < NUM_CENTROIDS; j++) {
+            float v[] = sample[random.nextInt(sample.length)];
+            System.arraycopy(v, start, c, j * len, len);
+        }
+        int assignments[] = new int[sample.length];
+        float sums[] = new float[NUM_CENTROIDS * len];
+        int counts[] = new int[NUM_CENTROIDS];
+        for (int iter = 0; iter < KMEANS_ITERATIONS; iter++) {
+            for (int i = 0; i < sample.length; i++) {
+                assignments[i] = nearest(c, sample[i], start, end);
+            }
+            Arrays.fill(sums, 0);
+            Arrays.fill(counts, 0);
+            for (int i = 0; i < sample.length; i++) {
+                int j = assignments[i];
+                counts[j]++;
+                for (int d = 0; d < len; d++) {
+                    sums[j * len + d] += sample[i][start + d];
+                }
+            }
+            for (int j = 0; j < NUM_CENTROIDS; j++) {
+                if (counts[j] == 0) {
+                    // Reseed empty clusters with a random point
+                    System.arraycopy(sample[random.nextInt(sample.length)], start, c, j * len, len);
+                } else {
+                    for (int d = 0; d < len; d++) {
+                        c[j * len + d] = sums[j * len + d] / counts[j];
+                    }
+                }
+            }
+        }
+        return c;
+    }
+
+    /**
+     * Returns the index of the centroid closest (in Euclidean distance) to the columns [start, end) of v.
+     */
+    private static int nearest(float c[], float v[], int start, int end) {
+        int len = end - start;
+        int best = 0;
+        float bestDist = Float.POSITIVE_INFINITY;
+        for (int j = 0; j < NUM_CENTROIDS; j++) {
+            float dist = 0;
+            for (int d = 0; d < len; d++) {
+                float x = v[start + d] - c[j * len + d];
+                dist += x * x;
+            }
+            if (dist < bestDist) {
+                bestDist = dist;
+                best = j;
+            }
+        }
+        return best;
+    }
+
+    private static float[] normalize(float v[]) {
+        double norm = 0.0;
+        for (float x : v) {
+            norm += x * x;
+        }
+        norm = Math.sqrt(norm);
+        if (norm > 0) {
+            for (int i = 0; i < v.length; i++) {
+                v[i] /= norm;
+            }
+        }
+        return v;
+    }
+}
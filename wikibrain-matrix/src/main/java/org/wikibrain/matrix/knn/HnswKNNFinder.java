@@ -0,0 +1,764 @@
+package org.wikibrain.matrix.knn;
+
+import gnu.trove.set.TIntSet;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.wikibrain.matrix.DenseMatrix;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.FloatBuffer;
+import java.nio.IntBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Nearest neighbors using a hierarchical navigable small world (HNSW) graph.
+ *
+ * Each row is a node in a layered proximity graph. Every node appears in layer 0, and
+ * exponentially fewer nodes appear in each higher layer. A query greedily descends the
+ * sparse upper layers to find a good entry point, then runs a best-first search of
+ * width max(k, maxTraversal) in layer 0.
+ *
+ * A query filtered to a small fraction of the rows scans the valid rows exactly. Otherwise
+ * the search width is scaled by the inverse selectivity of the filter and doubled until k
+ * valid rows are found, because the graph search only sees the valid rows it walks past.
+ *
+ * The graph is stored as flat int arrays rather than objects. Layer 0 holds 1 + 2M ints
+ * per node (a count and the neighbor slots) and each upper layer a node belongs to
+ * holds 1 + M ints. The rows are stored normalized, so similarities are dot products.
+ * save() writes these arrays to a binary file that load() memory maps, so a large model
+ * is not copied onto the heap.
+ *
+ * build() inserts nodes from several threads at once. Each neighbor list is guarded by
+ * one of a fixed number of striped locks, and a thread never holds more than one of them.
+ * Node levels are drawn from a seeded generator, so a build with one thread always
+ * produces the same graph for the same matrix.
+ *
+ * @author Shilad Sen
+ */
+public class HnswKNNFinder implements KNNFinder {
+    private static final Logger LOG = LoggerFactory.getLogger(HnswKNNFinder.class);
+
+    public static final int MAGIC = 0x57424857;   // "WBHW"
+    public static final int VERSION = 1;
+
+    private static final int HEADER_INTS = 8;
+    private static final int MAX_LEVEL = 16;
+    private static final int NUM_LOCKS = 1 << 14;
+    private static final long LEVEL_SEED = 0x57424857L;
+
+    // Filters that keep at most 1 / EXACT_SCAN_FRACTION of the rows are scanned exactly
+    private static final int EXACT_SCAN_FRACTION = 20;
+
+    // Mapped chunks of vectors hold at most 2^28 floats (1GB)
+    private static final int CHUNK_FLOATS = 1 << 28;
+
+    private final DenseMatrix matrix;
+    private int m = 16;
+    private int efConstruction = 200;
+    private int numThreads = Runtime.getRuntime().availableProcessors();
+
+    private int n;
+    private int dims;
+    private int ids[];
+    private int sortedIds[];        // ids in increasing order
+    private int sortedIndexes[];    // index of each sorted id
+    private IntBuffer levels;
+    private IntBuffer upperOffsets;
+    private IntBuffer layer0;
+    private IntBuffer upper;
+    private int rowsPerChunk;
+    private FloatBuffer vectors[];
+
+    private volatile int entryPoint;
+    private volatile int maxLevel;
+
+    // Only non-null while the graph is being built
+    private Object locks[];
+
+    private ThreadLocal<Workspace> workspaces;
+
+    public HnswKNNFinder(DenseMatrix matrix) {
+        this.matrix = matrix;
+    }
+
+    @Override
+    public void build() throws IOException {
+        ids = matrix.getRowIds();
+        n = ids.length;
+        dims = (n == 0) ? 0 : matrix.getRow(ids[0]).getNumCols();
+        if ((long) n * (1 + 2 * m) > Integer.MAX_VALUE) {
+            throw new IllegalStateException("too many rows for a graph with m=" + m + ": " + n);
+        }
+        indexIds();
+
+        float vals[][] = allocateVectors();
+        for (int i = 0; i < n; i++) {
+            float v[] = matrix.getRow(ids[i]).getValues();
+            if (v.length != dims) {
+                throw new IllegalStateException("Expected " + dims + " dimensions, found " + v.length);
+            }
+            normalize(v);
+            System.arraycopy(v, 0, vals[i / rowsPerChunk], (i % rowsPerChunk) * dims, dims);
+        }
+
+        // Levels are drawn up front so the layout of the upper layers is known.
+        Random random = new Random(LEVEL_SEED);
+        double ml = 1.0 / Math.log(m);
+        int levelArray[] = new int[n];
+        int offsetArray[] = new int[n];
+        int upperSize = 0;
+        for (int i = 0; i < n; i++) {
+            int level = (int) (-Math.log(1.0 - random.nextDouble()) * ml);
+            levelArray[i] = Math.min(level, MAX_LEVEL);
+            offsetArray[i] = (levelArray[i] == 0) ? -1 : upperSize;
+            upperSize += levelArray[i] * (1 + m);
+        }
+        levels = IntBuffer.wrap(levelArray);
+        upperOffsets = IntBuffer.wrap(offsetArray);
+        layer0 = IntBuffer.wrap(new int[n * (1 + 2 * m)]);
+        upper = IntBuffer.wrap(new int[upperSize]);
+        workspaces = newWorkspaces();
+        if (n == 0) {
+            return;
+        }
+
+        locks = new Object[NUM_LOCKS];
+        for (int i = 0; i < locks.length; i++) {
+            locks[i] = new Object();
+        }
+        entryPoint = 0;
+        maxLevel = levelArray[0];
+
+        final AtomicInteger next = new AtomicInteger(1);
+        final Throwable errors[] = new Throwable[1];
+        Thread threads[] = new Thread[Math.max(1, numThreads)];
+        for (int t = 0; t < threads.length; t++) {
+            threads[t] = new Thread() {
+                @Override
+                public void run() {
+                    try {
+                        while (true) {
+                            int i = next.getAndIncrement();
+                            if (i >= n) {
+                                break;
+                            }
+                            insert(i);
+                            if (i % 100000 == 0) {
+                                LOG.info("inserted " + i + " of " + n + " rows into hnsw graph");
+                            }
+                        }
+                    } catch (Throwable e) {
+                        synchronized (errors) {
+                            errors[0] = e;
+                        }
+                        next.set(n);    // stop the other threads
+                    }
+                }
+            };
+            threads[t].start();
+        }
+        try {
+            for (Thread t : threads) {
+                t.join();
+            }
+        } catch (InterruptedException e) {
+            throw new IOException(e);
+        }
+        locks = null;
+        if (errors[0] != null) {
+            throw new IllegalStateException("building hnsw graph failed", errors[0]);
+        }
+        LOG.info("built hnsw graph with " + n + " rows and " + (maxLevel + 1) + " layers");
+    }
+
+    private void insert(int q) {
+        Workspace ws = workspaces.get();
+        float vector[] = new float[dims];
+        getVector(q, vector);
+
+        int level = levels.get(q);
+        int ep, top;
+        synchronized (this) {
+            ep = entryPoint;
+            top = maxLevel;
+        }
+        for (int l = top; l > level; l--) {
+            ep = greedySearch(vector, ep, l, ws);
+        }
+        for (int l = Math.min(top, level); l >= 0; l--) {
+            searchLayer(vector, ep, efConstruction, l, ws, null, null);
+            Heap results = ws.results;
+            int count = results.size();
+            int cands[] = new int[count];
+            double sims[] = new double[count];
+            for (int i = count - 1; i >= 0; i--) {
+                sims[i] = results.peekScore();
+                cands[i] = results.pop();
+            }
+            ep = cands[0];
+            int selected = selectNeighbors(cands, sims, count, m);
+            connect(q, l, cands, selected);
+            for (int i = 0; i < selected; i++) {
+                connect(cands[i], l, new int[]{q}, 1);
+            }
+        }
+        if (level > top) {
+            synchronized (this) {
+                if (level > maxLevel) {
+                    entryPoint = q;
+                    maxLevel = level;
+                }
+            }
+        }
+    }
+
+    @Override
+    public Neighborhood query(float[] vector, int k, int maxTraversal, TIntSet validIds) {
+        if (vector.length != dims) {
+            throw new IllegalArgumentException("Expected " + dims + " dimensions, found " + vector.length);
+        }
+        NeighborhoodAccumulator accum = new NeighborhoodAccumulator(k);
+        if (n == 0) {
+            return accum.get();
+        }
+        float q[] = Arrays.copyOf(vector, vector.length);
+        normalize(q);
+
+        // A selective filter is cheaper to scan than to find in the graph
+        if (validIds != null && validIds.size() <= Math.max(maxTraversal, n / EXACT_SCAN_FRACTION)) {
+            for (int id : validIds.toArray()) {
+                int i = Arrays.binarySearch(sortedIds, id);
+                if (i >= 0) {
+                    accum.visit(id, similarity(q, sortedIndexes[i]));
+                }
+            }
+            return accum.get();
+        }
+
+        Workspace ws = workspaces.get();
+        int ep = entryPoint;
+        for (int l = maxLevel; l > 0; l--) {
+            ep = greedySearch(q, ep, l, ws);
+        }
+        int ef = Math.max(k, maxTraversal);
+        if (validIds == null) {
+            searchLayer(q, ep, ef, 0, ws, accum, null);
+            return accum.get();
+        }
+
+        // Widen the search so it walks past about as many valid rows as an unfiltered search.
+        ef = (int) Math.min(n, Math.max(ef, (long) ef * n / validIds.size()));
+        while (true) {
+            searchLayer(q, ep, ef, 0, ws, accum, validIds);
+            Neighborhood result = accum.get();
+            if (result.size() >= k || ef >= n) {
+                return result;
+            }
+            ef = (int) Math.min(n, 2L * ef);
+            accum = new NeighborhoodAccumulator(k);
+        }
+    }
+
+    /**
+     * Walks a single layer towards the query, returning the closest node found.
+     */
+    private int greedySearch(float q[], int ep, int level, Workspace ws) {
+        double best = similarity(q, ep);
+        boolean changed = true;
+        while (changed) {
+            changed = false;
+            int count = getNeighbors(ep, level, ws.neighbors);
+            for (int i = 0; i < count; i++) {
+                int c = ws.neighbors[i];
+                double s = similarity(q, c);
+                if (s > best) {
+                    best = s;
+                    ep = c;
+                    changed = true;
+                }
+            }
+        }
+        return ep;
+    }
+
+    /**
+     * Best-first search of a layer. Leaves the ef most similar nodes in ws.results.
+     * If accum is not null, every visited node whose id is valid is also passed to it.
+     */
+    private void searchLayer(float q[], int ep, int ef, int level, Workspace ws,
+                             NeighborhoodAccumulator accum, TIntSet validIds) {
+        Heap candidates = ws.candidates;
+        Heap results = ws.results;
+        candidates.clear();
+        results.clear();
+        ws.newVisit();
+
+        ws.visited[ep] = ws.stamp;
+        double s = similarity(q, ep);
+        candidates.push(ep, -s);
+        results.push(ep, s);
+        if (accum != null && (validIds == null || validIds.contains(ids[ep]))) {
+            accum.visit(ids[ep], s);
+        }
+
+        while (candidates.size() > 0) {
+            double cs = -candidates.peekScore();
+            if (results.size() >= ef && cs < results.peekScore()) {
+                break;
+            }
+            int c = candidates.pop();
+            int count = getNeighbors(c, level, ws.neighbors);
+            for (int i = 0; i < count; i++) {
+                int e = ws.neighbors[i];
+                if (ws.visited[e] == ws.stamp) {
+                    continue;
+                }
+                ws.visited[e] = ws.stamp;
+                double es = similarity(q, e);
+                if (results.size() < ef || es > results.peekScore()) {
+                    candidates.push(e, -es);
+                    results.push(e, es);
+                    if (results.size() > ef) {
+                        results.pop();
+                    }
+                }
+                if (accum != null && (validIds == null || validIds.contains(ids[e]))) {
+                    accum.visit(ids[e], es);
+                }
+            }
+        }
+    }
+
+    /**
+     * Picks diverse neighbors: a candidate is kept only if it is more similar to the
+     * node than to any neighbor already kept. Candidates must be sorted by decreasing
+     * similarity. The kept candidates are moved to the front of the array.
+     *
+     * @return The number of candidates kept.
+     */
+    private int selectNeighbors(int cands[], double sims[], int count, int max) {
+        int selected = 0;
+        for (int i = 0; i < count && selected < max; i++) {
+            int c = cands[i];
+            boolean keep = true;
+            for (int j = 0; j < selected; j++) {
+                if (similarity(c, cands[j]) > sims[i]) {
+                    keep = false;
+                    break;
+                }
+            }
+            if (keep) {
+                cands[selected] = c;
+                sims[selected] = sims[i];
+                selected++;
+            }
+        }
+        return selected;
+    }
+
+    /**
+     * Adds edges from a node to new neighbors, pruning its list if it overflows.
+     */
+    private void connect(int node, int level, int newNeighbors[], int numNew) {
+        IntBuffer buffer = (level == 0) ? layer0 : upper;
+        int base = offset(node, level);
+        int max = (level == 0) ? 2 * m : m;
+        synchronized (locks[node & (NUM_LOCKS - 1)]) {
+            int count = buffer.get(base);
+            int cands[] = new int[count + numNew];
+            for (int i = 0; i < count; i++) {
+                cands[i] = buffer.get(base + 1 + i);
+            }
+            int total = count;
+            for (int i = 0; i < numNew; i++) {
+                int c = newNeighbors[i];
+                boolean present = (c == node);
+                for (int j = 0; j < total && !present; j++) {
+                    present = (cands[j] == c);
+                }
+                if (!present) {
+                    cands[total++] = c;
+                }
+            }
+            if (total > max) {
+                double sims[] = new double[total];
+                for (int i = 0; i < total; i++) {
+                    sims[i] = similarity(node, cands[i]);
+                }
+                sortBySimilarity(cands, sims, total);
+                total = selectNeighbors(cands, sims, total, max);
+            }
+            buffer.put(base, total);
+            for (int i = 0; i < total; i++) {
+                buffer.put(base + 1 + i, cands[i]);
+            }
+        }
+    }
+
+    /**
+     * Copies the neighbors of a node into the buffer and returns how many there are.
+     */
+    private int getNeighbors(int node, int level, int neighbors[]) {
+        Object lks[] = locks;
+        if (lks == null) {
+            return readNeighbors(node, level, neighbors);
+        }
+        synchronized (lks[node & (NUM_LOCKS - 1)]) {
+            return readNeighbors(node, level, neighbors);
+        }
+    }
+
+    private int readNeighbors(int node, int level, int neighbors[]) {
+        IntBuffer buffer = (level == 0) ? layer0 : upper;
+        int base = offset(node, level);
+        int count = buffer.get(base);
+        for (int i = 0; i < count; i++) {
+            neighbors[i] = buffer.get(base + 1 + i);
+        }
+        return count;
+    }
+
+    private int offset(int node, int level) {
+        if (level == 0) {
+            return node * (1 + 2 * m);
+        } else {
+            return upperOffsets.get(node) + (level - 1) * (1 + m);
+        }
+    }
+
+    private double similarity(float q[], int node) {
+        FloatBuffer chunk = vectors[node / rowsPerChunk];
+        int base = (node % rowsPerChunk) * dims;
+        double sum = 0.0;
+        for (int i = 0; i < dims; i++) {
+            sum += q[i] * chunk.get(base + i);
+        }
+        return sum;
+    }
+
+    private double similarity(int node1, int node2) {
+        FloatBuffer chunk1 = vectors[node1 / rowsPerChunk];
+        FloatBuffer chunk2 = vectors[node2 / rowsPerChunk];
+        int base1 = (node1 % rowsPerChunk) * dims;
+        int base2 = (node2 % rowsPerChunk) * dims;
+        double sum = 0.0;
+        for (int i = 0; i < dims; i++) {
+            sum += chunk1.get(base1 + i) * chunk2.get(base2 + i);
+        }
+        return sum;
+    }
+
+    private void getVector(int node, float vector[]) {
+        FloatBuffer chunk = vectors[node / rowsPerChunk];
+        int base = (node % rowsPerChunk) * dims;
+        for (int i = 0; i < dims; i++) {
+            vector[i] = chunk.get(base + i);
+        }
+    }
+
+    @Override
+    public void save(File path) throws IOException {
+        path.getParentFile().mkdirs();
+        RandomAccessFile raf = new RandomAccessFile(path, "rw");
+        try {
+            raf.setLength(0);
+            FileChannel channel = raf.getChannel();
+            ByteBuffer buffer = ByteBuffer.allocateDirect(1 << 20);
+            putInts(channel, buffer, IntBuffer.wrap(new int[]{
+                    MAGIC, VERSION, n, dims, m, maxLevel, entryPoint, upper.capacity()
+            }));
+            putInts(channel, buffer, IntBuffer.wrap(ids));
+            putInts(channel, buffer, levels);
+            putInts(channel, buffer, upperOffsets);
+            putInts(channel, buffer, layer0);
+            putInts(channel, buffer, upper);
+            for (FloatBuffer chunk : vectors) {
+                chunk = chunk.duplicate();
+                chunk.clear();
+                while (chunk.hasRemaining()) {
+                    buffer.clear();
+                    while (buffer.remaining() >= 4 && chunk.hasRemaining()) {
+                        buffer.putFloat(chunk.get());
+                    }
+                    buffer.flip();
+                    while (buffer.hasRemaining()) {
+                        channel.write(buffer);
+                    }
+                }
+            }
+        } finally {
+            raf.close();
+        }
+    }
+
+    private static void putInts(FileChannel channel, ByteBuffer buffer, IntBuffer ints) throws IOException {
+        ints = ints.duplicate();
+        ints.clear();
+        while (ints.hasRemaining()) {
+            buffer.clear();
+            while (buffer.remaining() >= 4 && ints.hasRemaining()) {
+                buffer.putInt(ints.get());
+            }
+            buffer.flip();
+            while (buffer.hasRemaining()) {
+                channel.write(buffer);
+            }
+        }
+    }
+
+    @Override
+    public boolean load(File path) throws IOException {
+        if (!path.isFile()) {
+            LOG.warn("Not loading knn model. File doesn't exist: " + path);
+            return false;
+        } else if (path.lastModified() < matrix.getPath().lastModified()) {
+            LOG.warn("Not loading knn model. File " + path + " older than matrix: " + matrix.getPath());
+            return false;
+        }
+        RandomAccessFile raf = new RandomAccessFile(path, "r");
+        try {
+            FileChannel channel = raf.getChannel();
+            if (channel.size() < HEADER_INTS * 4) {
+                LOG.warn("Not loading knn model. File " + path + " is truncated");
+                return false;
+            }
+            IntBuffer header = channel.map(FileChannel.MapMode.READ_ONLY, 0, HEADER_INTS * 4).asIntBuffer();
+            if (header.get(0) != MAGIC || header.get(1) != VERSION) {
+                LOG.warn("Not loading knn model. File " + path + " is not a version " + VERSION + " hnsw model");
+                return false;
+            }
+            int newN = header.get(2);
+            int newDims = header.get(3);
+            int newM = header.get(4);
+            int upperSize = header.get(7);
+            int rowIds[] = matrix.getRowIds();
+            if (newN != rowIds.length) {
+                LOG.warn("Not loading knn model. Expected " + rowIds.length + " rows, found " + newN);
+                return false;
+            }
+            long layer0Ints = (long) newN * (1 + 2 * newM);
+            long expected = 4L * (HEADER_INTS + 3L * newN + layer0Ints + upperSize + (long) newN * newDims);
+            if (channel.size() != expected) {
+                LOG.warn("Not loading knn model. Expected " + expected + " bytes in " + path + ", found " + channel.size());
+                return false;
+            }
+
+            long pos = HEADER_INTS * 4;
+            int newIds[] = new int[newN];
+            mapInts(channel, pos, newN).get(newIds);
+            pos += 4L * newN;
+            if (!Arrays.equals(newIds, rowIds)) {
+                LOG.warn("Not loading knn model. Row ids in " + path + " do not match matrix " + matrix.getPath());
+                return false;
+            }
+
+            n = newN;
+            dims = newDims;
+            m = newM;
+            ids = newIds;
+            maxLevel = header.get(5);
+            entryPoint = header.get(6);
+            indexIds();
+            levels = mapInts(channel, pos, n);
+            pos += 4L * n;
+            upperOffsets = mapInts(channel, pos, n);
+            pos += 4L * n;
+            layer0 = mapInts(channel, pos, layer0Ints);
+            pos += 4L * layer0Ints;
+            upper = mapInts(channel, pos, upperSize);
+            pos += 4L * upperSize;
+            rowsPerChunk = Math.max(1, CHUNK_FLOATS / Math.max(1, dims));
+            vectors = new FloatBuffer[(n + rowsPerChunk - 1) / rowsPerChunk];
+            for (int i = 0; i < vectors.length; i++) {
+                int rows = Math.min(rowsPerChunk, n - i * rowsPerChunk);
+                long bytes = 4L * rows * dims;
+                vectors[i] = channel.map(FileChannel.MapMode.READ_ONLY, pos, bytes).asFloatBuffer();
+                pos += bytes;
+            }
+            workspaces = newWorkspaces();
+            return true;
+        } finally {
+            raf.close();    // mappings remain valid after the channel is closed
+        }
+    }
+
+    private static IntBuffer mapInts(FileChannel channel, long pos, long ints) throws IOException {
+        if (ints * 4 > Integer.MAX_VALUE) {
+            throw new IOException("section of " + ints + " ints is too large to map");
+        }
+        return channel.map(FileChannel.MapMode.READ_ONLY, pos, ints * 4).asIntBuffer();
+    }
+
+    private float[][] allocateVectors() {
+        rowsPerChunk = Math.max(1, CHUNK_FLOATS / Math.max(1, dims));
+        float vals[][] = new float[(n + rowsPerChunk - 1) / rowsPerChunk][];
+        vectors = new FloatBuffer[vals.length];
+        for (int i = 0; i < vals.length; i++) {
+            int rows = Math.min(rowsPerChunk, n - i * rowsPerChunk);
+            vals[i] = new float[rows * dims];
+            vectors[i] = FloatBuffer.wrap(vals[i]);
+        }
+        return vals;
+    }
+
+    private void indexIds() {
+        sortedIds = Arrays.copyOf(ids, n);
+        Arrays.sort(sortedIds);
+        sortedIndexes = new int[n];
+        for (int i = 0; i < n; i++) {
+            sortedIndexes[Arrays.binarySearch(sortedIds, ids[i])] = i;
+        }
+    }
+
+    private ThreadLocal<Workspace> newWorkspaces() {
+        return new ThreadLocal<Workspace>() {
+            @Override
+            protected Workspace initialValue() {
+                return new Workspace();
+            }
+        };
+    }
+
+    private static void normalize(float v[]) {
+        double norm = 0.0;
+        for (float x : v) {
+            norm += x * x;
+        }
+        norm = Math.sqrt(norm);
+        if (norm > 0) {
+            for (int i = 0; i < v.length; i++) {
+                v[i] /= norm;
+            }
+        }
+    }
+
+    private static void sortBySimilarity(int cands[], double sims[], int count) {
+        // Insertion sort, decreasing. Lists are at most 2M + 1 long.
+        for (int i = 1; i < count; i++) {
+            int c = cands[i];
+            double s = sims[i];
+            int j = i - 1;
+            while (j >= 0 && sims[j] < s) {
+                cands[j + 1] = cands[j];
+                sims[j + 1] = sims[j];
+                j--;
+            }
+            cands[j + 1] = c;
+            sims[j + 1] = s;
+        }
+    }
+
+    /**
+     * Sets the maximum number of neighbors per node in the upper layers.
+     * Layer 0 allows twice as many. Must be called before build().
+     */
+    public void setM(int m) {
+        this.m = m;
+    }
+
+    /**
+     * Sets the width of the search used to find the neighbors of each inserted node.
+     */
+    public void setEfConstruction(int efConstruction) {
+        this.efConstruction = efConstruction;
+    }
+
+    public void setNumThreads(int numThreads) {
+        this.numThreads = numThreads;
+    }
+
+    public int getM() {
+        return m;
+    }
+
+    /**
+     * Per-thread scratch space for searches.
+     */
+    private class Workspace {
+        final int visited[] = new int[n];
+        int stamp = 0;
+        final Heap candidates = new Heap();
+        final Heap results = new Heap();
+        final int neighbors[] = new int[2 * m + 1];
+
+        void newVisit() {
+            if (stamp == Integer.MAX_VALUE) {
+                Arrays.fill(visited, 0);
+                stamp = 0;
+            }
+            stamp++;
+        }
+    }
+
+    /**
+     * A binary min-heap of node indexes keyed by score.
+     */
+    private static class Heap {
+        private double scores[] = new double[64];
+        private int nodes[] = new int[64];
+        private int size = 0;
+
+        void clear() {
+            size = 0;
+        }
+
+        int size() {
+            return size;
+        }
+
+        double peekScore() {
+            return scores[0];
+        }
+
+        void push(int node, double score) {
+            if (size == scores.length) {
+                scores = Arrays.copyOf(scores, size * 2);
+                nodes = Arrays.copyOf(nodes, size * 2);
+            }
+            int i = size++;
+            while (i > 0) {
+                int parent = (i - 1) / 2;
+                if (scores[parent] <= score) {
+                    break;
+                }
+                scores[i] = scores[parent];
+                nodes[i] = nodes[parent];
+                i = parent;
+            }
+            scores[i] = score;
+            nodes[i] = node;
+        }
+
+        int pop() {
+            int top = nodes[0];
+            size--;
+            double score = scores[size];
+            int node = nodes[size];
+            int i = 0;
+            while (true) {
+                int child = 2 * i + 1;
+                if (child >= size) {
+                    break;
+                }
+                if (child + 1 < size && scores[child + 1] < scores[child]) {
+                    child++;
+                }
+                if (score <= scores[child]) {
+                    break;
+                }
+                scores[i] = scores[child];
+                nodes[i] = nodes[child];
+                i = child;
+            }
+            scores[i] = score;
+            nodes[i] = node;
+            return top;
+        }
+    }
+}
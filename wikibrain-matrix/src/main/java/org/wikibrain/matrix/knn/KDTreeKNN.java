@@ -9,22 +9,35 @@ import org.wikibrain.matrix.DenseMatrixRow;
 
 import java.io.File;
 import java.io.IOException;
+import java.nio.FloatBuffer;
+import java.nio.IntBuffer;
 import java.util.*;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
 /**
  * A fast neighborhood finder for dense vectors.
  *
+ * The leaves of the tree are stored as flat buffers: one centroid per leaf, and the
+ * member ids of all leaves concatenated with an offset for each leaf. Models are
+ * saved as a {@link KNNModelFile}, so loading one maps these buffers.
+ *
  * @author Shilad Sen
  */
 public class KDTreeKNN implements KNNFinder {
+    private static final Logger LOG = LoggerFactory.getLogger(KDTreeKNN.class);
+    private static final String MODEL_TYPE = "kdtree";
+
     private final DenseMatrix matrix;
     private final int[] allIds;
     private final int dimensions;
     private int maxSampleSize = 5000;
     private int maxLeaf = 100;
 
-    List<float []> centroids;
-    List<int []> members;
+    private int numLeaves;
+    private FloatBuffer centroids;      // numLeaves x dimensions
+    private IntBuffer memberOffsets;    // leaf i has members [memberOffsets[i], memberOffsets[i+1])
+    private IntBuffer memberIds;
 
     public KDTreeKNN(DenseMatrix matrix) throws IOException {
         this.matrix = matrix;
@@ -41,15 +54,29 @@ public class KDTreeKNN implements KNNFinder {
         System.arraycopy(allIds, 0, root.memberIds, 0, allIds.length);
         shuffle(root.memberIds);
 
-        centroids = new ArrayList<float[]>();
-        members = new ArrayList<int[]>();
-        build(root);
+        List<Node> leaves = new ArrayList<Node>();
+        build(root, leaves);
+
+        numLeaves = leaves.size();
+        float [] newCentroids = new float[numLeaves * dimensions];
+        int [] newOffsets = new int[numLeaves + 1];
+        int [] newIds = new int[allIds.length];
+        for (int i = 0; i < numLeaves; i++) {
+            Node leaf = leaves.get(i);
+            if (leaf.centroid != null) {    // the root has no centroid
+                System.arraycopy(leaf.centroid, 0, newCentroids, i * dimensions, dimensions);
+            }
+            System.arraycopy(leaf.memberIds, 0, newIds, newOffsets[i], leaf.memberIds.length);
+            newOffsets[i + 1] = newOffsets[i] + leaf.memberIds.length;
+        }
+        centroids = FloatBuffer.wrap(newCentroids);
+        memberOffsets = IntBuffer.wrap(newOffsets);
+        memberIds = IntBuffer.wrap(newIds);
     }
 
-    private void build(Node node) throws IOException {
+    private void build(Node node, List<Node> leaves) throws IOException {
         if (node.memberIds.length < maxLeaf) {
-            centroids.add(node.centroid);
-            members.add(node.memberIds);
+            leaves.add(node);
             return;
         }
 
@@ -132,8 +159,8 @@ public class KDTreeKNN implements KNNFinder {
         }
 
         // Recurse
-        build(node.left);
-        build(node.right);
+        build(node.left, leaves);
+        build(node.right, leaves);
 
     }
 
@@ -155,14 +182,15 @@ public class KDTreeKNN implements KNNFinder {
     @Override
     public Neighborhood query(float[] vector, int k, int maxTraversal, TIntSet validIds) {
         TreeSet<Candidate> clusters = new TreeSet<Candidate>();
-        for (int i = 0; i < centroids.size(); i++) {
-            clusters.add(new Candidate(i, dot(centroids.get(i), vector)));
+        for (int i = 0; i < numLeaves; i++) {
+            clusters.add(new Candidate(i, dot(i, vector)));
         }
         NeighborhoodAccumulator accum = new NeighborhoodAccumulator(k);
         int traversed = 0;
         while (!clusters.isEmpty()) {
             int clusterNum = clusters.pollLast().clusterNum;
-            for (int rowId : members.get(clusterNum)) {
+            for (int j = memberOffsets.get(clusterNum); j < memberOffsets.get(clusterNum + 1); j++) {
+                int rowId = memberIds.get(j);
                 if (validIds != null && !validIds.contains(rowId)) continue;
                 DenseMatrixRow row = null;
                 try {
@@ -183,12 +211,51 @@ public class KDTreeKNN implements KNNFinder {
 
     @Override
     public void save(File path) throws IOException {
-        throw new UnsupportedOperationException();
+        new KNNModelFile.Writer(MODEL_TYPE)
+                .put("ids", allIds)
+                .put("centroids", centroids)
+                .put("memberOffsets", memberOffsets)
+                .put("memberIds", memberIds)
+                .write(path);
     }
 
     @Override
     public boolean load(File path) throws IOException {
-        throw new UnsupportedOperationException();
+        if (!path.isFile()) {
+            LOG.warn("Not loading knn model. File doesn't exist: " + path);
+            return false;
+        } else if (path.lastModified() < matrix.getPath().lastModified()) {
+            LOG.warn("Not loading knn model. File " + path + " older than matrix: " + matrix.getPath());
+            return false;
+        }
+        KNNModelFile file;
+        try {
+            file = KNNModelFile.open(path);
+        } catch (IOException e) {
+            LOG.warn("Not loading knn model. " + e.getMessage());
+            return false;
+        }
+        if (!file.getType().equals(MODEL_TYPE)) {
+            LOG.warn("Not loading knn model. File " + path + " contains a " + file.getType() + " model");
+            return false;
+        }
+        if (!Arrays.equals(file.getInts("ids"), allIds)) {
+            LOG.warn("Not loading knn model. Row ids in " + path + " do not match matrix " + matrix.getPath());
+            return false;
+        }
+        FloatBuffer newCentroids = file.getFloatBuffer("centroids");
+        IntBuffer newOffsets = file.getIntBuffer("memberOffsets");
+        IntBuffer newIds = file.getIntBuffer("memberIds");
+        int newNumLeaves = newOffsets.capacity() - 1;
+        if (newCentroids.capacity() != newNumLeaves * dimensions || newIds.capacity() != allIds.length) {
+            LOG.warn("Not loading knn model. Invalid dimensions.");
+            return false;
+        }
+        this.numLeaves = newNumLeaves;
+        this.centroids = newCentroids;
+        this.memberOffsets = newOffsets;
+        this.memberIds = newIds;
+        return true;
     }
 
     public void setMaxSampleSize(int sampleSize) {
@@ -237,10 +304,11 @@ public class KDTreeKNN implements KNNFinder {
         }
     }
 
-    private double dot(float [] v1, float [] v2) {
+    private double dot(int leaf, float [] v) {
+        int base = leaf * dimensions;
         double sum = 0.0;
-        for (int i = 0; i < v1.length; i++) {
-            sum += v1[i] * v2[i];
+        for (int i = 0; i < v.length; i++) {
+            sum += centroids.get(base + i) * v[i];
         }
         return sum;
     }
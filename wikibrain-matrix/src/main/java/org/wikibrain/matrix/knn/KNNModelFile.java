@@ -0,0 +1,298 @@
+package org.wikibrain.matrix.knn;
+
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A versioned binary file of named primitive arrays used to persist knn models.
+ *
+ * Opening a model file only reads its directory. Every section is memory mapped, so
+ * large arrays such as signature bits or member ids are paged in on demand and shared
+ * through the page cache by all JVMs on a host that use the same model. Small metadata
+ * arrays can be copied onto the heap with the array getters.
+ *
+ * The file layout is:
+ * <pre>
+ *     int magic, int version, utf type, int numSections
+ *     numSections x (utf name, byte kind, long offset, long length)
+ *     section data, each aligned to 8 bytes
+ * </pre>
+ * where kind is the JVM type descriptor of the elements (I, J, S, F or D).
+ *
+ * @author Shilad Sen
+ */
+public class KNNModelFile {
+    public static final int MAGIC = 0x57424b4e;   // "WBKN"
+    public static final int VERSION = 1;
+
+    private final File path;
+    private final String type;
+    private final Map<String, Buffer> sections;
+
+    private KNNModelFile(File path, String type, Map<String, Buffer> sections) {
+        this.path = path;
+        this.type = type;
+        this.sections = sections;
+    }
+
+    /**
+     * Opens a model file and maps its sections.
+     *
+     * @param path
+     * @return
+     * @throws IOException If the file is not a model file of the current version.
+     */
+    public static KNNModelFile open(File path) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(path, "r");
+        try {
+            DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(raf.getFD())));
+            if (raf.length() < 8 || in.readInt() != MAGIC) {
+                throw new IOException("invalid magic number in knn model " + path);
+            }
+            int version = in.readInt();
+            if (version != VERSION) {
+                throw new IOException("unsupported version " + version + " of knn model " + path);
+            }
+            String type = in.readUTF();
+            int numSections = in.readInt();
+            Map<String, Buffer> sections = new LinkedHashMap<String, Buffer>();
+            FileChannel channel = raf.getChannel();
+            for (int i = 0; i < numSections; i++) {
+                String name = in.readUTF();
+                char kind = (char) in.readByte();
+                long offset = in.readLong();
+                long length = in.readLong();
+                long bytes = length * elementSize(kind);
+                if (offset + bytes > raf.length()) {
+                    throw new IOException("truncated section " + name + " in knn model " + path);
+                }
+                if (bytes > Integer.MAX_VALUE) {
+                    throw new IOException("section " + name + " in knn model " + path + " is too large to map");
+                }
+                ByteBuffer bb = channel.map(FileChannel.MapMode.READ_ONLY, offset, bytes);
+                sections.put(name, view(bb, kind));
+            }
+            return new KNNModelFile(path, type, sections);
+        } finally {
+            raf.close();    // mappings remain valid after the file is closed
+        }
+    }
+
+    /**
+     * @return The type of model, as passed to the writer.
+     */
+    public String getType() {
+        return type;
+    }
+
+    public File getPath() {
+        return path;
+    }
+
+    public boolean hasSection(String name) {
+        return sections.containsKey(name);
+    }
+
+    public IntBuffer getIntBuffer(String name) throws IOException {
+        return (IntBuffer) getSection(name, IntBuffer.class);
+    }
+
+    public LongBuffer getLongBuffer(String name) throws IOException {
+        return (LongBuffer) getSection(name, LongBuffer.class);
+    }
+
+    public ShortBuffer getShortBuffer(String name) throws IOException {
+        return (ShortBuffer) getSection(name, ShortBuffer.class);
+    }
+
+    public FloatBuffer getFloatBuffer(String name) throws IOException {
+        return (FloatBuffer) getSection(name, FloatBuffer.class);
+    }
+
+    public DoubleBuffer getDoubleBuffer(String name) throws IOException {
+        return (DoubleBuffer) getSection(name, DoubleBuffer.class);
+    }
+
+    /**
+     * Copies a small int section onto the heap.
+     */
+    public int[] getInts(String name) throws IOException {
+        IntBuffer buffer = getIntBuffer(name);
+        int result[] = new int[buffer.capacity()];
+        buffer.get(result);
+        return result;
+    }
+
+    /**
+     * Copies a small double section onto the heap.
+     */
+    public double[] getDoubles(String name) throws IOException {
+        DoubleBuffer buffer = getDoubleBuffer(name);
+        double result[] = new double[buffer.capacity()];
+        buffer.get(result);
+        return result;
+    }
+
+    private Buffer getSection(String name, Class<? extends Buffer> klass) throws IOException {
+        Buffer buffer = sections.get(name);
+        if (buffer == null) {
+            throw new IOException("no section " + name + " in knn model " + path);
+        }
+        if (!klass.isInstance(buffer)) {
+            throw new IOException("section " + name + " in knn model " + path + " is not a " + klass.getSimpleName());
+        }
+        // Each caller gets an independent position
+        if (buffer instanceof IntBuffer) return ((IntBuffer) buffer).duplicate();
+        if (buffer instanceof LongBuffer) return ((LongBuffer) buffer).duplicate();
+        if (buffer instanceof ShortBuffer) return ((ShortBuffer) buffer).duplicate();
+        if (buffer instanceof FloatBuffer) return ((FloatBuffer) buffer).duplicate();
+        return ((DoubleBuffer) buffer).duplicate();
+    }
+
+    private static Buffer view(ByteBuffer bb, char kind) {
+        switch (kind) {
+            case 'I': return bb.asIntBuffer();
+            case 'J': return bb.asLongBuffer();
+            case 'S': return bb.asShortBuffer();
+            case 'F': return bb.asFloatBuffer();
+            case 'D': return bb.asDoubleBuffer();
+            default: throw new IllegalArgumentException("unknown section kind " + kind);
+        }
+    }
+
+    private static int elementSize(char kind) throws IOException {
+        switch (kind) {
+            case 'I': return 4;
+            case 'J': return 8;
+            case 'S': return 2;
+            case 'F': return 4;
+            case 'D': return 8;
+            default: throw new IOException("unknown section kind " + kind);
+        }
+    }
+
+    /**
+     * Collects the sections of a model and writes them to a file.
+     */
+    public static class Writer {
+        private final String type;
+        private final List<String> names = new ArrayList<String>();
+        private final List<Buffer> buffers = new ArrayList<Buffer>();
+
+        public Writer(String type) {
+            this.type = type;
+        }
+
+        public Writer put(String name, int values[]) {
+            return put(name, IntBuffer.wrap(values));
+        }
+
+        public Writer put(String name, long values[]) {
+            return put(name, LongBuffer.wrap(values));
+        }
+
+        public Writer put(String name, short values[]) {
+            return put(name, ShortBuffer.wrap(values));
+        }
+
+        public Writer put(String name, float values[]) {
+            return put(name, FloatBuffer.wrap(values));
+        }
+
+        public Writer put(String name, double values[]) {
+            return put(name, DoubleBuffer.wrap(values));
+        }
+
+        /**
+         * Adds a section with the entire contents of a buffer, regardless of its position.
+         */
+        public Writer put(String name, Buffer buffer) {
+            if (names.contains(name)) {
+                throw new IllegalArgumentException("duplicate section " + name);
+            }
+            kind(buffer);
+            names.add(name);
+            buffers.add(buffer);
+            return this;
+        }
+
+        public void write(File path) throws IOException {
+            path.getAbsoluteFile().getParentFile().mkdirs();
+
+            // The directory has a fixed size, so write it once to measure it.
+            ByteArrayOutputStream directory = new ByteArrayOutputStream();
+            writeDirectory(new DataOutputStream(directory), 0);
+            long start = align(directory.size());
+
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(path), 1 << 16));
+            try {
+                writeDirectory(out, start);
+                long pos = directory.size();
+                for (Buffer buffer : buffers) {
+                    for (; pos < align(pos); pos++) {
+                        out.writeByte(0);
+                    }
+                    writeSection(out, buffer);
+                    pos += (long) buffer.capacity() * elementSize(kind(buffer));
+                }
+            } finally {
+                out.close();
+            }
+        }
+
+        private void writeDirectory(DataOutputStream out, long start) throws IOException {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeUTF(type);
+            out.writeInt(names.size());
+            long offset = start;
+            for (int i = 0; i < names.size(); i++) {
+                Buffer buffer = buffers.get(i);
+                char kind = kind(buffer);
+                out.writeUTF(names.get(i));
+                out.writeByte(kind);
+                out.writeLong(offset);
+                out.writeLong(buffer.capacity());
+                offset = align(offset + (long) buffer.capacity() * elementSize(kind));
+            }
+        }
+
+        private static void writeSection(DataOutputStream out, Buffer buffer) throws IOException {
+            int n = buffer.capacity();
+            if (buffer instanceof IntBuffer) {
+                IntBuffer b = (IntBuffer) buffer;
+                for (int i = 0; i < n; i++) out.writeInt(b.get(i));
+            } else if (buffer instanceof LongBuffer) {
+                LongBuffer b = (LongBuffer) buffer;
+                for (int i = 0; i < n; i++) out.writeLong(b.get(i));
+            } else if (buffer instanceof ShortBuffer) {
+                ShortBuffer b = (ShortBuffer) buffer;
+                for (int i = 0; i < n; i++) out.writeShort(b.get(i));
+            } else if (buffer instanceof FloatBuffer) {
+                FloatBuffer b = (FloatBuffer) buffer;
+                for (int i = 0; i < n; i++) out.writeFloat(b.get(i));
+            } else {
+                DoubleBuffer b = (DoubleBuffer) buffer;
+                for (int i = 0; i < n; i++) out.writeDouble(b.get(i));
+            }
+        }
+
+        private static char kind(Buffer buffer) {
+            if (buffer instanceof IntBuffer) return 'I';
+            if (buffer instanceof LongBuffer) return 'J';
+            if (buffer instanceof ShortBuffer) return 'S';
+            if (buffer instanceof FloatBuffer) return 'F';
+            if (buffer instanceof DoubleBuffer) return 'D';
+            throw new IllegalArgumentException("unsupported buffer type " + buffer.getClass());
+        }
+
+        private static long align(long pos) {
+            return (pos + 7) & ~7L;
+        }
+    }
+}
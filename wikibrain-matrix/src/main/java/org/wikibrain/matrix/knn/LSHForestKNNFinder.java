@@ -6,20 +6,25 @@ import org.wikibrain.matrix.DenseMatrixRow;
 
 import java.io.File;
 import java.io.IOException;
+import java.nio.ShortBuffer;
 import java.util.Arrays;
 import java.util.Random;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 /**
+ * Models are saved as a {@link KNNModelFile}, so loading one maps the bits of each tree
+ * instead of reading them onto the heap.
+ *
  * @author Shilad Sen
  */
 public class LSHForestKNNFinder implements KNNFinder {
     private static final Logger LOG = LoggerFactory.getLogger(LSHForestKNNFinder.class);
     private static final int NUM_BITS = 16; // Number of bits in each mask (size of short)
+    private static final String MODEL_TYPE = "lshforest";
 
     private int numTrees = 5;
-    private short [][] bits;
+    private ShortBuffer [] bits;
     private final DenseMatrix matrix;
     private final int dimensions;
     private final int [] ids;
@@ -38,7 +43,7 @@ public class LSHForestKNNFinder implements KNNFinder {
     @Override
     public synchronized void build() throws IOException {
         analyzeSample();
-        bits = new short[numTrees][];
+        bits = new ShortBuffer[numTrees];
         vectors = new double[numTrees][][];
         for (int i = 0; i < numTrees; i++) {
             buildTree(i);
@@ -95,10 +100,10 @@ public class LSHForestKNNFinder implements KNNFinder {
         }
 
         short [] B = new short[ids.length];
-        bits[treeNum] = B;
         for (int i = 0; i < ids.length; i++) {
             B[i] = project(treeNum, matrix.getRow(ids[i]).getValues());
         }
+        bits[treeNum] = ShortBuffer.wrap(B);
     }
 
 
@@ -145,12 +150,12 @@ public class LSHForestKNNFinder implements KNNFinder {
             if (validIds != null && !validIds.contains(ids[i])) continue;
             int maxMatch = -1; // max bitwise prefix match
             for (int t = 0; t < numTrees; t++) {
-                int m = Integer.numberOfLeadingZeros((P[t] ^ bits[t][i]) & 0xffff) - (32 - NUM_BITS);
+                int m = Integer.numberOfLeadingZeros((P[t] ^ bits[t].get(i)) & 0xffff) - (32 - NUM_BITS);
 //                System.out.format("Leading zeros for %d and %d with %s and %s with XOR %s is %d\n",
-//                        P[t], bits[t][i],
+//                        P[t], bits[t].get(i),
 //                        paddedShortBinary(P[t]),
-//                        paddedShortBinary(bits[t][i]),
-//                        paddedShortBinary((P[t] ^ bits[t][i])), m);
+//                        paddedShortBinary(bits[t].get(i)),
+//                        paddedShortBinary((P[t] ^ bits[t].get(i))), m);
                 maxMatch = Math.max(m, maxMatch);
             }
 //            maxMatch = rand.nextInt(17);
@@ -188,12 +193,74 @@ public class LSHForestKNNFinder implements KNNFinder {
 
     @Override
     public void save(File path) throws IOException {
-        throw new UnsupportedOperationException();
+        double flat[] = new double[numTrees * NUM_BITS * dimensions];
+        for (int t = 0; t < numTrees; t++) {
+            for (int i = 0; i < NUM_BITS; i++) {
+                System.arraycopy(vectors[t][i], 0, flat, (t * NUM_BITS + i) * dimensions, dimensions);
+            }
+        }
+        KNNModelFile.Writer writer = new KNNModelFile.Writer(MODEL_TYPE)
+                .put("ids", ids)
+                .put("vectors", flat)
+                .put("means", means)
+                .put("devs", devs);
+        for (int t = 0; t < numTrees; t++) {
+            writer.put("bits" + t, bits[t]);
+        }
+        writer.write(path);
     }
 
     @Override
-    public boolean load(File path) throws IOException {
-        throw new UnsupportedOperationException();
+    public synchronized boolean load(File path) throws IOException {
+        if (!path.isFile()) {
+            LOG.warn("Not loading knn model. File doesn't exist: " + path);
+            return false;
+        } else if (path.lastModified() < matrix.getPath().lastModified()) {
+            LOG.warn("Not loading knn model. File " + path + " older than matrix: " + matrix.getPath());
+            return false;
+        }
+        KNNModelFile file;
+        try {
+            file = KNNModelFile.open(path);
+        } catch (IOException e) {
+            LOG.warn("Not loading knn model. " + e.getMessage());
+            return false;
+        }
+        if (!file.getType().equals(MODEL_TYPE)) {
+            LOG.warn("Not loading knn model. File " + path + " contains a " + file.getType() + " model");
+            return false;
+        }
+        if (!Arrays.equals(file.getInts("ids"), ids)) {
+            LOG.warn("Not loading knn model. Row ids in " + path + " do not match matrix " + matrix.getPath());
+            return false;
+        }
+        double [] flat = file.getDoubles("vectors");
+        double [] newMeans = file.getDoubles("means");
+        double [] newDevs = file.getDoubles("devs");
+        if (newMeans.length != dimensions || newDevs.length != dimensions
+        ||  flat.length % (NUM_BITS * dimensions) != 0) {
+            LOG.warn("Not loading knn model. Invalid dimensions.");
+            return false;
+        }
+        int newNumTrees = flat.length / (NUM_BITS * dimensions);
+        double [][][] newVectors = new double[newNumTrees][NUM_BITS][dimensions];
+        ShortBuffer [] newBits = new ShortBuffer[newNumTrees];
+        for (int t = 0; t < newNumTrees; t++) {
+            for (int i = 0; i < NUM_BITS; i++) {
+                System.arraycopy(flat, (t * NUM_BITS + i) * dimensions, newVectors[t][i], 0, dimensions);
+            }
+            newBits[t] = file.getShortBuffer("bits" + t);
+            if (newBits[t].capacity() != ids.length) {
+                LOG.warn("Not loading knn model. Expected " + ids.length + " shorts, found " + newBits[t].capacity());
+                return false;
+            }
+        }
+        this.numTrees = newNumTrees;
+        this.vectors = newVectors;
+        this.bits = newBits;
+        this.means = newMeans;
+        this.devs = newDevs;
+        return true;
     }
 
     private String paddedShortBinary(int s) {
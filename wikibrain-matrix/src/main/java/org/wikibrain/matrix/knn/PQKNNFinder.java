@@ -0,0 +1,114 @@
+package org.wikibrain.matrix.knn;
+
+import gnu.trove.set.TIntSet;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.wikibrain.matrix.DenseMatrix;
+import org.wikibrain.matrix.DenseMatrixRow;
+import org.wikibrain.matrix.ProductQuantizedMatrix;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+
+/**
+ * Nearest neighbors using a product quantized copy of the matrix.
+ *
+ * A query scans the compact codes of every row with an asymmetric distance table,
+ * keeps the maxTraversal rows with the highest estimated cosine, and re-ranks only
+ * those candidates using the exact rows of the dense matrix.
+ *
+ * @see ProductQuantizedMatrix
+ * @author Shilad Sen
+ */
+public class PQKNNFinder implements KNNFinder {
+    private static final Logger LOG = LoggerFactory.getLogger(PQKNNFinder.class);
+
+    private final DenseMatrix matrix;
+    private int numSubspaces = -1;
+    private long seed = ProductQuantizedMatrix.DEFAULT_SEED;
+    private ProductQuantizedMatrix pq;
+
+    public PQKNNFinder(DenseMatrix matrix) {
+        this.matrix = matrix;
+    }
+
+    @Override
+    public void build() throws IOException {
+        int dims = matrix.getColIds().length;
+        int n = (numSubspaces > 0) ? numSubspaces : Math.max(1, dims / 4);
+        pq = ProductQuantizedMatrix.build(matrix, Math.min(n, Math.max(1, dims)), seed);
+    }
+
+    @Override
+    public Neighborhood query(float[] vector, int k, int maxTraversal, TIntSet validIds) {
+        ProductQuantizedMatrix pq = this.pq;
+        if (pq == null) {
+            throw new IllegalStateException("product quantized matrix has not been built or loaded");
+        }
+        int ids[] = pq.getRowIds();
+        float table[] = pq.getTable(vector);
+
+        // Rows are scored straight into the bounded candidate heap, so a query allocates
+        // nothing proportional to the number of rows.
+        NeighborhoodAccumulator candidates = new NeighborhoodAccumulator(Math.max(k, maxTraversal));
+        for (int i = 0; i < ids.length; i++) {
+            if (validIds == null || validIds.contains(ids[i])) {
+                candidates.visit(i, pq.score(table, i));
+            }
+        }
+
+        NeighborhoodAccumulator accum = new NeighborhoodAccumulator(k);
+        for (int i : candidates.get().getIds()) {
+            try {
+                DenseMatrixRow row = matrix.getRow(ids[i]);
+                accum.visit(ids[i], KmeansKNNFinder.cosine(vector, row));
+            } catch (IOException e) {
+                throw new IllegalStateException(e);
+            }
+        }
+        return accum.get();
+    }
+
+    @Override
+    public void save(File path) throws IOException {
+        pq.write(path);
+    }
+
+    @Override
+    public boolean load(File path) throws IOException {
+        if (!path.isFile()) {
+            LOG.warn("Not loading knn model. File doesn't exist: " + path);
+            return false;
+        } else if (path.lastModified() < matrix.getPath().lastModified()) {
+            LOG.warn("Not loading knn model. File " + path + " older than matrix: " + matrix.getPath());
+            return false;
+        }
+        ProductQuantizedMatrix newPq = ProductQuantizedMatrix.load(path);
+        if (!Arrays.equals(newPq.getRowIds(), matrix.getRowIds())) {
+            LOG.warn("Not loading knn model. Row ids in " + path + " do not match matrix " + matrix.getPath());
+            return false;
+        }
+        this.pq = newPq;
+        return true;
+    }
+
+    /**
+     * Sets the number of bytes per row in the quantized matrix.
+     * Defaults to one byte for every four columns.
+     */
+    public void setNumSubspaces(int numSubspaces) {
+        this.numSubspaces = numSubspaces;
+    }
+
+    /**
+     * Sets the seed used to train the quantizer.
+     */
+    public void setSeed(long seed) {
+        this.seed = seed;
+    }
+
+    public ProductQuantizedMatrix getQuantizedMatrix() {
+        return pq;
+    }
+}
@@ -6,6 +6,7 @@ import org.wikibrain.matrix.DenseMatrix;
 import org.wikibrain.matrix.DenseMatrixRow;
 
 import java.io.*;
+import java.nio.LongBuffer;
 import java.util.Arrays;
 import java.util.Random;
 import org.slf4j.Logger;
@@ -21,15 +22,19 @@ import org.slf4j.LoggerFactory;
  * To find neighbors, the algorithm counts how many of the 128 bits agree between
  * a query and a candidate.
  *
+ * Models are saved as a {@link KNNModelFile}, so loading one maps the bits instead of
+ * reading them onto the heap.
+ *
  * @author Shilad Sen
  */
 public class RandomProjectionKNNFinder implements KNNFinder {
     private static final Logger LOG = LoggerFactory.getLogger(RandomProjectionKNNFinder.class);
     public static final int NUM_BITS = 128;
+    private static final String MODEL_TYPE = "randomprojection";
 
     private final DenseMatrix matrix;
     private final int dimensions;
-    private long [] bits;   // two longs per matrix entry
+    private LongBuffer bits;   // two longs per matrix entry
     private int [] ids;
     private double [][] vectors;
 
@@ -46,14 +51,15 @@ public class RandomProjectionKNNFinder implements KNNFinder {
     @Override
     public void build() throws IOException {
         makeVectors();
-        bits = new long[ids.length*2];
+        long newBits[] = new long[ids.length*2];
         long vbits[] = new long[2];
         for (int i = 0; i < ids.length; i++) {
             float [] v = matrix.getRow(ids[i]).getValues();
             project(v, vbits);
-            bits[i*2] = vbits[0];
-            bits[i*2+1] = vbits[1];
+            newBits[i*2] = vbits[0];
+            newBits[i*2+1] = vbits[1];
         }
+        bits = LongBuffer.wrap(newBits);
     }
 
     private void makeVectors() throws IOException {
@@ -153,7 +159,7 @@ public class RandomProjectionKNNFinder implements KNNFinder {
         int[] numHits = new int[NUM_BITS + 1];
         for (int i = 0; i < ids.length; i++) {
             if (validIds != null && !validIds.contains(ids[i])) continue;
-            int nSet = NUM_BITS - Long.bitCount(bits[2*i] ^ p0) - Long.bitCount(bits[2*i+1] ^ p1);
+            int nSet = NUM_BITS - Long.bitCount(bits.get(2*i) ^ p0) - Long.bitCount(bits.get(2*i+1) ^ p1);
             numHits[nSet]++;
         }
 //        System.out.println("distribution is " + Arrays.toString(numHits));
@@ -172,7 +178,7 @@ public class RandomProjectionKNNFinder implements KNNFinder {
         NeighborhoodAccumulator accum = new NeighborhoodAccumulator(k);
         for (int i = 0; i < ids.length; i++) {
             if (validIds != null && !validIds.contains(ids[i])) continue;
-            int nSet = NUM_BITS - Long.bitCount(bits[2*i] ^ p0) - Long.bitCount(bits[2*i+1] ^ p1);
+            int nSet = NUM_BITS - Long.bitCount(bits.get(2*i) ^ p0) - Long.bitCount(bits.get(2*i+1) ^ p1);
             if (nSet >= threshold) {
                 try {
                     DenseMatrixRow row = matrix.getRow(ids[i]);
@@ -188,10 +194,17 @@ public class RandomProjectionKNNFinder implements KNNFinder {
 
     @Override
     public void save(File path) throws IOException {
-        path.getParentFile().mkdirs();
-        ObjectOutputStream oop = new ObjectOutputStream(new FileOutputStream(path));
-        oop.writeObject(new Object[] { vectors, bits, means, devs});
-        oop.close();
+        double flat[] = new double[NUM_BITS * dimensions];
+        for (int i = 0; i < NUM_BITS; i++) {
+            System.arraycopy(vectors[i], 0, flat, i * dimensions, dimensions);
+        }
+        new KNNModelFile.Writer(MODEL_TYPE)
+                .put("ids", ids)
+                .put("vectors", flat)
+                .put("means", means)
+                .put("devs", devs)
+                .put("bits", bits)
+                .write(path);
     }
 
     @Override
@@ -203,34 +216,45 @@ public class RandomProjectionKNNFinder implements KNNFinder {
             LOG.warn("Not loading knn model. File " + path + " older than matrix: " + matrix.getPath());
             return false;
         }
-        ObjectInputStream in = new ObjectInputStream(new FileInputStream(path));
+        KNNModelFile file;
         try {
-            Object [] obj = (Object[]) in.readObject();
-            double [][] newVectors = (double[][]) obj[0];
-            long [] newBits = (long[]) obj[1];
-            double [] newMeans = (double[]) obj[2];
-            double [] newDevs = (double[]) obj[3];
-            if (newBits.length != ids.length *2) {
-                LOG.warn("Not loading knn model. Expected " + 2*ids.length + " longs, found " + newBits.length);
-                return false;
-            }
-            if (newVectors.length != NUM_BITS || newVectors[0].length != dimensions) {
-                LOG.warn("Not loading knn model. Invalid vectors dimensions.");
-                return false;
-            }
-            if (newMeans.length != dimensions || newDevs.length != dimensions) {
-                LOG.warn("Not loading knn model. Invalid mean or devs dimensions.");
-                return false;
-            }
-            this.vectors =newVectors;
-            this.bits = newBits;
-            this.means = newMeans;
-            this.devs = newDevs;
-            return true;
-        } catch (ClassNotFoundException e) {
-            throw new IOException(e);
+            file = KNNModelFile.open(path);
+        } catch (IOException e) {
+            LOG.warn("Not loading knn model. " + e.getMessage());
+            return false;
+        }
+        if (!file.getType().equals(MODEL_TYPE)) {
+            LOG.warn("Not loading knn model. File " + path + " contains a " + file.getType() + " model");
+            return false;
+        }
+        if (!Arrays.equals(file.getInts("ids"), ids)) {
+            LOG.warn("Not loading knn model. Row ids in " + path + " do not match matrix " + matrix.getPath());
+            return false;
         }
+        LongBuffer newBits = file.getLongBuffer("bits");
+        double [] flat = file.getDoubles("vectors");
+        double [] newMeans = file.getDoubles("means");
+        double [] newDevs = file.getDoubles("devs");
+        if (newBits.capacity() != ids.length *2) {
+            LOG.warn("Not loading knn model. Expected " + 2*ids.length + " longs, found " + newBits.capacity());
+            return false;
+        }
+        if (flat.length != NUM_BITS * dimensions) {
+            LOG.warn("Not loading knn model. Invalid vectors dimensions.");
+            return false;
+        }
+        if (newMeans.length != dimensions || newDevs.length != dimensions) {
+            LOG.warn("Not loading knn model. Invalid mean or devs dimensions.");
+            return false;
+        }
+        double [][] newVectors = new double[NUM_BITS][dimensions];
+        for (int i = 0; i < NUM_BITS; i++) {
+            System.arraycopy(flat, i * dimensions, newVectors[i], 0, dimensions);
+        }
+        this.vectors =newVectors;
+        this.bits = newBits;
+        this.means = newMeans;
+        this.devs = newDevs;
+        return true;
     }
-
-
 }
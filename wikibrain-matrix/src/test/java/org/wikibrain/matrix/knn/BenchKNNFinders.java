@@ -0,0 +1,90 @@
+package org.wikibrain.matrix.knn;
+
+import gnu.trove.set.TIntSet;
+import gnu.trove.set.hash.TIntHashSet;
+import org.wikibrain.matrix.DenseMatrix;
+import org.wikibrain.matrix.DenseMatrixRow;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Random;
+
+/**
+ * Compares the recall and latency of the knn finders.
+ *
+ * Usage: BenchKNNFinders [path/to/dense.matrix [numQueries]]
+ *
+ * With a matrix (e.g. the word2vec article or word matrices) queries are random rows of the
+ * matrix. Without one a random 100,000 x 200 matrix is used.
+ *
+ * @author Shilad Sen
+ */
+public class BenchKNNFinders {
+    private static final int K = 10;
+    private static final int TRAVERSALS[] = { 50, 100, 500, 1000 };
+
+    public static void main(String args[]) throws IOException {
+        DenseMatrix matrix = (args.length > 0)
+                ? new DenseMatrix(new File(args[0]))
+                : TestUtils.createMatrix(100000, 200);
+        int numQueries = (args.length > 1) ? Integer.valueOf(args[1]) : 200;
+
+        Random random = new Random();
+        int rowIds[] = matrix.getRowIds();
+        float queries[][] = new float[numQueries][];
+        for (int i = 0; i < numQueries; i++) {
+            queries[i] = matrix.getRow(rowIds[random.nextInt(rowIds.length)]).getValues();
+        }
+
+        // The brute force finder ranks by dot product, so compute the exact cosine neighbors here.
+        Neighborhood actual[] = new Neighborhood[numQueries];
+        long before = System.nanoTime();
+        for (int i = 0; i < numQueries; i++) {
+            NeighborhoodAccumulator accum = new NeighborhoodAccumulator(K);
+            for (DenseMatrixRow row : matrix) {
+                accum.visit(row.getRowIndex(), KmeansKNNFinder.cosine(queries[i], row));
+            }
+            actual[i] = accum.get();
+        }
+        long after = System.nanoTime();
+        System.out.println(String.format("%-20s recall=1.000 micros/query=%d",
+                "bruteforce", (after - before) / 1000 / numQueries));
+
+        bench("randomprojection", new RandomProjectionKNNFinder(matrix), queries, actual);
+        bench("lshforest", new LSHForestKNNFinder(matrix), queries, actual);
+        bench("hnsw", new HnswKNNFinder(matrix), queries, actual);
+        bench("pq", new PQKNNFinder(matrix), queries, actual);
+    }
+
+    private static void bench(String name, KNNFinder finder, float queries[][], Neighborhood actual[]) throws IOException {
+        long before = System.currentTimeMillis();
+        finder.build();
+        long after = System.currentTimeMillis();
+        System.out.println(name + " built in " + (after - before) + " millis");
+
+        for (int traversal : TRAVERSALS) {
+            int hits = 0;
+            long elapsed = 0;
+            for (int i = 0; i < queries.length; i++) {
+                long t1 = System.nanoTime();
+                Neighborhood estimated = finder.query(queries[i], K, traversal, null);
+                elapsed += System.nanoTime() - t1;
+                hits += overlap(estimated, actual[i]);
+            }
+            System.out.println(String.format("%-20s traversal=%-5d recall=%.3f micros/query=%d",
+                    name, traversal, 1.0 * hits / (K * queries.length), elapsed / 1000 / queries.length));
+        }
+    }
+
+    private static int overlap(Neighborhood n1, Neighborhood n2) {
+        TIntSet ids = new TIntHashSet();
+        for (int i = 0; i < n1.size(); i++) {
+            ids.add(n1.getId(i));
+        }
+        int result = 0;
+        for (int i = 0; i < n2.size(); i++) {
+            if (ids.contains(n2.getId(i))) result++;
+        }
+        return result;
+    }
+}
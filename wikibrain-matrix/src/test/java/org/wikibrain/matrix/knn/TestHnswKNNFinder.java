@@ -0,0 +1,179 @@
+package org.wikibrain.matrix.knn;
+
+import gnu.trove.set.TIntSet;
+import gnu.trove.set.hash.TIntHashSet;
+import org.junit.Test;
+import org.wikibrain.matrix.DenseMatrix;
+import org.wikibrain.matrix.DenseMatrixRow;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Random;
+
+import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertTrue;
+
+/**
+ * @author Shilad Sen
+ */
+public class TestHnswKNNFinder {
+    DenseMatrix matrix;
+    HnswKNNFinder finder;
+
+    private void makeSmall() throws IOException {
+        matrix = TestUtils.createMatrix(1000, 20);
+        finder = new HnswKNNFinder(matrix);
+        finder.build();
+    }
+
+    private void makeBig(Random random) throws IOException {
+        matrix = TestUtils.createMatrix(10000, 50, random);
+        finder = new HnswKNNFinder(matrix);
+        finder.build();
+    }
+
+    @Test
+    public void testBuild() throws IOException {
+        makeSmall();
+    }
+
+    @Test
+    public void testQueryCoverage() throws IOException {
+        makeSmall();
+        int hits = 0;
+        int iters = 10;
+        for (int i = 0; i < iters; i++) {
+            float[] v = TestUtils.randomVector(20);
+            Neighborhood estimated = finder.query(v, 10, 1000, null);
+            Neighborhood actual = actualNeighbors(v, matrix, 10, null);
+            hits += overlap(estimated, actual);
+        }
+        assertTrue(hits >= iters * 10 * 95 / 100);
+    }
+
+    @Test
+    public void testValidIds() throws IOException {
+        makeSmall();
+        TIntSet valid = new TIntHashSet();
+        for (int i = 0; i < 1000; i += 3) {
+            valid.add(i);
+        }
+        for (int i = 0; i < 10; i++) {
+            float[] v = TestUtils.randomVector(20);
+
+            // Scanned directly because the filter is smaller than the traversal
+            Neighborhood estimated = finder.query(v, 10, 1000, valid);
+            assertEquals(10, overlap(estimated, actualNeighbors(v, matrix, 10, valid)));
+
+            // Searched in the graph
+            estimated = finder.query(v, 10, 200, valid);
+            for (int id : estimated.getIds()) {
+                assertTrue(valid.contains(id));
+            }
+        }
+    }
+
+    @Test
+    public void testSaveLoad() throws IOException {
+        makeSmall();
+        File path = File.createTempFile("hnsw", ".bin");
+        path.deleteOnExit();
+        finder.save(path);
+
+        HnswKNNFinder loaded = new HnswKNNFinder(matrix);
+        assertTrue(loaded.load(path));
+        for (int i = 0; i < 10; i++) {
+            float[] v = TestUtils.randomVector(20);
+            Neighborhood n1 = finder.query(v, 10, 100, null);
+            Neighborhood n2 = loaded.query(v, 10, 100, null);
+            assertEquals(n1.size(), n2.size());
+            for (int j = 0; j < n1.size(); j++) {
+                assertEquals(n1.getId(j), n2.getId(j));
+                assertEquals(n1.getScore(j), n2.getScore(j), 0.000001);
+            }
+        }
+    }
+
+    @Test
+    public void testQuery() throws IOException {
+        // Recall and latency on larger matrices are measured by BenchKNNFinders
+        Random random = new Random(42);
+        makeBig(random);
+        int hits = 0;
+        int iters = 100;
+        for (int i = 0; i < iters; i++) {
+            float[] v = TestUtils.randomVector(50, random);
+            Neighborhood estimated = finder.query(v, 10, 100, null);
+            Neighborhood actual = actualNeighbors(v, matrix, 10, null);
+            hits += overlap(estimated, actual);
+        }
+        assertTrue(hits >= iters * 10 * 9 / 10);
+    }
+
+    @Test
+    public void testFilteredRecall() throws IOException {
+        Random random = new Random(42);
+        makeBig(random);
+        int hits = 0;
+        int iters = 50;
+        for (int size : new int[] { 300, 800 }) {
+            // 300 of 10000 rows are scanned exactly; 800 are searched with a widened beam
+            for (int i = 0; i < iters; i++) {
+                TIntSet valid = new TIntHashSet();
+                while (valid.size() < size) {
+                    valid.add(random.nextInt(10000));
+                }
+                float[] v = TestUtils.randomVector(50, random);
+                Neighborhood estimated = finder.query(v, 10, 100, valid);
+                assertEquals(10, estimated.size());
+                for (int id : estimated.getIds()) {
+                    assertTrue(valid.contains(id));
+                }
+                hits += overlap(estimated, actualNeighbors(v, matrix, 10, valid));
+            }
+        }
+        assertTrue(hits >= 2 * iters * 10 * 9 / 10);
+    }
+
+    @Test
+    public void testReproducibleBuild() throws IOException {
+        matrix = TestUtils.createMatrix(1000, 20);
+        HnswKNNFinder finders[] = new HnswKNNFinder[2];
+        for (int i = 0; i < finders.length; i++) {
+            finders[i] = new HnswKNNFinder(matrix);
+            finders[i].setNumThreads(1);
+            finders[i].build();
+        }
+        for (int i = 0; i < 10; i++) {
+            float[] v = TestUtils.randomVector(20);
+            Neighborhood n1 = finders[0].query(v, 10, 20, null);
+            Neighborhood n2 = finders[1].query(v, 10, 20, null);
+            assertEquals(n1.size(), n2.size());
+            for (int j = 0; j < n1.size(); j++) {
+                assertEquals(n1.getId(j), n2.getId(j));
+            }
+        }
+    }
+
+    private int overlap(Neighborhood n1, Neighborhood n2) {
+        TIntSet ids = new TIntHashSet();
+        for (int i = 0; i < n1.size(); i++) {
+            ids.add(n1.getId(i));
+        }
+        int result = 0;
+        for (int i = 0; i < n2.size(); i++) {
+            if (ids.contains(n2.getId(i))) result++;
+        }
+        return result;
+    }
+
+    private static Neighborhood actualNeighbors(float [] v, DenseMatrix matrix, int n, TIntSet validIds) {
+        NeighborhoodAccumulator accum = new NeighborhoodAccumulator(n);
+        for (DenseMatrixRow row : matrix) {
+            if (validIds != null && !validIds.contains(row.getRowIndex())) continue;
+            double sim = KmeansKNNFinder.cosine(v, row);
+            accum.visit(row.getRowIndex(), sim);
+        }
+        return accum.get();
+    }
+}
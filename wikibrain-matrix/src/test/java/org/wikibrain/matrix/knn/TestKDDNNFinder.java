@@ -5,9 +5,11 @@ import gnu.trove.set.hash.TIntHashSet;
 import org.junit.Test;
 import org.wikibrain.matrix.DenseMatrix;
 
+import java.io.File;
 import java.io.IOException;
 
 import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertTrue;
 
 /**
  * @author Shilad Sen
@@ -35,6 +37,26 @@ public class TestKDDNNFinder {
         makeSmall();
     }
 
+    @Test
+    public void testSaveLoad() throws IOException {
+        makeSmall();
+        File path = File.createTempFile("knnmodel", ".bin");
+        path.deleteOnExit();
+        finder.save(path);
+
+        KDTreeKNN loaded = new KDTreeKNN(matrix);
+        assertTrue(loaded.load(path));
+        for (int i = 0; i < 10; i++) {
+            float[] v = TestUtils.randomVector(20);
+            Neighborhood n1 = finder.query(v, 10, 100, null);
+            Neighborhood n2 = loaded.query(v, 10, 100, null);
+            assertEquals(n1.size(), n2.size());
+            for (int j = 0; j < n1.size(); j++) {
+                assertEquals(n1.getId(j), n2.getId(j));
+            }
+        }
+    }
+
     @Test
     public void testQueryCoverage() throws IOException {
         makeSmall();
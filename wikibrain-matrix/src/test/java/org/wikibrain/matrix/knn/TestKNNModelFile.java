@@ -0,0 +1,68 @@
+package org.wikibrain.matrix.knn;
+
+import org.junit.Test;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.ObjectOutputStream;
+import java.nio.LongBuffer;
+import java.nio.ShortBuffer;
+
+import static org.junit.Assert.*;
+
+/**
+ * @author Shilad Sen
+ */
+public class TestKNNModelFile {
+    @Test
+    public void testRoundTrip() throws IOException {
+        File path = File.createTempFile("knnmodel", ".bin");
+        path.deleteOnExit();
+        new KNNModelFile.Writer("test")
+                .put("ints", new int[] { 1, 2, 3 })
+                .put("shorts", new short[] { 5, -6, 7 })
+                .put("doubles", new double[] { 1.5 })
+                .put("longs", LongBuffer.wrap(new long[] { Long.MAX_VALUE, -1 }))
+                .put("floats", new float[] { 2.5f, 3.0f })
+                .put("empty", new int[0])
+                .write(path);
+
+        KNNModelFile file = KNNModelFile.open(path);
+        assertEquals("test", file.getType());
+        assertArrayEquals(new int[] { 1, 2, 3 }, file.getInts("ints"));
+        assertArrayEquals(new double[] { 1.5 }, file.getDoubles("doubles"), 0.0);
+        ShortBuffer shorts = file.getShortBuffer("shorts");
+        assertEquals(3, shorts.capacity());
+        assertEquals(-6, shorts.get(1));
+        assertEquals(Long.MAX_VALUE, file.getLongBuffer("longs").get(0));
+        assertEquals(-1, file.getLongBuffer("longs").get(1));
+        assertEquals(3.0f, file.getFloatBuffer("floats").get(1), 0.0f);
+        assertEquals(0, file.getInts("empty").length);
+        assertTrue(file.hasSection("ints"));
+        assertFalse(file.hasSection("missing"));
+
+        try {
+            file.getIntBuffer("shorts");
+            fail();
+        } catch (IOException e) {
+            // expected
+        }
+    }
+
+    @Test
+    public void testSerializedModel() throws IOException {
+        // Models written with ObjectOutputStream by earlier versions are rejected
+        File path = File.createTempFile("knnmodel", ".bin");
+        path.deleteOnExit();
+        ObjectOutputStream out = new ObjectOutputStream(new FileOutputStream(path));
+        out.writeObject(new Object[] { new long[10] });
+        out.close();
+        try {
+            KNNModelFile.open(path);
+            fail();
+        } catch (IOException e) {
+            // expected
+        }
+    }
+}
@@ -6,9 +6,11 @@ import org.junit.Test;
 import org.wikibrain.matrix.DenseMatrix;
 import org.wikibrain.matrix.DenseMatrixRow;
 
+import java.io.File;
 import java.io.IOException;
 
 import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertTrue;
 
 /**
  * @author Shilad Sen
@@ -36,6 +38,26 @@ public class TestLSHForestNNFinder {
         makeSmall();
     }
 
+    @Test
+    public void testSaveLoad() throws IOException {
+        makeSmall();
+        File path = File.createTempFile("knnmodel", ".bin");
+        path.deleteOnExit();
+        finder.save(path);
+
+        LSHForestKNNFinder loaded = new LSHForestKNNFinder(matrix);
+        assertTrue(loaded.load(path));
+        for (int i = 0; i < 10; i++) {
+            float[] v = TestUtils.randomVector(20);
+            Neighborhood n1 = finder.query(v, 10, 100, null);
+            Neighborhood n2 = loaded.query(v, 10, 100, null);
+            assertEquals(n1.size(), n2.size());
+            for (int j = 0; j < n1.size(); j++) {
+                assertEquals(n1.getId(j), n2.getId(j));
+            }
+        }
+    }
+
     @Test
     public void testQueryCoverage() throws IOException {
         makeSmall();
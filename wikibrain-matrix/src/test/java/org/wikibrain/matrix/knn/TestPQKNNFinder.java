@@ -0,0 +1,149 @@
+package org.wikibrain.matrix.knn;
+
+import gnu.trove.set.TIntSet;
+import gnu.trove.set.hash.TIntHashSet;
+import org.junit.Test;
+import org.wikibrain.matrix.DenseMatrix;
+import org.wikibrain.matrix.DenseMatrixRow;
+import org.wikibrain.matrix.ProductQuantizedMatrix;
+
+import java.io.File;
+import java.io.IOException;
+
+import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertTrue;
+
+/**
+ * @author Shilad Sen
+ */
+public class TestPQKNNFinder {
+    DenseMatrix matrix;
+    PQKNNFinder finder;
+
+    private void makeSmall() throws IOException {
+        matrix = TestUtils.createMatrix(1000, 20);
+        finder = new PQKNNFinder(matrix);
+        finder.build();
+    }
+
+    @Test
+    public void testEstimates() throws IOException {
+        makeSmall();
+        ProductQuantizedMatrix pq = finder.getQuantizedMatrix();
+        assertEquals(5, pq.getNumSubspaces());
+        assertEquals(1000, pq.getNumRows());
+
+        float[] v = TestUtils.randomVector(20);
+        float table[] = pq.getTable(v);
+        float scores[] = new float[pq.getNumRows()];
+        pq.scoreAll(table, scores);
+        int ids[] = pq.getRowIds();
+        for (int i = 0; i < ids.length; i++) {
+            double actual = KmeansKNNFinder.cosine(v, matrix.getRow(ids[i]));
+            assertEquals(scores[i], pq.score(table, i), 0.00001);
+            assertEquals(actual, scores[i], 0.2);
+        }
+    }
+
+    @Test
+    public void testQueryCoverage() throws IOException {
+        makeSmall();
+        int hits = 0;
+        int iters = 10;
+        for (int i = 0; i < iters; i++) {
+            float[] v = TestUtils.randomVector(20);
+            Neighborhood estimated = finder.query(v, 10, 200, null);
+            Neighborhood actual = actualNeighbors(v, matrix, 10, null);
+            hits += overlap(estimated, actual);
+        }
+        assertTrue(hits >= iters * 10 * 95 / 100);
+    }
+
+    @Test
+    public void testValidIds() throws IOException {
+        makeSmall();
+        TIntSet valid = new TIntHashSet();
+        for (int i = 0; i < 1000; i += 3) {
+            valid.add(i);
+        }
+        for (int i = 0; i < 10; i++) {
+            float[] v = TestUtils.randomVector(20);
+            Neighborhood estimated = finder.query(v, 10, 1000, valid);
+            assertEquals(10, overlap(estimated, actualNeighbors(v, matrix, 10, valid)));
+        }
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void testQueryBeforeBuild() throws IOException {
+        matrix = TestUtils.createMatrix(100, 20);
+        new PQKNNFinder(matrix).query(TestUtils.randomVector(20), 10, 100, null);
+    }
+
+    @Test
+    public void testSaveLoad() throws IOException {
+        makeSmall();
+        File path = File.createTempFile("pqknn", ".bin");
+        path.deleteOnExit();
+        finder.save(path);
+
+        PQKNNFinder loaded = new PQKNNFinder(matrix);
+        assertTrue(loaded.load(path));
+        for (int i = 0; i < 10; i++) {
+            float[] v = TestUtils.randomVector(20);
+            Neighborhood n1 = finder.query(v, 10, 100, null);
+            Neighborhood n2 = loaded.query(v, 10, 100, null);
+            assertEquals(n1.size(), n2.size());
+            for (int j = 0; j < n1.size(); j++) {
+                assertEquals(n1.getId(j), n2.getId(j));
+            }
+        }
+    }
+
+    @Test
+    public void testEmpty() throws IOException {
+        matrix = TestUtils.createMatrix(0, 20);
+        finder = new PQKNNFinder(matrix);
+        finder.build();
+        assertEquals(0, finder.getQuantizedMatrix().getNumRows());
+        assertEquals(0, finder.query(new float[0], 10, 100, null).size());
+
+        File path = File.createTempFile("pqknn", ".bin");
+        path.deleteOnExit();
+        finder.save(path);
+        assertTrue(new PQKNNFinder(matrix).load(path));
+    }
+
+    @Test
+    public void testSeed() throws IOException {
+        matrix = TestUtils.createMatrix(1000, 20);
+        float[] v = TestUtils.randomVector(20);
+        float table1[] = ProductQuantizedMatrix.build(matrix, 5, 42).getTable(v);
+        float table2[] = ProductQuantizedMatrix.build(matrix, 5, 42).getTable(v);
+        assertEquals(table1.length, table2.length);
+        for (int i = 0; i < table1.length; i++) {
+            assertEquals(table1[i], table2[i], 0.0);
+        }
+    }
+
+    private int overlap(Neighborhood n1, Neighborhood n2) {
+        TIntSet ids = new TIntHashSet();
+        for (int i = 0; i < n1.size(); i++) {
+            ids.add(n1.getId(i));
+        }
+        int result = 0;
+        for (int i = 0; i < n2.size(); i++) {
+            if (ids.contains(n2.getId(i))) result++;
+        }
+        return result;
+    }
+
+    private static Neighborhood actualNeighbors(float [] v, DenseMatrix matrix, int n, TIntSet validIds) {
+        NeighborhoodAccumulator accum = new NeighborhoodAccumulator(n);
+        for (DenseMatrixRow row : matrix) {
+            if (validIds != null && !validIds.contains(row.getRowIndex())) continue;
+            double sim = KmeansKNNFinder.cosine(v, row);
+            accum.visit(row.getRowIndex(), sim);
+        }
+        return accum.get();
+    }
+}
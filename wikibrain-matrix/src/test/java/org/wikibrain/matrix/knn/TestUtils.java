@@ -14,6 +14,10 @@ import java.util.Random;
  */
 public class TestUtils {
     public static DenseMatrix createMatrix(int rows, int cols) throws IOException {
+        return createMatrix(rows, cols, new Random());
+    }
+
+    public static DenseMatrix createMatrix(int rows, int cols, Random random) throws IOException {
         File tmp = File.createTempFile("knnfinder", ".matrix");
         tmp.delete();
         ValueConf vconf = new ValueConf();
@@ -21,7 +25,7 @@ public class TestUtils {
         for (int i= 0 ; i < cols; i++) { colIds[i] = i; }
         DenseMatrixWriter writer = new DenseMatrixWriter(tmp, vconf);
         for (int i = 0; i < rows; i++) {
-            writer.writeRow(new DenseMatrixRow(vconf, i, colIds, randomVector(cols)));
+            writer.writeRow(new DenseMatrixRow(vconf, i, colIds, randomVector(cols, random)));
         }
         writer.finish();
         tmp.deleteOnExit();
@@ -29,7 +33,10 @@ public class TestUtils {
     }
 
     static float[] randomVector(int cols) {
-        Random rand = new Random();
+        return randomVector(cols, new Random());
+    }
+
+    static float[] randomVector(int cols, Random rand) {
         double norm = 0.0;
         float [] vals = new float[cols];
         for (int j = 0; j < cols; j++) {
@@ -9,6 +9,8 @@ import org.wikibrain.core.lang.Language;
 import org.wikibrain.core.lang.LanguageInfo;
 import org.wikibrain.core.model.*;
 
+import java.util.ArrayList;
+import java.util.List;
 import java.util.concurrent.atomic.AtomicInteger;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -24,6 +26,14 @@ public class LocalLinkVisitor extends ParserVisitor {
     private AtomicInteger counter = new AtomicInteger();
     private Listener linkListener = null;
 
+    // Links of the page each parsing thread is currently visiting
+    private final ThreadLocal<PageLinks> pending = new ThreadLocal<PageLinks>() {
+        @Override
+        protected PageLinks initialValue() {
+            return new PageLinks();
+        }
+    };
+
     public LocalLinkVisitor(LocalLinkDao linkDao, LocalPageDao pageDao, MetaInfoDao metaDao) {
         this.linkDao = linkDao;
         this.pageDao = pageDao;
@@ -34,48 +44,103 @@ public class LocalLinkVisitor extends ParserVisitor {
         this.linkListener = linkListener;
     }
 
+    @Override
+    public void beginPage(RawPage xml) throws WikiBrainException {
+        pending.get().clear();
+    }
+
+    /**
+     * Links are buffered until the end of the page so that their
+     * destinations can be resolved with a single batched lookup.
+     */
     @Override
     public void link(ParsedLink link) throws WikiBrainException {
-        Language lang = link.target.getLanguage();
-        LanguageInfo langInfo = LanguageInfo.getByLanguage(lang);
+        String targetText = link.target.getCanonicalTitle();
 
-        int c = counter.getAndIncrement();
-        if(c % 1000000 == 0) LOG.info("Visited link #" + c);
+        //Wikipedia ignores colons at the beginning of links
+        // and uses them to overcome technical restrictions
+        if (!targetText.isEmpty() && targetText.charAt(0)==':'){
+            targetText = targetText.substring(1,targetText.length());
+            link.target = new Title(targetText, LanguageInfo.getByLanguage(link.target.getLanguage()));
+        }
+        PageLinks page = pending.get();
+        page.links.add(link);
+        page.targetTexts.add(targetText);
+    }
+
+    @Override
+    public void endPage(RawPage xml) throws WikiBrainException {
+        PageLinks page = pending.get();
+        List<ParsedLink> links = page.links;
+        if (links.isEmpty()) {
+            return;
+        }
+        Language lang = xml.getLanguage();
+        int numLinks = links.size();
+        DaoException firstError = null;
+        int numErrors = 0;
         try {
-            LocalLink.LocationType loc = LocalLink.LocationType.NONE;
-            if (link.location.getParagraph() == 0) {
-                loc = LocalLink.LocationType.FIRST_PARA;
-            } else if (link.location.getSection() == 0) {
-                loc = LocalLink.LocationType.FIRST_SEC;
+            String titles[] = new String[links.size()];
+            NameSpace namespaces[] = new NameSpace[links.size()];
+            for (int i = 0; i < links.size(); i++) {
+                titles[i] = page.targetTexts.get(i);
+                namespaces[i] = links.get(i).target.getNamespace();
             }
-
-            String targetText = link.target.getCanonicalTitle();
-
-            //Wikipedia ignores colons at the beginning of links
-            // and uses them to overcome technical restrictions
-            if (!targetText.isEmpty() && targetText.charAt(0)==':'){
-                targetText = targetText.substring(1,targetText.length());
-                link.target = new Title(targetText, langInfo);
+            int destIds[] = null;
+            try {
+                destIds = pageDao.getIdsByTitles(lang, titles, namespaces);
+            } catch (DaoException e) {
+                LOG.warn("batched title lookup failed, resolving " + titles.length + " links one at a time", e);
             }
-            int destId = pageDao.getIdByTitle(targetText, lang, link.target.getNamespace());
-            LocalLink ll = new LocalLink(
-                    lang,
-                    link.text,
-                    link.location.getXml().getLocalId(),
-                    destId,
-                    true,
-                    link.location.getLocation(),
-                    true,
-                    loc
-            );
-            linkDao.save(ll);
-            metaDao.incrementRecords(LocalLink.class, lang);
-            if (linkListener != null) {
-                linkListener.notify(ll);
+
+            // A failed link only loses its own row; the rest of the page is still saved.
+            for (int i = 0; i < links.size(); i++) {
+                try {
+                    int destId = (destIds != null)
+                            ? destIds[i]
+                            : pageDao.getIdByTitle(titles[i], lang, namespaces[i]);
+                    saveLink(lang, links.get(i), destId);
+                } catch (DaoException e) {
+                    metaDao.incrementErrorsQuietly(LocalLink.class, lang);
+                    if (firstError == null) {
+                        firstError = e;
+                    }
+                    numErrors++;
+                }
             }
-        } catch (DaoException e) {
-            metaDao.incrementErrorsQuietly(LocalLink.class, lang);
-            throw new WikiBrainException(e);
+        } finally {
+            page.clear();
+        }
+        if (firstError != null) {
+            throw new WikiBrainException("saving " + numErrors + " of " + numLinks
+                    + " links of page " + xml.getLocalId() + " failed", firstError);
+        }
+    }
+
+    private void saveLink(Language lang, ParsedLink link, int destId) throws DaoException {
+        int c = counter.getAndIncrement();
+        if(c % 1000000 == 0) LOG.info("Visited link #" + c);
+
+        LocalLink.LocationType loc = LocalLink.LocationType.NONE;
+        if (link.location.getParagraph() == 0) {
+            loc = LocalLink.LocationType.FIRST_PARA;
+        } else if (link.location.getSection() == 0) {
+            loc = LocalLink.LocationType.FIRST_SEC;
+        }
+        LocalLink ll = new LocalLink(
+                lang,
+                link.text,
+                link.location.getXml().getLocalId(),
+                destId,
+                true,
+                link.location.getLocation(),
+                true,
+                loc
+        );
+        linkDao.save(ll);
+        metaDao.incrementRecords(LocalLink.class, lang);
+        if (linkListener != null) {
+            linkListener.notify(ll);
         }
     }
 
@@ -85,6 +150,16 @@ public class LocalLinkVisitor extends ParserVisitor {
     }
 
 
+    private static class PageLinks {
+        final List<ParsedLink> links = new ArrayList<ParsedLink>();
+        final List<String> targetTexts = new ArrayList<String>();
+
+        void clear() {
+            links.clear();
+            targetTexts.clear();
+        }
+    }
+
     public static interface Listener {
         public void notify(LocalLink link);
     }
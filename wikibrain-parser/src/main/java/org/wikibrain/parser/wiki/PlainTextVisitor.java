@@ -0,0 +1,49 @@
+package org.wikibrain.parser.wiki;
+
+import org.wikibrain.core.WikiBrainException;
+import org.wikibrain.core.dao.DaoException;
+import org.wikibrain.core.dao.segment.SegmentedRawPageDao;
+import org.wikibrain.core.model.NameSpace;
+import org.wikibrain.core.model.RawPage;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Computes the plain text of each article while the wikitext is being parsed
+ * and stores it alongside the body so later plain text requests are lookups.
+ */
+public class PlainTextVisitor extends ParserVisitor {
+
+    private static final Logger LOG = LoggerFactory.getLogger(PlainTextVisitor.class);
+
+    private final SegmentedRawPageDao rawPageDao;
+    private AtomicInteger counter = new AtomicInteger();
+
+    public PlainTextVisitor(SegmentedRawPageDao rawPageDao) {
+        this.rawPageDao = rawPageDao;
+    }
+
+    @Override
+    public void beginPage(RawPage rp) throws WikiBrainException {
+        if (rp.isRedirect() || rp.getNamespace() != NameSpace.ARTICLE) {
+            return;
+        }
+        int c = counter.getAndIncrement();
+        if (c % 100000 == 0) LOG.info("Computed plain text for article #" + c);
+        try {
+            rawPageDao.savePlainText(rp.getLanguage(), rp.getLocalId(), rp.getPlainText(false));
+        } catch (DaoException e) {
+            throw new WikiBrainException(e);
+        }
+    }
+
+    /**
+     * Writes the plain text indexes. Must be called after parsing completes.
+     * @throws DaoException
+     */
+    public void finish() throws DaoException {
+        rawPageDao.endPlainTextLoad();
+    }
+}
@@ -0,0 +1,1058 @@
+package org.wikibrain.parser.wiki;
+
+import java.util.Arrays;
+
+/**
+ * <p>A single-pass equivalent of {@link MarkupStripper#stripEverything(String)}.</p>
+ *
+ * <p>MarkupStripper runs a dozen regular expression passes, each of which copies the
+ * whole article. This class reads each character of the markup exactly once and pushes it
+ * through a chain of small state machines, one per MarkupStripper pass, that emit directly
+ * into the caller's StringBuilder. A stage only buffers characters while a construct it
+ * might remove (a template, section, link, ref, ...) is still open. The output is identical
+ * to MarkupStripper's, including its handling of unbalanced markup.</p>
+ *
+ * <p>Instances reuse their internal buffers across calls and are not thread safe.</p>
+ *
+ * @author Shilad Sen
+ */
+public class SinglePassMarkupStripper {
+    private static final String[] SECTIONS = { "see also", "references", "further reading", "external links" };
+
+    private final Stage[] stages;
+    private final Sink sink = new Sink();
+
+    public SinglePassMarkupStripper() {
+        stages = new Stage[] {
+                new BalancedStage('{', '{', '}', '}'),          // templates
+                new SectionStage(SECTIONS[0]), new SectionEndStage(SECTIONS[0]),
+                new SectionStage(SECTIONS[1]), new SectionEndStage(SECTIONS[1]),
+                new SectionStage(SECTIONS[2]), new SectionEndStage(SECTIONS[2]),
+                new SectionStage(SECTIONS[3]), new SectionEndStage(SECTIONS[3]),
+                new BalancedStage('{', '|', '|', '}'),          // tables
+                new IsolatedLinkStage(),
+                new LinkStage(),
+                new DelimitedStage("<!--", "-->"),               // html comments
+                new DelimitedStage("<ref\\>", ""),               // refs
+                new DelimitedStage("<ref>", "</ref>"),
+                new RefWithAttributesStage(),
+                new TagStage(),                                 // remaining html tags
+                new ExternalLinkStage(),
+                new RunStage('\''),                             // bold and italics
+                new RunStage('='),                              // headers
+                new IndentStage(),
+                new ListMarkerStage(),
+                new NewlineStage(),
+        };
+        for (int i = 0; i < stages.length; i++) {
+            stages[i].next = (i + 1 < stages.length) ? stages[i + 1] : sink;
+        }
+    }
+
+    /**
+     * Strips a string of all markup; tries to turn it into plain text.
+     *
+     * @param markup the text to be stripped
+     * @return the stripped text
+     */
+    public String stripEverything(CharSequence markup) {
+        StringBuilder out = new StringBuilder(markup.length());
+        stripEverything(markup, out);
+        return out.toString();
+    }
+
+    /**
+     * Strips a string of all markup and appends the plain text to out.
+     *
+     * @param markup the text to be stripped
+     * @param out the builder the stripped text is appended to
+     */
+    public void stripEverything(CharSequence markup, StringBuilder out) {
+        for (Stage stage : stages) {
+            stage.reset();
+        }
+        sink.out = out;
+        Stage head = stages[0];
+        int n = markup.length();
+        for (int i = 0; i < n; i++) {
+            head.push(markup.charAt(i));
+        }
+        head.finish();
+        sink.out = null;
+    }
+
+    static boolean isWordChar(char c) {
+        return (c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z') || (c >= '0' && c <= '9') || c == '_';
+    }
+
+    static boolean isSpace(char c) {
+        return c == ' ' || c == '\t' || c == '\n' || c == '\u000B' || c == '\f' || c == '\r';
+    }
+
+    static boolean isLineTerminator(char c) {
+        return c == '\n' || c == '\r' || c == '\u0085' || c == '\u2028' || c == '\u2029';
+    }
+
+    /**
+     * A state machine that consumes characters and pushes its output to the next stage.
+     */
+    private abstract static class Stage {
+        Stage next;
+
+        abstract void push(char c);
+
+        /**
+         * Flushes pending input at the end of the markup and finishes the next stage.
+         */
+        void finish() {
+            next.finish();
+        }
+
+        void reset() {}
+
+        final void emit(char c) {
+            next.push(c);
+        }
+
+        final void emit(CharSequence s, int start, int end) {
+            for (int i = start; i < end; i++) {
+                next.push(s.charAt(i));
+            }
+        }
+
+        /**
+         * Pushes buffered characters back through this stage.
+         * Only used when a pending match fails at the end of the markup.
+         */
+        final void refeed(StringBuilder buffer, int start) {
+            char [] chars = new char[buffer.length() - start];
+            buffer.getChars(start, buffer.length(), chars, 0);
+            buffer.setLength(0);
+            for (char c : chars) {
+                push(c);
+            }
+        }
+    }
+
+    private static class Sink extends Stage {
+        StringBuilder out;
+
+        @Override
+        void push(char c) {
+            out.append(c);
+        }
+
+        @Override
+        void finish() {}
+    }
+
+    /**
+     * Removes balanced, possibly nested, two character delimited markup (e.g. templates).
+     * Unmatched closing tokens are kept, and an unclosed construct is emitted verbatim.
+     */
+    private static class BalancedStage extends Stage {
+        private final char open1, open2, close1, close2;
+        final StringBuilder buffer = new StringBuilder();
+        int depth = 0;
+
+        // Characters are held back by one to recognize two character tokens.
+        private int held = -1;
+        private int last = -1;
+        int heldBefore = -1;
+
+        BalancedStage(char open1, char open2, char close1, char close2) {
+            this.open1 = open1;
+            this.open2 = open2;
+            this.close1 = close1;
+            this.close2 = close2;
+        }
+
+        @Override
+        void push(char c) {
+            int before = last;
+            last = c;
+            if (held < 0) {
+                held = c;
+                heldBefore = before;
+                return;
+            }
+            char h = (char) held;
+            if (h == open1 && c == open2) {
+                held = -1;
+                open();
+            } else if (h == close1 && c == close2) {
+                held = -1;
+                close();
+            } else {
+                plain(h);
+                held = c;
+                heldBefore = before;
+            }
+        }
+
+        void open() {
+            if (depth == 0) {
+                buffer.setLength(0);
+            }
+            buffer.append(open1).append(open2);
+            depth++;
+        }
+
+        private void close() {
+            if (depth == 0) {
+                emit(close1);
+                emit(close2);
+                return;
+            }
+            buffer.append(close1).append(close2);
+            if (--depth == 0) {
+                complete();
+            }
+        }
+
+        private void plain(char c) {
+            if (depth == 0) {
+                emit(c);
+            } else {
+                buffer.append(c);
+            }
+        }
+
+        /**
+         * Called when the outermost construct in the buffer is closed. Drops it by default.
+         */
+        void complete() {}
+
+        void flush() {
+            if (held >= 0) {
+                plain((char) held);
+                held = -1;
+            }
+            if (depth > 0) {
+                emit(buffer, 0, buffer.length());
+                depth = 0;
+            }
+        }
+
+        @Override
+        void finish() {
+            flush();
+            next.finish();
+        }
+
+        @Override
+        void reset() {
+            buffer.setLength(0);
+            depth = 0;
+            held = -1;
+            last = -1;
+            heldBefore = -1;
+        }
+    }
+
+    /**
+     * Replaces links with their anchor text and removes links to images.
+     */
+    private static class LinkStage extends BalancedStage {
+        private static final String DISCARDED_PREFIX = "image";
+
+        LinkStage() {
+            super('[', '[', ']', ']');
+        }
+
+        @Override
+        void complete() {
+            int start = 2;
+            int end = buffer.length() - 2;
+            int colon = indexOf(':', start, end);
+            if (colon > start) {
+                if (isDiscardedPrefix(start, colon)) {
+                    return;
+                }
+                start = colon + 1;
+            }
+            int pipe = lastIndexOf('|', start, end);
+            if (pipe > start) {
+                start = pipe + 1;
+            }
+            emit(buffer, start, end);
+        }
+
+        private boolean isDiscardedPrefix(int start, int end) {
+            if (end - start != DISCARDED_PREFIX.length()) {
+                return false;
+            }
+            for (int i = start; i < end; i++) {
+                char c = buffer.charAt(i);
+                if (c >= 128 || Character.toLowerCase(c) != DISCARDED_PREFIX.charAt(i - start)) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        private int indexOf(char c, int start, int end) {
+            for (int i = start; i < end; i++) {
+                if (buffer.charAt(i) == c) return i;
+            }
+            return -1;
+        }
+
+        private int lastIndexOf(char c, int start, int end) {
+            for (int i = end - 1; i >= start; i--) {
+                if (buffer.charAt(i) == c) return i;
+            }
+            return -1;
+        }
+    }
+
+    /**
+     * Removes links that sit on a line of their own. Deciding whether a link is isolated
+     * requires the ten characters that follow it, which are held in a lookahead buffer.
+     */
+    private static class IsolatedLinkStage extends BalancedStage {
+        private static final int LOOKAHEAD = 11;
+
+        private final StringBuilder lookahead = new StringBuilder();
+        private final char[] replay = new char[LOOKAHEAD];
+        private boolean deciding = false;
+        private boolean afterNewline = false;
+
+        IsolatedLinkStage() {
+            super('[', '[', ']', ']');
+        }
+
+        @Override
+        void push(char c) {
+            if (deciding) {
+                lookahead.append(c);
+                if (lookahead.length() >= LOOKAHEAD) {
+                    decide(false);
+                }
+            } else {
+                super.push(c);
+            }
+        }
+
+        @Override
+        void open() {
+            if (depth == 0) {
+                afterNewline = (heldBefore == '\n');
+            }
+            super.open();
+        }
+
+        @Override
+        void complete() {
+            deciding = true;
+            lookahead.setLength(0);
+        }
+
+        private void decide(boolean finished) {
+            deciding = false;
+            if (!afterNewline || !followedByLineBreak(finished)) {
+                emit(buffer, 0, buffer.length());
+            }
+            // A link closing during the replay sees at most nine more characters,
+            // so the replay buffer is never reused before this loop completes.
+            int n = lookahead.length();
+            lookahead.getChars(0, n, replay, 0);
+            lookahead.setLength(0);
+            for (int i = 0; i < n; i++) {
+                push(replay[i]);
+            }
+        }
+
+        private boolean followedByLineBreak(boolean finished) {
+            int n = lookahead.length();
+            int end = LOOKAHEAD - 1;
+            if (finished) {
+                if (n <= 1) {
+                    return true;
+                }
+                end = Math.min(n - 1, end);
+            }
+            for (int i = 0; i < end; i++) {
+                char c = lookahead.charAt(i);
+                if (c == '\n') {
+                    return true;
+                } else if (isWordChar(c)) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        @Override
+        void finish() {
+            while (deciding) {
+                decide(true);
+            }
+            super.finish();
+        }
+
+        @Override
+        void reset() {
+            super.reset();
+            lookahead.setLength(0);
+            deciding = false;
+            afterNewline = false;
+        }
+    }
+
+    /**
+     * Base class for stages that match a section header for a particular section name:
+     * a run of two or more equal signs, the name (ASCII case insensitive, surrounded by
+     * optional whitespace) and a closing run of equal signs.
+     */
+    private abstract static class HeaderStage extends Stage {
+        static final int SCAN = 0, RUN = 1, WS1 = 2, NAME = 3, WS2 = 4, CLOSE = 5, TAIL = 6;
+
+        private final String name;
+        final StringBuilder buffer = new StringBuilder();
+        int state = SCAN;
+        int openRun;
+        private int nameIndex;
+        int closeStart;
+        private int closeRun;
+
+        HeaderStage(String name) {
+            this.name = name;
+        }
+
+        @Override
+        void push(char c) {
+            switch (state) {
+                case SCAN:
+                    if (c == '=') {
+                        buffer.setLength(0);
+                        buffer.append(c);
+                        openRun = 1;
+                        state = RUN;
+                    } else {
+                        emit(c);
+                    }
+                    break;
+                case RUN:
+                    if (c == '=') {
+                        buffer.append(c);
+                        openRun++;
+                    } else if (openRun < 2) {
+                        fail(c);
+                    } else {
+                        state = WS1;
+                        push(c);
+                    }
+                    break;
+                case WS1:
+                    if (isSpace(c)) {
+                        buffer.append(c);
+                    } else {
+                        state = NAME;
+                        nameIndex = 0;
+                        push(c);
+                    }
+                    break;
+                case NAME:
+                    char n = name.charAt(nameIndex);
+                    if (c == n || (c >= 'A' && c <= 'Z' && c + ('a' - 'A') == n)) {
+                        buffer.append(c);
+                        if (++nameIndex == name.length()) {
+                            state = WS2;
+                        }
+                    } else {
+                        fail(c);
+                    }
+                    break;
+                case WS2:
+                    if (isSpace(c)) {
+                        buffer.append(c);
+                    } else if (c == '=') {
+                        closeStart = buffer.length();
+                        closeRun = 1;
+                        buffer.append(c);
+                        state = CLOSE;
+                    } else {
+                        fail(c);
+                    }
+                    break;
+                case CLOSE:
+                    if (c == '=') {
+                        buffer.append(c);
+                        closeRun++;
+                    } else if (closeRun < 2) {
+                        fail(c);
+                    } else {
+                        state = TAIL;
+                        beginTail(Math.min(openRun, closeRun));
+                        pushTail(c);
+                    }
+                    break;
+                default:
+                    pushTail(c);
+            }
+        }
+
+        /**
+         * No match can start within the buffer: emit it and reprocess c.
+         */
+        private void fail(char c) {
+            emit(buffer, 0, buffer.length());
+            buffer.setLength(0);
+            state = SCAN;
+            push(c);
+        }
+
+        /**
+         * The match starting at the opening run failed at the end of the markup.
+         * Later positions may still match, so they are pushed through the stage again.
+         */
+        void failAtEnd() {
+            state = SCAN;
+            emit(buffer, 0, openRun);
+            refeed(buffer, openRun);
+        }
+
+        /**
+         * Completes a match that consumed the buffer up to (not including) end
+         * and pushes the rest of the buffer through the stage again.
+         */
+        void matchedAtEnd(int end) {
+            state = SCAN;
+            refeed(buffer, end);
+        }
+
+        /**
+         * Called when a header with a closing run of at least two equal signs is matched.
+         * @param maxRun The longest possible backreference for the opening run.
+         */
+        abstract void beginTail(int maxRun);
+
+        abstract void pushTail(char c);
+
+        abstract void finishTail();
+
+        @Override
+        void finish() {
+            while (state != SCAN) {
+                if (state == TAIL) {
+                    finishTail();
+                } else {
+                    state = SCAN;
+                    emit(buffer, 0, buffer.length());
+                }
+            }
+            next.finish();
+        }
+
+        @Override
+        void reset() {
+            buffer.setLength(0);
+            state = SCAN;
+        }
+    }
+
+    /**
+     * Removes a section up to the next header at the same level.
+     */
+    private static class SectionStage extends HeaderStage {
+        private int maxRun;
+        private int run;
+        private int runStart;
+        private int[] firstRuns = new int[16];
+
+        SectionStage(String name) {
+            super(name);
+        }
+
+        @Override
+        void beginTail(int maxRun) {
+            this.maxRun = maxRun;
+            this.run = 0;
+            if (firstRuns.length <= maxRun) {
+                firstRuns = new int[maxRun + 1];
+            }
+            Arrays.fill(firstRuns, 0, maxRun, -1);
+        }
+
+        @Override
+        void pushTail(char c) {
+            if (c == '=') {
+                if (run++ == 0) {
+                    runStart = buffer.length();
+                }
+                buffer.append(c);
+                return;
+            }
+            buffer.append(c);
+            int k = run;
+            run = 0;
+            if (k == maxRun) {
+                // the longest backreference matched: the section ends at this header.
+                emit(buffer, 0, openRun - k);
+                emit(buffer, runStart - 1, runStart + k + 1);
+                buffer.setLength(0);
+                state = SCAN;
+            } else if (k >= 2 && k < maxRun && firstRuns[k] < 0) {
+                firstRuns[k] = runStart;
+            }
+        }
+
+        @Override
+        void finishTail() {
+            for (int k = maxRun - 1; k >= 2; k--) {
+                int start = firstRuns[k];
+                if (start >= 0) {
+                    emit(buffer, 0, openRun - k);
+                    emit(buffer, start - 1, start + k + 1);
+                    matchedAtEnd(start + k + 1);
+                    return;
+                }
+            }
+            failAtEnd();
+        }
+    }
+
+    /**
+     * Removes the header and first paragraph of a section that could not be removed entirely.
+     */
+    private static class SectionEndStage extends HeaderStage {
+        private int nonWordStart;
+        private boolean inNonWord;
+        private int lastBreak;
+        private int prefix;
+
+        SectionEndStage(String name) {
+            super(name);
+        }
+
+        @Override
+        void beginTail(int maxRun) {
+            prefix = openRun - maxRun;
+            nonWordStart = closeStart + maxRun;
+            inNonWord = true;
+            lastBreak = -1;
+        }
+
+        @Override
+        void pushTail(char c) {
+            int i = buffer.length();
+            buffer.append(c);
+            if (inNonWord) {
+                if (isWordChar(c)) {
+                    inNonWord = false;
+                } else if (c == '\n' && i - 1 >= nonWordStart && buffer.charAt(i - 1) == '\n') {
+                    lastBreak = i - 1;
+                }
+            } else if (c == '\n' && buffer.charAt(i - 1) == '\n') {
+                // the first paragraph break after the leading non-word characters ends the match.
+                emit(buffer, 0, prefix);
+                emit('\n');
+                emit('\n');
+                buffer.setLength(0);
+                state = SCAN;
+            }
+        }
+
+        @Override
+        void finishTail() {
+            if (lastBreak >= 0) {
+                emit(buffer, 0, prefix);
+                emit('\n');
+                emit('\n');
+                matchedAtEnd(lastBreak + 2);
+            } else {
+                failAtEnd();
+            }
+        }
+    }
+
+    /**
+     * Removes text between an opening and (possibly empty) closing literal.
+     * The first character of the opening literal must not reappear within it.
+     */
+    private static class DelimitedStage extends Stage {
+        private final String open;
+        private final String close;
+        private final int[] closeFailure;
+        private final StringBuilder buffer = new StringBuilder();
+        private int opened = 0;
+        private int closed = 0;
+
+        DelimitedStage(String open, String close) {
+            if (open.indexOf(open.charAt(0), 1) >= 0) {
+                throw new IllegalArgumentException(open);
+            }
+            this.open = open;
+            this.close = close;
+            this.closeFailure = failureFunction(close);
+        }
+
+        @Override
+        void push(char c) {
+            if (opened < open.length()) {
+                if (c == open.charAt(opened)) {
+                    buffer.append(c);
+                    if (++opened == open.length() && close.length() == 0) {
+                        matched();
+                    }
+                } else if (opened > 0) {
+                    emit(buffer, 0, buffer.length());
+                    buffer.setLength(0);
+                    opened = 0;
+                    push(c);
+                } else {
+                    emit(c);
+                }
+                return;
+            }
+            buffer.append(c);
+            while (closed > 0 && c != close.charAt(closed)) {
+                closed = closeFailure[closed - 1];
+            }
+            if (c == close.charAt(closed) && ++closed == close.length()) {
+                matched();
+            }
+        }
+
+        private void matched() {
+            buffer.setLength(0);
+            opened = 0;
+            closed = 0;
+        }
+
+        @Override
+        void finish() {
+            emit(buffer, 0, buffer.length());
+            reset();
+            next.finish();
+        }
+
+        @Override
+        void reset() {
+            buffer.setLength(0);
+            opened = 0;
+            closed = 0;
+        }
+    }
+
+    /**
+     * Computes the KMP failure function for a literal.
+     */
+    private static int[] failureFunction(String s) {
+        int[] f = new int[s.length()];
+        int k = 0;
+        for (int i = 1; i < s.length(); i++) {
+            while (k > 0 && s.charAt(i) != s.charAt(k)) {
+                k = f[k - 1];
+            }
+            if (s.charAt(i) == s.charAt(k)) {
+                k++;
+            }
+            f[i] = k;
+        }
+        return f;
+    }
+
+    /**
+     * Removes refs with attributes: "&lt;ref", a whitespace character, everything up to the
+     * next '&gt;', and everything up to the next "&lt;/ref&gt;".
+     */
+    private static class RefWithAttributesStage extends Stage {
+        private static final String OPEN = "<ref";
+        private static final String CLOSE = "</ref>";
+        private static final int PREFIX = 0, SPACE = 1, ATTRIBUTES = 2, BODY = 3;
+
+        private final StringBuilder buffer = new StringBuilder();
+        private int state = PREFIX;
+        private int matched = 0;
+
+        @Override
+        void push(char c) {
+            switch (state) {
+                case PREFIX:
+                    if (c == OPEN.charAt(matched)) {
+                        buffer.append(c);
+                        if (++matched == OPEN.length()) {
+                            state = SPACE;
+                        }
+                    } else if (matched > 0) {
+                        fail(c);
+                    } else {
+                        emit(c);
+                    }
+                    break;
+                case SPACE:
+                    if (isSpace(c)) {
+                        buffer.append(c);
+                        state = ATTRIBUTES;
+                    } else {
+                        fail(c);
+                    }
+                    break;
+                case ATTRIBUTES:
+                    buffer.append(c);
+                    if (c == '>') {
+                        state = BODY;
+                        matched = 0;
+                    }
+                    break;
+                default:
+                    buffer.append(c);
+                    if (c == CLOSE.charAt(matched)) {
+                        if (++matched == CLOSE.length()) {
+                            reset();
+                        }
+                    } else {
+                        matched = (c == CLOSE.charAt(0)) ? 1 : 0;
+                    }
+            }
+        }
+
+        private void fail(char c) {
+            emit(buffer, 0, buffer.length());
+            reset();
+            push(c);
+        }
+
+        @Override
+        void finish() {
+            emit(buffer, 0, buffer.length());
+            reset();
+            next.finish();
+        }
+
+        @Override
+        void reset() {
+            buffer.setLength(0);
+            state = PREFIX;
+            matched = 0;
+        }
+    }
+
+    /**
+     * Removes html tags that open and close on the same line.
+     */
+    private static class TagStage extends Stage {
+        private final StringBuilder buffer = new StringBuilder();
+        private boolean inTag = false;
+
+        @Override
+        void push(char c) {
+            if (!inTag) {
+                if (c == '<') {
+                    inTag = true;
+                    buffer.setLength(0);
+                    buffer.append(c);
+                } else {
+                    emit(c);
+                }
+            } else if (c == '>') {
+                inTag = false;
+            } else if (isLineTerminator(c)) {
+                inTag = false;
+                emit(buffer, 0, buffer.length());
+                emit(c);
+            } else {
+                buffer.append(c);
+            }
+        }
+
+        @Override
+        void finish() {
+            if (inTag) {
+                emit(buffer, 0, buffer.length());
+            }
+            reset();
+            next.finish();
+        }
+
+        @Override
+        void reset() {
+            buffer.setLength(0);
+            inTag = false;
+        }
+    }
+
+    /**
+     * Removes bracketed external links starting with "http" or "www" that close on the same line.
+     */
+    private static class ExternalLinkStage extends Stage {
+        private static final String HTTP = "[http";
+        private static final String WWW = "[www";
+
+        private final StringBuilder buffer = new StringBuilder();
+        private String prefix = null;
+        private boolean inLink = false;
+
+        @Override
+        void push(char c) {
+            if (inLink) {
+                if (c == ']') {
+                    reset();
+                } else if (isLineTerminator(c)) {
+                    emit(buffer, 0, buffer.length());
+                    reset();
+                    emit(c);
+                } else {
+                    buffer.append(c);
+                }
+            } else if (buffer.length() == 0) {
+                if (c == '[') {
+                    buffer.append(c);
+                } else {
+                    emit(c);
+                }
+            } else {
+                if (buffer.length() == 1) {
+                    prefix = (c == 'h') ? HTTP : WWW;
+                }
+                if (c == prefix.charAt(buffer.length())) {
+                    buffer.append(c);
+                    inLink = (buffer.length() == prefix.length());
+                } else {
+                    emit(buffer, 0, buffer.length());
+                    reset();
+                    push(c);
+                }
+            }
+        }
+
+        @Override
+        void finish() {
+            emit(buffer, 0, buffer.length());
+            reset();
+            next.finish();
+        }
+
+        @Override
+        void reset() {
+            buffer.setLength(0);
+            prefix = null;
+            inLink = false;
+        }
+    }
+
+    /**
+     * Removes runs of two or more of a character.
+     */
+    private static class RunStage extends Stage {
+        private final char c;
+        private int run = 0;
+
+        RunStage(char c) {
+            this.c = c;
+        }
+
+        @Override
+        void push(char c) {
+            if (c == this.c) {
+                run++;
+            } else {
+                if (run == 1) {
+                    emit(this.c);
+                }
+                run = 0;
+                emit(c);
+            }
+        }
+
+        @Override
+        void finish() {
+            if (run == 1) {
+                emit(c);
+            }
+            run = 0;
+            next.finish();
+        }
+
+        @Override
+        void reset() {
+            run = 0;
+        }
+    }
+
+    /**
+     * Removes colons indenting a line.
+     */
+    private static class IndentStage extends Stage {
+        private boolean afterNewline = false;
+
+        @Override
+        void push(char c) {
+            if (c == ':' && afterNewline) {
+                return;
+            }
+            afterNewline = (c == '\n');
+            emit(c);
+        }
+
+        @Override
+        void reset() {
+            afterNewline = false;
+        }
+    }
+
+    /**
+     * Removes list markers and the non-word characters that follow them.
+     */
+    private static class ListMarkerStage extends Stage {
+        private static final int TEXT = 0, NEWLINE = 1, MARKER = 2;
+        private int state = TEXT;
+
+        @Override
+        void push(char c) {
+            if (state == MARKER) {
+                if (isWordChar(c)) {
+                    state = TEXT;
+                    emit(c);
+                }
+            } else if (state == NEWLINE && c == '*') {
+                state = MARKER;
+            } else {
+                state = (c == '\n') ? NEWLINE : TEXT;
+                emit(c);
+            }
+        }
+
+        @Override
+        void reset() {
+            state = TEXT;
+        }
+    }
+
+    /**
+     * Collapses three or more consecutive newlines into two.
+     */
+    private static class NewlineStage extends Stage {
+        private int run = 0;
+
+        @Override
+        void push(char c) {
+            if (c == '\n') {
+                run++;
+            } else {
+                flush();
+                emit(c);
+            }
+        }
+
+        private void flush() {
+            for (int i = Math.min(run, 2); i > 0; i--) {
+                emit('\n');
+            }
+            run = 0;
+        }
+
+        @Override
+        void finish() {
+            flush();
+            next.finish();
+        }
+
+        @Override
+        void reset() {
+            run = 0;
+        }
+    }
+}
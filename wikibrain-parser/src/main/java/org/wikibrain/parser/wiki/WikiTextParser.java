@@ -54,30 +54,35 @@ public class WikiTextParser {
      */
     public void parse(RawPage xml) throws WikiBrainException {
         visitBeginPage(xml);
-        if (xml.isRedirect()) {
-            ParsedRedirect pr = new ParsedRedirect();
-            pr.location = new ParsedLocation(xml, -1, -1, -1);
-            // TODO: calculate redirect text?
-            visitRedirect(pr);
-        } else {
-            try {
-                ParsedPage pp = jwpl.parse(xml.getBody());
-                if (pp == null) {
-                    LOG.debug("invalid page: " + xml.getBody());
-                }
+        // Visitors may buffer a page's links until endPage, so it must run
+        // even if parsing fails part way through the page.
+        try {
+            if (xml.isRedirect()) {
+                ParsedRedirect pr = new ParsedRedirect();
+                pr.location = new ParsedLocation(xml, -1, -1, -1);
+                // TODO: calculate redirect text?
+                visitRedirect(pr);
+            } else {
+                try {
+                    ParsedPage pp = jwpl.parse(xml.getBody());
+                    if (pp == null) {
+                        LOG.debug("invalid page: " + xml.getBody());
+                    }
 
-                if (xml.getNamespace() == NameSpace.CATEGORY) {
-                    parseCategory(xml, pp);
-                } else if (xml.getNamespace() == NameSpace.ARTICLE) {
-                    parseArticle(xml, pp);
+                    if (xml.getNamespace() == NameSpace.CATEGORY) {
+                        parseCategory(xml, pp);
+                    } else if (xml.getNamespace() == NameSpace.ARTICLE) {
+                        parseArticle(xml, pp);
+                    }
+                } catch (NoSuchElementException e) {
+                    visitParseError(xml, e);
+                } catch (NullPointerException e) {
+                    visitParseError(xml, e);
                 }
-            } catch (NoSuchElementException e) {
-                visitParseError(xml, e);
-            } catch (NullPointerException e) {
-                visitParseError(xml, e);
             }
+        } finally {
+            visitEndPage(xml);
         }
-        visitEndPage(xml);
     }
 
     private void parseArticle(RawPage xml, ParsedPage pp) {   		// *** LINKS, ANCHOR TEXTS, SECTIONS
@@ -266,7 +271,7 @@ public class WikiTextParser {
             try {
                 visitor.endPage(xml);
             } catch (WikiBrainException e) {
-                LOG.warn("beginPage failed:", e);
+                LOG.warn("endPage failed:", e);
             }
         }
     }
@@ -0,0 +1,69 @@
+package org.wikibrain.parser;
+
+import org.wikibrain.core.model.RawPage;
+import org.wikibrain.parser.wiki.MarkupStripper;
+import org.wikibrain.parser.wiki.SinglePassMarkupStripper;
+import org.wikibrain.parser.xml.DumpPageXmlParser;
+
+import java.io.PrintStream;
+import java.io.ByteArrayOutputStream;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Compares the regex based MarkupStripper against the SinglePassMarkupStripper
+ * on the pages of the english test dump.
+ *
+ * @author Shilad Sen
+ */
+public class BenchmarkMarkupStripper {
+    public static final int WARMUP_ROUNDS = 20;
+    public static final int ROUNDS = 100;
+
+    public static void main(String args[]) {
+        List<String> bodies = new ArrayList<String>();
+        long chars = 0;
+        for (RawPage page : new DumpPageXmlParser(TestDumpPageParser.EN_DUMP, TestDumpPageParser.EN)) {
+            bodies.add(page.getBody());
+            chars += page.getBody().length();
+        }
+
+        // MarkupStripper reports malformed markup on stderr.
+        PrintStream err = System.err;
+        System.setErr(new PrintStream(new ByteArrayOutputStream()));
+
+        SinglePassMarkupStripper stripper = new SinglePassMarkupStripper();
+        StringBuilder out = new StringBuilder();
+        long sum = 0;
+        for (int i = 0; i < WARMUP_ROUNDS; i++) {
+            for (String body : bodies) {
+                sum += MarkupStripper.stripEverything(body).length();
+                out.setLength(0);
+                stripper.stripEverything(body, out);
+                sum += out.length();
+            }
+        }
+
+        long t1 = System.nanoTime();
+        for (int i = 0; i < ROUNDS; i++) {
+            for (String body : bodies) {
+                sum += MarkupStripper.stripEverything(body).length();
+            }
+        }
+        long t2 = System.nanoTime();
+        for (int i = 0; i < ROUNDS; i++) {
+            for (String body : bodies) {
+                out.setLength(0);
+                stripper.stripEverything(body, out);
+                sum += out.length();
+            }
+        }
+        long t3 = System.nanoTime();
+
+        System.setErr(err);
+        double mb = 1.0 * chars * ROUNDS / (1024 * 1024);
+        System.err.println("regex stripper: " + (t2 - t1) / 1000000 + " ms, " + mb / ((t2 - t1) / 1e9) + " MB chars per second");
+        System.err.println("single pass stripper: " + (t3 - t2) / 1000000 + " ms, " + mb / ((t3 - t2) / 1e9) + " MB chars per second");
+        System.err.println("checksum " + sum);
+    }
+}
@@ -0,0 +1,55 @@
+package org.wikibrain.parser;
+
+import org.junit.Test;
+import org.wikibrain.core.model.RawPage;
+import org.wikibrain.parser.wiki.MarkupStripper;
+import org.wikibrain.parser.wiki.SinglePassMarkupStripper;
+import org.wikibrain.parser.xml.DumpPageXmlParser;
+
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+
+public class TestSinglePassMarkupStripper {
+    private static final String[] TOKENS = {
+            "{{", "}}", "{|", "|}", "[[", "]]", "[", "]", "http", "www", "<!--", "-->",
+            "<ref>", "</ref>", "<ref\\>", "<ref ", "<", ">", "'", "''", "'''", "=", "==", "===",
+            "\n", "\n\n", "\n*", "\n:", "*", ":", "|", " ", "see also", "See Also", "references",
+            "Further reading", "external links", "image:", "Image:", "foo", "bar", "-", "_", "\t", "é",
+    };
+
+    @Test
+    public void testSimple() {
+        SinglePassMarkupStripper stripper = new SinglePassMarkupStripper();
+        assertEquals("Foo is a bar.\n\nIt has baz.",
+                stripper.stripEverything("'''Foo''' is a {{nested {{template}}}}[[Bar|bar]].<ref name=\"x\">cite</ref>\n\n\n\nIt has [[baz]]."));
+        assertEquals("Text\n See also \nOther\n", stripper.stripEverything("Text\n== See also ==\n* [[Other]]\n"));
+        assertEquals("A\n\nB", stripper.stripEverything("A\n{| class=\"wikitable\"\n| cell {{x}}\n|}\n\nB[[Image:foo.jpg|thumb|a [[link]]]]"));
+        assertEquals("unclosed {{template link", stripper.stripEverything("unclosed {{template [[link]]"));
+    }
+
+    @Test
+    public void testCorpus() {
+        SinglePassMarkupStripper stripper = new SinglePassMarkupStripper();
+        StringBuilder out = new StringBuilder();
+        for (RawPage page : new DumpPageXmlParser(TestDumpPageParser.EN_DUMP, TestDumpPageParser.EN)) {
+            out.setLength(0);
+            stripper.stripEverything(page.getBody(), out);
+            assertEquals(MarkupStripper.stripEverything(page.getBody()), out.toString());
+        }
+    }
+
+    @Test
+    public void testRandomMarkup() {
+        SinglePassMarkupStripper stripper = new SinglePassMarkupStripper();
+        Random random = new Random(42);
+        for (int i = 0; i < 20000; i++) {
+            StringBuilder markup = new StringBuilder();
+            for (int j = random.nextInt(60); j > 0; j--) {
+                markup.append(TOKENS[random.nextInt(TOKENS.length)]);
+            }
+            String s = markup.toString();
+            assertEquals(s, MarkupStripper.stripEverything(s), stripper.stripEverything(s));
+        }
+    }
+}
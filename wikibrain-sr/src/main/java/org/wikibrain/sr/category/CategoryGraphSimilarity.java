@@ -1,6 +1,7 @@
 package org.wikibrain.sr.category;
 
 import com.typesafe.config.Config;
+import gnu.trove.map.TIntDoubleMap;
 import gnu.trove.set.TIntSet;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -107,40 +108,45 @@ public class CategoryGraphSimilarity extends BaseSRMetric {
         bfs2.setExploreChildren(false);
 
         double shortestDistance = Double.POSITIVE_INFINITY;
-        double maxDist1 = 0;
-        double maxDist2 = 0;
-
-        // Note that all the category ids below are dense indexes in [0, numCategories).
-        // The mapping is determined by the graph.
-        while ((bfs1.hasMoreResults() || bfs2.hasMoreResults())
-                &&     (maxDist1 + maxDist2 < shortestDistance)) {
-            // Search from d1
-            while (bfs1.hasMoreResults() && (maxDist1 <= maxDist2 || !bfs2.hasMoreResults())) {
-                CategoryBfs.BfsVisited visited = bfs1.step();
-                for (int catId : visited.cats.keys()) {
-                    if (bfs2.hasCategoryDistanceForIndex(catId)) {
-                        double d = bfs1.getCategoryDistanceForIndex(catId)
-                                + bfs2.getCategoryDistanceForIndex(catId)
-                                - graph.catCosts[catId];    // counted twice
-                        shortestDistance = Math.min(d, shortestDistance);
+        try {
+            double maxDist1 = 0;
+            double maxDist2 = 0;
+
+            // Note that all the category ids below are dense indexes in [0, numCategories).
+            // The mapping is determined by the graph.
+            while ((bfs1.hasMoreResults() || bfs2.hasMoreResults())
+                    &&     (maxDist1 + maxDist2 < shortestDistance)) {
+                // Search from d1
+                while (bfs1.hasMoreResults() && (maxDist1 <= maxDist2 || !bfs2.hasMoreResults())) {
+                    CategoryBfs.BfsVisited visited = bfs1.step();
+                    for (int catId : visited.cats.keys()) {
+                        if (bfs2.hasCategoryDistanceForIndex(catId)) {
+                            double d = bfs1.getCategoryDistanceForIndex(catId)
+                                    + bfs2.getCategoryDistanceForIndex(catId)
+                                    - graph.catCosts[catId];    // counted twice
+                            shortestDistance = Math.min(d, shortestDistance);
+                        }
                     }
+                    maxDist1 = Math.max(maxDist1, visited.maxCatDistance());
                 }
-                maxDist1 = Math.max(maxDist1, visited.maxCatDistance());
-            }
 
-            // Search from d2
-            while (bfs2.hasMoreResults() && (maxDist2 <= maxDist1 || !bfs1.hasMoreResults())) {
-                CategoryBfs.BfsVisited visited = bfs2.step();
-                for (int catId : visited.cats.keys()) {
-                    if (bfs1.hasCategoryDistanceForIndex(catId)) {
-                        double d = bfs1.getCategoryDistanceForIndex(catId) +
-                                bfs2.getCategoryDistanceForIndex(catId) + 0
-                                - graph.catCosts[catId];    // counted twice;
-                        shortestDistance = Math.min(d, shortestDistance);
+                // Search from d2
+                while (bfs2.hasMoreResults() && (maxDist2 <= maxDist1 || !bfs1.hasMoreResults())) {
+                    CategoryBfs.BfsVisited visited = bfs2.step();
+                    for (int catId : visited.cats.keys()) {
+                        if (bfs1.hasCategoryDistanceForIndex(catId)) {
+                            double d = bfs1.getCategoryDistanceForIndex(catId) +
+                                    bfs2.getCategoryDistanceForIndex(catId) + 0
+                                    - graph.catCosts[catId];    // counted twice;
+                            shortestDistance = Math.min(d, shortestDistance);
+                        }
                     }
+                    maxDist2 = Math.max(maxDist2, visited.maxCatDistance());
                 }
-                maxDist2 = Math.max(maxDist2, visited.maxCatDistance());
             }
+        } finally {
+            bfs1.close();
+            bfs2.close();
         }
 
         return new SRResult(distanceToScore(shortestDistance));
@@ -157,13 +163,19 @@ public class CategoryGraphSimilarity extends BaseSRMetric {
             return results;
         }
         CategoryBfs bfs = new CategoryBfs(graph,pageId,getLanguage(), maxResults, validIds, catHelper);
-        while (bfs.hasMoreResults()) {
-            bfs.step();
+        TIntDoubleMap distances;
+        try {
+            while (bfs.hasMoreResults()) {
+                bfs.step();
+            }
+            distances = bfs.getPageDistances();
+        } finally {
+            bfs.close();
         }
-        results = new SRResultList(bfs.getPageDistances().size());
+        results = new SRResultList(distances.size());
         int i = 0;
-        for (int pageId2: bfs.getPageDistances().keys()) {
-            results.set(i++, pageId2, distanceToScore(bfs.getPageDistances().get(pageId2)));
+        for (int pageId2: distances.keys()) {
+            results.set(i++, pageId2, distanceToScore(distances.get(pageId2)));
         }
         results.sortDescending();
         return normalize(results);
@@ -19,12 +19,28 @@ import org.wikibrain.utils.*;
 
 import java.io.*;
 import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 /**
+ * Combines the scores of several metrics using an ensemble.
+ *
+ * By default the sub-metrics are called one after another. After setParallel() they are
+ * called concurrently on a bounded thread pool, so a request takes about as long as the
+ * slowest sub-metric. With a timeout, a request returns after at most that long and the
+ * ensemble only sees the results of the metrics that finished; the others are passed to
+ * it as null. Calls that do not fit in the pool's queue are not run and count as timeouts,
+ * so a backlog of late calls never moves work onto the requesting thread.
+ *
+ * The latency of every sub-metric call is recorded in a histogram (see getLatencies()).
+ * Latencies and timeouts are kept per position in the list of sub-metrics, because
+ * several sub-metrics may share a name.
+ *
  * @author Matt Lesicko
  * @author Shilad Sen
  */
@@ -39,11 +55,19 @@ public class EnsembleMetric extends BaseSRMetric {
     private boolean resolvePhrases = true;
     private boolean trainSubmetrics = true;
 
+    private volatile ExecutorService executor = null;
+    private volatile long timeoutMillis = 0;
+    private final List<LatencyHistogram> latencies = new ArrayList<LatencyHistogram>();
+    private final List<AtomicLong> timeouts = new ArrayList<AtomicLong>();
 
     public EnsembleMetric(String name, Language language, List<SRMetric> metrics, Ensemble ensemble, Disambiguator disambiguator, LocalPageDao pageHelper){
         super(name, language, pageHelper, disambiguator);
         this.metrics=metrics;
         this.ensemble=ensemble;
+        for (int i = 0; i < metrics.size(); i++) {
+            latencies.add(new LatencyHistogram());
+            timeouts.add(new AtomicLong());
+        }
     }
 
     public List<SRMetric> getMetrics() {
@@ -60,49 +84,53 @@ public class EnsembleMetric extends BaseSRMetric {
     }
 
     @Override
-    public SRResult similarity(int pageId1, int pageId2, boolean explanations) throws DaoException {
-        List<SRResult> scores = new ArrayList<SRResult>();
-        for (SRMetric metric : metrics){
-            scores.add(metric.similarity(pageId1,pageId2,explanations));
-        }
+    public SRResult similarity(final int pageId1, final int pageId2, final boolean explanations) throws DaoException {
+        List<SRResult> scores = callMetrics(new MetricCall<SRResult>() {
+            public SRResult call(SRMetric metric) throws DaoException {
+                return metric.similarity(pageId1,pageId2,explanations);
+            }
+        });
         return normalize(ensemble.predictSimilarity(scores));
     }
 
     @Override
-    public SRResult similarity(String phrase1, String phrase2, boolean explanations) throws DaoException {
+    public SRResult similarity(final String phrase1, final String phrase2, final boolean explanations) throws DaoException {
         if (resolvePhrases) {
             return super.similarity(phrase1, phrase2, explanations);
         }
-        List<SRResult> scores = new ArrayList<SRResult>();
-        for (SRMetric metric : metrics){
-            scores.add(metric.similarity(phrase1,phrase2,explanations));
-        }
+        List<SRResult> scores = callMetrics(new MetricCall<SRResult>() {
+            public SRResult call(SRMetric metric) throws DaoException {
+                return metric.similarity(phrase1,phrase2,explanations);
+            }
+        });
         return normalize(ensemble.predictSimilarity(scores));
     }
 
     @Override
-    public SRResultList mostSimilar(int pageId, int maxResults, TIntSet validIds) throws DaoException {
+    public SRResultList mostSimilar(final int pageId, final int maxResults, final TIntSet validIds) throws DaoException {
         SRResultList mostSimilar= getCachedMostSimilar(pageId, maxResults, validIds);
         if (mostSimilar != null) {
             return mostSimilar;
         }
-        List<SRResultList> scores = new ArrayList<SRResultList>();
-        for (SRMetric metric : metrics){
-            scores.add(metric.mostSimilar(pageId,getMaxResults(maxResults),validIds));
-        }
+        List<SRResultList> scores = callMetrics(new MetricCall<SRResultList>() {
+            public SRResultList call(SRMetric metric) throws DaoException {
+                return metric.mostSimilar(pageId,getMaxResults(maxResults),validIds);
+            }
+        });
         SRResultList result = normalize(ensemble.predictMostSimilar(scores, maxResults, validIds));
         return result;
     }
 
     @Override
-    public SRResultList mostSimilar(String phrase, int maxResults, TIntSet validIds) throws DaoException {
+    public SRResultList mostSimilar(final String phrase, final int maxResults, final TIntSet validIds) throws DaoException {
         if (resolvePhrases) {
             return super.mostSimilar(phrase, maxResults, validIds);
         }
-        List<SRResultList> scores = new ArrayList<SRResultList>();
-        for (SRMetric metric : metrics){
-            scores.add(metric.mostSimilar(phrase, getMaxResults(maxResults),validIds));
-        }
+        List<SRResultList> scores = callMetrics(new MetricCall<SRResultList>() {
+            public SRResultList call(SRMetric metric) throws DaoException {
+                return metric.mostSimilar(phrase, getMaxResults(maxResults),validIds);
+            }
+        });
         return normalize(ensemble.predictMostSimilar(scores,maxResults, validIds));
     }
 
@@ -200,6 +228,162 @@ public class EnsembleMetric extends BaseSRMetric {
         return Math.max(MIN_SEARCH_DEPTH, numResults * SEARCH_MULTIPLIER);
     }
 
+    /**
+     * A call to one sub-metric.
+     */
+    private interface MetricCall<T> {
+        T call(SRMetric metric) throws DaoException;
+    }
+
+    /**
+     * Invokes the call on every sub-metric and returns the results in the order of the metrics.
+     * If a timeout is set, metrics that have not finished by the deadline have a null result,
+     * as do calls that the pool rejects because its queue is full.
+     * Calls that have not started are cancelled. Running calls are not interrupted, because an
+     * interrupt during FileChannel I/O closes the channel that later calls share; their late
+     * results are discarded.
+     */
+    private <T> List<T> callMetrics(final MetricCall<T> call) throws DaoException {
+        List<T> results = new ArrayList<T>(metrics.size());
+        ExecutorService executor = this.executor;
+        long timeoutMillis = this.timeoutMillis;
+        if (executor == null) {
+            for (int i = 0; i < metrics.size(); i++) {
+                results.add(timedCall(i, call));
+            }
+            return results;
+        }
+
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+        List<Future<T>> futures = new ArrayList<Future<T>>(metrics.size());
+        for (int i = 0; i < metrics.size(); i++) {
+            final int index = i;
+            Callable<T> task = new Callable<T>() {
+                public T call() throws Exception {
+                    return timedCall(index, call);
+                }
+            };
+            try {
+                futures.add(executor.submit(task));
+            } catch (RejectedExecutionException e) {
+                futures.add(null);
+            }
+        }
+        try {
+            for (int i = 0; i < futures.size(); i++) {
+                Future<T> future = futures.get(i);
+                if (future == null && timeoutMillis > 0) {
+                    timeouts.get(i).incrementAndGet();
+                    results.add(null);
+                    continue;
+                } else if (future == null) {
+                    results.add(timedCall(i, call));    // without a deadline the caller can wait for it
+                    continue;
+                }
+                try {
+                    if (timeoutMillis <= 0) {
+                        results.add(future.get());
+                    } else {
+                        results.add(future.get(Math.max(0, deadline - System.nanoTime()), TimeUnit.NANOSECONDS));
+                    }
+                } catch (TimeoutException e) {
+                    future.cancel(false);
+                    timeouts.get(i).incrementAndGet();
+                    results.add(null);
+                } catch (ExecutionException e) {
+                    Throwable cause = e.getCause();
+                    if (cause instanceof DaoException) {
+                        throw (DaoException) cause;
+                    } else if (cause instanceof RuntimeException) {
+                        throw (RuntimeException) cause;
+                    } else if (cause instanceof Error) {
+                        throw (Error) cause;
+                    } else {
+                        throw new DaoException((Exception) cause);
+                    }
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new DaoException(e);
+        } finally {
+            for (Future<T> future : futures) {
+                if (future != null) {
+                    future.cancel(false);    // no-op for completed calls
+                }
+            }
+        }
+        return results;
+    }
+
+    private <T> T timedCall(int index, MetricCall<T> call) throws DaoException {
+        long start = System.nanoTime();
+        try {
+            return call.call(metrics.get(index));
+        } finally {
+            latencies.get(index).record(System.nanoTime() - start);
+        }
+    }
+
+    /**
+     * Calls the sub-metrics concurrently.
+     *
+     * @param numThreads Size of the thread pool shared by all requests to this metric.
+     *                   Calls that do not fit in the pool's queue count as timeouts, or run
+     *                   on the requesting thread if there is no deadline.
+     * @param timeoutMillis Deadline for each request. If it is zero or negative requests wait
+     *                      for all sub-metrics.
+     */
+    public synchronized void setParallel(int numThreads, long timeoutMillis) {
+        if (executor != null) {
+            executor.shutdown();
+        }
+        final String prefix = "ensemble-" + getName() + "-";
+        final AtomicInteger counter = new AtomicInteger();
+        executor = new ThreadPoolExecutor(
+                numThreads, numThreads, 60, TimeUnit.SECONDS,
+                new ArrayBlockingQueue<Runnable>(numThreads * 100),
+                new ThreadFactory() {
+                    public Thread newThread(Runnable r) {
+                        Thread t = new Thread(r, prefix + counter.incrementAndGet());
+                        t.setDaemon(true);
+                        return t;
+                    }
+                },
+                new ThreadPoolExecutor.AbortPolicy());
+        this.timeoutMillis = timeoutMillis;
+    }
+
+    /**
+     * Returns to calling the sub-metrics one after another, without a deadline.
+     */
+    public synchronized void setSequential() {
+        if (executor != null) {
+            executor.shutdown();
+            executor = null;
+        }
+        this.timeoutMillis = 0;
+    }
+
+    /**
+     * @return A latency histogram for each sub-metric, in the order of getMetrics().
+     */
+    public List<LatencyHistogram> getLatencies() {
+        return Collections.unmodifiableList(latencies);
+    }
+
+    /**
+     * @return The number of calls to each sub-metric that missed the deadline or were
+     * rejected by a full pool, in the order of getMetrics().
+     */
+    public List<Long> getTimeouts() {
+        List<Long> result = new ArrayList<Long>();
+        for (AtomicLong count : timeouts) {
+            result.add(count.get());
+        }
+        return result;
+    }
+
 
     public void setTrainSubmetrics(boolean trainSubmetrics) {
         this.trainSubmetrics = trainSubmetrics;
@@ -268,6 +452,11 @@ public class EnsembleMetric extends BaseSRMetric {
             if (config.hasPath("resolvephrases")) {
                 sr.setResolvePhrases(config.getBoolean("resolvephrases"));
             }
+            if (config.hasPath("parallel") && config.getBoolean("parallel")) {
+                int threads = config.hasPath("threads") ? config.getInt("threads") : WpThreadUtils.getMaxThreads();
+                long timeout = config.hasPath("timeoutMillis") ? config.getLong("timeoutMillis") : 0;
+                sr.setParallel(threads, timeout);
+            }
 
             BaseSRMetric.configureBase(getConfigurator(), sr, config);
             return sr;
@@ -31,22 +31,39 @@ public class EvenEnsemble implements Ensemble{
     @Override
     public SRResult predictSimilarity(List<SRResult> scores) {
         double result=0.0;
+        int n = 0;
         List<Explanation> explanationList = new ArrayList<Explanation>();
         for (SRResult score : scores){
+            if (score == null) {
+                continue;   // metric missed its deadline
+            }
             result+=score.getScore();
+            n++;
             if (score.getExplanations()!=null&&!score.getExplanations().isEmpty()){
                 explanationList.addAll(score.getExplanations());
             }
         }
-        result/=scores.size();
+        result = (n == 0) ? Double.NaN : result / n;
         return new SRResult(-2,result,explanationList);
     }
 
     @Override
     public SRResultList predictMostSimilar(List<SRResultList> scores, int maxResults, TIntSet validIds) {
-        int numMetrics = scores.size();
+        // Average over the metrics that responded, like predictSimilarity
+        int numMetrics = 0;
+        for (SRResultList resultList : scores){
+            if (resultList != null) {
+                numMetrics++;
+            }
+        }
+        if (numMetrics == 0) {
+            return new SRResultList(0);
+        }
         TIntDoubleHashMap scoreMap = new TIntDoubleHashMap();
         for (SRResultList resultList : scores){
+            if (resultList == null) {
+                continue;   // metric missed its deadline
+            }
             for (SRResult result : resultList){
                 double value = result.getScore()/numMetrics;
                 scoreMap.adjustOrPutValue(result.getId(),value,value);
@@ -1,8 +1,11 @@
 package org.wikibrain.sr.milnewitten;
 
 import com.typesafe.config.Config;
-import gnu.trove.map.TIntFloatMap;
-import gnu.trove.map.hash.TIntFloatHashMap;
+import gnu.trove.iterator.TIntIntIterator;
+import gnu.trove.map.TIntIntMap;
+import gnu.trove.map.TIntObjectMap;
+import gnu.trove.map.hash.TIntIntHashMap;
+import gnu.trove.map.hash.TIntObjectHashMap;
 import gnu.trove.set.TIntSet;
 import gnu.trove.set.hash.TIntHashSet;
 import org.wikibrain.conf.Configuration;
@@ -12,10 +15,12 @@ import org.wikibrain.core.dao.DaoException;
 import org.wikibrain.core.dao.DaoFilter;
 import org.wikibrain.core.dao.LocalLinkDao;
 import org.wikibrain.core.dao.LocalPageDao;
+import org.wikibrain.core.dao.matrix.MatrixLocalLinkDao;
 import org.wikibrain.core.lang.Language;
 import org.wikibrain.core.lang.LocalId;
-import org.wikibrain.core.model.LocalLink;
 import org.wikibrain.core.model.NameSpace;
+import org.wikibrain.matrix.SparseMatrix;
+import org.wikibrain.matrix.SparseMatrixRow;
 import org.wikibrain.phrases.AnchorTextPhraseAnalyzer;
 import org.wikibrain.phrases.PhraseAnalyzer;
 import org.wikibrain.phrases.PrunedCounts;
@@ -24,23 +29,48 @@ import org.wikibrain.sr.SRResult;
 import org.wikibrain.sr.SRResultList;
 import org.wikibrain.sr.dataset.Dataset;
 import org.wikibrain.sr.normalize.Normalizer;
-import org.wikibrain.sr.utils.SimUtils;
+import org.wikibrain.sr.utils.Leaderboard;
 
 import java.io.File;
 import java.io.IOException;
+import java.util.Arrays;
 import java.util.LinkedHashMap;
 import java.util.Map;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
 /**
+ * A simplified version of the Milne and Witten link-based metric.
+ *
+ * Similarity averages the normalized Google distance of two pages' inlinks and the cosine
+ * similarity of their IDF weighted outlinks. Links are read as primitive id arrays. When the
+ * link dao is a MatrixLocalLinkDao, per-page degrees are precomputed from its matrix and
+ * transpose, so the metric is fast enough to use online. The degrees are rebuilt when the
+ * dao reloads its links and swaps in a new matrix.
+ *
  * @author Shilad Sen
  */
 public class SimpleMilneWitten implements SRMetric {
+    private static final Logger LOG = LoggerFactory.getLogger(SimpleMilneWitten.class);
+
+    /**
+     * The number of candidates ranked by inlink overlap whose full similarity is computed by mostSimilar.
+     */
+    private static final int MOST_SIMILAR_CANDIDATES_MULTIPLIER = 5;
+
+    /**
+     * The maximum number of a page's inlinks whose outlinks are expanded into candidates by mostSimilar.
+     * Inlinks with the fewest outlinks are preferred because they are the most specific.
+     */
+    private static final int MOST_SIMILAR_MAX_EXPANDED_INLINKS = 500;
+
     private final String name;
     private final Language language;
     private final LocalPageDao pageDao;
     private final LocalLinkDao linkDao;
     private final AnchorTextPhraseAnalyzer phraseAnalyzer;
     private final int numArticles;
+    private volatile Degrees degrees = null;
     private File dataDir;
 
     public SimpleMilneWitten(String name, Language language, LocalPageDao pageDao, LocalLinkDao linkDao, AnchorTextPhraseAnalyzer phraseAnalyzer) throws DaoException {
@@ -55,6 +85,9 @@ public class SimpleMilneWitten implements SRMetric {
                         .setDisambig(false)
                         .setRedirect(false)
                         .setNameSpaces(NameSpace.ARTICLE));
+        if (!(linkDao instanceof MatrixLocalLinkDao)) {
+            LOG.warn("link dao is not backed by a link matrix; SimpleMilneWitten will query link counts directly.");
+        }
     }
 
     @Override
@@ -79,68 +112,234 @@ public class SimpleMilneWitten implements SRMetric {
 
     @Override
     public SRResult similarity(int pageId1, int pageId2, boolean explanations) throws DaoException {
-        double s1 = googleInlink(pageId1, pageId2);
-        double s2 = cosineOutlink(pageId1, pageId2);
+        return new SRResult(similarity(getPageLinks(pageId1), getPageLinks(pageId2)));
+    }
 
-        return new SRResult(0.5 * s1 + 0.5 * s2);
+    private double similarity(PageLinks links1, PageLinks links2) throws DaoException {
+        double s1 = googleInlink(links1.inlinks, links2.inlinks);
+        double s2 = cosineOutlink(links1.outlinks, links2.outlinks);
+        return 0.5 * s1 + 0.5 * s2;
     }
 
-    private TIntSet getInlinks(int pageId1) throws DaoException {
-        TIntSet inlinks = new TIntHashSet();
-        for (LocalLink ll : linkDao.getLinks(language, pageId1, false)) {
-            inlinks.add(ll.getSourceId());
-        }
-        return inlinks;
+    /**
+     * The in and outlinks of a page, as sorted arrays of distinct page ids.
+     */
+    private static class PageLinks {
+        int inlinks[];
+        int outlinks[];
+    }
+
+    private PageLinks getPageLinks(int pageId) throws DaoException {
+        PageLinks links = new PageLinks();
+        links.inlinks = getLinks(pageId, false);
+        links.outlinks = getLinks(pageId, true);
+        return links;
     }
-    private TIntSet getOutlinks(int pageId1) throws DaoException {
-        TIntSet outlinks = new TIntHashSet();
-        for (LocalLink ll : linkDao.getLinks(language, pageId1, true)) {
-            outlinks.add(ll.getDestId());
+
+    /**
+     * @return The distinct page ids linked to or from a page, in sorted order.
+     */
+    private int[] getLinks(int pageId, boolean outlinks) throws DaoException {
+        int ids[] = linkDao.getLinkIds(language, pageId, outlinks);
+
+        // Links are not guaranteed to be sorted or distinct.
+        Arrays.sort(ids);
+        int m = 0;
+        for (int i = 0; i < ids.length; i++) {
+            if (m == 0 || ids[i] != ids[m - 1]) {
+                ids[m++] = ids[i];
+            }
         }
-        return outlinks;
+        return (m == ids.length) ? ids : Arrays.copyOf(ids, m);
     }
 
-    private double googleInlink(int pageId1, int pageId2) throws DaoException {
-        TIntSet inlinks1 = getInlinks(pageId1);
-        TIntSet inlinks2 = getInlinks(pageId2);
+    private double googleInlink(int inlinks1[], int inlinks2[]) {
+        return googleDistance(inlinks1.length, inlinks2.length, intersectionSize(inlinks1, inlinks2));
+    }
 
-        if (inlinks1.isEmpty() && inlinks2.isEmpty()) {
+    /**
+     * Normalized Google distance expressed as a similarity in [0, 1].
+     * @param a Number of inlinks to the first page.
+     * @param b Number of inlinks to the second page.
+     * @param ab Number of inlinks the pages share.
+     */
+    private double googleDistance(int a, int b, int ab) {
+        if (ab == 0) {
             return 0.0;
         }
-        int a = inlinks1.size();
-        int b = inlinks2.size();
-        TIntSet intersection = new TIntHashSet(inlinks1.toArray());
-        intersection.retainAll(inlinks2);
-        int ab = intersection.size();
-
-        return 1.0 - (
+        double sim = 1.0 - (
                 (Math.log(Math.max(a, b)) - Math.log(ab))
                 / (Math.log(numArticles) - Math.log(Math.min(a, b)))
         );
+        return Math.max(0.0, sim);
     }
 
-    private double cosineOutlink(int pageId1, int pageId2) throws DaoException {
-        TIntSet outlinks1 = getOutlinks(pageId1);
-        TIntSet outlinks2 = getOutlinks(pageId2);
+    private static int intersectionSize(int ids1[], int ids2[]) {
+        int i = 0, j = 0, n = 0;
+        while (i < ids1.length && j < ids2.length) {
+            if (ids1[i] < ids2[j]) {
+                i++;
+            } else if (ids1[i] > ids2[j]) {
+                j++;
+            } else {
+                n++; i++; j++;
+            }
+        }
+        return n;
+    }
 
-        TIntFloatMap v1 = makeOutlinkVector(outlinks1);
-        TIntFloatMap v2 = makeOutlinkVector(outlinks2);
-        if (v1.isEmpty() || v2.isEmpty()) {
+    private double cosineOutlink(int outlinks1[], int outlinks2[]) throws DaoException {
+        if (outlinks1.length == 0 || outlinks2.length == 0) {
             return 0.0;
         }
-        return SimUtils.cosineSimilarity(v1, v2);
+        double xDotX = 0.0;
+        double yDotY = 0.0;
+        double xDotY = 0.0;
+        int i = 0, j = 0;
+        while (i < outlinks1.length || j < outlinks2.length) {
+            if (j == outlinks2.length || (i < outlinks1.length && outlinks1[i] < outlinks2[j])) {
+                double x = getIdf(outlinks1[i++]);
+                xDotX += x * x;
+            } else if (i == outlinks1.length || outlinks1[i] > outlinks2[j]) {
+                double y = getIdf(outlinks2[j++]);
+                yDotY += y * y;
+            } else {
+                double x = getIdf(outlinks1[i++]);
+                j++;
+                xDotX += x * x;
+                yDotY += x * x;
+                xDotY += x * x;
+            }
+        }
+        return xDotX * yDotY != 0 ? xDotY / Math.sqrt(xDotX * yDotY): 0.0;
+    }
+
+    private double getIdf(int wpId) throws DaoException {
+        Degrees d = getDegrees();
+        if (d != null) {
+            return d.getIdf(wpId);
+        }
+        int n = linkDao.getCount(new DaoFilter().setLanguages(language).setSourceIds(wpId));
+        return Math.log(1.0 * numArticles / Math.max(1, n));
+    }
+
+    private int getInDegree(int wpId) throws DaoException {
+        Degrees d = getDegrees();
+        return (d != null) ? d.getInDegree(wpId) : getLinks(wpId, false).length;
+    }
+
+    /**
+     * @return At most MOST_SIMILAR_MAX_EXPANDED_INLINKS of the inlinks, preferring those with the
+     * fewest outlinks. Without precomputed degrees, the first inlinks by id are kept.
+     */
+    private int[] getExpandedInlinks(int inlinks[]) throws DaoException {
+        if (inlinks.length <= MOST_SIMILAR_MAX_EXPANDED_INLINKS) {
+            return inlinks;
+        }
+        Degrees d = getDegrees();
+        if (d == null) {
+            return Arrays.copyOf(inlinks, MOST_SIMILAR_MAX_EXPANDED_INLINKS);
+        }
+        Leaderboard specific = new Leaderboard(MOST_SIMILAR_MAX_EXPANDED_INLINKS);
+        for (int srcId : inlinks) {
+            specific.tallyScore(srcId, -d.getOutDegree(srcId));
+        }
+        return specific.getTop().getIds();
+    }
+
+    /**
+     * Per-page degrees and IDF weights for every page in a link matrix in this language.
+     * Only the rows whose packed ids belong to this language are read.
+     */
+    private class Degrees {
+        final SparseMatrix matrix;
+        final int ids[];
+        final int inDegrees[];
+        final int outDegrees[];
+        final float idfs[];
+
+        Degrees(SparseMatrix matrix, SparseMatrix transpose) throws IOException {
+            this.matrix = matrix;
+            TIntIntMap outCounts = new TIntIntHashMap();
+            TIntIntMap inCounts = new TIntIntHashMap();
+            for (int rowId : matrix.getRowIds()) {
+                if (isInLanguage(rowId)) {
+                    SparseMatrixRow row = matrix.getRow(rowId);
+                    outCounts.put(LocalId.unpackId(rowId), row.getNumCols());
+                }
+            }
+            for (int rowId : transpose.getRowIds()) {
+                if (isInLanguage(rowId)) {
+                    SparseMatrixRow row = transpose.getRow(rowId);
+                    TIntSet sources = new TIntHashSet(row.getNumCols());
+                    for (int i = 0; i < row.getNumCols(); i++) {
+                        sources.add(row.getColIndex(i));
+                    }
+                    inCounts.put(LocalId.unpackId(rowId), sources.size());
+                }
+            }
+            TIntSet all = new TIntHashSet(outCounts.keySet());
+            all.addAll(inCounts.keySet());
+            ids = all.toArray();
+            Arrays.sort(ids);
+            inDegrees = new int[ids.length];
+            outDegrees = new int[ids.length];
+            idfs = new float[ids.length];
+            for (int i = 0; i < ids.length; i++) {
+                inDegrees[i] = inCounts.get(ids[i]);
+                outDegrees[i] = outCounts.get(ids[i]);
+                idfs[i] = (float) Math.log(1.0 * numArticles / Math.max(1, outCounts.get(ids[i])));
+            }
+        }
+
+        double getIdf(int wpId) {
+            int i = Arrays.binarySearch(ids, wpId);
+            return (i >= 0) ? idfs[i] : Math.log(numArticles);
+        }
+
+        int getInDegree(int wpId) {
+            int i = Arrays.binarySearch(ids, wpId);
+            return (i >= 0) ? inDegrees[i] : 0;
+        }
+
+        int getOutDegree(int wpId) {
+            int i = Arrays.binarySearch(ids, wpId);
+            return (i >= 0) ? outDegrees[i] : 0;
+        }
     }
 
-    private int getNumLinks(int wpId) throws DaoException {
-        return linkDao.getCount(new DaoFilter().setLanguages(language).setSourceIds(wpId));
+    private boolean isInLanguage(int packedId) {
+        return LocalId.unpackLanguageId(packedId) == language.getId();
     }
 
-    private TIntFloatMap makeOutlinkVector(TIntSet links) throws DaoException {
-        TIntFloatMap vector = new TIntFloatHashMap();
-        for (int wpId : links.toArray()) {
-            vector.put(wpId, (float) Math.log(1.0 * numArticles / getNumLinks(wpId)));
+    /**
+     * @return The degrees of the dao's current link matrix, or null if it has none.
+     */
+    private Degrees getDegrees() throws DaoException {
+        if (!(linkDao instanceof MatrixLocalLinkDao)) {
+            return null;
+        }
+        SparseMatrix matrix = ((MatrixLocalLinkDao) linkDao).getMatrix();
+        SparseMatrix transpose = ((MatrixLocalLinkDao) linkDao).getTranspose();
+        if (matrix == null || transpose == null) {
+            return null;
         }
-        return vector;
+        Degrees d = degrees;
+        if (d == null || d.matrix != matrix) {
+            synchronized (this) {
+                d = degrees;
+                if (d == null || d.matrix != matrix) {
+                    LOG.info("computing link degrees for " + language);
+                    try {
+                        d = new Degrees(matrix, transpose);
+                    } catch (IOException e) {
+                        throw new DaoException(e);
+                    }
+                    degrees = d;
+                }
+            }
+        }
+        return d;
     }
 
     @Override
@@ -151,28 +350,45 @@ public class SimpleMilneWitten implements SRMetric {
             return null;
         }
 
+        // Fetch each candidate's links once and score each pair once.
+        TIntObjectMap<PageLinks> links = new TIntObjectHashMap<PageLinks>();
+        for (LocalId lid : candidates1.keySet()) {
+            if (!links.containsKey(lid.getId())) links.put(lid.getId(), getPageLinks(lid.getId()));
+        }
+        for (LocalId lid : candidates2.keySet()) {
+            if (!links.containsKey(lid.getId())) links.put(lid.getId(), getPageLinks(lid.getId()));
+        }
+        double scores[][] = new double[candidates1.size()][candidates2.size()];
+
         double highestScore = Double.NEGATIVE_INFINITY;
+        int i = 0;
         for (LocalId lid1 : candidates1.keySet()) {
+            int j = 0;
             for (LocalId lid2 : candidates2.keySet()) {
-                double score = similarity(lid1.getId(), lid2.getId(), false).getScore();
+                double score = similarity(links.get(lid1.getId()), links.get(lid2.getId()));
+                scores[i][j++] = score;
                 if (score > highestScore) {
                     highestScore = score;
                 }
             }
+            i++;
         }
 
         double result = 0.0;
         double highestPop = Double.NEGATIVE_INFINITY;
 
+        i = 0;
         for (LocalId lid1 : candidates1.keySet()) {
+            int j = 0;
             for (LocalId lid2 : candidates2.keySet()) {
                 double pop = candidates1.get(lid1) * candidates2.get(lid2);
-                double score = similarity(lid1.getId(), lid2.getId(), false).getScore();
+                double score = scores[i][j++];
                 if (score >= 0.4 * highestScore && pop >= highestPop) {
                     highestPop = pop;
                     result = score;
                 }
             }
+            i++;
         }
 
         int n1 = getPhraseCount(phrase1 + " " + phrase2);
@@ -195,22 +411,53 @@ public class SimpleMilneWitten implements SRMetric {
 
     @Override
     public SRResultList mostSimilar(int pageId, int maxResults) throws DaoException {
-        throw new UnsupportedOperationException();
+        return mostSimilar(pageId, maxResults, null);
     }
 
+    /**
+     * Finds the pages most similar to a page. Candidates are the pages that share an inlink with
+     * the page, found by walking its column of the transpose and then the rows of at most
+     * MOST_SIMILAR_MAX_EXPANDED_INLINKS linking pages. Candidates are ranked by inlink Google distance, and the full similarity is computed for the best.
+     */
     @Override
     public SRResultList mostSimilar(int pageId, int maxResults, TIntSet validIds) throws DaoException {
-        throw new UnsupportedOperationException();
+        PageLinks links = getPageLinks(pageId);
+        TIntIntMap overlaps = new TIntIntHashMap();
+        for (int srcId : getExpandedInlinks(links.inlinks)) {
+            for (int destId : getLinks(srcId, true)) {
+                if (destId != pageId && (validIds == null || validIds.contains(destId))) {
+                    overlaps.adjustOrPutValue(destId, 1, 1);
+                }
+            }
+        }
+
+        Leaderboard candidates = new Leaderboard(maxResults * MOST_SIMILAR_CANDIDATES_MULTIPLIER);
+        TIntIntIterator iter = overlaps.iterator();
+        while (iter.hasNext()) {
+            iter.advance();
+            int id = iter.key();
+            candidates.tallyScore(id, googleDistance(links.inlinks.length, getInDegree(id), iter.value()));
+        }
+
+        Leaderboard top = new Leaderboard(maxResults);
+        for (int id : candidates.getTop().getIds()) {
+            top.tallyScore(id, similarity(links, getPageLinks(id)));
+        }
+        return top.getTop();
     }
 
     @Override
     public SRResultList mostSimilar(String phrase, int maxResults) throws DaoException {
-        throw new UnsupportedOperationException();
+        return mostSimilar(phrase, maxResults, null);
     }
 
     @Override
     public SRResultList mostSimilar(String phrase, int maxResults, TIntSet validIds) throws DaoException {
-        throw new UnsupportedOperationException();
+        LinkedHashMap<LocalId, Float> candidates = phraseAnalyzer.resolve(language, phrase, 1);
+        if (candidates == null || candidates.isEmpty()) {
+            return null;
+        }
+        return mostSimilar(candidates.keySet().iterator().next().getId(), maxResults, validIds);
     }
 
     @Override
@@ -234,7 +481,7 @@ public class SimpleMilneWitten implements SRMetric {
 
     @Override
     public boolean mostSimilarIsTrained() {
-        return false;
+        return true;
     }
 
     @Override
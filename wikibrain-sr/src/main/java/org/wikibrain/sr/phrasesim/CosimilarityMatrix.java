@@ -1,175 +1,434 @@
 package org.wikibrain.sr.phrasesim;
 
-import gnu.trove.list.TIntList;
-import gnu.trove.map.TIntIntMap;
-import gnu.trove.map.hash.TIntIntHashMap;
-import gnu.trove.procedure.TIntProcedure;
+import gnu.trove.iterator.TIntIterator;
 import gnu.trove.set.TIntSet;
 import gnu.trove.set.hash.TIntHashSet;
 import org.wikibrain.sr.SRResult;
 import org.wikibrain.sr.SRResultList;
 import org.wikibrain.sr.utils.Leaderboard;
 
-import java.io.Serializable;
+import java.io.*;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentHashMap;
+
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 /**
- * A cosimilarity matrix that is dense, but can be expanded.
+ * A symmetric cosimilarity matrix that is dense, but can be expanded.
+ *
+ * The matrix lives in a memory mapped file of square tiles with blockSize rows and
+ * columns. When the ids fill the first k * blockSize rows, the "shell" k of tiles
+ * (k, 0), (0, k), (k, 1), (1, k), ... (k, k) is appended to the file and mapped, so
+ * the matrix grows without moving existing values. Each row of a tile is contiguous,
+ * so a row of the matrix is scanned as one run of floats per tile. Both halves of the
+ * matrix are stored because reading a row of a triangular matrix requires walking a
+ * column, which made mostSimilar several times slower.
+ *
+ * Floats are stored little endian, the native order of common platforms, so reads
+ * do not swap bytes.
+ *
+ * The ids (and whether their update completed) are kept on the heap and written to a
+ * separate file by {@link #flush()}. Both files live in the matrix's directory and are
+ * reopened by the constructor.
+ *
+ * Ids are never removed, so reads take no lock. Adding an id maps its shell and records
+ * its dense id before publishing it in sparse2Dense, and arrays that grow are copied and
+ * then swapped in, so a reader that finds an id always sees its row. Only adding ids,
+ * marking updates completed and flushing synchronize on addLock.
  *
  * @author Shilad Sen
  */
-public class CosimilarityMatrix implements Serializable {
-    private static final double EXPANSION_FRACTION = 1.3;
-
+public class CosimilarityMatrix implements Closeable {
     private static final Logger LOGGER = LoggerFactory.getLogger(CosimilarityMatrix.class);
 
-    private float[][] matrix = new float[0][0];
-    private TIntIntMap sparse2Dense = new TIntIntHashMap();
-    private int[] dense2Sparse = new int[0];
-    private boolean [] completed = new boolean[0];
+    public static final int MAGIC = 0x57424353;   // "WBCS"
+    public static final int VERSION = 1;
 
-    public synchronized void update(int sparseId, SRResultList neighbors) {
-        int denseId;
-        if (sparse2Dense.containsKey(sparseId)) {
-            denseId = sparse2Dense.get(sparseId);
-        } else {
-            expandIfNecessary();
-            denseId = sparse2Dense.size();
-            sparse2Dense.put(sparseId, denseId);
-            dense2Sparse[denseId] = sparseId;
+    public static final int DEFAULT_BLOCK_SIZE = 512;
+
+    // Mapped regions must be smaller than 2GB
+    private static final long MAX_SHELL_FLOATS = Integer.MAX_VALUE / 4;
+
+    private final File dir;
+    private final int blockSize;
+    private final int tileFloats;
+    private final RandomAccessFile raf;
+    private final Object addLock = new Object();
+
+    private final ConcurrentHashMap<Integer, Integer> sparse2Dense = new ConcurrentHashMap<Integer, Integer>();
+    private volatile MappedByteBuffer[] mapped = new MappedByteBuffer[0];
+    private volatile FloatBuffer[] shells = new FloatBuffer[0];
+    private volatile int[] dense2Sparse = new int[16];
+    private boolean[] completed = new boolean[16];   // guarded by addLock
+    private volatile int size = 0;
+
+    public CosimilarityMatrix(File dir) throws IOException {
+        this(dir, DEFAULT_BLOCK_SIZE);
+    }
+
+    /**
+     * Opens the matrix stored in a directory, or creates an empty one.
+     * @param dir
+     * @param blockSize Number of rows and columns of each tile. Must match the value the matrix was created with.
+     * @throws IOException
+     */
+    CosimilarityMatrix(File dir, int blockSize) throws IOException {
+        this.dir = dir;
+        this.blockSize = blockSize;
+        this.tileFloats = blockSize * blockSize;
+        dir.mkdirs();
+        readIds();
+        this.raf = new RandomAccessFile(getMatrixFile(), "rw");
+        int numShells = (size + blockSize - 1) / blockSize;
+        if (raf.length() < shellOffset(numShells) * 4) {
+            LOGGER.warn("cosimilarity matrix " + getMatrixFile() + " is truncated, rebuilding it from scratch");
+            size = 0;
+            numShells = 0;
+            sparse2Dense.clear();
+        }
+        // Drop values of ids that were added after the last flush.
+        raf.setLength(shellOffset(numShells) * 4);
+        while (shells.length < numShells) {
+            mapShell();
         }
+        for (int i = size; i < numShells * blockSize; i++) {
+            for (int j = 0; j < numShells * blockSize; j++) {
+                set(i, j, 0f);
+            }
+        }
+    }
 
+    public File getMatrixFile() {
+        return new File(dir, "cosimilarity.matrix");
+    }
+
+    public File getIdsFile() {
+        return new File(dir, "cosimilarity.ids");
+    }
+
+    /**
+     * Adds an id (if necessary) and stores its similarity to each neighbor that is already
+     * in the matrix. Neighbors added later will store their similarity to this id.
+     *
+     * @param sparseId
+     * @param neighbors
+     */
+    public void update(int sparseId, SRResultList neighbors) {
+        int denseId = getOrAddDenseId(sparseId);
         for (SRResult r : neighbors) {
-            if (!sparse2Dense.containsKey(r.getId())) continue;
-            int denseId2 = sparse2Dense.get(r.getId());
-            matrix[denseId][denseId2] = (float) r.getScore();
-            matrix[denseId2][denseId] = (float) r.getScore();
+            Integer denseId2 = sparse2Dense.get(r.getId());
+            if (denseId2 != null) {
+                set(denseId, denseId2, (float) r.getScore());
+            }
+        }
+        synchronized (addLock) {
+            completed[denseId] = true;
+        }
+    }
+
+    private int getOrAddDenseId(int sparseId) {
+        Integer denseId = sparse2Dense.get(sparseId);
+        if (denseId != null) {
+            return denseId;
+        }
+        synchronized (addLock) {
+            denseId = sparse2Dense.get(sparseId);
+            if (denseId != null) {
+                return denseId;
+            }
+            denseId = size;
+            if (denseId >= shells.length * blockSize) {
+                try {
+                    mapShell();
+                } catch (IOException e) {
+                    throw new IllegalStateException("Expanding cosimilarity matrix " + getMatrixFile() + " failed", e);
+                }
+            }
+            if (denseId >= dense2Sparse.length) {
+                int newDense2Sparse[] = Arrays.copyOf(dense2Sparse, dense2Sparse.length * 2);
+                newDense2Sparse[denseId] = sparseId;
+                dense2Sparse = newDense2Sparse;
+                completed = Arrays.copyOf(completed, completed.length * 2);
+            } else {
+                dense2Sparse[denseId] = sparseId;
+            }
+            completed[denseId] = false;
+            size = denseId + 1;
+            sparse2Dense.put(sparseId, denseId);
+            return denseId;
         }
-        completed[denseId] = true;
     }
 
+    /**
+     * Returns the similarity of an id to every id in the matrix, in the order they were added.
+     * @param id
+     * @return The similarities, or null if the id is not in the matrix.
+     */
     public float[] getVector(int id) {
-        if (sparse2Dense.containsKey(id)) {
-            return matrix[sparse2Dense.get(id)];
-        } else {
+        Integer denseId = sparse2Dense.get(id);
+        if (denseId == null) {
             return null;
         }
+        float[] vector = new float[size];
+        readVector(denseId, vector);
+        return vector;
     }
 
-    public synchronized int size() {
-        return sparse2Dense.size();
+    public int size() {
+        return size;
     }
 
     public SRResultList mostSimilar(int id, int maxResults, TIntSet candidateIds) {
-        int n;
-        int denseId;
-        boolean denseCandidateIds[] = null;
-        synchronized (this) {
-            n = sparse2Dense.size();    // this can be lock free because of trove's implementation
-            denseId = sparse2Dense.get(id);
-            if (candidateIds != null) {
-                denseCandidateIds = new boolean[candidateIds.size()];
-                final boolean[] finalDenseCandidateIds = denseCandidateIds;
-                candidateIds.forEach(new TIntProcedure() {
-                    @Override
-                    public boolean execute(int id2) {
-                        finalDenseCandidateIds[sparse2Dense.get(id2)] = true;
-                        return true;
-                    }
-                });
-            }
+        Integer denseId = sparse2Dense.get(id);
+        if (denseId == null || maxResults <= 0) {
+            return new SRResultList(0);
         }
         Leaderboard top = new Leaderboard(maxResults);
-        for (int i = 0; i < n; i++) {
-            if (denseCandidateIds == null || denseCandidateIds[i]) {
-                top.tallyScore(i, matrix[denseId][i]);
+        if (candidateIds == null) {
+            scanRow(denseId, top, maxResults);
+        } else {
+            TIntIterator iter = candidateIds.iterator();
+            while (iter.hasNext()) {
+                Integer denseId2 = sparse2Dense.get(iter.next());
+                if (denseId2 != null) {
+                    top.tallyScore(denseId2, get(denseId, denseId2));
+                }
             }
         }
         SRResultList results = top.getTop();
+        int ids[] = dense2Sparse;
         for (int i = 0; i < results.numDocs(); i++) {
-            results.setId(i, dense2Sparse[results.getId(i)]);
+            results.setId(i, ids[results.getId(i)]);
         }
         return results;
     }
 
+    /**
+     * Tallies the similarity of an id to every other id, scanning its row of each tile in place.
+     * Only scores that can enter the leaderboard touch its heap, so the inner loop is a
+     * tight comparison over contiguous floats in the common case.
+     */
+    private void scanRow(int denseId, Leaderboard top, int maxResults) {
+        int n = size;
+        FloatBuffer[] shells = this.shells;
+        int r = denseId / blockSize;
+        int offset = (denseId % blockSize) * blockSize;
+        float threshold = Float.NEGATIVE_INFINITY;
+        int tallied = 0;
+        for (int c = 0; c * blockSize < n; c++) {
+            FloatBuffer shell = shells[Math.max(r, c)];
+            int base = tileIndex(r, c) + offset;
+            int first = c * blockSize;
+            int len = Math.min(blockSize, n - first);
+            for (int j = 0; j < len; j++) {
+                float s = shell.get(base + j);
+                if (s > threshold) {
+                    top.tallyScore(first + j, s);
+                    if (++tallied >= maxResults) {
+                        threshold = (float) top.getMinScore();
+                    }
+                }
+            }
+        }
+    }
 
     public double[][] cosimilarity(int rows[], int columns[]) {
         double cosims[][] = new double[rows.length][columns.length];
-        int denseRowIds[] = new int[rows.length];
-        int denseColIds[] = new int[columns.length];
-        synchronized (this) {
-            for (int i = 0; i < rows.length; i++) {
-                int rowId = rows[i];
-                denseRowIds[i] = sparse2Dense.containsKey(rowId) ? sparse2Dense.get(rowId) : -1;
-            }
-            for (int i = 0; i < columns.length; i++) {
-                int colId = columns[i];
-                denseColIds[i] = sparse2Dense.containsKey(colId) ? sparse2Dense.get(colId) : -1;
-            }
+        Integer denseColIds[] = new Integer[columns.length];
+        for (int i = 0; i < columns.length; i++) {
+            denseColIds[i] = sparse2Dense.get(columns[i]);
         }
-        for (int i = 0; i < denseRowIds.length; i++) {
+        for (int i = 0; i < rows.length; i++) {
+            Integer denseRowId = sparse2Dense.get(rows[i]);
+            if (denseRowId == null) {
+                continue;
+            }
             for (int j = 0; j < denseColIds.length; j++) {
-                if (denseRowIds[i] >= 0 && denseColIds[j] >= 0) {
-                    cosims[i][j] = matrix[denseRowIds[i]][denseColIds[j]];
+                if (denseColIds[j] != null) {
+                    cosims[i][j] = get(denseRowId, denseColIds[j]);
                 }
             }
         }
         return cosims;
     }
 
+    public float similarity(int id1, int id2) {
+        Integer denseId1 = sparse2Dense.get(id1);
+        Integer denseId2 = sparse2Dense.get(id2);
+        if (denseId1 != null && denseId2 != null) {
+            return get(denseId1, denseId2);
+        } else {
+            return 0f;
+        }
+    }
+
+    /**
+     * Returns all ids whose "update" method has successfully completed.
+     * @return
+     */
+    public TIntSet getCompleted() {
+        synchronized (addLock) {
+            TIntSet result = new TIntHashSet();
+            for (int i = 0; i < size; i++) {
+                if (completed[i]) {
+                    result.add(dense2Sparse[i]);
+                }
+            }
+            return result;
+        }
+    }
+
+    /**
+     * Writes the ids to disk and forces the mapped similarities, which are written
+     * as they are updated, to disk.
+     * @throws IOException
+     */
+    public void flush() throws IOException {
+        // Holding addLock keeps updates from completing between the ids and the matrix being written.
+        synchronized (addLock) {
+            File tmp = new File(dir, getIdsFile().getName() + ".tmp");
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp)));
+            try {
+                out.writeInt(MAGIC);
+                out.writeInt(VERSION);
+                out.writeInt(blockSize);
+                out.writeInt(size);
+                for (int i = 0; i < size; i++) {
+                    out.writeInt(dense2Sparse[i]);
+                    out.writeBoolean(completed[i]);
+                }
+            } finally {
+                out.close();
+            }
+            for (MappedByteBuffer buffer : mapped) {
+                buffer.force();
+            }
+            if (getIdsFile().exists() && !getIdsFile().delete()) {
+                throw new IOException("Could not replace " + getIdsFile());
+            }
+            if (!tmp.renameTo(getIdsFile())) {
+                throw new IOException("Could not rename " + tmp + " to " + getIdsFile());
+            }
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        flush();
+        raf.close();
+    }
 
-    private synchronized void expandIfNecessary() {
-        if (sparse2Dense.size() < dense2Sparse.length) {
+    private void readIds() throws IOException {
+        if (!getIdsFile().isFile()) {
             return;
         }
-        if (dense2Sparse.length != sparse2Dense.size()) {
-            throw new IllegalStateException();
+        DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(getIdsFile())));
+        try {
+            if (in.readInt() != MAGIC) {
+                throw new IOException("invalid magic number in " + getIdsFile());
+            }
+            int version = in.readInt();
+            if (version != VERSION) {
+                throw new IOException("unsupported version " + version + " of " + getIdsFile());
+            }
+            int fileBlockSize = in.readInt();
+            if (fileBlockSize != blockSize) {
+                throw new IOException("matrix " + dir + " has tiles of size " + fileBlockSize + ", expected " + blockSize);
+            }
+            int n = in.readInt();
+            int ids[] = new int[Math.max(16, n)];
+            completed = new boolean[Math.max(16, n)];
+            for (int i = 0; i < n; i++) {
+                ids[i] = in.readInt();
+                completed[i] = in.readBoolean();
+                sparse2Dense.put(ids[i], i);
+            }
+            dense2Sparse = ids;
+            size = n;
+        } finally {
+            in.close();
         }
-        if (dense2Sparse.length != matrix.length) {
-            throw new IllegalStateException();
+    }
+
+    /**
+     * Maps the next shell of tiles, extending the file.
+     */
+    private void mapShell() throws IOException {
+        int k = shells.length;
+        long start = shellOffset(k);
+        long end = shellOffset(k + 1);
+        if (end - start > MAX_SHELL_FLOATS) {
+            throw new IllegalStateException("cosimilarity matrix " + dir + " cannot grow beyond " + (k * blockSize) + " rows");
         }
-        if (dense2Sparse.length > 0 && dense2Sparse.length != matrix[0].length) {
-            throw new IllegalStateException();
+        if (raf.length() < end * 4) {
+            raf.setLength(end * 4);
         }
-        int oldn = sparse2Dense.size();
-        final int n = (int) (Math.max(500, oldn) * EXPANSION_FRACTION);
-        LOGGER.info("expanding cosimilarity matrix to length " + n);
-        float newCosims[][] = new float[n][n];
-        for (int i = 0; i < oldn; i++) {
-            System.arraycopy(matrix[i], 0, newCosims[i], 0, oldn);
+        if (k > 0) {
+            LOGGER.info("expanding cosimilarity matrix to length " + ((k + 1) * blockSize));
         }
-        int newDense2Sparse[] = new int[n];
-        boolean newCompleted[] = new boolean[n];
-        System.arraycopy(dense2Sparse, 0, newDense2Sparse, 0, oldn);
-        System.arraycopy(newCompleted, 0, newCompleted, 0, oldn);
-        matrix = newCosims;
-        dense2Sparse = newDense2Sparse;
-        completed = newCompleted;
+        MappedByteBuffer buffer = raf.getChannel().map(FileChannel.MapMode.READ_WRITE, start * 4, (end - start) * 4);
+        MappedByteBuffer newMapped[] = Arrays.copyOf(mapped, k + 1);
+        newMapped[k] = buffer;
+        FloatBuffer newShells[] = Arrays.copyOf(shells, k + 1);
+        newShells[k] = buffer.order(ByteOrder.LITTLE_ENDIAN).asFloatBuffer();
+        mapped = newMapped;
+        shells = newShells;
+    }
 
-        LOGGER.info("finished expanding cosimilarity matrix");
+    /**
+     * The position of the first float of a shell in the file. Shell k holds 2k + 1 tiles.
+     */
+    private long shellOffset(int k) {
+        return ((long) k) * k * tileFloats;
     }
 
-    public float similarity(int id1, int id2) {
-        if (sparse2Dense.containsKey(id1) && sparse2Dense.containsKey(id2)) {
-            return matrix[sparse2Dense.get(id1)][sparse2Dense.get(id2)];
+    /**
+     * The position of the first float of tile (r, c) within its shell.
+     */
+    private int tileIndex(int r, int c) {
+        if (r == c) {
+            return 2 * r * tileFloats;
+        } else if (r > c) {
+            return 2 * c * tileFloats;
         } else {
-            return 0f;
+            return (2 * r + 1) * tileFloats;
         }
     }
 
+    private float get(int denseId1, int denseId2) {
+        int r = denseId1 / blockSize;
+        int c = denseId2 / blockSize;
+        int index = tileIndex(r, c) + (denseId1 % blockSize) * blockSize + denseId2 % blockSize;
+        return shells[Math.max(r, c)].get(index);
+    }
+
     /**
-     * Returns all ids whose "update" method has successfully completed.
-     * @return
+     * Sets both cells of a pair of ids.
      */
-    public TIntSet getCompleted() {
-        TIntSet result = new TIntHashSet();
-        for (int i = 0; i < completed.length; i++) {
-            if (completed[i]) {
-                result.add(dense2Sparse[i]);
-            }
-        }
-        return result;
+    private void set(int denseId1, int denseId2, float value) {
+        int r = denseId1 / blockSize;
+        int c = denseId2 / blockSize;
+        FloatBuffer shell = shells[Math.max(r, c)];
+        shell.put(tileIndex(r, c) + (denseId1 % blockSize) * blockSize + denseId2 % blockSize, value);
+        shell.put(tileIndex(c, r) + (denseId2 % blockSize) * blockSize + denseId1 % blockSize, value);
     }
 
+    /**
+     * Reads the similarity of an id to ids 0 through vector.length - 1 with one bulk copy per tile.
+     */
+    private void readVector(int denseId, float[] vector) {
+        FloatBuffer[] shells = this.shells;
+        int r = denseId / blockSize;
+        int offset = (denseId % blockSize) * blockSize;
+        for (int c = 0; c * blockSize < vector.length; c++) {
+            FloatBuffer tile = shells[Math.max(r, c)].duplicate();
+            tile.position(tileIndex(r, c) + offset);
+            tile.get(vector, c * blockSize, Math.min(blockSize, vector.length - c * blockSize));
+        }
+    }
 }
@@ -31,6 +31,7 @@ import org.wikibrain.utils.ParallelForEach;
 import org.wikibrain.utils.Procedure;
 import org.wikibrain.utils.WpIOUtils;
 
+import java.io.Closeable;
 import java.io.File;
 import java.io.IOException;
 import java.util.ArrayList;
@@ -61,7 +62,8 @@ import org.slf4j.LoggerFactory;
  *
  * The universe of known phrases and associated data structures is serialized dynamically
  * to files in the specific data directory. However, the full cosimilarity matrix is only
- * written out when the write() method (or flushCosimilarity method) is called.
+ * written out when the write() method (or flushCosimilarity method) is called, and when
+ * the metric is closed.
  *
  * The normalizer should be retrained for internal phrases (using trainNormalizer())
  * periodically. It initially defaults to the "identity" normalizer.
@@ -77,7 +79,7 @@ import org.slf4j.LoggerFactory;
  *
  * @author Shilad Sen
  */
-public class KnownPhraseSim implements SRMetric {
+public class KnownPhraseSim implements SRMetric, Closeable {
     private static final Logger LOGGER = LoggerFactory.getLogger(KnownPhraseSim.class);
 
     private final StringNormalizer stringNormalizer;
@@ -97,9 +99,10 @@ public class KnownPhraseSim implements SRMetric {
     private ConcurrentHashMap<Long, TIntFloatMap> invertedIndex = new ConcurrentHashMap<Long, TIntFloatMap>();
 
     // Caches the full cosimilarity matrix.
-    private CosimilarityMatrix cosim = new CosimilarityMatrix();
+    private CosimilarityMatrix cosim = null;
 
     private DB phraseDb;
+    private boolean closed = false;
 
     public KnownPhraseSim(Language language, PhraseCreator creator, File dir, StringNormalizer stringNormalizer) throws IOException {
         this("known-phrase-sim", language, creator, dir, stringNormalizer);
@@ -144,13 +147,18 @@ public class KnownPhraseSim implements SRMetric {
     }
 
     private void readCosimilarity() throws IOException {
-        File f = new File(dir, "cosimilarity.bin");
+        File f = new File(dir, "cosimilarity");
+        CosimilarityMatrix matrix;
         try {
-            this.cosim = (CosimilarityMatrix) WpIOUtils.readObjectFromFile(f);
-        } catch (Exception e) {
-            LOGGER.info("Reading cosim file " + f + " failed... rebuilding it from scratch");
-            cosim = new CosimilarityMatrix();
+            matrix = new CosimilarityMatrix(f);
+        } catch (IOException e) {
+            LOGGER.info("Reading cosim matrix " + f + " failed... rebuilding it from scratch");
+            FileUtils.deleteQuietly(f);
+            matrix = new CosimilarityMatrix(f);
         }
+        // The serialized matrix of earlier versions is no longer read.
+        FileUtils.deleteQuietly(new File(dir, "cosimilarity.bin"));
+        this.cosim = matrix;
         final TIntSet built = cosim.getCompleted();
         ParallelForEach.loop(byId.values(), new Procedure<KnownPhrase>() {
             @Override
@@ -164,10 +172,29 @@ public class KnownPhraseSim implements SRMetric {
     }
 
     public void flushCosimilarity() throws IOException {
-        WpIOUtils.writeObjectToFile(new File(dir, "cosimilarity.bin"), cosim);
+        cosim.flush();
         db.getEngine().commit();
     }
 
+    /**
+     * Flushes and closes the cosimilarity matrix and the phrase database.
+     * The configurator calls this when it is closed.
+     * @throws IOException
+     */
+    @Override
+    public synchronized void close() throws IOException {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        try {
+            cosim.close();
+        } finally {
+            db.getEngine().commit();
+            phraseDb.close();
+        }
+    }
+
     private void readPhrases() {
         byId = new ConcurrentHashMap<Integer, KnownPhrase>();
         byPhrase = new ConcurrentHashMap<String, KnownPhrase>();
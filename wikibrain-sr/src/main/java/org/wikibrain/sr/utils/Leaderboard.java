@@ -25,6 +25,13 @@ public class Leaderboard {
         }
     }
 
+    /**
+     * @return The lowest score on the leaderboard. Once it is full, only higher scores are added.
+     */
+    public double getMinScore() {
+        return size == 0 ? Double.NEGATIVE_INFINITY : values[1];
+    }
+
     public SRResultList getTop() {
         SRResultList scores = new SRResultList(size);
         for (int i = 1; i <= size; i++) {
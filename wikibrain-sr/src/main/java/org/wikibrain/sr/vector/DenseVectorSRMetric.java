@@ -11,8 +11,10 @@ import org.wikibrain.core.dao.LocalPageDao;
 import org.wikibrain.core.lang.Language;
 import org.wikibrain.matrix.DenseMatrix;
 import org.wikibrain.matrix.DenseMatrixRow;
+import org.wikibrain.matrix.knn.HnswKNNFinder;
 import org.wikibrain.matrix.knn.KNNFinder;
 import org.wikibrain.matrix.knn.Neighborhood;
+import org.wikibrain.matrix.knn.PQKNNFinder;
 import org.wikibrain.matrix.knn.RandomProjectionKNNFinder;
 import org.wikibrain.sr.BaseSRMetric;
 import org.wikibrain.sr.SRMetric;
@@ -45,16 +47,28 @@ import org.slf4j.LoggerFactory;
 public class DenseVectorSRMetric extends BaseSRMetric {
 
     private static final Logger LOG = LoggerFactory.getLogger(DenseVectorSRMetric.class);
+
+    public static final String ACCELERATOR_HNSW = "hnsw";
+    public static final String ACCELERATOR_RANDOM_PROJECTION = "randomProjection";
+    public static final String ACCELERATOR_PRODUCT_QUANTIZATION = "pq";
+
     protected final DenseVectorGenerator generator;
     protected final SRConfig config;
 
     private DenseMatrix articleFeatures;
     private KNNFinder accelerator;
 
+    // The kind of knn finder that accelerates mostSimilar
+    private String acceleratorType = ACCELERATOR_HNSW;
+
     // Multiple of requested mostSimilar results that will be considered
     private double acceleratorMultiplier = 100.0;
     private int minAcceleratorCandidates = 500;
 
+    // Width of the hnsw search. Unlike the other accelerators' traversals, it stays small.
+    // The finder widens it for filtered queries.
+    private int hnswEf = 100;
+
 
     public DenseVectorSRMetric(String name, Language language, LocalPageDao dao, Disambiguator disambig, DenseVectorGenerator generator) {
         super(name, language, dao, disambig);
@@ -135,7 +149,9 @@ public class DenseVectorSRMetric extends BaseSRMetric {
         }
         SRResultList result;
         if (accelerator != null) {
-            int n = (int) Math.max(minAcceleratorCandidates, maxResults * acceleratorMultiplier);
+            int n = (accelerator instanceof HnswKNNFinder)
+                    ? Math.max(maxResults, hnswEf)
+                    : (int) Math.max(minAcceleratorCandidates, maxResults * acceleratorMultiplier);
             Neighborhood nhood = accelerator.query(vector, maxResults, n, validIds);
             result = new SRResultList(nhood.size());
             for (int i = 0; i < nhood.size(); i++) {
@@ -185,7 +201,7 @@ public class DenseVectorSRMetric extends BaseSRMetric {
     @Override
     public void trainMostSimilar(Dataset dataset, int numResults, TIntSet validIds) {
         try {
-            RandomProjectionKNNFinder knn = new RandomProjectionKNNFinder(articleFeatures);
+            KNNFinder knn = createAccelerator(acceleratorType);
             knn.build();
             accelerator = knn;
         } catch (IOException e) {
@@ -273,19 +289,65 @@ public class DenseVectorSRMetric extends BaseSRMetric {
         }
     }
 
+    /**
+     * Loads the accelerator of the configured type. Models trained before hnsw became the
+     * default only have a random projection accelerator, which is loaded instead until
+     * mostSimilar is retrained.
+     */
     @Override
     public void read() throws IOException {
         super.read();
-        RandomProjectionKNNFinder knn = new RandomProjectionKNNFinder(articleFeatures);
-        if (knn.load(new File(getDataDir(), "knn.bin"))) {
+        KNNFinder knn = createAccelerator(acceleratorType);
+        if (knn.load(getAcceleratorFile(acceleratorType))) {
             accelerator = knn;
+        } else if (!acceleratorType.equals(ACCELERATOR_RANDOM_PROJECTION)) {
+            KNNFinder legacy = createAccelerator(ACCELERATOR_RANDOM_PROJECTION);
+            if (legacy.load(getAcceleratorFile(ACCELERATOR_RANDOM_PROJECTION))) {
+                LOG.warn("metric " + getName() + " has no " + acceleratorType + " accelerator in " +
+                        getDataDir() + ", using its random projection accelerator instead." +
+                        " Retrain the metric to build the " + acceleratorType + " accelerator.");
+                accelerator = legacy;
+            }
         }
     }
 
     @Override
     public void write() throws IOException {
         super.write();
-        if (accelerator != null) accelerator.save(new File(getDataDir(), "knn.bin"));
+        if (accelerator != null) accelerator.save(getAcceleratorFile(getAcceleratorType(accelerator)));
+    }
+
+    private KNNFinder createAccelerator(String type) throws IOException {
+        if (type.equals(ACCELERATOR_HNSW)) {
+            return new HnswKNNFinder(articleFeatures);
+        } else if (type.equals(ACCELERATOR_PRODUCT_QUANTIZATION)) {
+            return new PQKNNFinder(articleFeatures);
+        } else {
+            return new RandomProjectionKNNFinder(articleFeatures);
+        }
+    }
+
+    private static String getAcceleratorType(KNNFinder knn) {
+        if (knn instanceof HnswKNNFinder) {
+            return ACCELERATOR_HNSW;
+        } else if (knn instanceof PQKNNFinder) {
+            return ACCELERATOR_PRODUCT_QUANTIZATION;
+        } else {
+            return ACCELERATOR_RANDOM_PROJECTION;
+        }
+    }
+
+    /**
+     * Random projection models keep their original file name so existing models still load.
+     */
+    private File getAcceleratorFile(String type) {
+        if (type.equals(ACCELERATOR_HNSW)) {
+            return new File(getDataDir(), "hnsw.bin");
+        } else if (type.equals(ACCELERATOR_PRODUCT_QUANTIZATION)) {
+            return new File(getDataDir(), "pq.bin");
+        } else {
+            return new File(getDataDir(), "knn.bin");
+        }
     }
 
     /**
@@ -314,6 +376,24 @@ public class DenseVectorSRMetric extends BaseSRMetric {
         this.accelerator = accelerator;
     }
 
+    /**
+     * Sets the kind of knn finder built by trainMostSimilar and loaded by read().
+     * @param acceleratorType {@link #ACCELERATOR_HNSW}, {@link #ACCELERATOR_RANDOM_PROJECTION}
+     *                        or {@link #ACCELERATOR_PRODUCT_QUANTIZATION}
+     */
+    public void setAcceleratorType(String acceleratorType) {
+        if (!acceleratorType.equals(ACCELERATOR_HNSW)
+                && !acceleratorType.equals(ACCELERATOR_RANDOM_PROJECTION)
+                && !acceleratorType.equals(ACCELERATOR_PRODUCT_QUANTIZATION)) {
+            throw new IllegalArgumentException("unknown accelerator type: " + acceleratorType);
+        }
+        this.acceleratorType = acceleratorType;
+    }
+
+    public String getAcceleratorType() {
+        return acceleratorType;
+    }
+
     public void setAcceleratorMultiplier(double acceleratorMultiplier) {
         this.acceleratorMultiplier = acceleratorMultiplier;
     }
@@ -322,6 +402,14 @@ public class DenseVectorSRMetric extends BaseSRMetric {
         this.minAcceleratorCandidates = minAcceleratorCandidates;
     }
 
+    /**
+     * Sets the width of the hnsw search used by mostSimilar. Wider searches have higher
+     * recall but take longer. The width is at least the number of requested results.
+     */
+    public void setHnswEf(int hnswEf) {
+        this.hnswEf = hnswEf;
+    }
+
     @Override
     public SRConfig getConfig() {
         return config;
@@ -363,6 +451,12 @@ public class DenseVectorSRMetric extends BaseSRMetric {
                     getConfigurator().get(Disambiguator.class,config.getString("disambiguator"),"language", language.getLangCode()),
                     generator
             );
+            if (config.hasPath("accelerator")) {
+                sr.setAcceleratorType(config.getString("accelerator"));
+            }
+            if (config.hasPath("hnswEf")) {
+                sr.setHnswEf(config.getInt("hnswEf"));
+            }
             configureBase(getConfigurator(), sr, config);
             return sr;
         }
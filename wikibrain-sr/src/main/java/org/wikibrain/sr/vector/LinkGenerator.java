@@ -13,7 +13,6 @@ import org.wikibrain.conf.ConfigurationException;
 import org.wikibrain.conf.Configurator;
 import org.wikibrain.core.dao.*;
 import org.wikibrain.core.lang.Language;
-import org.wikibrain.core.model.LocalLink;
 import org.wikibrain.core.model.LocalPage;
 import org.wikibrain.core.model.NameSpace;
 import org.wikibrain.sr.Explanation;
@@ -92,12 +91,7 @@ public class LinkGenerator implements SparseVectorGenerator {
             throw new IllegalArgumentException("Invalid page id: " + pageId);
         }
         double norm2 = 0.0;
-        for (LocalLink link : linkDao.getLinks(language, pageId, outLinks)) {
-
-            int columnId = outLinks ? link.getDestId() : link.getSourceId();
-            if (columnId < 0) {
-                continue;
-            }
+        for (int columnId : linkDao.getLinkIds(language, pageId, outLinks)) {
             if(isBlacklisted(columnId)){
                 continue;
             }
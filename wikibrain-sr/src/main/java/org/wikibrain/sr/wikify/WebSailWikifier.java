@@ -189,12 +189,7 @@ public class WebSailWikifier implements Wikifier {
     }
 
     private TIntSet getActualLinks(int wpId) throws DaoException {
-        TIntSet existingIds = new TIntHashSet();
-        for (LocalLink ll : linkDao.getLinks(language, wpId, true)) {
-            if (ll.getDestId() >= 0) {
-                existingIds.add(ll.getDestId());
-            }
-        }
+        TIntSet existingIds = new TIntHashSet(linkDao.getLinkIds(language, wpId, true));
         // hack: add the link itself
         existingIds.add(wpId);
         return existingIds;
@@ -0,0 +1,229 @@
+package org.wikibrain.sr.ensemble;
+
+import gnu.trove.set.TIntSet;
+import org.junit.Test;
+import org.wikibrain.core.dao.DaoException;
+import org.wikibrain.core.lang.Language;
+import org.wikibrain.sr.*;
+import org.wikibrain.sr.normalize.IdentityNormalizer;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+/**
+ * @author Shilad Sen
+ */
+public class TestEnsembleMetric {
+    private static final Language SIMPLE = Language.getByLangCode("simple");
+
+    // Positions of the sub-metrics created by makeMetric()
+    private static final int FAST1 = 0;
+    private static final int FAST2 = 1;
+    private static final int SLOW = 2;
+
+    @Test
+    public void testSequential() throws DaoException {
+        EnsembleMetric metric = makeMetric();
+        SRResult result = metric.similarity(1, 2, false);
+        assertEquals(0.5, result.getScore(), 0.00001);
+        for (int i = 0; i < 3; i++) {
+            assertEquals(1, metric.getLatencies().get(i).getCount());
+            assertEquals(0, (long) metric.getTimeouts().get(i));
+        }
+        assertEquals(Thread.currentThread().getName(), ((DelayedMetric) metric.getMetrics().get(SLOW)).threadName);
+    }
+
+    @Test
+    public void testParallel() throws DaoException {
+        EnsembleMetric metric = makeMetric();
+        metric.setParallel(3, 0);
+        SRResult result = metric.similarity(1, 2, false);
+
+        // All metrics contribute, each on a pool thread
+        assertEquals(0.5, result.getScore(), 0.00001);
+        for (int i = 0; i < 3; i++) {
+            assertEquals(1, metric.getLatencies().get(i).getCount());
+            assertEquals(0, (long) metric.getTimeouts().get(i));
+            assertTrue(((DelayedMetric) metric.getMetrics().get(i)).threadName.startsWith("ensemble-"));
+        }
+    }
+
+    @Test
+    public void testDeadline() throws DaoException, InterruptedException {
+        // The slow metric cannot finish until the requests have returned
+        EnsembleMetric metric = makeMetric();
+        DelayedMetric slow = (DelayedMetric) metric.getMetrics().get(SLOW);
+        slow.release = new CountDownLatch(1);
+        metric.setParallel(3, 2000);
+        long start = System.currentTimeMillis();
+        SRResult result = metric.similarity(1, 2, false);
+        assertTrue(System.currentTimeMillis() - start < 30000);
+
+        // Only the two fast metrics contribute
+        assertEquals(0.3, result.getScore(), 0.00001);
+        assertEquals(1, (long) metric.getTimeouts().get(SLOW));
+        assertEquals(0, (long) metric.getTimeouts().get(FAST1));
+        assertEquals(0, (long) metric.getTimeouts().get(FAST2));
+
+        SRResultList list = metric.mostSimilar(1, 10, null);
+        assertEquals(5, list.getId(0));
+        assertEquals(6, list.getId(1));
+        assertEquals(0.3, list.getScore(0), 0.00001);    // averaged over the metrics that responded
+        assertEquals(2, (long) metric.getTimeouts().get(SLOW));
+        assertEquals(2, metric.getLatencies().get(FAST2).getCount());
+
+        // Late calls finish without being interrupted
+        slow.release.countDown();
+        long deadline = System.currentTimeMillis() + 30000;
+        while (metric.getLatencies().get(SLOW).getCount() < 2 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        assertEquals(2, metric.getLatencies().get(SLOW).getCount());
+        assertEquals(0, slow.interrupts.get());
+    }
+
+    @Test
+    public void testSharedNames() throws DaoException {
+        List<SRMetric> metrics = new ArrayList<SRMetric>();
+        metrics.add(new DelayedMetric("same", 0, 0.2));
+        metrics.add(new DelayedMetric("same", 0, -1.0));
+        EnsembleMetric metric = new EnsembleMetric("ensemble", SIMPLE, metrics, new EvenEnsemble(), null, null);
+        try {
+            metric.similarity(1, 2, false);
+            fail();
+        } catch (DaoException e) {
+            // expected
+        }
+        assertEquals(1, metric.getLatencies().get(0).getCount());
+        assertEquals(1, metric.getLatencies().get(1).getCount());
+    }
+
+    @Test
+    public void testFullPool() throws Exception {
+        final DelayedMetric blocking = new DelayedMetric("blocking", 0, 0.5);
+        blocking.release = new CountDownLatch(1);
+        List<SRMetric> metrics = new ArrayList<SRMetric>();
+        metrics.add(blocking);
+        final EnsembleMetric metric = new EnsembleMetric("ensemble", SIMPLE, metrics, new EvenEnsemble(), null, null);
+        metric.setSimilarityNormalizer(new IdentityNormalizer());
+        metric.setParallel(1, 100);
+
+        // One call blocks the only worker, the queue fills up and the remaining calls are rejected
+        int numRequests = 150;
+        final AtomicInteger failures = new AtomicInteger();
+        List<Thread> threads = new ArrayList<Thread>();
+        for (int i = 0; i < numRequests; i++) {
+            threads.add(new Thread() {
+                @Override
+                public void run() {
+                    try {
+                        metric.similarity(1, 2, false);
+                    } catch (Exception e) {
+                        failures.incrementAndGet();
+                    }
+                }
+            });
+        }
+        try {
+            for (Thread t : threads) t.start();
+            for (Thread t : threads) t.join(60000);
+
+            // Rejected calls are timeouts and never run on the requesting threads
+            assertEquals(0, failures.get());
+            assertEquals(numRequests, (long) metric.getTimeouts().get(0));
+            assertEquals(1, blocking.entered.get());
+            assertTrue(blocking.threadName.startsWith("ensemble-"));
+        } finally {
+            blocking.release.countDown();
+        }
+    }
+
+    @Test
+    public void testException() throws DaoException {
+        List<SRMetric> metrics = new ArrayList<SRMetric>();
+        metrics.add(new DelayedMetric("fast", 0, 0.2));
+        metrics.add(new DelayedMetric("broken", 0, -1.0));
+        EnsembleMetric metric = new EnsembleMetric("ensemble", SIMPLE, metrics, new EvenEnsemble(), null, null);
+        metric.setParallel(2, 1000);
+        try {
+            metric.similarity(1, 2, false);
+            fail();
+        } catch (DaoException e) {
+            assertEquals("broken", e.getMessage());
+        }
+    }
+
+    private EnsembleMetric makeMetric() {
+        List<SRMetric> metrics = new ArrayList<SRMetric>();
+        metrics.add(new DelayedMetric("fast1", 10, 0.2));
+        metrics.add(new DelayedMetric("fast2", 10, 0.4));
+        metrics.add(new DelayedMetric("slow", 500, 0.9));
+        EnsembleMetric metric = new EnsembleMetric("ensemble", SIMPLE, metrics, new EvenEnsemble(), null, null);
+        metric.setSimilarityNormalizer(new IdentityNormalizer());
+        metric.setMostSimilarNormalizer(new IdentityNormalizer());
+        return metric;
+    }
+
+    /**
+     * A metric that waits before returning a constant score for every page.
+     * If it has a release latch it waits for the latch instead of the delay.
+     * A negative score makes it throw an exception.
+     */
+    static class DelayedMetric extends BaseSRMetric {
+        final AtomicInteger entered = new AtomicInteger();
+        final AtomicInteger interrupts = new AtomicInteger();
+        volatile String threadName = null;
+        volatile CountDownLatch release = null;
+
+        private final long delayMillis;
+        private final double score;
+
+        DelayedMetric(String name, long delayMillis, double score) {
+            super(name, SIMPLE, null, null);
+            this.delayMillis = delayMillis;
+            this.score = score;
+        }
+
+        @Override
+        public SRConfig getConfig() {
+            return new SRConfig();
+        }
+
+        @Override
+        public SRResult similarity(int pageId1, int pageId2, boolean explanations) throws DaoException {
+            delay();
+            return new SRResult(pageId2, score);
+        }
+
+        @Override
+        public SRResultList mostSimilar(int pageId, int maxResults, TIntSet validIds) throws DaoException {
+            delay();
+            SRResultList list = new SRResultList(2);
+            list.set(0, 5, score);
+            list.set(1, 6, score / 2);
+            return list;
+        }
+
+        private void delay() throws DaoException {
+            entered.incrementAndGet();
+            threadName = Thread.currentThread().getName();
+            if (score < 0) {
+                throw new DaoException(getName());
+            }
+            try {
+                if (release != null) {
+                    release.await();
+                } else {
+                    Thread.sleep(delayMillis);
+                }
+            } catch (InterruptedException e) {
+                interrupts.incrementAndGet();
+                throw new DaoException(e);
+            }
+        }
+    }
+}
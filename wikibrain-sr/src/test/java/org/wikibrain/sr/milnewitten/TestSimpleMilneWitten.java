@@ -0,0 +1,187 @@
+package org.wikibrain.sr.milnewitten;
+
+import gnu.trove.set.TIntSet;
+import gnu.trove.set.hash.TIntHashSet;
+import org.apache.commons.io.FileUtils;
+import org.junit.After;
+import org.junit.Test;
+import org.wikibrain.core.dao.DaoException;
+import org.wikibrain.core.dao.DaoFilter;
+import org.wikibrain.core.dao.LocalLinkDao;
+import org.wikibrain.core.dao.LocalPageDao;
+import org.wikibrain.core.dao.matrix.MatrixLocalLinkDao;
+import org.wikibrain.core.lang.Language;
+import org.wikibrain.core.model.LocalLink;
+import org.wikibrain.sr.SRResultList;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Checks similarities computed by hand for a small link graph:
+ *
+ * 5 -> 1, 2, 3     1 -> 5, 6
+ * 6 -> 1, 2        2 -> 5, 6
+ * 7 -> 1, 3        3 -> 6, 7
+ * 8 -> 4           4 -> 8
+ *
+ * There are 10 articles, so the IDF of a page with n outlinks is log(10 / n).
+ *
+ * @author Shilad Sen
+ */
+public class TestSimpleMilneWitten {
+    private static final Language SIMPLE = Language.SIMPLE;
+    private static final int NUM_ARTICLES = 10;
+    private static final int LINKS[][] = {
+            { 5, 1 }, { 5, 2 }, { 5, 3 }, { 6, 1 }, { 6, 2 }, { 7, 1 }, { 7, 3 }, { 8, 4 },
+            { 1, 5 }, { 1, 6 }, { 2, 5 }, { 2, 6 }, { 3, 6 }, { 3, 7 }, { 4, 8 },
+    };
+
+    private File linkDir;
+
+    @After
+    public void deleteLinkDir() {
+        if (linkDir != null) {
+            FileUtils.deleteQuietly(linkDir);
+        }
+    }
+
+    @Test
+    public void testSimilarityWithMatrix() throws Exception {
+        checkSimilarities(new SimpleMilneWitten("test", SIMPLE, makePageDao(), makeMatrixLinkDao(), null));
+    }
+
+    @Test
+    public void testSimilarityWithoutMatrix() throws Exception {
+        checkSimilarities(new SimpleMilneWitten("test", SIMPLE, makePageDao(), makeLinkDao(LINKS), null));
+    }
+
+    private void checkSimilarities(SimpleMilneWitten metric) throws DaoException {
+        double log5 = Math.log(5.0);
+        double log10Over3 = Math.log(10.0 / 3);
+
+        // Pages 1 and 2 share inlinks 5 and 6 and have the same outlinks
+        double google12 = 1.0 - Math.log(3.0 / 2) / Math.log(10.0 / 2);
+        assertEquals(0.5 * google12 + 0.5, metric.similarity(1, 2, false).getScore(), 0.000001);
+
+        // Pages 1 and 3 share inlinks 5 and 7 and outlink 6
+        double cosine13 = log5 * log5 / Math.sqrt((log10Over3 * log10Over3 + log5 * log5) * (2 * log5 * log5));
+        assertEquals(0.5 * google12 + 0.5 * cosine13, metric.similarity(1, 3, false).getScore(), 0.000001);
+
+        // Pages 1 and 4 share no links
+        assertEquals(0.0, metric.similarity(1, 4, false).getScore(), 0.0);
+    }
+
+    @Test
+    public void testMostSimilar() throws Exception {
+        SimpleMilneWitten metric = new SimpleMilneWitten("test", SIMPLE, makePageDao(), makeMatrixLinkDao(), null);
+
+        // Only pages 2 and 3 share an inlink with page 1, which is excluded
+        SRResultList results = metric.mostSimilar(1, 10);
+        assertEquals(2, results.numDocs());
+        assertEquals(2, results.getId(0));
+        assertEquals(3, results.getId(1));
+        assertEquals(metric.similarity(1, 2, false).getScore(), results.getScore(0), 0.000001);
+        assertEquals(metric.similarity(1, 3, false).getScore(), results.getScore(1), 0.000001);
+
+        results = metric.mostSimilar(1, 1);
+        assertEquals(1, results.numDocs());
+        assertEquals(2, results.getId(0));
+
+        TIntSet validIds = new TIntHashSet(new int[] { 1, 3, 4 });
+        results = metric.mostSimilar(1, 10, validIds);
+        assertEquals(1, results.numDocs());
+        assertEquals(3, results.getId(0));
+    }
+
+    @Test
+    public void testReload() throws Exception {
+        MatrixLocalLinkDao linkDao = makeMatrixLinkDao();
+        SimpleMilneWitten metric = new SimpleMilneWitten("test", SIMPLE, makePageDao(), linkDao, null);
+        metric.similarity(1, 3, false);
+
+        // A fourth outlink from page 5 lowers its IDF to log(10 / 4)
+        linkDao.beginLoad();
+        linkDao.save(new LocalLink(SIMPLE, "", 5, 4, true, 0, true, LocalLink.LocationType.NONE));
+        linkDao.endLoad();
+
+        double log5 = Math.log(5.0);
+        double log10Over4 = Math.log(10.0 / 4);
+        double google13 = 1.0 - Math.log(3.0 / 2) / Math.log(10.0 / 2);
+        double cosine13 = log5 * log5 / Math.sqrt((log10Over4 * log10Over4 + log5 * log5) * (2 * log5 * log5));
+        assertEquals(0.5 * google13 + 0.5 * cosine13, metric.similarity(1, 3, false).getScore(), 0.000001);
+    }
+
+    private static LocalPageDao makePageDao() {
+        return (LocalPageDao) Proxy.newProxyInstance(
+                LocalPageDao.class.getClassLoader(),
+                new Class[] { LocalPageDao.class },
+                new InvocationHandler() {
+                    @Override
+                    public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+                        if (method.getName().equals("getCount")) {
+                            return NUM_ARTICLES;
+                        }
+                        throw new UnsupportedOperationException(method.getName());
+                    }
+                });
+    }
+
+    /**
+     * Returns a link dao without a matrix that answers link id and count queries from the links.
+     */
+    private static LocalLinkDao makeLinkDao(final int links[][]) {
+        return (LocalLinkDao) Proxy.newProxyInstance(
+                LocalLinkDao.class.getClassLoader(),
+                new Class[] { LocalLinkDao.class },
+                new InvocationHandler() {
+                    @Override
+                    public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+                        if (method.getName().equals("getLinkIds") && args.length == 3) {
+                            int id = (Integer) args[1];
+                            boolean outlinks = (Boolean) args[2];
+                            List<Integer> ids = new ArrayList<Integer>();
+                            for (int link[] : links) {
+                                if (link[outlinks ? 0 : 1] == id) {
+                                    ids.add(link[outlinks ? 1 : 0]);
+                                }
+                            }
+                            int result[] = new int[ids.size()];
+                            for (int i = 0; i < result.length; i++) {
+                                result[i] = ids.get(i);
+                            }
+                            return result;
+                        } else if (method.getName().equals("getCount")) {
+                            int n = 0;
+                            for (int link[] : links) {
+                                if (((DaoFilter) args[0]).getSourceIds().contains(link[0])) {
+                                    n++;
+                                }
+                            }
+                            return n;
+                        } else {
+                            return null;
+                        }
+                    }
+                });
+    }
+
+    private MatrixLocalLinkDao makeMatrixLinkDao() throws IOException, DaoException {
+        linkDir = File.createTempFile("links", null);
+        linkDir.delete();
+        MatrixLocalLinkDao dao = new MatrixLocalLinkDao(makeLinkDao(new int[0][]), linkDir);
+        dao.beginLoad();
+        for (int link[] : LINKS) {
+            dao.save(new LocalLink(SIMPLE, "", link[0], link[1], true, 0, true, LocalLink.LocationType.NONE));
+        }
+        dao.endLoad();
+        return dao;
+    }
+}
@@ -0,0 +1,213 @@
+package org.wikibrain.sr.phrasesim;
+
+import gnu.trove.map.TIntIntMap;
+import gnu.trove.map.hash.TIntIntHashMap;
+import org.apache.commons.io.FileUtils;
+import org.wikibrain.sr.SRResult;
+import org.wikibrain.sr.SRResultList;
+import org.wikibrain.sr.utils.Leaderboard;
+import org.wikibrain.utils.WpThreadUtils;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Compares the throughput of CosimilarityMatrix with its previous implementation, which
+ * synchronized every call and copied the whole matrix each time it grew.
+ *
+ * Writer threads add ids with random neighbors while reader threads run mostSimilar and
+ * similarity queries against the ids added so far. Once all ids are added, the readers
+ * run alone for a while to measure query throughput without growth.
+ *
+ * The number of ids can be passed as the first argument. The old implementation needs
+ * a heap of about 8 * (1.3 * ids)^2 bytes while it grows.
+ *
+ * @author Shilad Sen
+ */
+public class BenchmarkCosimilarityMatrix {
+    private static int numIds = 5000;
+    private static final int NUM_NEIGHBORS = 200;
+    private static final long QUERY_MILLIS = 5000;
+
+    public static void main(String args[]) throws Exception {
+        if (args.length > 0) {
+            numIds = Integer.valueOf(args[0]);
+        }
+        int numThreads = WpThreadUtils.getMaxThreads();
+        int writers = Math.max(1, numThreads / 2);
+        int readers = Math.max(1, numThreads - writers);
+        System.out.println(String.format("%d ids, %d writers, %d readers", numIds, writers, readers));
+
+        run("old", new LegacyStore(), writers, readers);
+
+        File dir = File.createTempFile("cosim", null);
+        dir.delete();
+        try {
+            final CosimilarityMatrix matrix = new CosimilarityMatrix(dir);
+            run("new", new Store() {
+                public void update(int id, SRResultList neighbors) { matrix.update(id, neighbors); }
+                public SRResultList mostSimilar(int id, int n) { return matrix.mostSimilar(id, n, null); }
+                public float similarity(int id1, int id2) { return matrix.similarity(id1, id2); }
+                public int size() { return matrix.size(); }
+            }, writers, readers);
+            matrix.close();
+        } finally {
+            FileUtils.deleteQuietly(dir);
+        }
+    }
+
+    private static void run(String name, final Store store, int numWriters, int numReaders) throws InterruptedException {
+        final AtomicInteger nextId = new AtomicInteger();
+        final AtomicLong queries = new AtomicLong();
+        final AtomicLong queryEnd = new AtomicLong(Long.MAX_VALUE);
+
+        List<Thread> writers = new ArrayList<Thread>();
+        for (int i = 0; i < numWriters; i++) {
+            final Random random = new Random(i);
+            writers.add(new Thread() {
+                public void run() {
+                    while (true) {
+                        int id = nextId.getAndIncrement();
+                        if (id >= numIds) {
+                            break;
+                        }
+                        SRResultList neighbors = new SRResultList(NUM_NEIGHBORS);
+                        for (int j = 0; j < NUM_NEIGHBORS; j++) {
+                            neighbors.set(j, random.nextInt(id + 1), random.nextFloat());
+                        }
+                        store.update(id, neighbors);
+                    }
+                }
+            });
+        }
+        List<Thread> readers = new ArrayList<Thread>();
+        final AtomicLong buildQueries = new AtomicLong();
+        for (int i = 0; i < numReaders; i++) {
+            final Random random = new Random(-i);
+            readers.add(new Thread() {
+                public void run() {
+                    while (System.currentTimeMillis() < queryEnd.get()) {
+                        int n = store.size();
+                        if (n == 0) {
+                            Thread.yield();
+                            continue;
+                        }
+                        int id = random.nextInt(n);
+                        if (random.nextInt(10) == 0) {
+                            store.mostSimilar(id, 10);
+                        } else {
+                            for (int j = 0; j < 100; j++) {
+                                store.similarity(id, random.nextInt(n));
+                            }
+                        }
+                        if (n < numIds) {
+                            buildQueries.incrementAndGet();
+                        } else {
+                            queries.incrementAndGet();
+                        }
+                    }
+                }
+            });
+        }
+
+        long start = System.currentTimeMillis();
+        for (Thread t : writers) t.start();
+        for (Thread t : readers) t.start();
+        for (Thread t : writers) t.join();
+        long built = System.currentTimeMillis();
+        queryEnd.set(built + QUERY_MILLIS);
+        for (Thread t : readers) t.join();
+
+        System.out.println(String.format("%s: built in %.1f sec (%.0f updates/sec, %.0f queries/sec while building), "
+                        + "%.0f queries/sec after building",
+                name,
+                (built - start) / 1000.0,
+                numIds * 1000.0 / (built - start),
+                buildQueries.get() * 1000.0 / (built - start),
+                queries.get() * 1000.0 / QUERY_MILLIS));
+    }
+
+    interface Store {
+        void update(int id, SRResultList neighbors);
+        SRResultList mostSimilar(int id, int n);
+        float similarity(int id1, int id2);
+        int size();
+    }
+
+    /**
+     * The update, mostSimilar and similarity methods as they were before the mapped store.
+     */
+    static class LegacyStore implements Store {
+        private float[][] matrix = new float[0][0];
+        private TIntIntMap sparse2Dense = new TIntIntHashMap();
+        private int[] dense2Sparse = new int[0];
+
+        public synchronized void update(int sparseId, SRResultList neighbors) {
+            int denseId;
+            if (sparse2Dense.containsKey(sparseId)) {
+                denseId = sparse2Dense.get(sparseId);
+            } else {
+                expandIfNecessary();
+                denseId = sparse2Dense.size();
+                sparse2Dense.put(sparseId, denseId);
+                dense2Sparse[denseId] = sparseId;
+            }
+            for (SRResult r : neighbors) {
+                if (!sparse2Dense.containsKey(r.getId())) continue;
+                int denseId2 = sparse2Dense.get(r.getId());
+                matrix[denseId][denseId2] = (float) r.getScore();
+                matrix[denseId2][denseId] = (float) r.getScore();
+            }
+        }
+
+        private void expandIfNecessary() {
+            int oldn = sparse2Dense.size();
+            if (oldn < dense2Sparse.length) {
+                return;
+            }
+            int n = (int) (Math.max(500, oldn) * 1.3);
+            float newCosims[][] = new float[n][n];
+            for (int i = 0; i < oldn; i++) {
+                System.arraycopy(matrix[i], 0, newCosims[i], 0, oldn);
+            }
+            int newDense2Sparse[] = new int[n];
+            System.arraycopy(dense2Sparse, 0, newDense2Sparse, 0, oldn);
+            matrix = newCosims;
+            dense2Sparse = newDense2Sparse;
+        }
+
+        public SRResultList mostSimilar(int id, int maxResults) {
+            int n;
+            int denseId;
+            synchronized (this) {
+                n = sparse2Dense.size();
+                denseId = sparse2Dense.get(id);
+            }
+            Leaderboard top = new Leaderboard(maxResults);
+            for (int i = 0; i < n; i++) {
+                top.tallyScore(i, matrix[denseId][i]);
+            }
+            SRResultList results = top.getTop();
+            for (int i = 0; i < results.numDocs(); i++) {
+                results.setId(i, dense2Sparse[results.getId(i)]);
+            }
+            return results;
+        }
+
+        public synchronized float similarity(int id1, int id2) {
+            if (sparse2Dense.containsKey(id1) && sparse2Dense.containsKey(id2)) {
+                return matrix[sparse2Dense.get(id1)][sparse2Dense.get(id2)];
+            } else {
+                return 0f;
+            }
+        }
+
+        public synchronized int size() {
+            return sparse2Dense.size();
+        }
+    }
+}
@@ -0,0 +1,202 @@
+package org.wikibrain.sr.phrasesim;
+
+import gnu.trove.set.TIntSet;
+import gnu.trove.set.hash.TIntHashSet;
+import org.apache.commons.io.FileUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.wikibrain.sr.SRResultList;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.*;
+
+/**
+ * @author Shilad Sen
+ */
+public class TestCosimilarityMatrix {
+    private File dir;
+
+    @Before
+    public void createDir() throws IOException {
+        dir = File.createTempFile("cosim", null);
+        dir.delete();
+    }
+
+    @After
+    public void deleteDir() {
+        FileUtils.deleteQuietly(dir);
+    }
+
+    /**
+     * The similarity of ids a and b is 1 / (1 + |a - b|).
+     */
+    private static double sim(int id1, int id2) {
+        return 1.0 / (1 + Math.abs(id1 - id2));
+    }
+
+    /**
+     * Returns every id in [0, n) as a neighbor of id, which the matrix filters to added ids.
+     */
+    private static SRResultList neighbors(int id, int n) {
+        SRResultList list = new SRResultList(n);
+        for (int i = 0; i < n; i++) {
+            list.set(i, i * 10, sim(id / 10, i));
+        }
+        return list;
+    }
+
+    @Test
+    public void testUpdate() throws IOException {
+        // tiles of 4 x 4 make the matrix expand several times
+        CosimilarityMatrix matrix = new CosimilarityMatrix(dir, 4);
+        int n = 23;
+        for (int i = 0; i < n; i++) {
+            matrix.update(i * 10, neighbors(i * 10, n));
+        }
+        assertEquals(n, matrix.size());
+        assertEquals(n, matrix.getCompleted().size());
+        for (int i = 0; i < n; i++) {
+            for (int j = 0; j < n; j++) {
+                assertEquals(sim(i, j), matrix.similarity(i * 10, j * 10), 0.00001);
+            }
+        }
+        assertEquals(0.0, matrix.similarity(5, 10), 0.0);
+        assertNull(matrix.getVector(5));
+
+        float vector[] = matrix.getVector(70);
+        assertEquals(n, vector.length);
+        for (int j = 0; j < n; j++) {
+            assertEquals(sim(7, j), vector[j], 0.00001);
+        }
+
+        double cosims[][] = matrix.cosimilarity(new int[] { 10, 5, 220 }, new int[] { 0, 220 });
+        assertEquals(sim(1, 0), cosims[0][0], 0.00001);
+        assertEquals(sim(1, 22), cosims[0][1], 0.00001);
+        assertEquals(0.0, cosims[1][0], 0.0);
+        assertEquals(1.0, cosims[2][1], 0.00001);
+        matrix.close();
+    }
+
+    @Test
+    public void testMostSimilar() throws IOException {
+        CosimilarityMatrix matrix = new CosimilarityMatrix(dir, 4);
+        int n = 30;
+        for (int i = 0; i < n; i++) {
+            matrix.update(i * 10, neighbors(i * 10, n));
+        }
+        SRResultList top = matrix.mostSimilar(150, 5, null);
+        assertEquals(5, top.numDocs());
+        assertEquals(150, top.getId(0));
+        assertEquals(1.0, top.getScore(0), 0.00001);
+        TIntSet second = new TIntHashSet(new int[] { top.getId(1), top.getId(2) });
+        assertEquals(new TIntHashSet(new int[] { 140, 160 }), second);
+        assertEquals(0.5, top.getScore(2), 0.00001);
+
+        // candidates, including one that is not in the matrix
+        TIntSet candidates = new TIntHashSet(new int[] { 0, 10, 290, 7 });
+        top = matrix.mostSimilar(20, 10, candidates);
+        assertEquals(3, top.numDocs());
+        assertEquals(10, top.getId(0));
+        assertEquals(0, top.getId(1));
+        assertEquals(290, top.getId(2));
+
+        assertEquals(0, matrix.mostSimilar(7, 10, null).numDocs());
+        assertEquals(0, matrix.mostSimilar(20, 0, null).numDocs());
+        matrix.close();
+    }
+
+    @Test
+    public void testReopen() throws IOException {
+        CosimilarityMatrix matrix = new CosimilarityMatrix(dir, 4);
+        for (int i = 0; i < 10; i++) {
+            matrix.update(i * 10, neighbors(i * 10, 10));
+        }
+        matrix.close();
+
+        matrix = new CosimilarityMatrix(dir, 4);
+        assertEquals(10, matrix.size());
+        assertEquals(10, matrix.getCompleted().size());
+        assertEquals(sim(3, 8), matrix.similarity(30, 80), 0.00001);
+
+        // ids added after the last flush are forgotten, and their rows are reused
+        matrix.update(100, neighbors(100, 11));
+        matrix.update(110, neighbors(110, 12));
+        assertEquals(sim(11, 2), matrix.similarity(110, 20), 0.00001);
+        matrix = new CosimilarityMatrix(dir, 4);
+        assertEquals(10, matrix.size());
+        SRResultList none = new SRResultList(0);
+        matrix.update(120, none);
+        assertEquals(0.0, matrix.similarity(120, 20), 0.0);
+        assertFalse(matrix.getCompleted().contains(110));
+        matrix.close();
+
+        try {
+            new CosimilarityMatrix(dir, 8);
+            fail();
+        } catch (IOException e) {
+            // expected: the tile size does not match
+        }
+    }
+
+    @Test
+    public void testConcurrent() throws Exception {
+        final CosimilarityMatrix matrix = new CosimilarityMatrix(dir, 16);
+        final int n = 400;
+        final AtomicReference<Throwable> error = new AtomicReference<Throwable>();
+        List<Thread> threads = new ArrayList<Thread>();
+        for (int t = 0; t < 4; t++) {
+            final int writer = t;
+            threads.add(new Thread() {
+                public void run() {
+                    try {
+                        for (int i = writer; i < n; i += 4) {
+                            matrix.update(i * 10, neighbors(i * 10, n));
+                        }
+                    } catch (Throwable e) {
+                        error.set(e);
+                    }
+                }
+            });
+            threads.add(new Thread() {
+                public void run() {
+                    try {
+                        Random random = new Random(writer);
+                        while (matrix.size() < n) {
+                            int id = random.nextInt(n) * 10;
+                            SRResultList top = matrix.mostSimilar(id, 5, null);
+                            if (top.numDocs() > 0 && top.getScore(0) > 1.00001) {
+                                throw new IllegalStateException("invalid score " + top.getScore(0));
+                            }
+                            matrix.similarity(id, random.nextInt(n) * 10);
+                        }
+                    } catch (Throwable e) {
+                        error.set(e);
+                    }
+                }
+            });
+        }
+        for (Thread t : threads) {
+            t.start();
+        }
+        for (Thread t : threads) {
+            t.join();
+        }
+        assertNull(error.get());
+
+        // every pair was stored by whichever of its ids was added second
+        assertEquals(n, matrix.size());
+        for (int i = 0; i < n; i++) {
+            for (int j = 0; j < n; j++) {
+                assertEquals(sim(i, j), matrix.similarity(i * 10, j * 10), 0.00001);
+            }
+        }
+        matrix.close();
+    }
+}
@@ -12,8 +12,16 @@ import org.wikibrain.utils.JvmUtils;
 import java.io.Closeable;
 import java.io.File;
 import java.io.IOException;
+import java.io.InputStream;
 import java.lang.reflect.InvocationTargetException;
+import java.net.URL;
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.jar.JarEntry;
+import java.util.jar.JarFile;
+import java.util.regex.Pattern;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.slf4j.Logger;
@@ -29,10 +37,11 @@ import org.slf4j.LoggerFactory;
  * So there can be multiple instances of the same component type as long as they are
  * uniquely named.
  *
- * The configurator scans the class path for all classes that extend
- * org.wikibrain.conf.Provider. This configurator will instantiate the provider and ask it
- * what class it provides (Provider.getType) and what path of the configuration it handles
- * along (Provider.getPath()).
+ * The configurator finds all classes that extend org.wikibrain.conf.Provider. It reads
+ * them from the provider indexes (see {@link #PROVIDER_INDEX}) on the class path, and
+ * scans the class path entries that have no index for them. This configurator will
+ * instantiate the provider and ask it what class it provides (Provider.getType) and what
+ * path of the configuration it handles along (Provider.getPath()).
  *
  * For example, let's say that there are two different providers for DataSource:
  * MySqlDataSourceProvider and H2DataSourceProvider. Both their Provider.getType()
@@ -61,12 +70,34 @@ import org.slf4j.LoggerFactory;
  *
  * All generated components are considered singletons. Once a named component is
  * generated once, it is cached and reused for future requests.
+ *
+ * get() is thread safe. Cached components are returned without locking. Each component
+ * is constructed once, by the first thread that requests it; other threads requesting
+ * the same component wait for it, and different components are constructed in parallel.
+ * A component that (directly or through other threads) requires itself while it is
+ * being constructed causes a ConfigurationException rather than a deadlock.
+ *
+ * A configurator can create scopes (see {@link #createScope(java.util.Collection)}).
+ * A scope shares the providers of its parent, so it neither rescans the classpath nor
+ * instantiates providers again, but caches and closes its own components, except for
+ * shared component types that it requests from its parent. While a provider constructs
+ * a component, {@link Provider#getConfigurator()} returns the configurator the component
+ * was requested from, so its dependencies are resolved in the same scope.
  */
 public class Configurator implements Cloneable {
     private static final Logger LOG = LoggerFactory.getLogger(Configurator.class);
 
     public static final int MAX_FILE_SIZE = 8 * 1024 * 1024;   // 8MB
 
+    /**
+     * Resource listing the providers of a module, one class name per line.
+     * It is generated at build time by {@link ProviderIndexProcessor}.
+     * Class path entries without an index (e.g. classes compiled without annotation
+     * processing) are scanned. Setting the system property wikibrain.providerScan to
+     * true ignores the indexes and scans every class path entry.
+     */
+    public static final String PROVIDER_INDEX = "META-INF/wikibrain/providers.idx";
+
     private final Configuration conf;
 
 
@@ -95,9 +126,45 @@ public class Configurator implements Cloneable {
     private final Map<Class, ProviderSet> providers = new HashMap<Class, ProviderSet>();
 
     /**
-     * Named instances of each component.
+     * Named instances of each component, by cache key. The per-type maps are created when
+     * providers are registered and never replaced.
+     */
+    private final Map<Class, ConcurrentMap<String, PendingComponent>> components = new HashMap<Class, ConcurrentMap<String, PendingComponent>>();
+
+    /**
+     * The component each thread is waiting for, used to detect cycles between threads.
+     */
+    private static final ConcurrentMap<Thread, PendingComponent> WAITING = new ConcurrentHashMap<Thread, PendingComponent>();
+
+    /**
+     * The components the current thread is constructing, outermost first.
+     */
+    private static final ThreadLocal<List<PendingComponent>> CONSTRUCTING = new ThreadLocal<List<PendingComponent>>() {
+        @Override
+        protected List<PendingComponent> initialValue() {
+            return new ArrayList<PendingComponent>();
+        }
+    };
+
+    /**
+     * The configurator whose provider the current thread is calling, or null.
+     */
+    private static final ThreadLocal<Configurator> CALLER = new ThreadLocal<Configurator>();
+
+    /**
+     * Names of the registered provider classes, in registration order.
+     */
+    private final List<String> providerClasses = new ArrayList<String>();
+
+    /**
+     * The configurator that created this scope, or null.
+     */
+    private final Configurator parent;
+
+    /**
+     * Component types that a scope requests from its parent.
      */
-    private final Map<Class, Map<String, Object>> components = new HashMap<Class, Map<String, Object>>();
+    private final Set<Class> sharedTypes;
 
     /**
      * Constructs a new configuration object with the specified configuration.
@@ -105,21 +172,160 @@ public class Configurator implements Cloneable {
      */
     public Configurator(Configuration conf) throws ConfigurationException {
         this.conf = conf;
+        this.parent = null;
+        this.sharedTypes = Collections.emptySet();
         registerProviders();
     }
 
+    private Configurator(Configurator parent, Collection<Class> sharedTypes) {
+        this.conf = parent.conf;
+        this.parent = parent;
+        this.sharedTypes = new HashSet<Class>(sharedTypes);
+
+        // Provider sets are not modified after registration, so they can be shared.
+        for (Map.Entry<Class, ProviderSet> entry : parent.providers.entrySet()) {
+            providers.put(entry.getKey(), entry.getValue());
+            components.put(entry.getKey(), new ConcurrentHashMap<String, PendingComponent>());
+        }
+        providerClasses.addAll(parent.providerClasses);
+    }
+
     /**
-     * Registers all class that extend Providers
+     * Creates a configurator with the same configuration and providers as this one
+     * and its own component cache. Components of the shared types are requested from
+     * this configurator, so they are shared by all scopes and are not closed when
+     * the scope is closed.
+     *
+     * @param sharedTypes
+     * @return The new scope.
      * @throws ConfigurationException
      */
-    private void registerProviders() throws ConfigurationException {
-        // map from class names to file they are registered in.
-        Set<String> visited = new HashSet<String>();    // files already scanned
-        Map<String, File> registered = new HashMap<String, File>();
+    public Configurator createScope(Collection<Class> sharedTypes) throws ConfigurationException {
+        return new Configurator(this, sharedTypes);
+    }
 
+    /**
+     * Registers all class that extend Providers. Each class path entry contributes the
+     * providers in its index, or the providers found by scanning it if it has no index.
+     * @throws ConfigurationException
+     */
+    private void registerProviders() throws ConfigurationException {
+        // map from class names to where they were found
+        Map<String, Object> registered = new HashMap<String, Object>();
         String classRegEx = System.getProperty("wikibrain.classRegEx", "org\\.wikibrain\\.*");
+        Pattern classPattern = Pattern.compile(classRegEx);
+
+        if (Boolean.getBoolean("wikibrain.providerScan")) {
+            scanForProviders(JvmUtils.getClassPathAsList(), classRegEx, registered);
+        } else {
+            List<File> unindexed = new ArrayList<File>();
+            for (File file : JvmUtils.getClassPathAsList()) {
+                if (file.isDirectory() && !new File(file, PROVIDER_INDEX).isFile()) {
+                    unindexed.add(file);
+                } else if (file.isFile() && !hasJarIndex(file) && mayContainProviders(file, classPattern)) {
+                    unindexed.add(file);
+                }
+            }
+            registerIndexedProviders(classPattern, registered);
+            scanForProviders(unindexed, classRegEx, registered);
+        }
+
+        int total = 0;
+        for (Class c : providers.keySet()) {
+            ProviderSet pset = providers.get(c);
+            total += pset.providers.size();
+            LOG.debug("installed " + pset.providers.size() + " configurators for " + pset.type);
+        }
+        LOG.info("configurator installed " + total + " providers for " +
+                providers.size() + " classes");
+    }
+
+    private static boolean hasJarIndex(File file) {
+        try {
+            JarFile jar = new JarFile(file);
+            try {
+                return jar.getEntry(PROVIDER_INDEX) != null;
+            } finally {
+                jar.close();
+            }
+        } catch (IOException e) {
+            return false;   // not a jar
+        }
+    }
+
+    /**
+     * @return True if the jar has classes whose names match the pattern.
+     * Listing the entries is much cheaper than scanning the classes themselves.
+     */
+    private static boolean mayContainProviders(File file, Pattern classPattern) {
+        try {
+            JarFile jar = new JarFile(file);
+            try {
+                Enumeration<JarEntry> entries = jar.entries();
+                while (entries.hasMoreElements()) {
+                    String name = entries.nextElement().getName();
+                    if (name.endsWith(".class")) {
+                        String className = name.substring(0, name.length() - 6).replace('/', '.');
+                        if (classPattern.matcher(className).find()) {
+                            return true;
+                        }
+                    }
+                }
+                return false;
+            } finally {
+                jar.close();
+            }
+        } catch (IOException e) {
+            return false;   // not a jar
+        }
+    }
 
-        for (File file : JvmUtils.getClassPathAsList()) {
+    /**
+     * Registers the providers listed in all provider indexes visible to the class loader.
+     * @throws ConfigurationException
+     */
+    private void registerIndexedProviders(Pattern classPattern, Map<String, Object> registered) throws ConfigurationException {
+        ClassLoader loader = Thread.currentThread().getContextClassLoader();
+        if (loader == null) {
+            loader = Configurator.class.getClassLoader();
+        }
+        try {
+            Enumeration<URL> indexes = loader.getResources(PROVIDER_INDEX);
+            while (indexes.hasMoreElements()) {
+                URL index = indexes.nextElement();
+                LOG.debug("reading provider index " + index);
+                InputStream in = index.openStream();
+                try {
+                    for (String line : IOUtils.readLines(in, "UTF-8")) {
+                        String className = line.trim();
+                        if (className.isEmpty() || registered.containsKey(className)) {
+                            continue;
+                        }
+                        if (!classPattern.matcher(className).find()) {
+                            LOG.debug("skipping provider " + className + " that does not match " + classPattern);
+                            continue;
+                        }
+                        LOG.debug("registering component " + className);
+                        registerProvider(className);
+                        registered.put(className, index);
+                    }
+                } finally {
+                    IOUtils.closeQuietly(in);
+                }
+            }
+        } catch (IOException e) {
+            throw new ConfigurationException("error when reading provider indexes", e);
+        }
+    }
+
+    /**
+     * Registers all classes in the class path entries that extend Provider.
+     * @throws ConfigurationException
+     */
+    private void scanForProviders(List<File> entries, String classRegEx, Map<String, Object> registered) throws ConfigurationException {
+        Set<String> visited = new HashSet<String>();    // files already scanned
+
+        for (File file : entries) {
             LOG.debug("considering classpath entry " + file);
             String canonical = FilenameUtils.normalize(file.getAbsolutePath());
             if (visited.contains(canonical)) {
@@ -135,6 +341,7 @@ public class Configurator implements Cloneable {
             Collection<ClassInfo> foundClasses = new ArrayList<ClassInfo>();
             finder.findClasses (foundClasses,filter);
 
+            int numRegistered = 0;
             for (ClassInfo classInfo : foundClasses) {
                 if (registered.containsKey(classInfo.getClassName())) {
                     LOG.debug("class " + classInfo.getClassName() +
@@ -145,18 +352,15 @@ public class Configurator implements Cloneable {
                     LOG.debug("registering component " + classInfo);
                     registerProvider(classInfo.getClassName());
                     registered.put(classInfo.getClassName(), file);
+                    numRegistered++;
                 }
             }
+            if (numRegistered > 0 && !Boolean.getBoolean("wikibrain.providerScan")) {
+                LOG.warn("classpath entry " + file + " has providers but no provider index " + PROVIDER_INDEX +
+                        ". Scanning it slows down startup; compile it with annotation processing enabled" +
+                        " to generate the index.");
+            }
         }
-
-        int total = 0;
-        for (Class c : providers.keySet()) {
-            ProviderSet pset = providers.get(c);
-            total += pset.providers.size();
-            LOG.debug("installed " + pset.providers.size() + " configurators for " + pset.type);
-        }
-        LOG.info("configurator installed " + total + " providers for " +
-                providers.size() + " classes");
     }
 
 
@@ -178,7 +382,7 @@ public class Configurator implements Cloneable {
             if (pset == null) {
                 pset = new ProviderSet(type, path);
                 providers.put(type, pset);
-                components.put(type, new HashMap<String, Object>());
+                components.put(type, new ConcurrentHashMap<String, PendingComponent>());
             }
             if (pset.type != type) {
                 throw new IllegalStateException();
@@ -191,6 +395,7 @@ public class Configurator implements Cloneable {
                         ", found path " + path);
             }
             pset.providers.add(provider);
+            providerClasses.add(providerClass);
         } catch (ClassNotFoundException e) {
             throw new ConfigurationException("error when loading provider " + providerClass, e);
         } catch (InvocationTargetException e) {
@@ -250,23 +455,75 @@ public class Configurator implements Cloneable {
      * @return The requested component.
      */
     public <T> T get(Class<T> klass, String name, Map<String, String> runtimeParams) throws ConfigurationException {
+        if (parent != null && sharedTypes.contains(klass)) {
+            return parent.get(klass, name, runtimeParams);
+        }
         name = resolveComponentName(klass, name);
         Config config = getConfig(klass, name);
-        Map<String, Object> cache = components.get(klass);
+        ConcurrentMap<String, PendingComponent> cache = components.get(klass);
         String key = makeCacheKey(name, runtimeParams);
-        synchronized (cache) {
-            if (cache.containsKey(key)) {
-                return (T) cache.get(key);
-            } else {
-                Pair<Provider, T> pair = constructInternal(klass, name, config, runtimeParams);
-                if (pair.getLeft().getScope() == Provider.Scope.SINGLETON) {
-                    cache.put(key, pair.getRight());
+        while (true) {
+            PendingComponent pending = cache.get(key);
+            if (pending != null && pending.isDone()) {
+                if (pending.isSingleton()) {
+                    return (T) pending.getComponent();
                 }
-                return pair.getRight();
+                cache.remove(key, pending);   // prototypes are constructed by each caller
+                continue;
+            }
+            if (pending == null) {
+                PendingComponent created = new PendingComponent(klass, name, key);
+                pending = cache.putIfAbsent(key, created);
+                if (pending == null) {
+                    return construct(cache, created, config, runtimeParams);
+                }
+            }
+            pending.await();
+            if (pending.isSingleton()) {
+                return (T) pending.getComponent();
             }
         }
     }
 
+    /**
+     * Constructs a component that was registered as pending in the cache by this thread.
+     * Threads that request the same component wait for it, while other components can be
+     * constructed in parallel.
+     */
+    private <T> T construct(ConcurrentMap<String, PendingComponent> cache, PendingComponent pending,
+                            Config config, Map<String, String> runtimeParams) throws ConfigurationException {
+        List<PendingComponent> constructing = CONSTRUCTING.get();
+        constructing.add(pending);
+        try {
+            Pair<Provider, T> pair = constructInternal((Class<T>) pending.type, pending.name, config, runtimeParams);
+            boolean singleton = pair.getLeft().getScope() == Provider.Scope.SINGLETON;
+            pending.complete(pair.getRight(), singleton);
+            if (!singleton) {
+                cache.remove(pending.key, pending);
+            }
+            return pair.getRight();
+        } catch (ConfigurationException e) {
+            fail(cache, pending, e);
+            throw e;
+        } catch (RuntimeException e) {
+            fail(cache, pending, e);
+            throw e;
+        } catch (Error e) {
+            fail(cache, pending, e);
+            throw e;
+        } finally {
+            constructing.remove(constructing.size() - 1);
+        }
+    }
+
+    /**
+     * Failed components are removed, so later requests construct them again.
+     */
+    private void fail(ConcurrentMap<String, PendingComponent> cache, PendingComponent pending, Throwable error) {
+        cache.remove(pending.key, pending);
+        pending.fail(error);
+    }
+
     /**
      * Returns a unique string for the name and params
      * @param name
@@ -355,6 +612,26 @@ public class Configurator implements Cloneable {
         return conf.get().getConfig(path);
     }
 
+    /**
+     * Caches an already constructed component, as if the provider had created it as a singleton.
+     * Later requests for the name return it until the configurator is closed.
+     *
+     * @param klass The generic interface or superclass, not the specific implementation.
+     * @param name The name of the component, or null for the default name.
+     * @param component
+     * @throws ConfigurationException
+     */
+    public <T> void set(Class<T> klass, String name, T component) throws ConfigurationException {
+        if (parent != null && sharedTypes.contains(klass)) {
+            throw new IllegalArgumentException("cannot set a component of shared type " + klass + " in a scope");
+        }
+        name = resolveComponentName(klass, name);
+        String key = makeCacheKey(name, null);
+        PendingComponent pending = new PendingComponent(klass, name, key);
+        pending.complete(component, true);
+        components.get(klass).put(key, pending);
+    }
+
     /**
      * Constructs an instance of the specified class with the passed
      * in config. This bypasses the cache and the configuration object.
@@ -375,10 +652,20 @@ public class Configurator implements Cloneable {
             throw new ConfigurationException("No registered providers for components with class " + klass);
         }
         List<Provider> pset = providers.get(klass).providers;
-        for (Provider p : pset) {
-            Object o = p.get(name, conf, runtimeParams);
-            if (o != null) {
-                return Pair.of(p, (T) o);
+        Configurator caller = CALLER.get();
+        CALLER.set(this);
+        try {
+            for (Provider p : pset) {
+                Object o = p.get(name, conf, runtimeParams);
+                if (o != null) {
+                    return Pair.of(p, (T) o);
+                }
+            }
+        } finally {
+            if (caller == null) {
+                CALLER.remove();
+            } else {
+                CALLER.set(caller);
             }
         }
         throw new ConfigurationException(
@@ -389,6 +676,13 @@ public class Configurator implements Cloneable {
         );
     }
 
+    /**
+     * @return The configurator whose provider the current thread is calling, or null.
+     */
+    static Configurator getCaller() {
+        return CALLER.get();
+    }
+
     /**
      * Get a specific named instance of the component with the specified class.
      * This method can only be used when there is exactly one instance of the component.
@@ -402,10 +696,16 @@ public class Configurator implements Cloneable {
 
     /**
      * Tries to close all open components, clears the components map.
+     * Components requested after closing are constructed again.
      */
     public void close() {
-        for (Map<String, Object> implementations : components.values() ) {
-            for (Object obj : implementations.values()) {
+        for (ConcurrentMap<String, PendingComponent> implementations : components.values() ) {
+            for (String key : implementations.keySet()) {
+                PendingComponent pending = implementations.get(key);
+                if (pending == null || !pending.isDone() || !implementations.remove(key, pending)) {
+                    continue;   // still under construction, or closed by another thread
+                }
+                Object obj = pending.component;
                 if (obj instanceof Closeable) {
                     try {
                         ((java.io.Closeable) obj).close();
@@ -415,7 +715,102 @@ public class Configurator implements Cloneable {
                 }
             }
         }
-        components.clear();
     }
 
+    /**
+     * A component that is constructed once by one thread and awaited by the others.
+     */
+    private static class PendingComponent {
+        final Class type;
+        final String name;
+        final String key;
+        final Thread owner = Thread.currentThread();
+        private final CountDownLatch done = new CountDownLatch(1);
+        private volatile Object component;
+        private volatile boolean singleton;
+        private volatile Throwable error;
+
+        PendingComponent(Class type, String name, String key) {
+            this.type = type;
+            this.name = name;
+            this.key = key;
+        }
+
+        boolean isDone() {
+            return done.getCount() == 0;
+        }
+
+        void complete(Object component, boolean singleton) {
+            this.component = component;
+            this.singleton = singleton;
+            done.countDown();
+        }
+
+        void fail(Throwable error) {
+            this.error = error;
+            done.countDown();
+        }
+
+        boolean isSingleton() throws ConfigurationException {
+            getComponent();
+            return singleton;
+        }
+
+        Object getComponent() throws ConfigurationException {
+            if (error instanceof ConfigurationException) {
+                throw new ConfigurationException("construction of " + this + " failed", (ConfigurationException) error);
+            } else if (error instanceof RuntimeException) {
+                throw (RuntimeException) error;
+            } else if (error instanceof Error) {
+                throw (Error) error;
+            }
+            return component;
+        }
+
+        /**
+         * Waits for another thread to construct the component.
+         * @throws ConfigurationException If waiting would deadlock, or the thread is interrupted.
+         */
+        void await() throws ConfigurationException {
+            if (isDone()) {
+                return;
+            }
+            Thread current = Thread.currentThread();
+            if (CONSTRUCTING.get().contains(this)) {
+                throw new ConfigurationException("circular dependency: " + describeCycle(CONSTRUCTING.get(), this));
+            }
+            WAITING.put(current, this);
+            try {
+                // Follow the chain of threads that wait for each other. If both ends of a cycle
+                // register at the same time, the thread that registers last detects it.
+                PendingComponent next = this;
+                Set<Thread> visited = new HashSet<Thread>();
+                while (next != null && !next.isDone() && visited.add(next.owner)) {
+                    if (next.owner == current) {
+                        throw new ConfigurationException("circular dependency between threads while constructing " + this);
+                    }
+                    next = WAITING.get(next.owner);
+                }
+                done.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new ConfigurationException("interrupted while waiting for " + this);
+            } finally {
+                WAITING.remove(current);
+            }
+        }
+
+        private static String describeCycle(List<PendingComponent> constructing, PendingComponent pending) {
+            StringBuilder cycle = new StringBuilder();
+            for (PendingComponent c : constructing.subList(constructing.indexOf(pending), constructing.size())) {
+                cycle.append(c).append(" -> ");
+            }
+            return cycle.append(pending).toString();
+        }
+
+        @Override
+        public String toString() {
+            return type.getSimpleName() + " '" + key + "'";
+        }
+    }
 }
@@ -64,8 +64,15 @@ public abstract class Provider<T> {
      */
     public abstract T get(String name, Config config, Map<String, String> runtimeParams) throws ConfigurationException;
 
+    /**
+     * Providers are shared by the scopes of the configurator that created them
+     * (see {@link Configurator#createScope(java.util.Collection)}). While the provider
+     * constructs a component, this returns the configurator the component was
+     * requested from. Otherwise it returns the configurator that created the provider.
+     */
     public Configurator getConfigurator() {
-        return configurator;
+        Configurator caller = Configurator.getCaller();
+        return (caller == null) ? configurator : caller;
     }
 
     public Configuration getConfig() {
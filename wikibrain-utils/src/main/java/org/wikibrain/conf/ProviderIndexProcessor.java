@@ -0,0 +1,123 @@
+package org.wikibrain.conf;
+
+import javax.annotation.processing.AbstractProcessor;
+import javax.annotation.processing.RoundEnvironment;
+import javax.annotation.processing.SupportedAnnotationTypes;
+import javax.lang.model.SourceVersion;
+import javax.lang.model.element.Element;
+import javax.lang.model.element.Modifier;
+import javax.lang.model.element.TypeElement;
+import javax.lang.model.type.DeclaredType;
+import javax.lang.model.type.TypeKind;
+import javax.lang.model.type.TypeMirror;
+import javax.lang.model.util.ElementFilter;
+import javax.tools.Diagnostic;
+import javax.tools.FileObject;
+import javax.tools.StandardLocation;
+import java.io.*;
+import java.util.Set;
+import java.util.TreeSet;
+
+/**
+ * Writes the names of all providers compiled in a module to {@link Configurator#PROVIDER_INDEX},
+ * so the configurator does not need to scan the classpath for them.
+ *
+ * The processor is registered in META-INF/services, so javac runs it for every module
+ * that has wikibrain-utils on its classpath. Like the classpath scan, it only finds
+ * concrete classes that directly extend {@link Provider}.
+ *
+ * Providers in an index left by a previous incremental compile are kept as long as
+ * their classes still exist.
+ */
+@SupportedAnnotationTypes("*")
+public class ProviderIndexProcessor extends AbstractProcessor {
+    private final Set<String> providers = new TreeSet<String>();
+
+    @Override
+    public SourceVersion getSupportedSourceVersion() {
+        return SourceVersion.latestSupported();
+    }
+
+    @Override
+    public boolean process(Set<? extends TypeElement> annotations, RoundEnvironment roundEnv) {
+        if (roundEnv.processingOver()) {
+            writeIndex();
+        } else {
+            for (TypeElement type : ElementFilter.typesIn(roundEnv.getRootElements())) {
+                addProviders(type);
+            }
+        }
+        return false;   // other processors may claim the same annotations
+    }
+
+    private void addProviders(TypeElement type) {
+        if (isProvider(type)) {
+            providers.add(processingEnv.getElementUtils().getBinaryName(type).toString());
+        }
+        for (TypeElement nested : ElementFilter.typesIn(type.getEnclosedElements())) {
+            addProviders(nested);
+        }
+    }
+
+    private boolean isProvider(TypeElement type) {
+        if (type.getModifiers().contains(Modifier.ABSTRACT) || !type.getKind().isClass()) {
+            return false;
+        }
+        if (type.getNestingKind().isNested() && !type.getModifiers().contains(Modifier.STATIC)) {
+            return false;
+        }
+        TypeMirror superclass = type.getSuperclass();
+        if (superclass.getKind() != TypeKind.DECLARED) {
+            return false;
+        }
+        Element element = ((DeclaredType) superclass).asElement();
+        return ((TypeElement) element).getQualifiedName().contentEquals(Provider.class.getName());
+    }
+
+    private void writeIndex() {
+        readPreviousIndex();
+        if (providers.isEmpty()) {
+            return;
+        }
+        try {
+            FileObject file = processingEnv.getFiler().createResource(
+                    StandardLocation.CLASS_OUTPUT, "", Configurator.PROVIDER_INDEX);
+            Writer writer = new OutputStreamWriter(file.openOutputStream(), "UTF-8");
+            try {
+                for (String name : providers) {
+                    writer.write(name + "\n");
+                }
+            } finally {
+                writer.close();
+            }
+        } catch (IOException e) {
+            processingEnv.getMessager().printMessage(Diagnostic.Kind.ERROR,
+                    "writing " + Configurator.PROVIDER_INDEX + " failed: " + e);
+        }
+    }
+
+    private void readPreviousIndex() {
+        try {
+            FileObject file = processingEnv.getFiler().getResource(
+                    StandardLocation.CLASS_OUTPUT, "", Configurator.PROVIDER_INDEX);
+            BufferedReader reader = new BufferedReader(new InputStreamReader(file.openInputStream(), "UTF-8"));
+            try {
+                String line;
+                while ((line = reader.readLine()) != null) {
+                    line = line.trim();
+                    if (line.length() > 0 && processingEnv.getElementUtils().getTypeElement(line.replace('$', '.')) != null) {
+                        providers.add(line);
+                    }
+                }
+            } finally {
+                reader.close();
+            }
+        } catch (FileNotFoundException e) {
+            // no previous index
+        } catch (IOException e) {
+            // no previous index (some compilers report a missing resource this way)
+        } catch (IllegalArgumentException e) {
+            // the location does not support reading
+        }
+    }
+}
@@ -0,0 +1,97 @@
+package org.wikibrain.utils;
+
+import java.util.concurrent.atomic.AtomicIntegerArray;
+
+/**
+ * A lock-free disjoint set forest over the integers [0, size).
+ *
+ * Any number of threads may call {@link #union(int, int)} and {@link #find(int)} concurrently.
+ * Roots are always linked below the smaller root, so every parent pointer refers to an
+ * element with an equal or smaller index and the forest can never contain a cycle.
+ * Paths are shortened with compare-and-set path halving.
+ *
+ * @author Shilad Sen
+ */
+public class ConcurrentUnionFind {
+    private final AtomicIntegerArray parents;
+
+    /**
+     * Creates a forest in which every element is in its own set.
+     * @param size
+     */
+    public ConcurrentUnionFind(int size) {
+        parents = new AtomicIntegerArray(size);
+        for (int i = 0; i < size; i++) {
+            parents.set(i, i);
+        }
+    }
+
+    public int size() {
+        return parents.length();
+    }
+
+    /**
+     * @param i
+     * @return The root of the set containing i. Once all unions have finished, this is
+     * the smallest element in the set.
+     */
+    public int find(int i) {
+        while (true) {
+            int p = parents.get(i);
+            if (p == i) {
+                return i;
+            }
+            int gp = parents.get(p);
+            if (gp != p) {
+                parents.compareAndSet(i, p, gp);    // path halving
+            }
+            i = gp;
+        }
+    }
+
+    /**
+     * Merges the sets containing i and j.
+     * @return True if i and j were in different sets.
+     */
+    public boolean union(int i, int j) {
+        while (true) {
+            int ri = find(i);
+            int rj = find(j);
+            if (ri == rj) {
+                return false;
+            }
+            int small = Math.min(ri, rj);
+            int big = Math.max(ri, rj);
+            if (parents.compareAndSet(big, big, small)) {
+                return true;
+            }
+            // another thread linked the big root first; retry from the new roots
+        }
+    }
+
+    public boolean sameSet(int i, int j) {
+        while (true) {
+            int ri = find(i);
+            int rj = find(j);
+            if (ri == rj) {
+                return true;
+            }
+            // ri may have been linked since it was found
+            if (parents.get(ri) == ri) {
+                return false;
+            }
+        }
+    }
+
+    /**
+     * Returns the root of every element. Should only be called after all unions have finished.
+     * @return
+     */
+    public int[] getRoots() {
+        int roots[] = new int[parents.length()];
+        for (int i = 0; i < roots.length; i++) {
+            roots[i] = find(i);
+        }
+        return roots;
+    }
+}
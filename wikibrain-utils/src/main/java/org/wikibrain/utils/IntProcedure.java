@@ -0,0 +1,14 @@
+package org.wikibrain.utils;
+
+/**
+ * Interface for a function that takes a single primitive int and returns nothing.
+ * Avoids boxing each index when looping over large ranges.
+ */
+public interface IntProcedure {
+    /**
+     * Call the function. If an exception occurs, it must be handled by the caller.
+     * @param arg
+     * @throws Exception
+     */
+    public void call(int arg) throws Exception;
+}
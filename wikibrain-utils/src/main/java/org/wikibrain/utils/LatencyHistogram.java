@@ -0,0 +1,118 @@
+package org.wikibrain.utils;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A threadsafe histogram of latencies with log-linear buckets, like HdrHistogram.
+ *
+ * Latencies are recorded in microseconds. Below 16 microseconds each value has its own
+ * bucket. Each larger power of two range is split into 16 linear sub-buckets, so a
+ * percentile is at most 1/16 (6.25%) above the latencies it summarizes. Latencies of
+ * 2^40 microseconds (about 12 days) or more share the last bucket. Recording a latency
+ * is a few atomic increments and never allocates, so it is cheap enough to wrap every
+ * call to a service.
+ *
+ * @author Shilad Sen
+ */
+public class LatencyHistogram {
+    private static final int SUB_BUCKET_BITS = 4;
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+    private static final int MAX_EXPONENT = 40;
+    private static final int NUM_BUCKETS = (MAX_EXPONENT - SUB_BUCKET_BITS + 1) * SUB_BUCKETS;
+
+    private final AtomicLongArray buckets = new AtomicLongArray(NUM_BUCKETS);
+    private final AtomicLong count = new AtomicLong();
+    private final AtomicLong totalMicros = new AtomicLong();
+
+    /**
+     * Records a single latency.
+     * @param nanos
+     */
+    public void record(long nanos) {
+        long micros = Math.max(0, TimeUnit.NANOSECONDS.toMicros(nanos));
+        buckets.incrementAndGet(getBucket(micros));
+        count.incrementAndGet();
+        totalMicros.addAndGet(micros);
+    }
+
+    /**
+     * Values below SUB_BUCKETS have their own buckets. A larger value with highest bit e
+     * falls in sub-bucket (value >> (e - SUB_BUCKET_BITS)) - SUB_BUCKETS of range e.
+     */
+    private static int getBucket(long micros) {
+        if (micros < SUB_BUCKETS) {
+            return (int) micros;
+        }
+        int exponent = 63 - Long.numberOfLeadingZeros(micros);
+        if (exponent >= MAX_EXPONENT) {
+            return NUM_BUCKETS - 1;
+        }
+        int shift = exponent - SUB_BUCKET_BITS;
+        int sub = (int) (micros >> shift) - SUB_BUCKETS;
+        return (shift + 1) * SUB_BUCKETS + sub;
+    }
+
+    /**
+     * @return The exclusive upper bound of a bucket, in microseconds.
+     */
+    private static long getUpperBound(int bucket) {
+        if (bucket < SUB_BUCKETS) {
+            return bucket + 1;
+        }
+        int shift = bucket / SUB_BUCKETS - 1;
+        int sub = bucket % SUB_BUCKETS;
+        return (long) (SUB_BUCKETS + sub + 1) << shift;
+    }
+
+    public long getCount() {
+        return count.get();
+    }
+
+    public double getMeanMillis() {
+        long n = count.get();
+        return (n == 0) ? 0.0 : totalMicros.get() / 1000.0 / n;
+    }
+
+    /**
+     * Returns the upper bound of the bucket containing the given percentile.
+     * @param percentile Between 0.0 and 1.0
+     * @return Latency in milliseconds, or 0 if nothing has been recorded.
+     */
+    public double getPercentileMillis(double percentile) {
+        long total = 0;
+        long counts[] = new long[NUM_BUCKETS];
+        for (int i = 0; i < NUM_BUCKETS; i++) {
+            counts[i] = buckets.get(i);
+            total += counts[i];
+        }
+        if (total == 0) {
+            return 0.0;
+        }
+        long rank = (long) Math.ceil(percentile * total);
+        long seen = 0;
+        for (int i = 0; i < NUM_BUCKETS; i++) {
+            seen += counts[i];
+            if (seen >= rank && counts[i] > 0) {
+                return getUpperBound(i) / 1000.0;
+            }
+        }
+        return getUpperBound(NUM_BUCKETS - 1) / 1000.0;
+    }
+
+    public void clear() {
+        for (int i = 0; i < NUM_BUCKETS; i++) {
+            buckets.set(i, 0);
+        }
+        count.set(0);
+        totalMicros.set(0);
+    }
+
+    @Override
+    public String toString() {
+        return String.format("n=%d mean=%.2fms p50<=%.2fms p90<=%.2fms p99<=%.2fms",
+                getCount(), getMeanMillis(),
+                getPercentileMillis(0.5), getPercentileMillis(0.9), getPercentileMillis(0.99));
+    }
+}
@@ -0,0 +1,238 @@
+package org.wikibrain.utils;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * A long to int hash table that lives in a memory mapped file.
+ *
+ * The table uses open addressing with linear probing over a power of two number of slots.
+ * Because it is a plain file it can be built once and then opened read-only by many
+ * JVMs at once, which share the operating system's page cache instead of each building
+ * a copy on their heap.
+ *
+ * The file layout is:
+ * <pre>
+ *     int magic, int version, long capacity, long size, int zeroKeyValue, int hasZeroKey
+ *     slots[capacity] of (long key, int value)
+ * </pre>
+ * A key of 0 marks an empty slot, so the value for key 0 is stored in the header.
+ *
+ * Writes are not threadsafe. Reads of a finished table are.
+ *
+ * @author Shilad Sen
+ */
+public class MappedLongIntTable implements Closeable {
+    public static final int MAGIC = 0x57424c49;   // "WBLI"
+    public static final int VERSION = 1;
+
+    private static final int HEADER_BYTES = 32;
+    private static final int SLOT_BYTES = 12;
+
+    // Each mapped chunk holds 2^26 slots (768MB)
+    private static final int CHUNK_BITS = 26;
+    private static final long CHUNK_MASK = (1L << CHUNK_BITS) - 1;
+
+    private final File file;
+    private final boolean writable;
+    private final MappedByteBuffer header;
+    private final MappedByteBuffer chunks[];
+    private final long capacity;
+    private final long mask;
+    private final int missingValue;
+
+    private long size;
+    private int zeroKeyValue;
+    private boolean hasZeroKey;
+
+    private MappedLongIntTable(File file, boolean writable, int missingValue) throws IOException {
+        this.file = file;
+        this.writable = writable;
+        this.missingValue = missingValue;
+        RandomAccessFile raf = new RandomAccessFile(file, writable ? "rw" : "r");
+        try {
+            FileChannel.MapMode mode = writable ? FileChannel.MapMode.READ_WRITE : FileChannel.MapMode.READ_ONLY;
+            FileChannel channel = raf.getChannel();
+            header = channel.map(mode, 0, HEADER_BYTES);
+            if (header.getInt(0) != MAGIC) {
+                throw new IOException("invalid magic number in table " + file);
+            }
+            if (header.getInt(4) != VERSION) {
+                throw new IOException("unsupported version " + header.getInt(4) + " of table " + file);
+            }
+            capacity = header.getLong(8);
+            size = header.getLong(16);
+            zeroKeyValue = header.getInt(24);
+            hasZeroKey = header.getInt(28) != 0;
+            mask = capacity - 1;
+            if (raf.length() != HEADER_BYTES + capacity * SLOT_BYTES) {
+                throw new IOException("truncated table " + file);
+            }
+            int numChunks = (int) ((capacity + CHUNK_MASK) >>> CHUNK_BITS);
+            chunks = new MappedByteBuffer[numChunks];
+            for (int i = 0; i < numChunks; i++) {
+                long start = ((long) i) << CHUNK_BITS;
+                long slots = Math.min(capacity - start, 1L << CHUNK_BITS);
+                chunks[i] = channel.map(mode, HEADER_BYTES + start * SLOT_BYTES, slots * SLOT_BYTES);
+            }
+        } finally {
+            raf.close();     // mappings remain valid after the channel is closed
+        }
+    }
+
+    /**
+     * Creates a new, empty table with enough capacity for expectedSize entries.
+     * Any existing file is overwritten.
+     *
+     * @param file
+     * @param expectedSize
+     * @param missingValue Value returned by get() for keys that are not in the table.
+     * @return
+     * @throws IOException
+     */
+    public static MappedLongIntTable create(File file, long expectedSize, int missingValue) throws IOException {
+        long capacity = 16;
+        while (capacity < expectedSize * 2) {
+            capacity *= 2;
+        }
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        try {
+            raf.setLength(0);
+            raf.setLength(HEADER_BYTES + capacity * SLOT_BYTES);     // zero filled
+            raf.writeInt(MAGIC);
+            raf.writeInt(VERSION);
+            raf.writeLong(capacity);
+            raf.writeLong(0);
+        } finally {
+            raf.close();
+        }
+        return new MappedLongIntTable(file, true, missingValue);
+    }
+
+    /**
+     * Opens an existing table for reading.
+     * @param file
+     * @param missingValue Value returned by get() for keys that are not in the table.
+     * @return
+     * @throws IOException
+     */
+    public static MappedLongIntTable open(File file, int missingValue) throws IOException {
+        return new MappedLongIntTable(file, false, missingValue);
+    }
+
+    /**
+     * Returns the value associated with the key, or the missing value.
+     * @param key
+     * @return
+     */
+    public int get(long key) {
+        if (key == 0) {
+            return hasZeroKey ? zeroKeyValue : missingValue;
+        }
+        long slot = mix(key) & mask;
+        while (true) {
+            MappedByteBuffer chunk = chunks[(int) (slot >>> CHUNK_BITS)];
+            int offset = (int) (slot & CHUNK_MASK) * SLOT_BYTES;
+            long k = chunk.getLong(offset);
+            if (k == key) {
+                return chunk.getInt(offset + 8);
+            } else if (k == 0) {
+                return missingValue;
+            }
+            slot = (slot + 1) & mask;
+        }
+    }
+
+    /**
+     * Looks up many keys at once.
+     * @param keys
+     * @param values Output array, must be at least as long as keys.
+     */
+    public void get(long keys[], int values[]) {
+        for (int i = 0; i < keys.length; i++) {
+            values[i] = get(keys[i]);
+        }
+    }
+
+    /**
+     * Associates a value with a key, replacing any existing value.
+     * @param key
+     * @param value
+     */
+    public void put(long key, int value) {
+        if (!writable) {
+            throw new IllegalStateException("table " + file + " is read-only");
+        }
+        if (key == 0) {
+            zeroKeyValue = value;
+            hasZeroKey = true;
+            return;
+        }
+        long slot = mix(key) & mask;
+        while (true) {
+            MappedByteBuffer chunk = chunks[(int) (slot >>> CHUNK_BITS)];
+            int offset = (int) (slot & CHUNK_MASK) * SLOT_BYTES;
+            long k = chunk.getLong(offset);
+            if (k == 0) {
+                if (size >= capacity * 3 / 4) {
+                    throw new IllegalStateException("table " + file + " is full; expected size was too small");
+                }
+                chunk.putLong(offset, key);
+                chunk.putInt(offset + 8, value);
+                size++;
+                return;
+            } else if (k == key) {
+                chunk.putInt(offset + 8, value);
+                return;
+            }
+            slot = (slot + 1) & mask;
+        }
+    }
+
+    /**
+     * @return The number of keys in the table, not counting key 0.
+     */
+    public long size() {
+        return size;
+    }
+
+    public long getCapacity() {
+        return capacity;
+    }
+
+    /**
+     * Writes the header and flushes a writable table to disk.
+     */
+    public void flush() {
+        if (writable) {
+            header.putLong(16, size);
+            header.putInt(24, zeroKeyValue);
+            header.putInt(28, hasZeroKey ? 1 : 0);
+            header.force();
+            for (MappedByteBuffer chunk : chunks) {
+                chunk.force();
+            }
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        flush();
+    }
+
+    /**
+     * The murmur3 64-bit finalizer, so that structured keys spread across slots.
+     */
+    private static long mix(long h) {
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        h *= 0xc4ceb9fe1a85ec53L;
+        h ^= h >>> 33;
+        return h;
+    }
+}
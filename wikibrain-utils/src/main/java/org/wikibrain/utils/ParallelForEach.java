@@ -3,24 +3,49 @@ package org.wikibrain.utils;
 
 import org.apache.commons.lang3.exception.ExceptionUtils;
 
-import java.util.ArrayList;
-import java.util.Collection;
-import java.util.Iterator;
-import java.util.List;
+import java.util.*;
 import java.util.concurrent.*;
 import java.util.concurrent.atomic.AtomicInteger;
-import org.slf4j.Logger;
-import org.slf4j.LoggerFactory;
+import java.util.concurrent.atomic.AtomicReference;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 /**
  * @author Shilad Sen
  * Utilities to run for each loops in parallel.
+ *
+ * All loops share one process-wide pool of daemon threads. The calling thread works on
+ * the loop too, and elements are handed to threads in chunks rather than one task per
+ * element: ranges and collections use chunks that shrink as the loop nears its end, and
+ * iterators use chunks that grow while elements are cheap to process. At most queueSize
+ * elements are pulled from an iterator ahead of the threads processing them.
+ *
+ * The loop and iterate methods log exceptions thrown by the callback and go on with the
+ * remaining elements. The forEach methods and the range methods that take an
+ * {@link IntProcedure} stop at the first exception and rethrow it to the caller.
  */
 public class ParallelForEach {
     public static final Logger LOG = LoggerFactory.getLogger(ParallelForEach.class);
 
+    /**
+     * Each thread claims about this many chunks of a range over the course of a loop.
+     */
+    private static final int CHUNKS_PER_THREAD = 4;
+
+    /**
+     * Iterator chunks grow or shrink to take about this long to process.
+     */
+    private static final long TARGET_CHUNK_NANOS = 1000000;
+
+    private static final ExecutorService EXECUTOR = Executors.newCachedThreadPool(new ThreadFactory() {
+        private final AtomicInteger counter = new AtomicInteger();
+        public Thread newThread(Runnable r) {
+            Thread t = new Thread(r, "ParallelForEach-" + counter.incrementAndGet());
+            t.setDaemon(true);
+            return t;
+        }
+    });
+
     /**
      * Construct a parallel loop on [from, to).
      *
@@ -30,20 +55,50 @@ public class ParallelForEach {
      * @param fn callback
      */
     public static void range(int from, int to, int numThreads, final Procedure<Integer> fn) {
-        iterate(new IntRangeIterator(from, to), numThreads, 10000, fn, Integer.MAX_VALUE);
+        new RangeJob(from, to, numThreads, false) {
+            void call(int i) throws Exception {
+                fn.call(i);
+            }
+        }.execute();
     }
     public static void range(int from, int to, final Procedure<Integer> fn) {
-        iterate(new IntRangeIterator(from, to), WpThreadUtils.getMaxThreads(), 10000, fn, Integer.MAX_VALUE);
+        range(from, to, WpThreadUtils.getMaxThreads(), fn);
     }
     public static <T,R> List<R> range(int from, int to, int numThreads, final Function<Integer, R> fn) {
-        List<Integer> range = new ArrayList<Integer>();
-        for (int i = from; i < to; i++) { range.add(i); }
-        return loop(range, numThreads, fn);
+        final Object result[] = new Object[Math.max(0, to - from)];
+        final int offset = from;
+        new RangeJob(from, to, numThreads, false) {
+            void call(int i) throws Exception {
+                result[i - offset] = fn.call(i);
+            }
+        }.execute();
+        return toList(result);
     }
     public static <T,R> List<R> range(int from, int to, final Function<Integer, R> fn) {
         return range(from, to, WpThreadUtils.getMaxThreads(), fn);
     }
 
+    /**
+     * Construct a parallel loop on [from, to) that passes primitive ints to the callback.
+     * The first exception thrown by the callback stops the loop and is rethrown,
+     * wrapped in a RuntimeException if it is checked.
+     *
+     * @param from bottom of range (inclusive)
+     * @param to top of range (exclusive)
+     * @param numThreads
+     * @param fn callback
+     */
+    public static void range(int from, int to, int numThreads, final IntProcedure fn) {
+        new RangeJob(from, to, numThreads, true) {
+            void call(int i) throws Exception {
+                fn.call(i);
+            }
+        }.execute();
+    }
+    public static void range(int from, int to, final IntProcedure fn) {
+        range(from, to, WpThreadUtils.getMaxThreads(), fn);
+    }
+
     public static <T,R> List<R> loop(
             Collection<T> collection,
             int numThreads,
@@ -102,41 +157,22 @@ public class ParallelForEach {
             final Function<T,R> fn,
             final int logModulo) {
 
-        final List<R> result = new ArrayList<R>();
-        for (int i = 0; i < collection.size(); i++) result.add(null);
-        final ExecutorService exec = new ThreadPoolErrors(numThreads);
-        final CountDownLatch latch = new CountDownLatch(collection.size());
-        try {
-            // create a copy so that modifications to original list are safe
-            final List<T> asList = new ArrayList<T>(collection);
-            for (int i = 0; i < asList.size(); i++) {
-                final int finalI = i;
-                exec.submit(new Runnable() {
-                    public void run() {
-                        T obj = asList.get(finalI);
-                        try {
-                            if (finalI % logModulo == 0) {
-                                LOG.info("processing list element " + (finalI+1) + " of " + asList.size());
-                            }
-                            R r = fn.call(obj);
-                            result.set(finalI, r);
-                        } catch (Exception e) {
-                            e.printStackTrace();
-                            LOG.error("error processing list element " + obj, e);
-                            LOG.error("stacktrace: " + ExceptionUtils.getStackTrace(e).replaceAll("\n", " ").replaceAll("\\s+", " "));
-                        } finally {
-                            latch.countDown();
-                        }
-                    }});
+        // create a copy so that modifications to original list are safe
+        final List<T> asList = new ArrayList<T>(collection);
+        final Object result[] = new Object[asList.size()];
+        new RangeJob(0, asList.size(), numThreads, false) {
+            void call(int i) throws Exception {
+                if (i % logModulo == 0) {
+                    LOG.info("processing list element " + (i+1) + " of " + asList.size());
+                }
+                result[i] = fn.call(asList.get(i));
             }
-            latch.await();
-            return result;
-        } catch (InterruptedException e) {
-            LOG.error("Interrupted parallel for each", e);
-            throw new RuntimeException(e);
-        } finally {
-            exec.shutdown();
-        }
+
+            String describe(int i) {
+                return "list element " + asList.get(i);
+            }
+        }.execute();
+        return toList(result);
     }
 
 
@@ -154,83 +190,248 @@ public class ParallelForEach {
             int queueSize,
             final Procedure<T> fn,
             final int logModulo) {
+        new IteratorJob<T>(iterator, numThreads, queueSize, fn, logModulo, false).execute();
+    }
 
-        final ExecutorService exec = new ThreadPoolErrors(numThreads);
-        BoundedExecutor boundedExec = new BoundedExecutor(exec, queueSize);
-        final AtomicInteger counter = new AtomicInteger(0);
-        final CountDownLatch latch = new CountDownLatch(1);
-        final AtomicInteger elemsToGo = new AtomicInteger(0);
-
-        try {
-            // create a copy so that modifications to original list are safe
-            elemsToGo.incrementAndGet();
-            while (iterator.hasNext()) {
-                final T obj = iterator.next();
-                elemsToGo.incrementAndGet();
-                boundedExec.submitTask(new Runnable() {
-                    public void run() {
-                        try {
-                            int i = counter.incrementAndGet();
-                            if (logModulo >= 0 && i % logModulo == 0) {
-                                LOG.info("processing iterable " + i);
-                            }
-                            fn.call(obj);
-                        } catch (Exception e) {
-                            e.printStackTrace();
-                            LOG.error("error processing list element " + obj, e);
-                            LOG.error("stacktrace: " + ExceptionUtils.getStackTrace(e).replaceAll("\n", " ").replaceAll("\\s+", " "));
-                        } finally {
-                            if (elemsToGo.decrementAndGet() == 0) {
-                                latch.countDown();
-                            }
-                        }
+    /**
+     * Calls fn on each element of the iterable in parallel.
+     * The first exception thrown by the callback stops the loop and is rethrown,
+     * wrapped in a RuntimeException if it is checked.
+     */
+    public static <T> void forEach(Iterable<T> iterable, final Procedure<T> fn) {
+        forEach(iterable.iterator(), WpThreadUtils.getMaxThreads(), 100, fn);
+    }
+
+    public static <T> void forEach(Iterable<T> iterable, int numThreads, final Procedure<T> fn) {
+        forEach(iterable.iterator(), numThreads, 100, fn);
+    }
+
+    /**
+     * Calls fn on each element of the iterator in parallel.
+     * The first exception thrown by the callback stops the loop and is rethrown,
+     * wrapped in a RuntimeException if it is checked.
+     *
+     * @param iterator
+     * @param numThreads
+     * @param queueSize Maximum number of elements taken from the iterator but not yet processed.
+     * @param fn callback
+     */
+    public static <T> void forEach(
+            Iterator<T> iterator,
+            int numThreads,
+            int queueSize,
+            final Procedure<T> fn) {
+        new IteratorJob<T>(iterator, numThreads, queueSize, fn, -1, true).execute();
+    }
+
+    @SuppressWarnings("unchecked")
+    private static <R> List<R> toList(Object values[]) {
+        List<R> list = new ArrayList<R>(values.length);
+        for (Object v : values) {
+            list.add((R) v);
+        }
+        return list;
+    }
+
+    /**
+     * A loop run by the calling thread and up to numThreads - 1 threads from the shared pool.
+     * Pool threads that start after the calling thread has run out of work return immediately,
+     * so the caller never waits for a thread that was not available, and nested loops can
+     * not deadlock.
+     */
+    private static abstract class Job implements Runnable {
+        private final int numThreads;
+        private final boolean failFast;
+        private final AtomicReference<Throwable> failure = new AtomicReference<Throwable>();
+        private int active = 0;         // guarded by this
+        private boolean closed = false; // guarded by this
+
+        Job(int numThreads, boolean failFast) {
+            this.numThreads = Math.max(1, numThreads);
+            this.failFast = failFast;
+        }
+
+        /**
+         * Processes elements until there are none left or the loop is cancelled.
+         */
+        abstract void work() throws Exception;
+
+        int getNumThreads() {
+            return numThreads;
+        }
+
+        boolean isCancelled() {
+            return failure.get() != null;
+        }
+
+        /**
+         * Logs an exception thrown by the callback, or records it and cancels the loop.
+         * Errors always cancel the loop.
+         */
+        void handle(String element, Throwable t) {
+            if (failFast || !(t instanceof Exception)) {
+                failure.compareAndSet(null, t);
+            } else {
+                LOG.error("error processing " + element, t);
+                LOG.error("stacktrace: " + ExceptionUtils.getStackTrace(t).replaceAll("\n", " ").replaceAll("\\s+", " "));
+            }
+        }
+
+        public void run() {
+            synchronized (this) {
+                if (closed) {
+                    return;
+                }
+                active++;
+            }
+            try {
+                work();
+            } catch (Throwable t) {
+                failure.compareAndSet(null, t);
+            } finally {
+                synchronized (this) {
+                    active--;
+                    notifyAll();
+                }
+            }
+        }
+
+        void execute() {
+            for (int i = 1; i < numThreads; i++) {
+                EXECUTOR.execute(this);
+            }
+            try {
+                work();
+            } catch (Throwable t) {
+                failure.compareAndSet(null, t);
+            }
+            try {
+                synchronized (this) {
+                    closed = true;
+                    while (active > 0) {
+                        wait();
                     }
-                });
+                }
+            } catch (InterruptedException e) {
+                failure.compareAndSet(null, e);
+                Thread.currentThread().interrupt();
+                LOG.error("Interrupted parallel for each", e);
+                throw new RuntimeException(e);
             }
-            if (elemsToGo.decrementAndGet() > 0) {
-                latch.await();
+            Throwable t = failure.get();
+            if (t instanceof RuntimeException) {
+                throw (RuntimeException) t;
+            } else if (t instanceof Error) {
+                throw (Error) t;
+            } else if (t != null) {
+                throw new RuntimeException(t);
             }
-        } catch (InterruptedException e) {
-            LOG.error("Interrupted parallel for each", e);
-            throw new RuntimeException(e);
-        } finally {
-            exec.shutdown();
         }
     }
 
     /**
-     * This code adapted from:
-     * http://stackoverflow.com/questions/2248131/handling-exceptions-from-java-executorservice-tasks
+     * Threads claim chunks of [from, to) from a shared counter. Each chunk is a fraction
+     * of the indexes that remain, so early chunks are large and the last ones are small
+     * enough to balance uneven work among threads.
      */
-    private static class ThreadPoolErrors extends ThreadPoolExecutor {
-        public ThreadPoolErrors(int threads) {
-            super(  threads, // core threads
-                    threads, // max threads
-                    0, // timeout
-                    TimeUnit.MILLISECONDS, // timeout units
-                    new LinkedBlockingQueue<Runnable>() // work queue
-            );
+    private static abstract class RangeJob extends Job {
+        private final AtomicInteger next;
+        private final int to;
+
+        RangeJob(int from, int to, int numThreads, boolean failFast) {
+            super((int) Math.min(numThreads, Math.max(1L, (long) to - from)), failFast);
+            if (from > to) {
+                throw new IllegalArgumentException("from must be <= to");
+            }
+            this.next = new AtomicInteger(from);
+            this.to = to;
+        }
+
+        abstract void call(int i) throws Exception;
+
+        String describe(int i) {
+            return "range element " + i;
         }
 
-        protected void afterExecute(Runnable r, Throwable t) {
-            super.afterExecute(r, t);
-            if (t == null && r instanceof Future<?>) {
-                try {
-                    Future<?> future = (Future<?>) r;
-                    if (future.isDone()) {
-                        future.get();
+        void work() {
+            long divisor = (long) getNumThreads() * CHUNKS_PER_THREAD;
+            while (!isCancelled()) {
+                int start = next.get();
+                if (start >= to) {
+                    return;
+                }
+                long remaining = (long) to - start;
+                int end = (int) (start + Math.max(1, remaining / divisor));
+                if (!next.compareAndSet(start, end)) {
+                    continue;
+                }
+                for (int i = start; i < end && !isCancelled(); i++) {
+                    try {
+                        call(i);
+                    } catch (Throwable t) {
+                        handle(describe(i), t);
                     }
-                } catch (CancellationException ce) {
-                    t = ce;
-                } catch (ExecutionException ee) {
-                    t = ee.getCause();
-                } catch (InterruptedException ie) {
-                    Thread.currentThread().interrupt(); // ignore/reset
                 }
             }
-            if (t != null) {
-                LOG.error("Uncaught Exception: ", t);
-                LOG.error("stacktrace: " + ExceptionUtils.getStackTrace(t).replaceAll("\n", " ").replaceAll("\\s+", " "));
+        }
+    }
+
+    /**
+     * Threads take chunks of elements from the iterator one at a time.
+     * A chunk doubles while its elements take less than TARGET_CHUNK_NANOS to process and
+     * halves when they take much longer, up to queueSize / numThreads elements.
+     * Exceptions thrown by the iterator itself always stop the loop.
+     */
+    private static class IteratorJob<T> extends Job {
+        private final Iterator<T> iterator;
+        private final Object iteratorLock = new Object();
+        private final int maxChunk;
+        private final Procedure<T> fn;
+        private final int logModulo;
+        private final AtomicInteger counter = new AtomicInteger(0);
+
+        IteratorJob(Iterator<T> iterator, int numThreads, int queueSize, Procedure<T> fn, int logModulo, boolean failFast) {
+            super(numThreads, failFast);
+            this.iterator = iterator;
+            this.maxChunk = Math.max(1, queueSize / getNumThreads());
+            this.fn = fn;
+            this.logModulo = logModulo;
+        }
+
+        void work() {
+            List<T> chunk = new ArrayList<T>();
+            int chunkSize = 1;
+            while (!isCancelled()) {
+                chunk.clear();
+                synchronized (iteratorLock) {
+                    while (chunk.size() < chunkSize && !isCancelled() && iterator.hasNext()) {
+                        chunk.add(iterator.next());
+                    }
+                }
+                if (chunk.isEmpty()) {
+                    return;
+                }
+                long start = System.nanoTime();
+                for (T obj : chunk) {
+                    if (isCancelled()) {
+                        return;
+                    }
+                    try {
+                        int i = counter.incrementAndGet();
+                        if (logModulo >= 0 && i % logModulo == 0) {
+                            LOG.info("processing iterable " + i);
+                        }
+                        fn.call(obj);
+                    } catch (Throwable t) {
+                        handle("list element " + obj, t);
+                    }
+                }
+                long elapsed = System.nanoTime() - start;
+                if (elapsed < TARGET_CHUNK_NANOS / 2) {
+                    chunkSize = Math.min(maxChunk, chunkSize * 2);
+                } else if (elapsed > TARGET_CHUNK_NANOS * 2) {
+                    chunkSize = Math.max(1, chunkSize / 2);
+                }
             }
         }
     }
@@ -0,0 +1,214 @@
+package org.wikibrain.utils;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A size-bounded, threadsafe cache with segmented LRU eviction.
+ *
+ * New entries go into a probationary LRU segment. An entry that is read again
+ * while on probation is promoted to a protected LRU segment that holds most of
+ * the capacity, so a burst of one-off lookups (a scan) can only evict other
+ * probationary entries and not the frequently used ones. Entries that fall off
+ * the protected segment are demoted back to probation.
+ *
+ * Keys are hashed into independently locked stripes, each holding an equal
+ * share of the capacity. Null keys and values are not supported.
+ *
+ * Hits, misses and evictions are counted so callers can report the hit rate.
+ *
+ * @author Shilad Sen
+ */
+public class SegmentedLruCache<K, V> {
+    private static final double PROTECTED_FRACTION = 0.8;
+
+    private final Stripe<K, V> stripes[];
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong evictions = new AtomicLong();
+
+    public SegmentedLruCache(int maxEntries) {
+        this(maxEntries, 16);
+    }
+
+    /**
+     * @param maxEntries The maximum number of entries held across all stripes.
+     * @param concurrency The number of independently locked stripes.
+     */
+    @SuppressWarnings("unchecked")
+    public SegmentedLruCache(int maxEntries, int concurrency) {
+        if (maxEntries <= 0 || concurrency <= 0) {
+            throw new IllegalArgumentException("maxEntries and concurrency must be positive");
+        }
+        concurrency = Math.min(concurrency, maxEntries);
+        stripes = new Stripe[concurrency];
+        for (int i = 0; i < concurrency; i++) {
+            // spread the remainder over the first stripes
+            int capacity = maxEntries / concurrency + (i < maxEntries % concurrency ? 1 : 0);
+            stripes[i] = new Stripe<K, V>(capacity);
+        }
+    }
+
+    private Stripe<K, V> stripeFor(Object key) {
+        int h = key.hashCode();
+        h ^= (h >>> 20) ^ (h >>> 12);
+        h ^= (h >>> 7) ^ (h >>> 4);
+        return stripes[(h & 0x7fffffff) % stripes.length];
+    }
+
+    /**
+     * @return The cached value, or null if the key is not cached.
+     */
+    public V get(K key) {
+        V value = stripeFor(key).get(key);
+        if (value == null) {
+            misses.incrementAndGet();
+        } else {
+            hits.incrementAndGet();
+        }
+        return value;
+    }
+
+    public void put(K key, V value) {
+        if (value == null) {
+            throw new NullPointerException("null values are not supported");
+        }
+        evictions.addAndGet(stripeFor(key).put(key, value));
+    }
+
+    public void remove(K key) {
+        stripeFor(key).remove(key);
+    }
+
+    /**
+     * Removes all entries. Statistics are not reset.
+     */
+    public void clear() {
+        for (Stripe<K, V> stripe : stripes) {
+            stripe.clear();
+        }
+    }
+
+    public int size() {
+        int n = 0;
+        for (Stripe<K, V> stripe : stripes) {
+            n += stripe.size();
+        }
+        return n;
+    }
+
+    public long getHits() {
+        return hits.get();
+    }
+
+    public long getMisses() {
+        return misses.get();
+    }
+
+    public long getEvictions() {
+        return evictions.get();
+    }
+
+    /**
+     * @return The fraction of lookups that were hits, or 0 if there were no lookups.
+     */
+    public double getHitRate() {
+        long h = hits.get();
+        long total = h + misses.get();
+        return (total == 0) ? 0.0 : 1.0 * h / total;
+    }
+
+    public void resetStats() {
+        hits.set(0);
+        misses.set(0);
+        evictions.set(0);
+    }
+
+    @Override
+    public String toString() {
+        return String.format("SegmentedLruCache{size=%d, hits=%d, misses=%d, hitRate=%.3f, evictions=%d}",
+                size(), getHits(), getMisses(), getHitRate(), getEvictions());
+    }
+
+    /**
+     * A single locked stripe holding a probationary and a protected access-ordered map.
+     */
+    private static class Stripe<K, V> {
+        private final int capacity;
+        private final int protectedCapacity;
+        private final LinkedHashMap<K, V> probation = new LinkedHashMap<K, V>(16, 0.75f, true);
+        private final LinkedHashMap<K, V> protect = new LinkedHashMap<K, V>(16, 0.75f, true);
+
+        Stripe(int capacity) {
+            this.capacity = capacity;
+            this.protectedCapacity = (int) (capacity * PROTECTED_FRACTION);
+        }
+
+        synchronized V get(K key) {
+            V value = protect.get(key);
+            if (value != null) {
+                return value;
+            }
+            value = probation.remove(key);
+            if (value != null) {
+                promote(key, value);
+            }
+            return value;
+        }
+
+        /**
+         * @return The number of evicted entries.
+         */
+        synchronized int put(K key, V value) {
+            if (protect.containsKey(key)) {
+                protect.put(key, value);
+                return 0;
+            }
+            if (probation.containsKey(key)) {
+                probation.remove(key);
+                promote(key, value);
+                return 0;
+            }
+            probation.put(key, value);
+            int evicted = 0;
+            while (probation.size() + protect.size() > capacity) {
+                removeEldest(probation.isEmpty() ? protect : probation);
+                evicted++;
+            }
+            return evicted;
+        }
+
+        private void promote(K key, V value) {
+            protect.put(key, value);
+            if (protect.size() > protectedCapacity && protect.size() > 1) {
+                Iterator<Map.Entry<K, V>> iter = protect.entrySet().iterator();
+                Map.Entry<K, V> eldest = iter.next();
+                iter.remove();
+                probation.put(eldest.getKey(), eldest.getValue());
+            }
+        }
+
+        private void removeEldest(LinkedHashMap<K, V> map) {
+            Iterator<K> iter = map.keySet().iterator();
+            iter.next();
+            iter.remove();
+        }
+
+        synchronized void remove(K key) {
+            if (protect.remove(key) == null) {
+                probation.remove(key);
+            }
+        }
+
+        synchronized void clear() {
+            probation.clear();
+            protect.clear();
+        }
+
+        synchronized int size() {
+            return probation.size() + protect.size();
+        }
+    }
+}
@@ -208,6 +208,38 @@ public class WpIOUtils {
         return createTempDirectory(name, true);
     }
 
+    /**
+     * Creates a uniquely named temporary file in the directory of a file, so that it can
+     * replace the file with {@link #replaceFile(File, File)} without colliding with other
+     * processes writing the same file.
+     * @param file
+     * @return
+     * @throws IOException
+     */
+    public static File createTempFileBeside(File file) throws IOException {
+        File dir = file.getAbsoluteFile().getParentFile();
+        dir.mkdirs();
+        return File.createTempFile(file.getName() + ".", ".tmp", dir);
+    }
+
+    /**
+     * Renames a file over another one. On most platforms the rename is atomic, so readers
+     * see either the old or the new file.
+     * @param src
+     * @param dest
+     * @throws IOException If the file could not be renamed.
+     */
+    public static void replaceFile(File src, File dest) throws IOException {
+        if (src.renameTo(dest)) {
+            return;
+        }
+        // renaming over an existing file fails on some platforms
+        FileUtils.deleteQuietly(dest);
+        if (!src.renameTo(dest)) {
+            throw new IOException("renaming " + src + " to " + dest + " failed");
+        }
+    }
+
 
     /**
      * Gets the path relative to a specified directory.
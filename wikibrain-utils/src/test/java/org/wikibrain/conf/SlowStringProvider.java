@@ -0,0 +1,49 @@
+package org.wikibrain.conf;
+
+import com.typesafe.config.Config;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Constructs strings slowly, counting how often each one is constructed.
+ */
+public class SlowStringProvider extends Provider<String> {
+    public static final ConcurrentMap<String, AtomicInteger> CONSTRUCTIONS = new ConcurrentHashMap<String, AtomicInteger>();
+
+    public SlowStringProvider(Configurator configurator, Configuration config) throws ConfigurationException {
+        super(configurator, config);
+    }
+
+    @Override
+    public Class getType() {
+        return String.class;
+    }
+
+    @Override
+    public String getPath() {
+        return "some.path.stringMaker";
+    }
+
+    @Override
+    public String get(String name, Config config, Map<String, String> runtimeParams) throws ConfigurationException {
+        CONSTRUCTIONS.putIfAbsent(name, new AtomicInteger());
+        int n = CONSTRUCTIONS.get(name).incrementAndGet();
+        try {
+            Thread.sleep(config.getInt("millis"));
+        } catch (InterruptedException e) {
+            throw new ConfigurationException(e);
+        }
+        if (config.hasPath("fail") && config.getBoolean("fail")) {
+            throw new ConfigurationException("failed to construct " + name);
+        }
+        if (config.hasPath("requires")) {
+            for (String dep : config.getStringList("requires")) {
+                getConfigurator().get(String.class, dep);
+            }
+        }
+        return name + "#" + n;
+    }
+}
@@ -6,6 +6,7 @@ import org.junit.Test;
 import java.io.File;
 import java.io.IOException;
 import java.util.Arrays;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.Map;
 
@@ -28,6 +29,43 @@ public class TestConfigurator {
         assertEquals(l, 1);
     }
 
+    @Test
+    public void testScope() throws ConfigurationException {
+        Configurator conf = new Configurator(new Configuration());
+        assertEquals(0, (int) conf.get(Integer.class, "baz"));
+        assertEquals(1, (int) conf.get(Integer.class, "biff"));
+
+        // A scope constructs and caches its own components with the providers of its parent
+        Configurator scope = conf.createScope(Collections.<Class>emptyList());
+        assertEquals(2, (int) scope.get(Integer.class, "biff"));
+        assertEquals(3, (int) scope.get(Integer.class, "baz"));
+        assertEquals(3, (int) scope.get(Integer.class, "baz"));
+        assertEquals(0, (int) conf.get(Integer.class, "baz"));
+
+        // Shared types come from the parent
+        Configurator shared = conf.createScope(Arrays.<Class>asList(Integer.class));
+        assertEquals(1, (int) shared.get(Integer.class, "biff"));
+
+        // Components are constructed again after closing
+        conf.close();
+        assertEquals(4, (int) conf.get(Integer.class, "baz"));
+        assertEquals(3, (int) scope.get(Integer.class, "baz"));
+    }
+
+    @Test
+    public void testProviderScan() throws ConfigurationException {
+        // Scanning the classpath finds the same providers as the indexes
+        System.setProperty("wikibrain.providerScan", "true");
+        try {
+            Configurator conf = new Configurator(new Configuration());
+            assertEquals(42, (int) conf.get(Integer.class, "foo"));
+            assertEquals(0, (int) conf.get(Integer.class, "baz"));
+            assertEquals(1, (int) conf.get(Integer.class, "biff"));
+        } finally {
+            System.clearProperty("wikibrain.providerScan");
+        }
+    }
+
     @Test
     public void testNonExistentJar() throws ConfigurationException {
         String separator = System.getProperty("path.separator");
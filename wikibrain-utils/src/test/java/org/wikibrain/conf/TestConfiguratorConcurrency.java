@@ -0,0 +1,165 @@
+package org.wikibrain.conf;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.*;
+import java.util.concurrent.*;
+
+import static org.junit.Assert.*;
+
+/**
+ * Requests components from many threads using {@link SlowStringProvider}.
+ */
+public class TestConfiguratorConcurrency {
+    private static final String NAMES[] = {
+            "fast1", "fast2", "fast3", "fast4", "slow1", "slow2", "slow3", "slow4", "outer"
+    };
+
+    @Before
+    public void resetCounts() {
+        SlowStringProvider.CONSTRUCTIONS.clear();
+    }
+
+    @Test
+    public void testStress() throws Exception {
+        final Configurator conf = new Configurator(new Configuration());
+        final int numThreads = 32;
+        final CyclicBarrier barrier = new CyclicBarrier(numThreads);
+        ExecutorService exec = Executors.newFixedThreadPool(numThreads);
+        List<Future<Map<String, String>>> futures = new ArrayList<Future<Map<String, String>>>();
+        for (int i = 0; i < numThreads; i++) {
+            final int offset = i;
+            futures.add(exec.submit(new Callable<Map<String, String>>() {
+                @Override
+                public Map<String, String> call() throws Exception {
+                    barrier.await();
+                    Map<String, String> seen = new HashMap<String, String>();
+                    for (int j = 0; j < 100; j++) {
+                        String name = NAMES[(offset + j) % NAMES.length];
+                        String value = conf.get(String.class, name);
+                        if (seen.containsKey(name)) {
+                            assertSame(seen.get(name), value);
+                        }
+                        seen.put(name, value);
+                    }
+                    return seen;
+                }
+            }));
+        }
+        Map<String, String> first = futures.get(0).get();
+        for (Future<Map<String, String>> f : futures) {
+            assertEquals(first, f.get());
+        }
+        exec.shutdown();
+
+        // Every component was constructed exactly once
+        for (String name : NAMES) {
+            assertEquals(1, SlowStringProvider.CONSTRUCTIONS.get(name).get());
+            assertEquals(name + "#1", first.get(name));
+        }
+    }
+
+    @Test
+    public void testParallelConstruction() throws Exception {
+        final Configurator conf = new Configurator(new Configuration());
+        conf.get(String.class, "fast1");
+
+        ExecutorService exec = Executors.newFixedThreadPool(4);
+        List<Future<String>> futures = new ArrayList<Future<String>>();
+        long start = System.currentTimeMillis();
+        for (final String name : Arrays.asList("slow1", "slow2", "slow3", "slow4")) {
+            futures.add(exec.submit(new Callable<String>() {
+                @Override
+                public String call() throws Exception {
+                    return conf.get(String.class, name);
+                }
+            }));
+        }
+
+        // Cached components are available while the others are constructed
+        Thread.sleep(50);
+        long before = System.currentTimeMillis();
+        assertEquals("fast1#1", conf.get(String.class, "fast1"));
+        assertTrue(System.currentTimeMillis() - before < 100);
+
+        for (Future<String> f : futures) {
+            f.get();
+        }
+        exec.shutdown();
+
+        // The four slow components (500 millis each) were constructed at the same time
+        assertTrue(System.currentTimeMillis() - start < 1500);
+    }
+
+    @Test
+    public void testCycle() throws Exception {
+        Configurator conf = new Configurator(new Configuration());
+        try {
+            conf.get(String.class, "cycleA");
+            fail();
+        } catch (ConfigurationException e) {
+            // expected
+        }
+        assertEquals(1, SlowStringProvider.CONSTRUCTIONS.get("cycleA").get());
+        assertEquals(1, SlowStringProvider.CONSTRUCTIONS.get("cycleB").get());
+    }
+
+    @Test
+    public void testCycleBetweenThreads() throws Exception {
+        final Configurator conf = new Configurator(new Configuration());
+        ExecutorService exec = Executors.newFixedThreadPool(2);
+        List<Future<String>> futures = new ArrayList<Future<String>>();
+        for (final String name : Arrays.asList("crossA", "crossB")) {
+            futures.add(exec.submit(new Callable<String>() {
+                @Override
+                public String call() throws Exception {
+                    return conf.get(String.class, name);
+                }
+            }));
+        }
+        for (Future<String> f : futures) {
+            try {
+                f.get(10, TimeUnit.SECONDS);
+                fail();
+            } catch (ExecutionException e) {
+                assertTrue(e.getCause() instanceof ConfigurationException);
+            }
+        }
+        exec.shutdown();
+    }
+
+    @Test
+    public void testFailure() throws Exception {
+        final Configurator conf = new Configurator(new Configuration());
+        ExecutorService exec = Executors.newFixedThreadPool(4);
+        List<Future<String>> futures = new ArrayList<Future<String>>();
+        for (int i = 0; i < 4; i++) {
+            futures.add(exec.submit(new Callable<String>() {
+                @Override
+                public String call() throws Exception {
+                    return conf.get(String.class, "broken");
+                }
+            }));
+        }
+        for (Future<String> f : futures) {
+            try {
+                f.get();
+                fail();
+            } catch (ExecutionException e) {
+                assertTrue(e.getCause() instanceof ConfigurationException);
+            }
+        }
+        exec.shutdown();
+
+        // Failed components are not cached
+        int constructions = SlowStringProvider.CONSTRUCTIONS.get("broken").get();
+        try {
+            conf.get(String.class, "broken");
+            fail();
+        } catch (ConfigurationException e) {
+            // expected
+        }
+        assertEquals(constructions + 1, SlowStringProvider.CONSTRUCTIONS.get("broken").get());
+    }
+}
@@ -0,0 +1,69 @@
+package org.wikibrain.conf;
+
+import org.apache.commons.io.FileUtils;
+import org.junit.Test;
+
+import javax.tools.JavaCompiler;
+import javax.tools.ToolProvider;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class TestProviderIndexProcessor {
+    private static final String PROVIDER_BODY =
+            "        public %s(org.wikibrain.conf.Configurator c, org.wikibrain.conf.Configuration conf) throws org.wikibrain.conf.ConfigurationException { super(c, conf); }\n" +
+            "        public Class getType() { return String.class; }\n" +
+            "        public String getPath() { return \"some.path\"; }\n" +
+            "        public String get(String name, com.typesafe.config.Config config, java.util.Map<String, String> params) { return name; }\n";
+
+    @Test
+    public void testIndex() throws IOException {
+        JavaCompiler compiler = ToolProvider.getSystemJavaCompiler();
+        if (compiler == null) {
+            return;     // running on a JRE
+        }
+        File dir = File.createTempFile("provider-index", "");
+        dir.delete();
+        dir.mkdirs();
+        try {
+            File src = new File(dir, "org/wikibrain/foo/Foo.java");
+            FileUtils.write(src,
+                    "package org.wikibrain.foo;\n" +
+                    "public class Foo {\n" +
+                    "    public static class Provider extends org.wikibrain.conf.Provider<String> {\n" +
+                    String.format(PROVIDER_BODY, "Provider") +
+                    "    }\n" +
+                    "    public static abstract class AbstractProvider extends org.wikibrain.conf.Provider<String> {\n" +
+                    "        public AbstractProvider(org.wikibrain.conf.Configurator c, org.wikibrain.conf.Configuration conf) throws org.wikibrain.conf.ConfigurationException { super(c, conf); }\n" +
+                    "    }\n" +
+                    "    public static class NotAProvider {}\n" +
+                    "}\n");
+            File src2 = new File(dir, "org/wikibrain/foo/BarProvider.java");
+            FileUtils.write(src2,
+                    "package org.wikibrain.foo;\n" +
+                    "public class BarProvider extends org.wikibrain.conf.Provider<String> {\n" +
+                    String.format(PROVIDER_BODY, "BarProvider") +
+                    "}\n");
+
+            File out = new File(dir, "classes");
+            out.mkdirs();
+            ByteArrayOutputStream errors = new ByteArrayOutputStream();
+            int result = compiler.run(null, null, errors,
+                    "-proc:only",
+                    "-processor", ProviderIndexProcessor.class.getName(),
+                    "-classpath", System.getProperty("java.class.path"),
+                    "-d", out.getAbsolutePath(),
+                    src.getAbsolutePath(), src2.getAbsolutePath());
+            assertEquals(errors.toString(), 0, result);
+
+            List<String> index = FileUtils.readLines(new File(out, Configurator.PROVIDER_INDEX));
+            assertEquals(Arrays.asList("org.wikibrain.foo.BarProvider", "org.wikibrain.foo.Foo$Provider"), index);
+        } finally {
+            FileUtils.deleteQuietly(dir);
+        }
+    }
+}
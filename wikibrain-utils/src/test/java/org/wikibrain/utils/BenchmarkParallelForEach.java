@@ -0,0 +1,171 @@
+package org.wikibrain.utils;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Compares ParallelForEach with its previous implementation, which created a thread
+ * pool for every call and submitted one task per element.
+ *
+ * Each loop is run with a tiny per-element workload, where scheduling overhead dominates,
+ * and with a heavy one, where load balancing matters. Every case is run several times
+ * and the median is reported.
+ *
+ * @author Shilad Sen
+ */
+public class BenchmarkParallelForEach {
+    private static final int ROUNDS = 7;
+    private static final int TINY_ELEMENTS = 1000000;
+    private static final int HEAVY_ELEMENTS = 2000;
+
+    private static final AtomicLong sink = new AtomicLong();
+
+    public static void main(String args[]) throws Exception {
+        final int numThreads = WpThreadUtils.getMaxThreads();
+        System.out.println("threads: " + numThreads);
+        for (final int work : new int[] { 1, 100000 }) {
+            final int n = (work == 1) ? TINY_ELEMENTS : HEAVY_ELEMENTS;
+            final List<Integer> elements = TestParallelForEach.range(0, n);
+            final Procedure<Integer> fn = new Procedure<Integer>() {
+                public void call(Integer i) throws Exception {
+                    sink.addAndGet(spin(i, work));
+                }
+            };
+            String label = (work == 1) ? "tiny" : "heavy";
+            System.out.println(String.format("%s workload, %d elements:", label, n));
+
+            report("old range", time(new Runnable() {
+                public void run() {
+                    LegacyParallelForEach.iterate(new IntRangeIterator(0, n), numThreads, 10000, fn);
+                }
+            }));
+            report("new range", time(new Runnable() {
+                public void run() {
+                    ParallelForEach.range(0, n, numThreads, fn);
+                }
+            }));
+            report("new int range", time(new Runnable() {
+                public void run() {
+                    ParallelForEach.range(0, n, numThreads, new IntProcedure() {
+                        public void call(int i) throws Exception {
+                            sink.addAndGet(spin(i, work));
+                        }
+                    });
+                }
+            }));
+            report("old loop", time(new Runnable() {
+                public void run() {
+                    LegacyParallelForEach.loop(elements, numThreads, fn);
+                }
+            }));
+            report("new loop", time(new Runnable() {
+                public void run() {
+                    ParallelForEach.loop(elements, numThreads, fn, Integer.MAX_VALUE);
+                }
+            }));
+            report("old iterate", time(new Runnable() {
+                public void run() {
+                    LegacyParallelForEach.iterate(elements.iterator(), numThreads, 100, fn);
+                }
+            }));
+            report("new iterate", time(new Runnable() {
+                public void run() {
+                    ParallelForEach.iterate(elements.iterator(), numThreads, 100, fn, -1);
+                }
+            }));
+        }
+    }
+
+    private static long spin(int seed, int work) {
+        long x = seed;
+        for (int i = 0; i < work; i++) {
+            x = x * 6364136223846793005L + 1442695040888963407L;
+        }
+        return x;
+    }
+
+    private static double time(Runnable r) {
+        r.run();    // warm up
+        double millis[] = new double[ROUNDS];
+        for (int i = 0; i < ROUNDS; i++) {
+            long start = System.nanoTime();
+            r.run();
+            millis[i] = (System.nanoTime() - start) / 1E6;
+        }
+        Arrays.sort(millis);
+        return millis[ROUNDS / 2];
+    }
+
+    private static void report(String name, double millis) {
+        System.out.println(String.format("    %-14s %10.1f millis", name, millis));
+    }
+
+    /**
+     * The loop and iterate methods as they were before the shared pool, without logging.
+     */
+    static class LegacyParallelForEach {
+        static <T> void loop(List<T> list, int numThreads, final Procedure<T> fn) {
+            final List<T> asList = new ArrayList<T>(list);
+            ExecutorService exec = Executors.newFixedThreadPool(numThreads);
+            final CountDownLatch latch = new CountDownLatch(asList.size());
+            try {
+                for (int i = 0; i < asList.size(); i++) {
+                    final int finalI = i;
+                    exec.submit(new Runnable() {
+                        public void run() {
+                            try {
+                                fn.call(asList.get(finalI));
+                            } catch (Exception e) {
+                                e.printStackTrace();
+                            } finally {
+                                latch.countDown();
+                            }
+                        }
+                    });
+                }
+                latch.await();
+            } catch (InterruptedException e) {
+                throw new RuntimeException(e);
+            } finally {
+                exec.shutdown();
+            }
+        }
+
+        static <T> void iterate(Iterator<T> iterator, int numThreads, int queueSize, final Procedure<T> fn) {
+            ExecutorService exec = Executors.newFixedThreadPool(numThreads);
+            ParallelForEach.BoundedExecutor boundedExec = new ParallelForEach.BoundedExecutor(exec, queueSize);
+            final CountDownLatch latch = new CountDownLatch(1);
+            final AtomicLong elemsToGo = new AtomicLong(1);
+            try {
+                while (iterator.hasNext()) {
+                    final T obj = iterator.next();
+                    elemsToGo.incrementAndGet();
+                    boundedExec.submitTask(new Runnable() {
+                        public void run() {
+                            try {
+                                fn.call(obj);
+                            } catch (Exception e) {
+                                e.printStackTrace();
+                            } finally {
+                                if (elemsToGo.decrementAndGet() == 0) {
+                                    latch.countDown();
+                                }
+                            }
+                        }
+                    });
+                }
+                if (elemsToGo.decrementAndGet() > 0) {
+                    latch.await();
+                }
+            } catch (InterruptedException e) {
+                throw new RuntimeException(e);
+            } finally {
+                exec.shutdown();
+            }
+        }
+    }
+}
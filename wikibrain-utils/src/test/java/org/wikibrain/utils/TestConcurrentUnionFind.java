@@ -0,0 +1,72 @@
+package org.wikibrain.utils;
+
+import org.junit.Test;
+
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+/**
+ * @author Shilad Sen
+ */
+public class TestConcurrentUnionFind {
+    @Test
+    public void testSimple() {
+        ConcurrentUnionFind uf = new ConcurrentUnionFind(10);
+        assertEquals(10, uf.size());
+        assertTrue(uf.union(3, 7));
+        assertTrue(uf.union(7, 9));
+        assertFalse(uf.union(9, 3));
+        assertTrue(uf.sameSet(3, 9));
+        assertFalse(uf.sameSet(3, 4));
+        assertEquals(3, uf.find(9));
+        int roots[] = uf.getRoots();
+        assertEquals(3, roots[7]);
+        assertEquals(4, roots[4]);
+    }
+
+    @Test
+    public void testParallel() {
+        final int n = 100000;
+        final int edges[][] = new int[200][];
+        Random random = new Random(1);
+        for (int i = 0; i < edges.length; i++) {
+            edges[i] = new int[400];
+            for (int j = 0; j < edges[i].length; j++) {
+                edges[i][j] = random.nextInt(n);
+            }
+        }
+
+        // Sequential reference
+        int expected[] = new int[n];
+        for (int i = 0; i < n; i++) expected[i] = i;
+        for (int edge[] : edges) {
+            for (int j = 0; j < edge.length; j += 2) {
+                int a = root(expected, edge[j]);
+                int b = root(expected, edge[j+1]);
+                expected[Math.max(a, b)] = Math.min(a, b);
+            }
+        }
+
+        final ConcurrentUnionFind uf = new ConcurrentUnionFind(n);
+        ParallelForEach.range(0, edges.length, 8, new Procedure<Integer>() {
+            @Override
+            public void call(Integer i) throws Exception {
+                for (int j = 0; j < edges[i].length; j += 2) {
+                    uf.union(edges[i][j], edges[i][j+1]);
+                }
+            }
+        });
+        int roots[] = uf.getRoots();
+        for (int i = 0; i < n; i++) {
+            assertEquals(root(expected, i), roots[i]);
+        }
+    }
+
+    private static int root(int parents[], int i) {
+        while (parents[i] != i) {
+            i = parents[i];
+        }
+        return i;
+    }
+}
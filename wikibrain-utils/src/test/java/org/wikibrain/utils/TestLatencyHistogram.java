@@ -0,0 +1,73 @@
+package org.wikibrain.utils;
+
+import org.junit.Test;
+
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+/**
+ * @author Shilad Sen
+ */
+public class TestLatencyHistogram {
+    @Test
+    public void testPercentiles() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        assertEquals(0.0, histogram.getPercentileMillis(0.5), 0.0);
+        for (int i = 0; i < 90; i++) {
+            histogram.record(TimeUnit.MILLISECONDS.toNanos(1));
+        }
+        for (int i = 0; i < 10; i++) {
+            histogram.record(TimeUnit.MILLISECONDS.toNanos(100));
+        }
+        assertEquals(100L, histogram.getCount());
+        assertEquals(10.9, histogram.getMeanMillis(), 0.001);
+
+        // Percentiles are the upper bounds of buckets in microseconds:
+        // 1000 is in [992, 1024) and 100000 in [98304, 102400)
+        assertEquals(1.024, histogram.getPercentileMillis(0.5), 0.0001);
+        assertEquals(1.024, histogram.getPercentileMillis(0.9), 0.0001);
+        assertEquals(102.4, histogram.getPercentileMillis(0.99), 0.0001);
+
+        histogram.clear();
+        assertEquals(0L, histogram.getCount());
+        assertEquals(0.0, histogram.getPercentileMillis(0.99), 0.0);
+    }
+
+    @Test
+    public void testPrecision() {
+        // Small latencies are exact
+        for (long micros = 0; micros < 16; micros++) {
+            LatencyHistogram histogram = new LatencyHistogram();
+            histogram.record(TimeUnit.MICROSECONDS.toNanos(micros));
+            assertEquals((micros + 1) / 1000.0, histogram.getPercentileMillis(0.5), 0.0);
+        }
+
+        // Larger latencies are bounded within 1/16 above
+        for (long micros = 16; micros < 100000000; micros = micros * 9 / 8 + 1) {
+            LatencyHistogram histogram = new LatencyHistogram();
+            histogram.record(TimeUnit.MICROSECONDS.toNanos(micros));
+            double p = histogram.getPercentileMillis(0.5) * 1000.0;
+            assertTrue(p > micros);
+            assertTrue(p <= micros * 17.0 / 16);
+        }
+
+        // A p99 that degrades from 2.1ms to 4.0ms is visible
+        LatencyHistogram histogram = new LatencyHistogram();
+        histogram.record(TimeUnit.MICROSECONDS.toNanos(2100));
+        assertEquals(2.176, histogram.getPercentileMillis(0.99), 0.0001);
+        histogram.clear();
+        histogram.record(TimeUnit.MICROSECONDS.toNanos(4000));
+        assertEquals(4.096, histogram.getPercentileMillis(0.99), 0.0001);
+    }
+
+    @Test
+    public void testExtremes() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        histogram.record(0);
+        histogram.record(-5);
+        histogram.record(Long.MAX_VALUE);
+        assertEquals(3L, histogram.getCount());
+        assertEquals(0.001, histogram.getPercentileMillis(0.5), 0.0);
+    }
+}
@@ -0,0 +1,73 @@
+package org.wikibrain.utils;
+
+import gnu.trove.map.TLongIntMap;
+import gnu.trove.map.hash.TLongIntHashMap;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+/**
+ * @author Shilad Sen
+ */
+public class TestMappedLongIntTable {
+    @Test
+    public void testPutGet() throws IOException {
+        File file = File.createTempFile("table", ".bin");
+        file.deleteOnExit();
+
+        Random random = new Random();
+        TLongIntMap actual = new TLongIntHashMap();
+        MappedLongIntTable table = MappedLongIntTable.create(file, 10000, -1);
+        for (int i = 0; i < 10000; i++) {
+            long key = (i % 10 == 0) ? random.nextInt(100) : random.nextLong();
+            int value = random.nextInt();
+            table.put(key, value);
+            actual.put(key, value);
+        }
+        table.put(0, 42);
+        actual.put(0, 42);
+        table.close();
+
+        MappedLongIntTable reopened = MappedLongIntTable.open(file, -1);
+        assertEquals(actual.size() - 1L, reopened.size());
+        for (long key : actual.keys()) {
+            assertEquals(actual.get(key), reopened.get(key));
+        }
+        for (int i = 0; i < 10000; i++) {
+            long key = random.nextLong();
+            if (!actual.containsKey(key)) {
+                assertEquals(-1, reopened.get(key));
+            }
+        }
+
+        long keys[] = actual.keys();
+        int values[] = new int[keys.length];
+        reopened.get(keys, values);
+        for (int i = 0; i < keys.length; i++) {
+            assertEquals(actual.get(keys[i]), values[i]);
+        }
+    }
+
+    @Test
+    public void testMissingZeroKey() throws IOException {
+        File file = File.createTempFile("table", ".bin");
+        file.deleteOnExit();
+        MappedLongIntTable table = MappedLongIntTable.create(file, 10, -1);
+        table.put(3, 4);
+        table.close();
+        assertEquals(-1, MappedLongIntTable.open(file, -1).get(0));
+        assertEquals(4, MappedLongIntTable.open(file, -1).get(3));
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void testReadOnly() throws IOException {
+        File file = File.createTempFile("table", ".bin");
+        file.deleteOnExit();
+        MappedLongIntTable.create(file, 10, -1).close();
+        MappedLongIntTable.open(file, -1).put(3, 4);
+    }
+}
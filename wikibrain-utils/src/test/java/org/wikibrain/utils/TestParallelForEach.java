@@ -2,11 +2,11 @@ package org.wikibrain.utils;
 
 import org.junit.Test;
 
-import java.util.AbstractList;
-import java.util.List;
+import java.util.*;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.atomic.AtomicLong;
 
-import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.*;
 
 /**
  * @author Shilad Sen
@@ -44,6 +44,155 @@ public class TestParallelForEach {
     }
 
 
+
+    @Test
+    public void testIntRange() {
+        final AtomicLong actual = new AtomicLong();
+        final int counts[] = new int[100000];
+        ParallelForEach.range(-50000, 50000, 7, new IntProcedure() {
+            @Override
+            public void call(int arg) throws Exception {
+                actual.addAndGet(arg);
+                synchronized (counts) {
+                    counts[arg + 50000]++;
+                }
+            }
+        });
+        assertEquals(-50000L, actual.get());
+        for (int c : counts) {
+            assertEquals(1, c);
+        }
+
+        // empty ranges
+        ParallelForEach.range(3, 3, new IntProcedure() {
+            @Override
+            public void call(int arg) throws Exception {
+                fail();
+            }
+        });
+    }
+
+    @Test
+    public void testLoopResults() {
+        List<Integer> input = new ArrayList<Integer>(range(0, 10000));
+        List<Integer> squares = ParallelForEach.loop(input, 5, new Function<Integer, Integer>() {
+            @Override
+            public Integer call(Integer arg) throws Exception {
+                if (arg % 1000 == 3) {
+                    throw new IllegalStateException("bad element " + arg);
+                }
+                return arg * arg;
+            }
+        });
+        assertEquals(input.size(), squares.size());
+        for (int i = 0; i < input.size(); i++) {
+            // failed elements are logged and left null
+            assertEquals((i % 1000 == 3) ? null : i * i, squares.get(i));
+        }
+
+        List<String> strings = ParallelForEach.range(5, 105, 3, new Function<Integer, String>() {
+            @Override
+            public String call(Integer arg) throws Exception {
+                return "" + arg;
+            }
+        });
+        assertEquals(100, strings.size());
+        assertEquals("5", strings.get(0));
+        assertEquals("104", strings.get(99));
+    }
+
+    @Test
+    public void testFailFast() {
+        final AtomicInteger calls = new AtomicInteger();
+        try {
+            ParallelForEach.range(0, 1000000, 4, new IntProcedure() {
+                @Override
+                public void call(int arg) throws Exception {
+                    calls.incrementAndGet();
+                    if (arg == 1000) {
+                        throw new java.io.IOException("failed on " + arg);
+                    }
+                }
+            });
+            fail();
+        } catch (RuntimeException e) {
+            assertTrue(e.getCause() instanceof java.io.IOException);
+            assertEquals("failed on 1000", e.getCause().getMessage());
+        }
+        assertTrue(calls.get() < 1000000);
+
+        calls.set(0);
+        try {
+            ParallelForEach.forEach(range(0, 1000000), 4, new Procedure<Integer>() {
+                @Override
+                public void call(Integer arg) throws Exception {
+                    calls.incrementAndGet();
+                    if (arg == 1000) {
+                        throw new IllegalArgumentException("failed on " + arg);
+                    }
+                }
+            });
+            fail();
+        } catch (IllegalArgumentException e) {
+            assertEquals("failed on 1000", e.getMessage());
+        }
+        assertTrue(calls.get() < 1000000);
+    }
+
+    @Test
+    public void testNested() {
+        final AtomicLong actual = new AtomicLong();
+        ParallelForEach.range(0, 100, 8, new IntProcedure() {
+            @Override
+            public void call(final int i) throws Exception {
+                ParallelForEach.range(0, 100, 8, new IntProcedure() {
+                    @Override
+                    public void call(int j) throws Exception {
+                        actual.addAndGet(i * 100 + j);
+                    }
+                });
+            }
+        });
+        assertEquals(10000L * 9999 / 2, actual.get());
+    }
+
+    @Test
+    public void testBackpressure() {
+        final int queueSize = 40;
+        final AtomicInteger pulled = new AtomicInteger();
+        final AtomicInteger processed = new AtomicInteger();
+        final AtomicInteger maxOutstanding = new AtomicInteger();
+        final Iterator<Integer> source = range(0, 20000).iterator();
+        Iterator<Integer> counting = new Iterator<Integer>() {
+            @Override
+            public boolean hasNext() {
+                return source.hasNext();
+            }
+
+            @Override
+            public Integer next() {
+                int outstanding = pulled.incrementAndGet() - processed.get();
+                synchronized (maxOutstanding) {
+                    maxOutstanding.set(Math.max(outstanding, maxOutstanding.get()));
+                }
+                return source.next();
+            }
+
+            @Override
+            public void remove() {
+                throw new UnsupportedOperationException();
+            }
+        };
+        ParallelForEach.iterate(counting, 4, queueSize, new Procedure<Integer>() {
+            @Override
+            public void call(Integer arg) throws Exception {
+                processed.incrementAndGet();
+            }
+        }, -1);
+        assertEquals(20000, processed.get());
+        assertTrue(maxOutstanding.get() <= queueSize);
+    }
+
     /**
      * @param begin inclusive
      * @param end exclusive
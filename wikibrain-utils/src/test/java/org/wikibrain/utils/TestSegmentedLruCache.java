@@ -0,0 +1,60 @@
+package org.wikibrain.utils;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * @author Shilad Sen
+ */
+public class TestSegmentedLruCache {
+    @Test
+    public void testSimple() {
+        SegmentedLruCache<Integer, String> cache = new SegmentedLruCache<Integer, String>(10, 1);
+        assertNull(cache.get(1));
+        cache.put(1, "one");
+        cache.put(2, "two");
+        assertEquals("one", cache.get(1));
+        assertEquals("two", cache.get(2));
+        assertEquals(2, cache.size());
+        assertEquals(2L, cache.getHits());
+        assertEquals(1L, cache.getMisses());
+        assertEquals(2.0 / 3, cache.getHitRate(), 0.0001);
+
+        cache.remove(1);
+        assertNull(cache.get(1));
+        cache.clear();
+        assertEquals(0, cache.size());
+        assertNull(cache.get(2));
+    }
+
+    @Test
+    public void testBounded() {
+        SegmentedLruCache<Integer, Integer> cache = new SegmentedLruCache<Integer, Integer>(100, 4);
+        for (int i = 0; i < 1000; i++) {
+            cache.put(i, i);
+            assertTrue(cache.size() <= 100);
+        }
+        assertEquals(100, cache.size());
+        assertEquals(900L, cache.getEvictions());
+    }
+
+    @Test
+    public void testScanResistance() {
+        SegmentedLruCache<Integer, Integer> cache = new SegmentedLruCache<Integer, Integer>(100, 1);
+
+        // A hot working set that is read more than once is protected
+        for (int i = 0; i < 50; i++) {
+            cache.put(i, i);
+            cache.get(i);
+        }
+
+        // A scan of one-off keys much larger than the cache
+        for (int i = 1000; i < 5000; i++) {
+            cache.put(i, i);
+        }
+        for (int i = 0; i < 50; i++) {
+            assertEquals(i, (int) cache.get(i));
+        }
+    }
+}
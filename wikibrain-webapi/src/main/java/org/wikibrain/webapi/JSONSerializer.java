@@ -1,7 +1,86 @@
 package org.wikibrain.webapi;
 
+import org.json.simple.JSONValue;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.util.ArrayDeque;
+import java.util.Deque;
+
 /**
+ * Writes a json document to a writer piece by piece, so large responses do not need
+ * to be built in memory. Values are serialized with json-simple.
+ *
+ * Example: beginObject().key("results").beginArray().value(r1).value(r2).endArray().endObject()
+ *
  * @author Shilad Sen
  */
 public class JSONSerializer {
+    private final Writer writer;
+
+    // One entry per open object or array: whether it already contains an element
+    private final Deque<Boolean> hasElements = new ArrayDeque<Boolean>();
+    private boolean afterKey = false;
+
+    public JSONSerializer(Writer writer) {
+        this.writer = writer;
+    }
+
+    public JSONSerializer beginObject() throws IOException {
+        beforeValue();
+        writer.write('{');
+        hasElements.push(false);
+        return this;
+    }
+
+    public JSONSerializer endObject() throws IOException {
+        hasElements.pop();
+        writer.write('}');
+        return this;
+    }
+
+    public JSONSerializer beginArray() throws IOException {
+        beforeValue();
+        writer.write('[');
+        hasElements.push(false);
+        return this;
+    }
+
+    public JSONSerializer endArray() throws IOException {
+        hasElements.pop();
+        writer.write(']');
+        return this;
+    }
+
+    public JSONSerializer key(String key) throws IOException {
+        beforeValue();
+        writer.write(JSONValue.toJSONString(key));
+        writer.write(':');
+        afterKey = true;
+        return this;
+    }
+
+    /**
+     * Writes a complete value: a map, list, string, number, boolean or null.
+     */
+    public JSONSerializer value(Object value) throws IOException {
+        beforeValue();
+        JSONValue.writeJSONString(value, writer);
+        return this;
+    }
+
+    public void flush() throws IOException {
+        writer.flush();
+    }
+
+    private void beforeValue() throws IOException {
+        if (afterKey) {
+            afterKey = false;
+        } else if (!hasElements.isEmpty()) {
+            if (hasElements.pop()) {
+                writer.write(',');
+            }
+            hasElements.push(true);
+        }
+    }
 }
@@ -0,0 +1,104 @@
+package org.wikibrain.webapi;
+
+import org.wikibrain.utils.SegmentedLruCache;
+
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Caches successful json responses of the server's endpoints.
+ *
+ * Responses are keyed by the endpoint and its parameters in sorted order, so requests
+ * that only differ in the order of their parameters share an entry. The cache holds at
+ * most maxEntries responses (evicted with {@link SegmentedLruCache}) and each response
+ * expires ttlMillis after it was cached.
+ *
+ * Cached responses are shared between requests and must not be modified.
+ *
+ * @author Shilad Sen
+ */
+public class ResponseCache {
+    private final SegmentedLruCache<String, Entry> cache;
+    private final long ttlMillis;
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+
+    public ResponseCache(int maxEntries, long ttlMillis) {
+        this.cache = new SegmentedLruCache<String, Entry>(maxEntries);
+        this.ttlMillis = ttlMillis;
+    }
+
+    /**
+     * Builds the cache key for a request. Parameters with empty values are ignored.
+     */
+    public static String makeKey(String target, Map<String, String> params) {
+        Map<String, String> sorted = new TreeMap<String, String>();
+        for (Map.Entry<String, String> entry : params.entrySet()) {
+            String value = entry.getValue();
+            if (value != null && !value.trim().isEmpty()) {
+                sorted.put(entry.getKey(), value.trim());
+            }
+        }
+        StringBuilder key = new StringBuilder(target);
+        char separator = '?';
+        for (Map.Entry<String, String> entry : sorted.entrySet()) {
+            key.append(separator).append(entry.getKey()).append('=').append(entry.getValue());
+            separator = '&';
+        }
+        return key.toString();
+    }
+
+    /**
+     * @return The cached response, or null if there is none or it expired.
+     */
+    public Map get(String key) {
+        Entry entry = cache.get(key);
+        if (entry != null && entry.expires < System.currentTimeMillis()) {
+            cache.remove(key);
+            entry = null;
+        }
+        if (entry == null) {
+            misses.incrementAndGet();
+            return null;
+        } else {
+            hits.incrementAndGet();
+            return entry.response;
+        }
+    }
+
+    public void put(String key, Map response) {
+        cache.put(key, new Entry(response, System.currentTimeMillis() + ttlMillis));
+    }
+
+    public void clear() {
+        cache.clear();
+    }
+
+    public int size() {
+        return cache.size();
+    }
+
+    public long getHits() {
+        return hits.get();
+    }
+
+    public long getMisses() {
+        return misses.get();
+    }
+
+    @Override
+    public String toString() {
+        return "ResponseCache{size=" + size() + ", hits=" + hits + ", misses=" + misses + "}";
+    }
+
+    private static class Entry {
+        private final Map response;
+        private final long expires;
+
+        Entry(Map response, long expires) {
+            this.response = response;
+            this.expires = expires;
+        }
+    }
+}
@@ -22,7 +22,11 @@ public class WebEntityParser {
 
     public WebEntityParser(Env env) throws ConfigurationException {
 //        this.conceptDao = env.getConfigurator().get(UniversalPageDao.class);
-        this.pageDao = env.getConfigurator().get(LocalPageDao.class);
+        this(env.getConfigurator().get(LocalPageDao.class));
+    }
+
+    public WebEntityParser(LocalPageDao pageDao) {
+        this.pageDao = pageDao;
     }
 
     public WebEntity extractEntity(WikiBrainWebRequest req) throws WikiBrainWebException, DaoException {
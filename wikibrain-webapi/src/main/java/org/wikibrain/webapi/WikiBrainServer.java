@@ -7,6 +7,7 @@ import org.eclipse.jetty.server.Server;
 import org.eclipse.jetty.server.ServerConnector;
 import org.eclipse.jetty.server.handler.AbstractHandler;
 import org.eclipse.jetty.util.thread.QueuedThreadPool;
+import org.json.simple.parser.JSONParser;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.wikibrain.conf.ConfigurationException;
@@ -14,6 +15,7 @@ import org.wikibrain.conf.DefaultOptionBuilder;
 import org.wikibrain.core.cmd.Env;
 import org.wikibrain.core.cmd.EnvBuilder;
 import org.wikibrain.core.dao.DaoException;
+import org.wikibrain.core.dao.LocalLinkDao;
 import org.wikibrain.core.dao.LocalPageDao;
 import org.wikibrain.core.lang.Language;
 import org.wikibrain.core.model.LocalLink;
@@ -23,48 +25,178 @@ import org.wikibrain.sr.SRMetric;
 import org.wikibrain.sr.SRResult;
 import org.wikibrain.sr.SRResultList;
 import org.wikibrain.sr.wikify.Wikifier;
+import org.wikibrain.utils.WpThreadUtils;
 
 import javax.servlet.ServletException;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 import java.io.IOException;
-import java.util.ArrayList;
-import java.util.HashMap;
-import java.util.List;
-import java.util.Map;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * @author Shilad Sen
  */
 public class WikiBrainServer extends AbstractHandler {
     private static final Logger LOG = LoggerFactory.getLogger(WikiBrainServer.class);
+    private static final String SR_METRIC = "milnewitten";
+
     private final Env env;
     private final LocalPageDao pageDao;
+    private final LocalLinkDao linkDao;
     private WebEntityParser entityParser;
 
+    /**
+     * SR metrics for every language the server supports, resolved at startup.
+     */
+    private final Map<Language, SRMetric> metrics;
+
+    /**
+     * Wikifiers for every language the server supports, resolved at startup.
+     */
+    private final Map<Language, Wikifier> wikifiers;
+
+    private volatile ResponseCache responseCache = new ResponseCache(10000, 60 * 60 * 1000);
+
+    private final ExecutorService batchExecutor;
+
+    /**
+     * Writes the request log, so requests do not wait for the logger.
+     * Log messages are dropped if the queue fills up.
+     */
+    private final ExecutorService logExecutor;
+
+    /**
+     * Maximum number of requests in a batch that are running or whose responses are waiting to be written.
+     */
+    private final int batchWindow;
+
     public WikiBrainServer(Env env) throws ConfigurationException {
+        this(env,
+             env.getConfigurator().get(LocalPageDao.class),
+             env.getConfigurator().get(LocalLinkDao.class),
+             loadMetrics(env),
+             loadWikifiers(env),
+             WpThreadUtils.getMaxThreads());
+    }
+
+    /**
+     * Creates a server without wikifiers.
+     * @see #WikiBrainServer(Env, LocalPageDao, LocalLinkDao, Map, Map, int)
+     */
+    public WikiBrainServer(Env env, LocalPageDao pageDao, LocalLinkDao linkDao, Map<Language, SRMetric> metrics, int batchThreads) {
+        this(env, pageDao, linkDao, metrics, Collections.<Language, Wikifier>emptyMap(), batchThreads);
+    }
+
+    /**
+     * @param env
+     * @param pageDao
+     * @param linkDao Source of PageRank values.
+     * @param metrics The SR metric for each supported language.
+     * @param wikifiers The wikifier for each language that supports /wikify.
+     * @param batchThreads Number of threads that execute the requests in batches.
+     */
+    public WikiBrainServer(Env env, LocalPageDao pageDao, LocalLinkDao linkDao, Map<Language, SRMetric> metrics, Map<Language, Wikifier> wikifiers, int batchThreads) {
         this.env = env;
-        this.entityParser = new WebEntityParser(env);
-        this.pageDao = env.getConfigurator().get(LocalPageDao.class);
+        this.pageDao = pageDao;
+        this.linkDao = linkDao;
+        this.entityParser = new WebEntityParser(pageDao);
+        this.metrics = Collections.unmodifiableMap(new HashMap<Language, SRMetric>(metrics));
+        this.wikifiers = Collections.unmodifiableMap(new HashMap<Language, Wikifier>(wikifiers));
+        this.batchWindow = batchThreads * 2;
+        this.batchExecutor = Executors.newFixedThreadPool(batchThreads, new DaemonThreadFactory("wikibrain-batch-"));
+        this.logExecutor = new ThreadPoolExecutor(1, 1, 0, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<Runnable>(10000),
+                new DaemonThreadFactory("wikibrain-request-log-"),
+                new ThreadPoolExecutor.DiscardPolicy());
+    }
+
+    /**
+     * Resolves the SR metric of every language in the environment.
+     */
+    public static Map<Language, SRMetric> loadMetrics(Env env) throws ConfigurationException {
+        Map<Language, SRMetric> metrics = new HashMap<Language, SRMetric>();
+        for (Language lang : env.getLanguages()) {
+            metrics.put(lang, env.getConfigurator().get(SRMetric.class, SR_METRIC, "language", lang.getLangCode()));
+        }
+        return metrics;
+    }
+
+    /**
+     * Resolves the wikifier of every language in the environment.
+     * Languages whose wikifier cannot be created are logged and do not support /wikify.
+     */
+    public static Map<Language, Wikifier> loadWikifiers(Env env) {
+        Map<Language, Wikifier> wikifiers = new HashMap<Language, Wikifier>();
+        for (Language lang : env.getLanguages()) {
+            try {
+                wikifiers.put(lang, env.getConfigurator().get(Wikifier.class, "websail", "language", lang.getLangCode()));
+            } catch (ConfigurationException e) {
+                LOG.warn("no wikifier for language " + lang.getLangCode() + ": " + e.getMessage());
+            }
+        }
+        return wikifiers;
+    }
+
+    /**
+     * Sets the size and time to live of the response cache.
+     * A size of 0 disables the cache.
+     */
+    public void setResponseCache(int maxEntries, long ttlMillis) {
+        this.responseCache = (maxEntries > 0) ? new ResponseCache(maxEntries, ttlMillis) : null;
+    }
+
+    public ResponseCache getResponseCache() {
+        return responseCache;
     }
 
     @Override
     public void handle(String target, Request request, HttpServletRequest httpServletRequest, HttpServletResponse httpServletResponse) throws IOException, ServletException {
         WikiBrainWebRequest req = new WikiBrainWebRequest(target, request, httpServletRequest, httpServletResponse);
-        LOG.info("received request for {}?{}", request.getRequestURL(), request.getQueryString());
+        logRequest(request.getRequestURL().toString(), request.getQueryString());
 
+        if (target.equals("/batch")) {
+            try {
+                doBatch(req);
+            } catch (WikiBrainWebException e) {
+                req.writeError(e);
+            }
+        } else {
+            dispatch(req);
+        }
+    }
+
+    /**
+     * Executes a request to any endpoint except /batch.
+     * @return false if the request's target is not a known endpoint.
+     */
+    private boolean dispatch(WikiBrainWebRequest req) {
+        String target = req.getTarget();
+        ResponseCache cache = responseCache;
+        String cacheKey = null;
+        if (cache != null) {
+            cacheKey = ResponseCache.makeKey(target, req.getParams());
+            Map cached = cache.get(cacheKey);
+            if (cached != null) {
+                req.writeJsonResponse(cached);
+                return true;
+            }
+        }
         try {
             // TODO: add logging
             if (target.equals("/similarity")) {
                 doSimilarity(req);
             } else if (target.equals("/cosimilarity")) {
-                throw new UnsupportedOperationException();
+                doCosimilarity(req);
             } else if (target.equals("/mostSimilar")) {
                 doMostSimilar(req);
             } else if (target.equals("/wikify")) {
                 doWikify(req);
-            } else if (target.equals("/pageRank")) {
+            } else if (target.equals("/pagerank") || target.equals("/pageRank")) {
                 doPageRank(req);
+            } else {
+                return false;
             }
         } catch (WikiBrainWebException e) {
             req.writeError(e);
@@ -73,6 +205,50 @@ public class WikiBrainServer extends AbstractHandler {
         } catch (DaoException e) {
             req.writeError(e);
         }
+        Map response = req.getJsonResponse();
+        if (cacheKey != null && response != null && Boolean.TRUE.equals(response.get("success"))) {
+            cache.put(cacheKey, response);
+        }
+        return true;
+    }
+
+    private SRMetric getSRMetric(Language lang) {
+        SRMetric sr = metrics.get(lang);
+        if (sr == null) {
+            throw new WikiBrainWebException("No SR metric for language " + lang.getLangCode());
+        }
+        return sr;
+    }
+
+    private Wikifier getWikifier(Language lang) {
+        Wikifier wf = wikifiers.get(lang);
+        if (wf == null) {
+            throw new WikiBrainWebException("No wikifier for language " + lang.getLangCode());
+        }
+        return wf;
+    }
+
+    /**
+     * Returns the titles of pages, looking them up in one call to the page dao.
+     * Pages that do not exist are titled "Unknown".
+     */
+    private Map<Integer, String> getTitles(Language lang, Collection<Integer> pageIds) throws DaoException {
+        Map<Integer, String> titles = new HashMap<Integer, String>();
+        Map<Integer, LocalPage> pages = pageIds.isEmpty() ? null : pageDao.getByIds(lang, pageIds);
+        for (Integer id : pageIds) {
+            LocalPage page = (pages == null) ? null : pages.get(id);
+            titles.put(id, page == null ? "Unknown" : page.getTitle().getCanonicalTitle());
+        }
+        return titles;
+    }
+
+    private void logRequest(final String url, final String query) {
+        logExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                LOG.info("received request for {}?{}", url, query);
+            }
+        });
     }
 
     private void doSimilarity(WikiBrainWebRequest req) throws ConfigurationException, DaoException {
@@ -84,7 +260,7 @@ public class WikiBrainServer extends AbstractHandler {
         }
         WebEntity entity1 = entities.get(0);
         WebEntity entity2 = entities.get(1);
-        SRMetric sr = env.getConfigurator().get(SRMetric.class, "milnewitten", "language", lang.getLangCode());
+        SRMetric sr = getSRMetric(lang);
         SRResult r = null;
         switch (entity1.getType()) {
             case ARTICLE_ID: case TITLE:
@@ -100,11 +276,167 @@ public class WikiBrainServer extends AbstractHandler {
         req.writeJsonResponse("score", sim, "entity1", entity1.toJson(), "entity2", entity2.toJson());
     }
 
+    /**
+     * Computes the similarity between every pair of entities in a list.
+     * The response contains a square matrix whose rows and columns follow the order of the list.
+     */
+    private void doCosimilarity(WikiBrainWebRequest req) throws ConfigurationException, DaoException {
+        Language lang = req.getLanguage();
+        List<WebEntity> entities = entityParser.extractEntityList(req);
+        SRMetric sr = getSRMetric(lang);
+        double matrix[][];
+        WebEntity.Type type = entities.get(0).getType();
+        switch (type) {
+            case ARTICLE_ID: case TITLE:
+                int ids[] = new int[entities.size()];
+                for (int i = 0; i < ids.length; i++) {
+                    ids[i] = entities.get(i).getArticleId();
+                }
+                matrix = sr.cosimilarity(ids);
+                break;
+            case PHRASE:
+                String phrases[] = new String[entities.size()];
+                for (int i = 0; i < phrases.length; i++) {
+                    phrases[i] = entities.get(i).getPhrase();
+                }
+                matrix = sr.cosimilarity(phrases);
+                break;
+            default:
+                throw new WikiBrainWebException("Unsupported entity type: " + type);
+        }
+        List jsonMatrix = new ArrayList();
+        for (double row[] : matrix) {
+            List jsonRow = new ArrayList();
+            for (double sim : row) {
+                jsonRow.add(Double.isNaN(sim) || Double.isInfinite(sim) ? null : sim);
+            }
+            jsonMatrix.add(jsonRow);
+        }
+        List jsonEntities = new ArrayList();
+        for (WebEntity entity : entities) {
+            jsonEntities.add(entity.toJson());
+        }
+        req.writeJsonResponse("matrix", jsonMatrix, "entities", jsonEntities);
+    }
+
+    /**
+     * Executes a json array of requests to other endpoints posted in the body of the request.
+     * Each request is an object with an "endpoint" (for example "similarity") and the
+     * endpoint's parameters.
+     *
+     * The requests run concurrently on the batch executor. Their responses are streamed
+     * back in the order of the requests as a "results" array, and at most batchWindow
+     * responses are held in memory at once. A failed request does not stop the batch;
+     * its response describes the error like the response of a single failed request.
+     * If the server is interrupted, the error is the last element of the results.
+     */
+    private void doBatch(WikiBrainWebRequest req) throws IOException {
+        List<WikiBrainWebRequest> requests = parseBatch(req);
+        LinkedList<Future<Map>> pending = new LinkedList<Future<Map>>();
+        try {
+            JSONSerializer json = req.writeJsonStream();
+            json.key("results").beginArray();
+            int next = 0;
+            for (int i = 0; i < requests.size(); i++) {
+                while (next < requests.size() && next < i + batchWindow) {
+                    pending.add(batchExecutor.submit(makeBatchTask(requests.get(next++))));
+                }
+                Map result;
+                try {
+                    result = getBatchResult(pending.removeFirst());
+                } catch (WikiBrainWebException e) {
+                    // The response has started, so the error ends the results rather than replacing them
+                    json.value(errorResponse(e));
+                    break;
+                }
+                json.value(result);
+                json.flush();
+            }
+            json.endArray();
+            json.endObject();
+            json.flush();
+        } finally {
+            // the client may have gone away
+            for (Future<Map> f : pending) {
+                f.cancel(true);
+            }
+        }
+    }
+
+    private List<WikiBrainWebRequest> parseBatch(WikiBrainWebRequest req) throws IOException {
+        Object parsed;
+        try {
+            parsed = new JSONParser().parse(req.getBodyReader());
+        } catch (org.json.simple.parser.ParseException e) {
+            throw new WikiBrainWebException("Batch body is not valid json: " + e);
+        }
+        if (!(parsed instanceof List)) {
+            throw new WikiBrainWebException("Batch body must be a json array of requests");
+        }
+        List<WikiBrainWebRequest> requests = new ArrayList<WikiBrainWebRequest>();
+        for (Object o : (List) parsed) {
+            if (!(o instanceof Map)) {
+                throw new WikiBrainWebException("Batch requests must be json objects: " + o);
+            }
+            Map<String, String> params = new HashMap<String, String>();
+            for (Object entry : ((Map) o).entrySet()) {
+                Map.Entry e = (Map.Entry) entry;
+                params.put(e.getKey().toString(), e.getValue() == null ? null : e.getValue().toString());
+            }
+            String endpoint = params.remove("endpoint");
+            if (endpoint == null) {
+                throw new WikiBrainWebException("Batch request is missing an endpoint: " + o);
+            }
+            requests.add(new WikiBrainWebRequest(endpoint.startsWith("/") ? endpoint : "/" + endpoint, params));
+        }
+        return requests;
+    }
+
+    private Callable<Map> makeBatchTask(final WikiBrainWebRequest req) {
+        return new Callable<Map>() {
+            @Override
+            public Map call() throws Exception {
+                try {
+                    if (!dispatch(req)) {
+                        throw new WikiBrainWebException("Unknown endpoint: " + req.getTarget());
+                    }
+                } catch (Exception e) {
+                    req.writeError(e);
+                }
+                if (req.getJsonResponse() == null) {
+                    req.writeError(new WikiBrainWebException("Endpoint " + req.getTarget() + " did not respond"));
+                }
+                return req.getJsonResponse();
+            }
+        };
+    }
+
+    private Map getBatchResult(Future<Map> future) {
+        try {
+            return future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new WikiBrainWebException(e);
+        } catch (ExecutionException e) {
+            // only errors escape the task
+            return errorResponse(e);
+        }
+    }
+
+    /**
+     * @return The json response of a request that failed with the exception.
+     */
+    private static Map errorResponse(Exception e) {
+        WikiBrainWebRequest failed = new WikiBrainWebRequest("/batch", new HashMap<String, String>());
+        failed.writeError(e);
+        return failed.getJsonResponse();
+    }
+
     private void doMostSimilar(WikiBrainWebRequest req) throws DaoException, ConfigurationException {
         Language lang = req.getLanguage();
         WebEntity entity = entityParser.extractEntity(req);
         int n = Integer.valueOf(req.getParam("n", "10"));
-        SRMetric sr = env.getConfigurator().get(SRMetric.class, "milnewitten", "language", lang.getLangCode());
+        SRMetric sr = getSRMetric(lang);
         SRResultList results;
         switch (entity.getType()) {
             case ARTICLE_ID: case TITLE:
@@ -116,53 +448,165 @@ public class WikiBrainServer extends AbstractHandler {
             default:
                 throw new WikiBrainWebException("Unsupported entity type: " + entity.getType());
         }
+        List<Integer> ids = new ArrayList<Integer>();
+        for (SRResult r : results) {
+            ids.add(r.getId());
+        }
+        Map<Integer, String> titles = getTitles(lang, ids);
         List jsonResults = new ArrayList();
         for (SRResult r : results) {
-            LocalPage page = pageDao.getById(lang, r.getId());
             Map obj = new HashMap();
             obj.put("articleId", r.getId());
             obj.put("score", r.getScore());
             obj.put("lang", lang.getLangCode());
-            obj.put("title", page == null ? "Unknown" : page.getTitle().getCanonicalTitle());
+            obj.put("title", titles.get(r.getId()));
             jsonResults.add(obj);
         }
         req.writeJsonResponse("results", jsonResults);
     }
 
+    /**
+     * Returns the PageRank of the entities in the request (articleId, articleIds, title or titles).
+     * Without entities, returns the n (default 10) pages with the highest PageRank.
+     */
     private void doPageRank(WikiBrainWebRequest req) throws ConfigurationException, DaoException {
+        Language lang = req.getLanguage();
+        boolean single = false;
+        boolean multiple = false;
+        for (WebEntity.Type t : WebEntity.Type.values()) {
+            single |= req.hasParam(t.toString());
+            multiple |= req.hasParam(t.toPluralString());
+        }
+        if (single && multiple) {
+            throw new WikiBrainWebException("PageRank requires either one entity or a list of entities");
+        }
 
+        int ids[];
+        if (single || multiple) {
+            List<WebEntity> entities = single
+                    ? Arrays.asList(entityParser.extractEntity(req))
+                    : entityParser.extractEntityList(req);
+            ids = new int[entities.size()];
+            for (int i = 0; i < ids.length; i++) {
+                WebEntity entity = entities.get(i);
+                if (entity.getType() != WebEntity.Type.ARTICLE_ID && entity.getType() != WebEntity.Type.TITLE) {
+                    throw new WikiBrainWebException("Unsupported entity type: " + entity.getType());
+                }
+                ids[i] = entity.getArticleId();
+            }
+        } else {
+            int n = Integer.valueOf(req.getParam("n", "10"));
+            ids = getTopPageRankIds(lang, n);
+        }
+
+        double ranks[];
+        try {
+            ranks = linkDao.getPageRanks(lang, ids);
+        } catch (UnsupportedOperationException e) {
+            throw new WikiBrainWebException("PageRank is not supported by the link dao");
+        }
+        List<Integer> idList = new ArrayList<Integer>();
+        for (int id : ids) {
+            idList.add(id);
+        }
+        Map<Integer, String> titles = getTitles(lang, idList);
+        List jsonResults = new ArrayList();
+        for (int i = 0; i < ids.length; i++) {
+            Map obj = new HashMap();
+            obj.put("articleId", ids[i]);
+            obj.put("pageRank", ranks[i]);
+            obj.put("lang", lang.getLangCode());
+            obj.put("title", titles.get(ids[i]));
+            jsonResults.add(obj);
+        }
+        req.writeJsonResponse("results", jsonResults);
     }
 
-    private void doWikify(WikiBrainWebRequest req) throws ConfigurationException, DaoException {
+    private int[] getTopPageRankIds(Language lang, int n) throws DaoException {
+        try {
+            return linkDao.getTopPageRankIds(lang, n);
+        } catch (UnsupportedOperationException e) {
+            throw new WikiBrainWebException("PageRank is not supported by the link dao");
+        }
+    }
+
+    private void doWikify(WikiBrainWebRequest req) throws DaoException {
         Language lang = req.getLanguage();
-        Wikifier wf = env.getConfigurator().get(Wikifier.class, "websail", "language", lang.getLangCode());
+        Wikifier wf = getWikifier(lang);
         String text = req.getParamOrDie("text");
+        List<LocalLink> links = wf.wikify(text);
+        List<Integer> ids = new ArrayList<Integer>();
+        for (LocalLink ll : links) {
+            ids.add(ll.getDestId());
+        }
+        Map<Integer, String> titles = getTitles(lang, ids);
         List jsonConcepts = new ArrayList();
-        for (LocalLink ll : wf.wikify(text)) {
-            LocalPage page = pageDao.getById(lang, ll.getDestId());
+        for (LocalLink ll : links) {
             Map obj = new HashMap();
             obj.put("index", ll.getLocation());
             obj.put("text", ll.getAnchorText());
             obj.put("lang", lang.getLangCode());
             obj.put("articleId", ll.getDestId());
-            obj.put("title", page == null ? "Unknown" : page.getTitle().getCanonicalTitle());
+            obj.put("title", titles.get(ll.getDestId()));
             jsonConcepts.add(obj);
         }
         req.writeJsonResponse("text", text, "references", jsonConcepts);
     }
 
+    @Override
+    protected void doStop() throws Exception {
+        batchExecutor.shutdownNow();
+        logExecutor.shutdown();
+        super.doStop();
+    }
+
+    private static class DaemonThreadFactory implements ThreadFactory {
+        private final String prefix;
+        private final AtomicInteger counter = new AtomicInteger();
+
+        DaemonThreadFactory(String prefix) {
+            this.prefix = prefix;
+        }
+
+        public Thread newThread(Runnable r) {
+            Thread t = new Thread(r, prefix + counter.incrementAndGet());
+            t.setDaemon(true);
+            return t;
+        }
+    }
+
     public static void main(String args[]) throws Exception {
         Options options = new Options();
         options.addOption(
                 new DefaultOptionBuilder()
                         .withLongOpt("port")
+                        .hasArg()
                         .withDescription("Server port number")
                         .create("p"));
         options.addOption(
                 new DefaultOptionBuilder()
                         .withLongOpt("listeners")
+                        .hasArg()
                         .withDescription("Size of listener queue")
                         .create("q"));
+        options.addOption(
+                new DefaultOptionBuilder()
+                        .withLongOpt("batch-threads")
+                        .hasArg()
+                        .withDescription("Number of threads executing the requests in batches")
+                        .create("b"));
+        options.addOption(
+                new DefaultOptionBuilder()
+                        .withLongOpt("cache-size")
+                        .hasArg()
+                        .withDescription("Maximum number of cached responses (0 disables the cache)")
+                        .create("c"));
+        options.addOption(
+                new DefaultOptionBuilder()
+                        .withLongOpt("cache-ttl")
+                        .hasArg()
+                        .withDescription("Seconds before a cached response expires")
+                        .create("t"));
 
         EnvBuilder.addStandardOptions(options);
 
@@ -181,7 +625,18 @@ public class WikiBrainServer extends AbstractHandler {
         int port = Integer.valueOf(cmd.getOptionValue("p", "8000"));
         int queueSize = Integer.valueOf(cmd.getOptionValue("q", "100"));
         Server server = new Server(new QueuedThreadPool(queueSize, 20));
-        server.setHandler(new WikiBrainServer(env));
+        int batchThreads = Integer.valueOf(cmd.getOptionValue("b", "" + WpThreadUtils.getMaxThreads()));
+        WikiBrainServer handler = new WikiBrainServer(
+                env,
+                env.getConfigurator().get(LocalPageDao.class),
+                env.getConfigurator().get(LocalLinkDao.class),
+                loadMetrics(env),
+                loadWikifiers(env),
+                batchThreads);
+        handler.setResponseCache(
+                Integer.valueOf(cmd.getOptionValue("c", "10000")),
+                Long.valueOf(cmd.getOptionValue("t", "3600")) * 1000);
+        server.setHandler(handler);
         ServerConnector sc = new ServerConnector(server);
         sc.setPort(port);
         server.setConnectors(new Connector[]{sc});
@@ -8,10 +8,18 @@ import org.wikibrain.core.lang.Language;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 import java.io.IOException;
+import java.io.Reader;
 import java.util.HashMap;
 import java.util.Map;
 
 /**
+ * A request to one of the server's endpoints.
+ *
+ * Requests either come from Jetty and write their response to the http response,
+ * or are parts of a batch whose parameters are given as a map and whose response
+ * is only kept until the batch writes it. Either way the response is available
+ * from {@link #getJsonResponse()} so it can be cached.
+ *
  * @author Shilad Sen
  */
 public class WikiBrainWebRequest {
@@ -19,16 +27,50 @@ public class WikiBrainWebRequest {
     private final Request request;
     private final HttpServletRequest httpServletRequest;
     private final HttpServletResponse httpServletResponse;
+    private final Map<String, String> params;
+    private Map jsonResponse;
 
     public WikiBrainWebRequest(String target, Request request, HttpServletRequest httpServletRequest, HttpServletResponse httpServletResponse) {
         this.target = target;
         this.request = request;
         this.httpServletRequest = httpServletRequest;
         this.httpServletResponse = httpServletResponse;
+        this.params = null;
+    }
+
+    /**
+     * Creates a request that is part of a batch.
+     * @param target The endpoint, for example "/similarity"
+     * @param params The request parameters
+     */
+    public WikiBrainWebRequest(String target, Map<String, String> params) {
+        this.target = target;
+        this.request = null;
+        this.httpServletRequest = null;
+        this.httpServletResponse = null;
+        this.params = params;
+    }
+
+    public String getTarget() {
+        return target;
     }
 
     public String getParam(String key) {
-        return request.getParameter(key);
+        return (params == null) ? request.getParameter(key) : params.get(key);
+    }
+
+    /**
+     * @return All parameters of the request, with the first value of repeated parameters.
+     */
+    public Map<String, String> getParams() {
+        if (params != null) {
+            return params;
+        }
+        Map<String, String> result = new HashMap<String, String>();
+        for (Object key : request.getParameterMap().keySet()) {
+            result.put((String) key, request.getParameter((String) key));
+        }
+        return result;
     }
 
     public String getParam(String key, String defaultValue) {
@@ -86,6 +128,10 @@ public class WikiBrainWebRequest {
         if (!object.containsKey("message")) {
             object.put("message", "");
         }
+        jsonResponse = object;
+        if (httpServletResponse == null) {
+            return;
+        }
         httpServletResponse.setContentType("application/json;charset=utf-8");
         httpServletResponse.setStatus(HttpServletResponse.SC_OK);
         try {
@@ -96,6 +142,36 @@ public class WikiBrainWebRequest {
         request.setHandled(true);
     }
 
+    /**
+     * Starts a successful json response whose contents are written by the caller
+     * as they become available. The caller must close the top level object.
+     * @return A serializer that is inside the top level object.
+     */
+    public JSONSerializer writeJsonStream() throws IOException {
+        httpServletResponse.setContentType("application/json;charset=utf-8");
+        httpServletResponse.setStatus(HttpServletResponse.SC_OK);
+        request.setHandled(true);
+        JSONSerializer serializer = new JSONSerializer(httpServletResponse.getWriter());
+        serializer.beginObject();
+        serializer.key("success").value(true);
+        serializer.key("message").value("");
+        return serializer;
+    }
+
+    /**
+     * @return A reader for the body of the request.
+     */
+    public Reader getBodyReader() throws IOException {
+        return request.getReader();
+    }
+
+    /**
+     * @return The json response written by the request, or null.
+     */
+    public Map getJsonResponse() {
+        return jsonResponse;
+    }
+
     public void writeError(Exception e) {
         Map<String, Object> errorObj = new HashMap<String, Object>();
         errorObj.put("message", e.getMessage());
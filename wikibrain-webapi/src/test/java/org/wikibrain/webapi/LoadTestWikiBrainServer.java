@@ -0,0 +1,230 @@
+package org.wikibrain.webapi;
+
+import org.apache.commons.cli.*;
+import org.apache.commons.io.IOUtils;
+import org.eclipse.jetty.server.Server;
+import org.eclipse.jetty.server.ServerConnector;
+import org.wikibrain.conf.DefaultOptionBuilder;
+import org.wikibrain.utils.LatencyHistogram;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.*;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Sends a mix of similarity, mostSimilar and cosimilarity requests to a server from many
+ * threads and reports the throughput and latency percentiles of each endpoint.
+ *
+ * Without a url, the load test starts an embedded server backed by the in-memory metric
+ * of {@link TestWikiBrainServer}, which measures the overhead of the server itself.
+ * With a url, it runs against a real server, which must support the requested language.
+ *
+ * Article ids are drawn uniformly from a range whose size controls the cache hit rate.
+ * Latencies of the warmup period are discarded; the others are recorded in histograms whose
+ * memory does not grow with the number of requests. Reported percentiles are at most 6.25%
+ * above the true latencies (exact below 16 microseconds).
+ *
+ * @author Shilad Sen
+ */
+public class LoadTestWikiBrainServer {
+    private static final String ENDPOINTS[] = { "similarity", "mostSimilar", "cosimilarity" };
+    private static final double ENDPOINT_WEIGHTS[] = { 0.7, 0.2, 0.1 };
+
+    private final String baseUrl;
+    private final String lang;
+    private final int firstId;
+    private final int numIds;
+
+    public LoadTestWikiBrainServer(String baseUrl, String lang, int firstId, int numIds) {
+        this.baseUrl = baseUrl;
+        this.lang = lang;
+        this.firstId = firstId;
+        this.numIds = numIds;
+    }
+
+    /**
+     * Runs the load test and prints a report.
+     */
+    public void run(int numThreads, final long warmupMillis, final long durationMillis) throws InterruptedException {
+        final long start = System.currentTimeMillis();
+        final long measureStart = start + warmupMillis;
+        final long end = measureStart + durationMillis;
+        final AtomicLong errors = new AtomicLong();
+        final LatencyHistogram latencies[] = new LatencyHistogram[ENDPOINTS.length];
+        for (int e = 0; e < latencies.length; e++) {
+            latencies[e] = new LatencyHistogram();
+        }
+        final LatencyHistogram all = new LatencyHistogram();
+
+        List<Thread> threads = new ArrayList<Thread>();
+        for (int i = 0; i < numThreads; i++) {
+            final Random random = new Random(i);
+            threads.add(new Thread("load-" + i) {
+                @Override
+                public void run() {
+                    while (System.currentTimeMillis() < end) {
+                        int e = pickEndpoint(random);
+                        long before = System.nanoTime();
+                        boolean ok = send(makeQuery(e, random));
+                        long elapsed = System.nanoTime() - before;
+                        if (System.currentTimeMillis() >= measureStart) {
+                            latencies[e].record(elapsed);
+                            all.record(elapsed);
+                            if (!ok) {
+                                errors.incrementAndGet();
+                            }
+                        }
+                    }
+                }
+            });
+        }
+        for (Thread t : threads) {
+            t.start();
+        }
+        for (Thread t : threads) {
+            t.join();
+        }
+
+        System.out.println(String.format("%d threads, %.1f seconds, %d errors",
+                numThreads, durationMillis / 1000.0, errors.get()));
+        System.out.println(String.format("%-14s %8s %10s %8s %8s %8s %8s",
+                "endpoint", "requests", "req/sec", "mean ms", "p50 ms", "p90 ms", "p99 ms"));
+        for (int e = 0; e < ENDPOINTS.length; e++) {
+            report(ENDPOINTS[e], latencies[e], durationMillis);
+        }
+        report("all", all, durationMillis);
+    }
+
+    private static int pickEndpoint(Random random) {
+        double r = random.nextDouble();
+        for (int i = 0; i < ENDPOINT_WEIGHTS.length - 1; i++) {
+            r -= ENDPOINT_WEIGHTS[i];
+            if (r < 0) {
+                return i;
+            }
+        }
+        return ENDPOINT_WEIGHTS.length - 1;
+    }
+
+    private String makeQuery(int endpoint, Random random) {
+        String name = ENDPOINTS[endpoint];
+        if (name.equals("similarity")) {
+            return "/similarity?lang=" + lang + "&articleIds=" + randomId(random) + "%7C" + randomId(random);
+        } else if (name.equals("mostSimilar")) {
+            return "/mostSimilar?lang=" + lang + "&n=10&articleId=" + randomId(random);
+        } else {
+            StringBuilder ids = new StringBuilder();
+            for (int i = 0; i < 5; i++) {
+                if (i > 0) ids.append("%7C");
+                ids.append(randomId(random));
+            }
+            return "/cosimilarity?lang=" + lang + "&articleIds=" + ids;
+        }
+    }
+
+    private int randomId(Random random) {
+        return firstId + random.nextInt(numIds);
+    }
+
+    /**
+     * @return true if the server responded successfully.
+     */
+    private boolean send(String query) {
+        try {
+            HttpURLConnection conn = (HttpURLConnection) new URL(baseUrl + query).openConnection();
+            InputStream in = conn.getInputStream();
+            try {
+                String body = IOUtils.toString(in, "UTF-8");
+                return conn.getResponseCode() == 200 && body.contains("\"success\":true");
+            } finally {
+                in.close();
+            }
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Percentiles are the upper bounds of the histogram buckets that contain them, which
+     * are at most 1/16 above the latencies in the bucket.
+     */
+    private static void report(String name, LatencyHistogram latencies, long durationMillis) {
+        long n = latencies.getCount();
+        if (n == 0) {
+            System.out.println(String.format("%-14s %8d", name, 0));
+            return;
+        }
+        System.out.println(String.format("%-14s %8d %10.1f %8.2f %8.2f %8.2f %8.2f",
+                name,
+                n,
+                n * 1000.0 / durationMillis,
+                latencies.getMeanMillis(),
+                latencies.getPercentileMillis(0.50),
+                latencies.getPercentileMillis(0.90),
+                latencies.getPercentileMillis(0.99)));
+    }
+
+    public static void main(String args[]) throws Exception {
+        Options options = new Options();
+        options.addOption(new DefaultOptionBuilder().withLongOpt("url").hasArg()
+                .withDescription("Url of the server (default: start an embedded server)").create("u"));
+        options.addOption(new DefaultOptionBuilder().withLongOpt("lang").hasArg()
+                .withDescription("Language code of the requests (default: simple)").create("l"));
+        options.addOption(new DefaultOptionBuilder().withLongOpt("threads").hasArg()
+                .withDescription("Number of concurrent clients (default: 16)").create("t"));
+        options.addOption(new DefaultOptionBuilder().withLongOpt("seconds").hasArg()
+                .withDescription("Seconds to measure (default: 30)").create("s"));
+        options.addOption(new DefaultOptionBuilder().withLongOpt("warmup").hasArg()
+                .withDescription("Seconds to warm up before measuring (default: 5)").create("w"));
+        options.addOption(new DefaultOptionBuilder().withLongOpt("first-id").hasArg()
+                .withDescription("Smallest article id in requests (default: 1000)").create("f"));
+        options.addOption(new DefaultOptionBuilder().withLongOpt("ids").hasArg()
+                .withDescription("Number of distinct article ids in requests (default: 100000)").create("n"));
+        options.addOption(new DefaultOptionBuilder().withLongOpt("no-cache")
+                .withDescription("Disable the response cache of the embedded server").create("c"));
+
+        CommandLine cmd;
+        try {
+            cmd = new PosixParser().parse(options, args);
+        } catch (ParseException e) {
+            System.err.println("Invalid option usage: " + e.getMessage());
+            new HelpFormatter().printHelp("LoadTestWikiBrainServer", options);
+            return;
+        }
+
+        int numThreads = Integer.valueOf(cmd.getOptionValue("t", "16"));
+        Server server = null;
+        WikiBrainServer handler = null;
+        String url = cmd.getOptionValue("u");
+        if (url == null) {
+            handler = TestWikiBrainServer.makeServer(numThreads);
+            if (cmd.hasOption("c")) {
+                handler.setResponseCache(0, 0);
+            }
+            server = new Server(0);
+            server.setHandler(handler);
+            server.start();
+            url = "http://localhost:" + ((ServerConnector) server.getConnectors()[0]).getLocalPort();
+        }
+
+        LoadTestWikiBrainServer test = new LoadTestWikiBrainServer(
+                url,
+                cmd.getOptionValue("l", "simple"),
+                Integer.valueOf(cmd.getOptionValue("f", "1000")),
+                Integer.valueOf(cmd.getOptionValue("n", "100000")));
+        test.run(numThreads,
+                Long.valueOf(cmd.getOptionValue("w", "5")) * 1000,
+                Long.valueOf(cmd.getOptionValue("s", "30")) * 1000);
+
+        if (server != null) {
+            if (handler.getResponseCache() != null) {
+                System.out.println(handler.getResponseCache());
+            }
+            server.stop();
+            TestWikiBrainServer.deleteLinkDirs();
+        }
+    }
+}
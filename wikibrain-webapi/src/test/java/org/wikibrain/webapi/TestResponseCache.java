@@ -0,0 +1,57 @@
+package org.wikibrain.webapi;
+
+import org.junit.Test;
+
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import static org.junit.Assert.*;
+
+/**
+ * @author Shilad Sen
+ */
+public class TestResponseCache {
+
+    @Test
+    public void testKey() {
+        Map<String, String> params1 = new LinkedHashMap<String, String>();
+        params1.put("lang", "simple");
+        params1.put("articleIds", "1|2");
+        params1.put("n", "");
+        Map<String, String> params2 = new LinkedHashMap<String, String>();
+        params2.put("articleIds", " 1|2 ");
+        params2.put("lang", "simple");
+
+        assertEquals("/similarity?articleIds=1|2&lang=simple", ResponseCache.makeKey("/similarity", params1));
+        assertEquals(ResponseCache.makeKey("/similarity", params1), ResponseCache.makeKey("/similarity", params2));
+        assertFalse(ResponseCache.makeKey("/similarity", params1).equals(ResponseCache.makeKey("/cosimilarity", params1)));
+        assertEquals("/pageRank", ResponseCache.makeKey("/pageRank", new HashMap<String, String>()));
+    }
+
+    @Test
+    public void testExpiration() throws InterruptedException {
+        ResponseCache cache = new ResponseCache(100, 50);
+        Map response = new HashMap();
+        cache.put("a", response);
+        assertSame(response, cache.get("a"));
+        assertNull(cache.get("b"));
+        assertEquals(1, cache.getHits());
+        assertEquals(1, cache.getMisses());
+
+        Thread.sleep(100);
+        assertNull(cache.get("a"));
+        assertEquals(0, cache.size());
+        assertEquals(2, cache.getMisses());
+    }
+
+    @Test
+    public void testBounded() {
+        ResponseCache cache = new ResponseCache(100, 60000);
+        for (int i = 0; i < 1000; i++) {
+            cache.put("key" + i, new HashMap());
+        }
+        assertTrue(cache.size() <= 100);
+        assertNotNull(cache.get("key999"));
+    }
+}
@@ -0,0 +1,386 @@
+package org.wikibrain.webapi;
+
+import gnu.trove.set.TIntSet;
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
+import org.eclipse.jetty.server.Server;
+import org.eclipse.jetty.server.ServerConnector;
+import org.json.simple.JSONArray;
+import org.json.simple.JSONObject;
+import org.json.simple.JSONValue;
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.wikibrain.core.dao.DaoException;
+import org.wikibrain.core.dao.LocalLinkDao;
+import org.wikibrain.core.dao.LocalPageDao;
+import org.wikibrain.core.dao.matrix.MatrixLocalLinkDao;
+import org.wikibrain.core.lang.Language;
+import org.wikibrain.core.model.LocalLink;
+import org.wikibrain.core.model.LocalPage;
+import org.wikibrain.core.model.Title;
+import org.wikibrain.sr.BaseSRMetric;
+import org.wikibrain.sr.SRMetric;
+import org.wikibrain.sr.SRResult;
+import org.wikibrain.sr.SRResultList;
+import org.wikibrain.sr.normalize.IdentityNormalizer;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.net.URLEncoder;
+import java.util.*;
+
+import static org.junit.Assert.*;
+
+/**
+ * Runs the server in an embedded Jetty against an in-memory SR metric.
+ *
+ * @author Shilad Sen
+ */
+public class TestWikiBrainServer {
+    private static final Language SIMPLE = Language.getByLangCode("simple");
+    private static final long SLOW_MILLIS = 200;
+
+    /**
+     * Directories of the link matrices built by makeLinkDao.
+     */
+    private static final List<File> linkDirs = Collections.synchronizedList(new ArrayList<File>());
+
+    private static Server server;
+    private static WikiBrainServer handler;
+    private static String baseUrl;
+
+    @BeforeClass
+    public static void startServer() throws Exception {
+        handler = makeServer(8);
+        server = new Server(0);
+        server.setHandler(handler);
+        server.start();
+        int port = ((ServerConnector) server.getConnectors()[0]).getLocalPort();
+        baseUrl = "http://localhost:" + port;
+    }
+
+    /**
+     * Creates a server for the simple language backed by a MemoryMetric and a small link graph.
+     */
+    static WikiBrainServer makeServer(int batchThreads) throws IOException, DaoException {
+        Map<Language, SRMetric> metrics = new HashMap<Language, SRMetric>();
+        metrics.put(SIMPLE, new MemoryMetric());
+        return new WikiBrainServer(null, makePageDao(), makeLinkDao(), metrics, batchThreads);
+    }
+
+    @AfterClass
+    public static void stopServer() throws Exception {
+        server.stop();
+        deleteLinkDirs();
+    }
+
+    static void deleteLinkDirs() {
+        synchronized (linkDirs) {
+            for (File dir : linkDirs) {
+                FileUtils.deleteQuietly(dir);
+            }
+            linkDirs.clear();
+        }
+    }
+
+    @Test
+    public void testSimilarity() throws IOException {
+        JSONObject json = get("/similarity?lang=simple&articleIds=" + URLEncoder.encode("3|5", "UTF-8"));
+        assertEquals(true, json.get("success"));
+        assertEquals(1.0 / 3, (Double) json.get("score"), 0.000001);
+    }
+
+    @Test
+    public void testCosimilarity() throws IOException {
+        JSONObject json = get("/cosimilarity?lang=simple&articleIds=" + URLEncoder.encode("1|2|4", "UTF-8"));
+        assertEquals(true, json.get("success"));
+        JSONArray matrix = (JSONArray) json.get("matrix");
+        assertEquals(3, matrix.size());
+        double expected[][] = {
+                { 1.0, 0.5, 0.25 },
+                { 0.5, 1.0, 1.0 / 3 },
+                { 0.25, 1.0 / 3, 1.0 },
+        };
+        for (int i = 0; i < 3; i++) {
+            JSONArray row = (JSONArray) matrix.get(i);
+            assertEquals(3, row.size());
+            for (int j = 0; j < 3; j++) {
+                assertEquals(expected[i][j], (Double) row.get(j), 0.000001);
+            }
+        }
+        assertEquals(3, ((JSONArray) json.get("entities")).size());
+
+        // titles are resolved through the page dao
+        json = get("/cosimilarity?lang=simple&titles=" + URLEncoder.encode("Foo|Bar", "UTF-8"));
+        matrix = (JSONArray) json.get("matrix");
+        assertEquals(0.5, (Double) ((JSONArray) matrix.get(0)).get(1), 0.000001);
+
+        json = get("/cosimilarity?lang=simple");
+        assertEquals(false, json.get("success"));
+    }
+
+    @Test
+    public void testCache() throws IOException {
+        String query = "/similarity?lang=simple&articleIds=" + URLEncoder.encode("7|" + MemoryMetric.SLOW_ID, "UTF-8");
+        long hits = handler.getResponseCache().getHits();
+        long start = System.currentTimeMillis();
+        JSONObject json1 = get(query);
+        assertTrue(System.currentTimeMillis() - start >= SLOW_MILLIS);
+        assertEquals(hits, handler.getResponseCache().getHits());
+
+        // the same parameters in another order hit the cache
+        start = System.currentTimeMillis();
+        JSONObject json2 = get("/similarity?articleIds=" + URLEncoder.encode("7|" + MemoryMetric.SLOW_ID, "UTF-8") + "&lang=simple");
+        assertTrue(System.currentTimeMillis() - start < SLOW_MILLIS);
+        assertEquals(hits + 1, handler.getResponseCache().getHits());
+        assertEquals(json1, json2);
+
+        // errors are not cached
+        get("/similarity?lang=simple&articleIds=1");
+        get("/similarity?lang=simple&articleIds=1");
+        assertEquals(hits + 1, handler.getResponseCache().getHits());
+
+        // batches share the cache
+        JSONArray batch = new JSONArray();
+        batch.add(request("similarity", "articleIds", "7|" + MemoryMetric.SLOW_ID));
+        JSONObject json3 = post("/batch", batch.toJSONString());
+        assertEquals(json1.get("score"), ((JSONObject) ((JSONArray) json3.get("results")).get(0)).get("score"));
+        assertEquals(hits + 2, handler.getResponseCache().getHits());
+    }
+
+    @Test
+    public void testBatch() throws IOException {
+        JSONArray batch = new JSONArray();
+        batch.add(request("similarity", "articleIds", "3|5"));
+        batch.add(request("/cosimilarity", "articleIds", "1|2"));
+        batch.add(request("mostSimilar", "articleId", 10, "n", 3));
+        batch.add(request("noSuchEndpoint"));
+        JSONObject missingLang = new JSONObject();
+        missingLang.put("endpoint", "similarity");
+        missingLang.put("articleIds", "1|2");
+        batch.add(missingLang);
+
+        JSONObject json = post("/batch", batch.toJSONString());
+        assertEquals(true, json.get("success"));
+        JSONArray results = (JSONArray) json.get("results");
+        assertEquals(5, results.size());
+
+        JSONObject sim = (JSONObject) results.get(0);
+        assertEquals(true, sim.get("success"));
+        assertEquals(1.0 / 3, (Double) sim.get("score"), 0.000001);
+
+        JSONObject cosim = (JSONObject) results.get(1);
+        assertEquals(0.5, (Double) ((JSONArray) ((JSONArray) cosim.get("matrix")).get(0)).get(1), 0.000001);
+
+        JSONArray similar = (JSONArray) ((JSONObject) results.get(2)).get("results");
+        assertEquals(3, similar.size());
+        assertEquals(11L, ((JSONObject) similar.get(0)).get("articleId"));
+        assertEquals("Page 11", ((JSONObject) similar.get(0)).get("title"));
+
+        // failed requests are reported in place
+        assertEquals(false, ((JSONObject) results.get(3)).get("success"));
+        assertEquals("Unknown endpoint: /noSuchEndpoint", ((JSONObject) results.get(3)).get("message"));
+        assertEquals(false, ((JSONObject) results.get(4)).get("success"));
+        assertEquals("Missing parameter lang", ((JSONObject) results.get(4)).get("message"));
+    }
+
+    @Test
+    public void testBatchIsConcurrent() throws IOException {
+        JSONArray batch = new JSONArray();
+        for (int i = 0; i < 8; i++) {
+            batch.add(request("similarity", "articleIds", MemoryMetric.SLOW_ID + "|" + i));
+        }
+        long start = System.currentTimeMillis();
+        JSONObject json = post("/batch", batch.toJSONString());
+        long elapsed = System.currentTimeMillis() - start;
+        assertTrue(elapsed < SLOW_MILLIS * 4);
+
+        JSONArray results = (JSONArray) json.get("results");
+        assertEquals(8, results.size());
+        for (int i = 0; i < 8; i++) {
+            double expected = 1.0 / (1 + MemoryMetric.SLOW_ID - i);
+            assertEquals(expected, (Double) ((JSONObject) results.get(i)).get("score"), 0.000001);
+        }
+    }
+
+    @Test
+    public void testBadBatch() throws IOException {
+        assertEquals(false, post("/batch", "not json").get("success"));
+        assertEquals(false, post("/batch", "{\"endpoint\" : \"similarity\"}").get("success"));
+        assertEquals(false, post("/batch", "[{\"lang\" : \"simple\"}]").get("success"));
+
+        JSONObject json = post("/batch", "[]");
+        assertEquals(true, json.get("success"));
+        assertEquals(0, ((JSONArray) json.get("results")).size());
+    }
+
+    @Test
+    public void testPageRank() throws IOException {
+        // top-k
+        JSONObject json = get("/pagerank?lang=simple&n=2");
+        assertEquals(true, json.get("success"));
+        JSONArray top = (JSONArray) json.get("results");
+        assertEquals(2, top.size());
+        JSONObject first = (JSONObject) top.get(0);
+        JSONObject second = (JSONObject) top.get(1);
+        assertEquals(1L, first.get("articleId"));
+        assertEquals("Page 1", first.get("title"));
+        assertEquals(2L, second.get("articleId"));
+        assertTrue((Double) first.get("pageRank") > (Double) second.get("pageRank"));
+
+        // a single page
+        json = get("/pagerank?lang=simple&articleId=2");
+        JSONArray results = (JSONArray) json.get("results");
+        assertEquals(1, results.size());
+        assertEquals(second, results.get(0));
+
+        // many pages, including one without links
+        json = get("/pageRank?lang=simple&articleIds=" + URLEncoder.encode("2|1|50", "UTF-8"));
+        results = (JSONArray) json.get("results");
+        assertEquals(3, results.size());
+        assertEquals(second, results.get(0));
+        assertEquals(first, results.get(1));
+        assertEquals(0.0, (Double) ((JSONObject) results.get(2)).get("pageRank"), 0.0);
+
+        json = get("/pagerank?lang=simple&articleId=1&articleIds=2");
+        assertEquals(false, json.get("success"));
+    }
+
+    private static JSONObject request(String endpoint, Object ... params) {
+        JSONObject obj = new JSONObject();
+        obj.put("endpoint", endpoint);
+        obj.put("lang", "simple");
+        for (int i = 0; i < params.length; i += 2) {
+            obj.put(params[i], params[i + 1]);
+        }
+        return obj;
+    }
+
+    private static JSONObject get(String path) throws IOException {
+        HttpURLConnection conn = (HttpURLConnection) new URL(baseUrl + path).openConnection();
+        return readResponse(conn);
+    }
+
+    private static JSONObject post(String path, String body) throws IOException {
+        HttpURLConnection conn = (HttpURLConnection) new URL(baseUrl + path).openConnection();
+        conn.setRequestMethod("POST");
+        conn.setDoOutput(true);
+        conn.setRequestProperty("Content-Type", "application/json");
+        OutputStream out = conn.getOutputStream();
+        try {
+            out.write(body.getBytes("UTF-8"));
+        } finally {
+            out.close();
+        }
+        return readResponse(conn);
+    }
+
+    private static JSONObject readResponse(HttpURLConnection conn) throws IOException {
+        assertEquals(200, conn.getResponseCode());
+        String body = IOUtils.toString(conn.getInputStream(), "UTF-8");
+        return (JSONObject) JSONValue.parse(body);
+    }
+
+    /**
+     * Serves pages named "Page id" in batches and resolves the titles Foo and Bar to ids 1 and 2.
+     */
+    static LocalPageDao makePageDao() {
+        final Map<String, Integer> titles = new HashMap<String, Integer>();
+        titles.put("Foo", 1);
+        titles.put("Bar", 2);
+        return (LocalPageDao) Proxy.newProxyInstance(
+                LocalPageDao.class.getClassLoader(),
+                new Class[] { LocalPageDao.class },
+                new InvocationHandler() {
+                    @Override
+                    public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+                        if (method.getName().equals("getByIds")) {
+                            Map<Integer, LocalPage> pages = new HashMap<Integer, LocalPage>();
+                            for (Integer id : (Collection<Integer>) args[1]) {
+                                pages.put(id, new LocalPage((Language) args[0], id, "Page " + id));
+                            }
+                            return pages;
+                        } else if (method.getName().equals("getIdByTitle") && args.length == 1) {
+                            Integer id = titles.get(((Title) args[0]).getCanonicalTitle());
+                            return (id == null) ? -1 : id;
+                        } else {
+                            throw new UnsupportedOperationException(method.getName());
+                        }
+                    }
+                });
+    }
+
+    /**
+     * Builds a link matrix in which pages 2 to 6 link to page 1 and page 1 links to page 2,
+     * so page 1 has the highest PageRank and page 2 the second highest.
+     */
+    static LocalLinkDao makeLinkDao() throws IOException, DaoException {
+        File dir = File.createTempFile("links", null);
+        dir.delete();
+        linkDirs.add(dir);
+        LocalLinkDao delegate = (LocalLinkDao) Proxy.newProxyInstance(
+                LocalLinkDao.class.getClassLoader(),
+                new Class[] { LocalLinkDao.class },
+                new InvocationHandler() {
+                    @Override
+                    public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+                        return null;    // the matrix holds all links
+                    }
+                });
+        MatrixLocalLinkDao dao = new MatrixLocalLinkDao(delegate, dir);
+        dao.beginLoad();
+        for (int i = 2; i <= 6; i++) {
+            dao.save(new LocalLink(SIMPLE, "", i, 1, true, 0, true, LocalLink.LocationType.NONE));
+        }
+        dao.save(new LocalLink(SIMPLE, "", 1, 2, true, 0, true, LocalLink.LocationType.NONE));
+        dao.endLoad();
+        return dao;
+    }
+
+    /**
+     * The similarity of two pages is 1 / (1 + the difference of their ids).
+     * Similarities involving SLOW_ID take SLOW_MILLIS to compute.
+     */
+    static class MemoryMetric extends BaseSRMetric {
+        static final int SLOW_ID = 99;
+
+        MemoryMetric() {
+            super("memory", SIMPLE, null, null);
+            setSimilarityNormalizer(new IdentityNormalizer());
+            setMostSimilarNormalizer(new IdentityNormalizer());
+        }
+
+        @Override
+        public SRConfig getConfig() {
+            return new SRConfig();
+        }
+
+        @Override
+        public SRResult similarity(int pageId1, int pageId2, boolean explanations) throws DaoException {
+            if (pageId1 == SLOW_ID || pageId2 == SLOW_ID) {
+                try {
+                    Thread.sleep(SLOW_MILLIS);
+                } catch (InterruptedException e) {
+                    throw new DaoException(e);
+                }
+            }
+            return new SRResult(pageId2, 1.0 / (1 + Math.abs(pageId1 - pageId2)));
+        }
+
+        @Override
+        public SRResultList mostSimilar(int pageId, int maxResults, TIntSet validIds) throws DaoException {
+            SRResultList list = new SRResultList(maxResults);
+            for (int i = 0; i < maxResults; i++) {
+                list.set(i, pageId + i + 1, 1.0 / (2 + i));
+            }
+            return list;
+        }
+    }
+}